@@ -25,6 +25,7 @@ import org.atri.platodb.entity.serialization.FallBackHashCodeCalculator;
 import org.atri.platodb.entity.serialization.SerializableMarshaller;
 import org.atri.platodb.entity.serialization.SerializableUnmarshaller;
 import org.atri.platodb.store.Log;
+import org.atri.platodb.store.data.Metadata;
 
 import java.io.File;
 import java.io.IOException;
@@ -37,7 +38,11 @@ import java.io.Serializable;
  * handled by an {@link org.atri.platodb.entity.EntityStore}.
  *
  * By default it contains a {@link org.atri.platodb.entity.serialization.SerializationRegistry}
- * using gzipped {@link java.io.Serializable} as fallback serialization.
+ * using {@link java.io.Serializable} as fallback serialization.
+ * Entities are not gzipped by the marshaller as values are compressed by the store,
+ * see {@link org.atri.platodb.store.Configuration#setValueCodec(org.atri.platodb.store.codec.Codec)}.
+ * New primary index stores hash the marshalled keys using {@link org.atri.platodb.store.data.MurmurHash3},
+ * see {@link org.atri.platodb.store.Configuration#setKeyHashFunction(int)}.
  * 
  * @author atri
  * @since 2017-mar-17 07:40:44
@@ -48,6 +53,7 @@ public class Configuration extends org.atri.platodb.store.Configuration {
 
   public Configuration(File dataPath) throws IOException {
     super(dataPath);
+    setKeyHashFunction(Metadata.KEY_HASH_FUNCTION_MURMUR3);
   }
 
   private IsolationStrategy defaultIsolation = new AlwaysUpdated();
@@ -59,7 +65,7 @@ public class Configuration extends org.atri.platodb.store.Configuration {
       log.info("Creating a default serialization registry");
       serializationRegistry = new SerializationRegistry();
       serializationRegistry.getHashCodeCalculators().put(Object.class, new FallBackHashCodeCalculator());
-      serializationRegistry.getMarshallers().put(Serializable.class, new SerializableMarshaller(true));
+      serializationRegistry.getMarshallers().put(Serializable.class, new SerializableMarshaller());
       serializationRegistry.getUnmarshallers().put(Serializable.class, new SerializableUnmarshaller());
     }
     return serializationRegistry;
@@ -21,7 +21,12 @@ package org.atri.platodb.entity;
 import org.atri.platodb.entity.serialization.HashCodeCalculator;
 import org.atri.platodb.entity.serialization.Marshaller;
 import org.atri.platodb.entity.serialization.Unmarshaller;
+import org.atri.platodb.store.Durability;
+import org.atri.platodb.store.DurabilityManager;
+import org.atri.platodb.store.Log;
+import org.atri.platodb.store.RetentionManager;
 import org.atri.platodb.store.Store;
+import org.atri.platodb.store.StoreException;
 import org.atri.platodb.store.lock.Lock;
 import org.atri.platodb.store.lock.NativeFSLockFactory;
 import org.atri.platodb.store.sequence.FilebasedSequenceManager;
@@ -34,6 +39,10 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -43,6 +52,8 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  */
 public class EntityStore {
 
+  private static final Log log = new Log(EntityStore.class);
+
   private Queue<RandomAccessFile> metadataRAFs = new ConcurrentLinkedQueue<RandomAccessFile>();
 
   private static class Metadata {
@@ -111,6 +122,9 @@ public class EntityStore {
         readMetadata(metadata, metadataRAF);
         metadata.storeRevision++;
         writeMetadata(metadata, metadataRAF);
+        if (durabilityManager != null) {
+          durabilityManager.dirty(metadataSyncable);
+        }
 
         returnMetdataRAF(metadataRAF);
         return metadata.storeRevision;
@@ -118,6 +132,48 @@ public class EntityStore {
     }.run();
   }
 
+  /** shared by all primary index stores so that a commit is forced as one group, null if writes are never forced. */
+  private DurabilityManager durabilityManager;
+
+  /** forces the metadata file containing the store revision */
+  private final DurabilityManager.Syncable metadataSyncable = new DurabilityManager.Syncable() {
+    public void sync() throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(new File(configuration.getDataPath(), "metadata"), "rw");
+      try {
+        raf.getFD().sync();
+      } finally {
+        raf.close();
+      }
+    }
+  };
+
+  /**
+   * Returns when everything written so far is durable as defined by
+   * {@link org.atri.platodb.store.Configuration#getDurability()}.
+   * Called by {@link Transaction#commit()} and transactionless writes.
+   *
+   * @throws IOException
+   */
+  public void makeDurable() throws IOException {
+    if (durabilityManager != null) {
+      for (Store store : storeByPrimaryIndexName.values()) {
+        store.writePartitionHeaders();
+      }
+      durabilityManager.makeDurable();
+    }
+  }
+
+  public DurabilityManager getDurabilityManager() {
+    return durabilityManager;
+  }
+
+  /** shared by all primary index stores as they share revisions, transactions pin their read revision here. */
+  private RetentionManager retentionManager;
+
+  public RetentionManager getRetentionManager() {
+    return retentionManager;
+  }
+
   private Lock storeWriteLock;
 
   public Lock getStoreWriteLock() {
@@ -156,8 +212,29 @@ public class EntityStore {
     sequenceManager = new FilebasedSequenceManager(sequencePath, configuration.getLockFactory(), configuration.getLockWaitTimeoutMilliseconds());
 
     storeWriteLock = configuration.getLockFactory().makeLock("EntityStore metadata lock");
+
+    if (configuration.getDurability() != Durability.NONE) {
+      durabilityManager = new DurabilityManager(configuration.getDurability(), configuration.getGroupCommitWindowMilliseconds());
+    }
+
+    retentionManager = new RetentionManager(configuration.getRetainedRevisions(), configuration.getRevisionRetentionMilliseconds());
+
+    if (configuration.getAsynchronousExecutor() != null) {
+      asynchronousExecutor = configuration.getAsynchronousExecutor();
+    } else {
+      asynchronousExecutor = Executors.newFixedThreadPool(configuration.getAsynchronousThreads(), new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "PlatoDB asynchronous operation " + configuration.getDataPath().getAbsolutePath());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
   }
 
+  /** shared by all primary index stores, the asynchronous operations of all primary indices run here. */
+  private ExecutorService asynchronousExecutor;
+
   public org.atri.platodb.entity.Configuration getConfiguration() {
     return configuration;
   }
@@ -192,13 +269,45 @@ public class EntityStore {
       org.atri.platodb.store.Configuration storeconf = new org.atri.platodb.store.Configuration(new File(configuration.getDataPath(), primaryIndexName));
       storeconf.setAutomaticRehashCapacityGrowFactor(configuration.getAutomaticRehashCapacityGrowFactor());
       storeconf.setAutomaticRehashThreadshold(configuration.getAutomaticRehashThreadshold());
+      storeconf.setAutomaticRehashing(configuration.isAutomaticRehashing());
+      storeconf.setRehashBatchPositions(configuration.getRehashBatchPositions());
       storeconf.setHashCodesPartitionByteSize(configuration.getHashCodesPartitionByteSize());
       storeconf.setInitialCapacity(configuration.getInitialCapacity());
       storeconf.setKeysPartitionByteSize(configuration.getKeysPartitionByteSize());
       storeconf.setLockFactory(configuration.getLockFactory());      
+      storeconf.setFileAccessFactory(configuration.getFileAccessFactory());
+      storeconf.setFormattingSparse(configuration.isFormattingSparse());
+      storeconf.setPreallocatingPartitions(configuration.isPreallocatingPartitions());
+      storeconf.setPartitionExtentByteSize(configuration.getPartitionExtentByteSize());
+      storeconf.setValueCodec(configuration.getValueCodec());
+      storeconf.setValueCompressionThresholdByteSize(configuration.getValueCompressionThresholdByteSize());
+      storeconf.setChunkedValueThresholdByteSize(configuration.getChunkedValueThresholdByteSize());
+      storeconf.setValueChunkByteSize(configuration.getValueChunkByteSize());
       storeconf.setLockWaitTimeoutMilliseconds(configuration.getLockWaitTimeoutMilliseconds());
       storeconf.setUsingDurablePostingLinks(configuration.isUsingDurablePostingLinks());
       storeconf.setValuesPartitionByteSize(configuration.getValuesPartitionByteSize());
+      storeconf.setDurability(configuration.getDurability());
+      storeconf.setGroupCommitWindowMilliseconds(configuration.getGroupCommitWindowMilliseconds());
+      storeconf.setWriteAheadLogging(configuration.isWriteAheadLogging());
+      storeconf.setWriteAheadLogCheckpointByteSize(configuration.getWriteAheadLogCheckpointByteSize());
+      storeconf.setWriteAheadLogMaximumPendingRecords(configuration.getWriteAheadLogMaximumPendingRecords());
+      storeconf.setAsynchronousExecutor(asynchronousExecutor);
+      storeconf.setParallelBatchedGets(configuration.isParallelBatchedGets());
+      storeconf.setScanBatchSize(configuration.getScanBatchSize());
+      storeconf.setScanBlockByteSize(configuration.getScanBlockByteSize());
+      storeconf.setKeyHashFunction(configuration.getKeyHashFunction());
+      storeconf.setUsingKeySlots(configuration.isUsingKeySlots());
+      storeconf.setKeySlotsMaximumLoadFactor(configuration.getKeySlotsMaximumLoadFactor());
+      storeconf.setUsingBloomFilter(configuration.isUsingBloomFilter());
+      storeconf.setBloomFilterBitsPerKey(configuration.getBloomFilterBitsPerKey());
+      storeconf.setUsingLivenessMaps(configuration.isUsingLivenessMaps());
+      storeconf.setCompactingPartitions(configuration.isCompactingPartitions());
+      storeconf.setCompactionIntervalMilliseconds(configuration.getCompactionIntervalMilliseconds());
+      storeconf.setCompactionDeadRatio(configuration.getCompactionDeadRatio());
+      storeconf.setCompactionBytesPerSecond(configuration.getCompactionBytesPerSecond());
+      storeconf.setCompactionBatchPostings(configuration.getCompactionBatchPostings());
+      storeconf.setRetainedRevisions(configuration.getRetainedRevisions());
+      storeconf.setRevisionRetentionMilliseconds(configuration.getRevisionRetentionMilliseconds());
 
       storeconf.setLockFactory(new NativeFSLockFactory(storeconf.getDataPath()));
 
@@ -206,6 +315,8 @@ public class EntityStore {
       // todo even when only attempting to lock a single store as in Accessor
 
       Store store = new Store(storeconf);
+      store.setDurabilityManager(durabilityManager);
+      store.setRetentionManager(retentionManager);
       store.open();
       storeByPrimaryIndexName.put(primaryIndexName, store);
 
@@ -269,7 +380,7 @@ public class EntityStore {
           primaryKeySequence,
           primaryKeyGetter, primaryKeySetter,
           keyClass, entityClass,
-          keyMarshaller, keyUnmarshaller, keyHashCodeCalculator,
+          keyMarshaller, keyUnmarshaller, keyHashCodeCalculator, store.getKeyHashFunction(),
           entityMarshaller, entityUnmarshaller
       );
 
@@ -302,6 +413,18 @@ public class EntityStore {
 
   public void close() throws IOException {
     // todo abort any transaction, or perhaps allow them to commit?!
+    if (asynchronousExecutor != configuration.getAsynchronousExecutor()) {
+      // let operations already submitted finish
+      asynchronousExecutor.shutdown();
+      try {
+        if (!asynchronousExecutor.awaitTermination(configuration.getLockWaitTimeoutMilliseconds(), TimeUnit.MILLISECONDS)) {
+          log.warn("Timed out waiting for asynchronous operations to finish");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new StoreException("Interrupted while waiting for asynchronous operations to finish", e);
+      }
+    }
     for (PrimaryIndex primaryIndex : primaryIndexByName.values()) {
       primaryIndex.close();
     }
@@ -309,5 +432,8 @@ public class EntityStore {
     for (Store store : storeByPrimaryIndexName.values()) {
       store.close();
     }
+    if (durabilityManager != null) {
+      durabilityManager.sync();
+    }
   }
 }
@@ -5,16 +5,23 @@ import org.atri.platodb.entity.serialization.Marshaller;
 import org.atri.platodb.entity.serialization.Unmarshaller;
 import org.atri.platodb.exceptions.DatabaseException;
 import org.atri.platodb.store.Accessor;
-import org.atri.platodb.store.Cursor;
+import org.atri.platodb.store.Scan;
 import org.atri.platodb.store.Store;
-import org.atri.platodb.store.data.platotrie.KeysPartition;
-import org.atri.platodb.store.data.platotrie.ValuesPartition;
+import org.atri.platodb.store.data.Metadata;
+import org.atri.platodb.store.data.MurmurHash3;
 import org.atri.platodb.store.sequence.SequenceManager;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 /*
  *@author atri
@@ -54,6 +61,8 @@ public class PrimaryIndex<K, E> {
   private Marshaller keyMarshaller;
   private Unmarshaller keyUnmarshaller;
   private HashCodeCalculator keyHashCodeCalculator;
+  /** how key hash codes are calculated, as recorded in the store */
+  private int keyHashFunction;
   private Marshaller entityMarshaller;
   private Unmarshaller entityUnmarshaller;
 
@@ -77,11 +86,12 @@ public class PrimaryIndex<K, E> {
    * @param keyMarshaller
    * @param keyUnmarshaller
    * @param keyHashCodeCalculator
+   * @param keyHashFunction       key hash function recorded in the store
    * @param entityMarshaller
    * @param entityUnmarshaller
    * @see org.atri.platodb.entity.EntityStore#getPrimaryIndex(Class, Class, String)
    */
-  PrimaryIndex(Store store, EntityStore entityStore, String indexName, SequenceManager.Sequence<K> primaryKeySequence, Method primaryKeyGetter, Method primaryKeySetter, Class<K> keyClass, Class<E> entityClass, Marshaller keyMarshaller, Unmarshaller keyUnmarshaller, HashCodeCalculator keyHashCodeCalculator, Marshaller entityMarshaller, Unmarshaller entityUnmarshaller) {
+  PrimaryIndex(Store store, EntityStore entityStore, String indexName, SequenceManager.Sequence<K> primaryKeySequence, Method primaryKeyGetter, Method primaryKeySetter, Class<K> keyClass, Class<E> entityClass, Marshaller keyMarshaller, Unmarshaller keyUnmarshaller, HashCodeCalculator keyHashCodeCalculator, int keyHashFunction, Marshaller entityMarshaller, Unmarshaller entityUnmarshaller) {
     this.store = store;
     this.entityStore = entityStore;
     this.indexName = indexName;
@@ -97,6 +107,7 @@ public class PrimaryIndex<K, E> {
     this.keyMarshaller = keyMarshaller;
     this.keyUnmarshaller = keyUnmarshaller;
     this.keyHashCodeCalculator = keyHashCodeCalculator;
+    this.keyHashFunction = keyHashFunction;
     this.entityMarshaller = entityMarshaller;
     this.entityUnmarshaller = entityUnmarshaller;
   }
@@ -108,8 +119,8 @@ public class PrimaryIndex<K, E> {
 //    byte[] keyBytes = keyMarshaller.marshall(key);
 
     try {
-      long keyHashCode = calculatePrimaryIndexKeyHashCode(key);
       byte[] keyBytes = marshalPrimayIndexKey(key);
+      long keyHashCode = calculatePrimaryIndexKeyHashCode(key, keyBytes);
 
       Accessor accessor = store.borrowAccessor();
       byte[] entityBytes = store.get(accessor, keyBytes, keyHashCode, revision);
@@ -125,6 +136,147 @@ public class PrimaryIndex<K, E> {
   }
 
 
+  /**
+   * Gets many entities at once, considerably faster than one at the time for large batches.
+   *
+   * @param keys
+   * @param revision
+   * @return the entity of each key in iteration order, null where there is no such entity.
+   * @see org.atri.platodb.store.Store#getAll(org.atri.platodb.store.Accessor, byte[][], long[], long)
+   */
+  @SuppressWarnings("unchecked")
+  public List<E> getAll(Collection<K> keys, long revision) {
+    try {
+      byte[][] keysBytes = new byte[keys.size()][];
+      long[] keyHashCodes = new long[keys.size()];
+      int i = 0;
+      for (K key : keys) {
+        keysBytes[i] = marshalPrimayIndexKey(key);
+        keyHashCodes[i] = calculatePrimaryIndexKeyHashCode(key, keysBytes[i]);
+        i++;
+      }
+
+      byte[][] entitiesBytes;
+      Accessor accessor = store.borrowAccessor();
+      try {
+        entitiesBytes = store.getAll(accessor, keysBytes, keyHashCodes, revision);
+      } finally {
+        store.returnAccessor(accessor);
+      }
+
+      List<E> entities = new ArrayList<E>(entitiesBytes.length);
+      for (byte[] entityBytes : entitiesBytes) {
+        entities.add(entityBytes == null ? null : (E) entityUnmarshaller.unmarshall(entityBytes));
+      }
+      return entities;
+    } catch (IOException ioe) {
+      throw new DatabaseException(ioe);
+    }
+  }
+
+  /**
+   * Streams the marshalled entity rather than loading it in to memory.
+   * Use this for entities too large to be unmarshalled as a whole,
+   * e.g. when the entity marshaller writes a raw byte payload.
+   * <p/>
+   * The stream holds on to a store accessor until it is closed, so it must always be closed.
+   * Wrap it using {@link java.nio.channels.Channels#newChannel(java.io.InputStream)}
+   * for a {@link java.nio.channels.ReadableByteChannel}.
+   *
+   * @param key
+   * @param revision
+   * @return the bytes of the marshalled entity, or null if no such entity.
+   */
+  public InputStream getInputStream(K key, long revision) {
+    try {
+      byte[] keyBytes = marshalPrimayIndexKey(key);
+      long keyHashCode = calculatePrimaryIndexKeyHashCode(key, keyBytes);
+
+      final Accessor accessor = store.borrowAccessor();
+      InputStream entityBytes;
+      try {
+        entityBytes = store.getInputStream(accessor, keyBytes, keyHashCode, revision);
+      } catch (IOException ioe) {
+        store.returnAccessor(accessor);
+        throw ioe;
+      }
+      if (entityBytes == null) {
+        store.returnAccessor(accessor);
+        return null;
+      }
+      return new FilterInputStream(entityBytes) {
+        private boolean closed = false;
+
+        @Override
+        public void close() throws IOException {
+          if (!closed) {
+            closed = true;
+            try {
+              super.close();
+            } finally {
+              store.returnAccessor(accessor);
+            }
+          }
+        }
+      };
+    } catch (IOException ioe) {
+      throw new DatabaseException(ioe);
+    }
+  }
+
+  /**
+   * @see #getInputStream(Object, long)
+   */
+  public InputStream getInputStream(K key) {
+    if (getEntityStore().getTxn().isActive()) {
+      throw new UnsupportedOperationException("Entities are not streamed within transactions");
+    }
+    return getInputStream(key, getEntityStore().getTxn().getDefaultReadRevision());
+  }
+
+  /**
+   * Streams a marshalled entity to the store rather than marshalling it in memory.
+   * The bytes must be readable by the entity unmarshaller of this index.
+   * <p/>
+   * The store is write locked until the stream is consumed. The stream is not closed.
+   *
+   * @param key         primary key of the entity
+   * @param entityBytes marshalled entity
+   * @param revision
+   */
+  public void put(K key, InputStream entityBytes, long revision) {
+    try {
+      byte[] keyBytes = marshalPrimayIndexKey(key);
+      long keyHashCode = calculatePrimaryIndexKeyHashCode(key, keyBytes);
+
+      Accessor accessor = store.borrowAccessor();
+      try {
+        store.put(accessor, keyBytes, keyHashCode, entityBytes, revision);
+      } finally {
+        store.returnAccessor(accessor);
+      }
+    } catch (IOException ioe) {
+      throw new DatabaseException(ioe);
+    }
+  }
+
+  /**
+   * Transactionless only.
+   *
+   * @see #put(Object, java.io.InputStream, long)
+   */
+  public void put(K key, InputStream entityBytes) {
+    if (getEntityStore().getTxn().isActive()) {
+      throw new UnsupportedOperationException("Entities are not streamed within transactions");
+    }
+    try {
+      put(key, entityBytes, entityStore.increaseStoreRevision());
+      entityStore.makeDurable();
+    } catch (IOException ioe) {
+      throw new DatabaseException(ioe);
+    }
+  }
+
   public boolean containsKey(final K key) {
 
     try {
@@ -153,8 +305,8 @@ public class PrimaryIndex<K, E> {
 
   public boolean containsKey(K key, long revision) {
     try {
-      long keyHashCode = calculatePrimaryIndexKeyHashCode(key);
       byte[] keyBytes = marshalPrimayIndexKey(key);
+      long keyHashCode = calculatePrimaryIndexKeyHashCode(key, keyBytes);
 
       Accessor accessor = store.borrowAccessor();
       boolean result = store.containsKey(accessor, keyBytes, keyHashCode, revision);
@@ -179,8 +331,8 @@ public class PrimaryIndex<K, E> {
       }
 //    long keyHashCode = keyHashCodeCalculator.calcualteLongHashCode(key);
 //    byte[] keyBytes = keyMarshaller.marshall(key);
-      long keyHashCode = calculatePrimaryIndexKeyHashCode(key);
       byte[] keyBytes = marshalPrimayIndexKey(key);
+      long keyHashCode = calculatePrimaryIndexKeyHashCode(key, keyBytes);
 
       byte[] entityBytes = entityMarshaller.marshall(entity);
 
@@ -205,8 +357,8 @@ public class PrimaryIndex<K, E> {
 //    long keyHashCode = keyHashCodeCalculator.calcualteLongHashCode(key);
 //    byte[] keyBytes = keyMarshaller.marshall(key);
 
-      long keyHashCode = calculatePrimaryIndexKeyHashCode(key);
       byte[] keyBytes = marshalPrimayIndexKey(key);
+      long keyHashCode = calculatePrimaryIndexKeyHashCode(key, keyBytes);
 
 
       Accessor accessor = store.borrowAccessor();
@@ -251,15 +403,12 @@ public class PrimaryIndex<K, E> {
   }
 
   public EntityCursor<K, E> cursor(final long revision) {
-    final Accessor accessor = store.borrowAccessor();
-    final Cursor<KeysPartition.Posting> keysCursor = store.keys();
+    final Scan scan = store.scan(revision, true);
     return new EntityCursor<K, E>() {
-      private KeysPartition.Posting keyPosting = new KeysPartition.Posting();
-      private ValuesPartition.Posting valuePosting = new ValuesPartition.Posting();
 
       public boolean next() {
         try {
-          boolean result = (keyPosting = keysCursor.next(accessor, keyPosting, revision)) != null;
+          boolean result = scan.next();
           key = null;
           value = null;
           return result;
@@ -274,7 +423,7 @@ public class PrimaryIndex<K, E> {
       public K key() {
         try {
           if (key == null) {
-            key = unmarshalPrimaryIndexKey(keyPosting.getBytes());
+            key = unmarshalPrimaryIndexKey(scan.getKey());
           }
           return key;
         } catch (IOException ioe) {
@@ -288,8 +437,10 @@ public class PrimaryIndex<K, E> {
       public E value() {
         try {
           if (value == null) {
-            accessor.getValuesPartition(keyPosting.getValuePostingPartition()).readPosting(valuePosting, keyPosting.getValuePostingPartitionOffset());
-            value = (E) entityUnmarshaller.unmarshall(valuePosting.getBytes());
+            byte[] entityBytes = scan.getValue();
+            if (entityBytes != null) {
+              value = (E) entityUnmarshaller.unmarshall(entityBytes);
+            }
           }
           return value;
         } catch (IOException ioe) {
@@ -303,11 +454,16 @@ public class PrimaryIndex<K, E> {
       }
 
       public void close() {
-        store.returnAccessor(accessor);
+        try {
+          scan.close();
+        } catch (IOException ioe) {
+          throw new DatabaseException(ioe);
+        }
       }
     };
   }
 
+
   public Class<K> getKeyClass() {
     return keyClass;
   }
@@ -446,6 +602,51 @@ public class PrimaryIndex<K, E> {
   }
 
 
+  /**
+   * Gets many entities at once, see {@link #getAll(java.util.Collection, long)}.
+   * Entities created, replaced or removed by the thread local transaction are taken from the transaction.
+   *
+   * @param keys
+   * @return the entity of each key in iteration order, null where there is no such entity.
+   */
+  @SuppressWarnings("unchecked")
+  public List<E> getAll(Collection<K> keys) {
+    try {
+      Transaction txn = getEntityStore().getTxn();
+      if (!txn.isActive()) {
+        return getAll(keys, txn.getDefaultReadRevision());
+      }
+
+      txn.getIsolation().checkVersion(txn);
+
+      List<E> entities = new ArrayList<E>(keys.size());
+      List<K> storedKeys = new ArrayList<K>(keys.size());
+      List<Integer> storedIndices = new ArrayList<Integer>(keys.size());
+      for (K key : keys) {
+        CachedKey cachedKey = new CachedKey(key);
+        if (txn.getRemoved().containsKey(cachedKey)) {
+          entities.add(null);
+        } else if (txn.getCreated().containsKey(cachedKey)) {
+          entities.add((E) txn.getCreated().get(cachedKey).getObject());
+        } else if (txn.getReplaced().containsKey(cachedKey)) {
+          entities.add((E) txn.getReplaced().get(cachedKey).getObject());
+        } else {
+          storedIndices.add(entities.size());
+          storedKeys.add(key);
+          entities.add(null);
+        }
+      }
+      List<E> stored = getAll(storedKeys, txn.getDefaultReadRevision());
+      for (int i = 0; i < stored.size(); i++) {
+        entities.set(storedIndices.get(i), stored.get(i));
+      }
+      return entities;
+
+    } catch (IOException ioe) {
+      throw new DatabaseException(ioe);
+    }
+  }
+
   @SuppressWarnings("unchecked")
   public E put(E entity) {
 
@@ -487,7 +688,9 @@ public class PrimaryIndex<K, E> {
         return v;
       } else {
         // transactionless
-        return put(entity, entityStore.increaseStoreRevision());
+        E v = put(entity, entityStore.increaseStoreRevision());
+        entityStore.makeDurable();
+        return v;
       }
     } catch (IOException ioe) {
       throw new DatabaseException(ioe);
@@ -524,7 +727,9 @@ public class PrimaryIndex<K, E> {
         return v;
       } else {
         // transactionless
-        return remove(key, entityStore.increaseStoreRevision());
+        E v = remove(key, entityStore.increaseStoreRevision());
+        entityStore.makeDurable();
+        return v;
       }
     } catch (IOException ioe) {
       throw new DatabaseException(ioe);
@@ -532,6 +737,87 @@ public class PrimaryIndex<K, E> {
 
   }
 
+  /**
+   * Asynchronous operations are transactionless as the transaction is bound to the calling thread.
+   */
+  private void assertNoTransaction() {
+    if (getEntityStore().getTxn().isActive()) {
+      throw new DatabaseException("Asynchronous operations can not be used within a transaction");
+    }
+  }
+
+  /**
+   * Asynchronous {@link #get(Object, long)} run by the store executor.
+   * The calling thread does not block waiting on disk.
+   *
+   * @param key
+   * @param revision
+   * @return the future entity, {@link java.util.concurrent.ExecutionException} wraps any DatabaseException.
+   * @see org.atri.platodb.store.Configuration#setAsynchronousExecutor(java.util.concurrent.ExecutorService)
+   */
+  public Future<E> getAsync(final K key, final long revision) {
+    return store.getAsynchronousExecutor().submit(new Callable<E>() {
+      public E call() throws Exception {
+        return get(key, revision);
+      }
+    });
+  }
+
+  /**
+   * Asynchronous {@link #get(Object)} in the default read revision of the calling thread.
+   * Must not be called within a transaction.
+   */
+  public Future<E> getAsync(K key) {
+    assertNoTransaction();
+    return getAsync(key, getEntityStore().getTxn().getDefaultReadRevision());
+  }
+
+  /**
+   * Asynchronous transactionless {@link #put(Object)}.
+   * Must not be called within a transaction.
+   */
+  public Future<E> putAsync(final E entity) {
+    assertNoTransaction();
+    return store.getAsynchronousExecutor().submit(new Callable<E>() {
+      public E call() throws Exception {
+        return put(entity);
+      }
+    });
+  }
+
+  /**
+   * Asynchronous transactionless {@link #remove(Object)}.
+   * Must not be called within a transaction.
+   */
+  public Future<E> removeAsync(final K key) {
+    assertNoTransaction();
+    return store.getAsynchronousExecutor().submit(new Callable<E>() {
+      public E call() throws Exception {
+        return remove(key);
+      }
+    });
+  }
+
+  /**
+   * Asynchronous {@link #containsKey(Object, long)}.
+   */
+  public Future<Boolean> containsKeyAsync(final K key, final long revision) {
+    return store.getAsynchronousExecutor().submit(new Callable<Boolean>() {
+      public Boolean call() throws Exception {
+        return containsKey(key, revision);
+      }
+    });
+  }
+
+  /**
+   * Asynchronous {@link #containsKey(Object)} in the default read revision of the calling thread.
+   * Must not be called within a transaction.
+   */
+  public Future<Boolean> containsKeyAsync(K key) {
+    assertNoTransaction();
+    return containsKeyAsync(key, getEntityStore().getTxn().getDefaultReadRevision());
+  }
+
   /**
    * @return
    * @see #count(long)
@@ -543,11 +829,8 @@ public class PrimaryIndex<K, E> {
   /**
    * Counts number of entities in the store.
    * <p/>
-   * A primary index and its store is unaware of how many entities it keeps for a given revision.
-   * In order to find this out it needs to skip through all items using a key cursor
-   * and that can take a long time.
-   * <p/>
-   * Todo this does not take
+   * The store keeps the number of keys in use per revision, see {@link Store#count(Accessor, long)},
+   * revisions it no longer knows about are counted by skipping through all keys.
    *
    * @param revision
    * @return
@@ -556,15 +839,13 @@ public class PrimaryIndex<K, E> {
   public long count(long revision) {
 
     try {
+      long count;
       Accessor accessor = store.borrowAccessor();
-      Cursor<KeysPartition.Posting> cursor = store.keys();
-      KeysPartition.Posting posting = new KeysPartition.Posting();
-      long count = 0;
-      // todo implement ad hoc cursor on keys that only reads the data needed to skip by all items.
-      while ((cursor.next(accessor, posting, revision)) != null) {
-        count++;
+      try {
+        count = store.count(accessor, revision);
+      } finally {
+        store.returnAccessor(accessor);
       }
-      store.returnAccessor(accessor);
 
       Transaction txn = getEntityStore().getTxn();
       if (txn.isActive()) {
@@ -630,7 +911,19 @@ public class PrimaryIndex<K, E> {
 //    return (K) keyUnmarshaller.unmarshall(bytes, 0, bytes.length - indexNameByteArray.length);
   }
 
-  private long calculatePrimaryIndexKeyHashCode(K key) {
+  /**
+   * Stores created by an entity store are hashed using {@link MurmurHash3#hash64(byte[])} of the marshalled key,
+   * older stores with the integer hash code of the {@link HashCodeCalculator}.
+   *
+   * @param key
+   * @param keyBytes marshalled key
+   * @return
+   * @see org.atri.platodb.store.Store#getKeyHashFunction()
+   */
+  private long calculatePrimaryIndexKeyHashCode(K key, byte[] keyBytes) {
+    if (keyHashFunction == Metadata.KEY_HASH_FUNCTION_MURMUR3) {
+      return MurmurHash3.hash64(keyBytes);
+    }
     long result = 0;
 //    result = indexNameHashCode << 32;
     result += keyHashCodeCalculator.calcualteIntegerHashCode(key);
@@ -20,6 +20,7 @@ package org.atri.platodb.entity;
 
 import org.atri.platodb.entity.isolation.IsolationStrategy;
 import org.atri.platodb.exceptions.DatabaseException;
+import org.atri.platodb.store.RetentionManager;
 import org.atri.platodb.store.lock.Lock;
 
 import java.io.IOException;
@@ -53,6 +54,11 @@ public class Transaction {
 
   private EntityStore entityStore;
 
+  /**
+   * the read revision retained until the transaction is committed or aborted
+   */
+  private RetentionManager.Pin pin;
+
   public Transaction(EntityStore entityStore) {
     this.entityStore = entityStore;
     isolation = entityStore.getConfiguration().getDefaultIsolation();
@@ -79,6 +85,7 @@ public class Transaction {
     } catch (IOException ioe) {
       throw new DatabaseException(ioe);
     }
+    pin = entityStore.getRetentionManager().pin(readRevision == Long.MAX_VALUE ? storeRevisionTransactionIsSynchronizedWith : readRevision);
   }
 
   /**
@@ -92,7 +99,7 @@ public class Transaction {
     }
 
     try {
-      return new Lock.With<Long>(entityStore.getStoreWriteLock(), entityStore.getConfiguration().getLockWaitTimeoutMilliseconds()) {
+      long revision = new Lock.With<Long>(entityStore.getStoreWriteLock(), entityStore.getConfiguration().getLockWaitTimeoutMilliseconds()) {
         public Long doBody() throws IOException {
           isolation.checkVersion(Transaction.this);
 
@@ -113,10 +120,14 @@ public class Transaction {
           removed = null;
 
           active = false;
+          pin.release();
 
           return revision;
         }
       }.run();
+      // outside of the lock so concurrent commits can share a group commit
+      entityStore.makeDurable();
+      return revision;
     } catch (IOException ioe) {
       throw new DatabaseException(ioe);
     }
@@ -135,6 +146,7 @@ public class Transaction {
     removed = null;
 
     active = false;
+    pin.release();
 
   }
 
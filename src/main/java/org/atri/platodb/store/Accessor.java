@@ -18,17 +18,24 @@ package org.atri.platodb.store;
  */
 
 
+import org.atri.platodb.store.lock.InProcessLock;
 import org.atri.platodb.store.lock.Lock;
+import org.atri.platodb.store.lock.LockListener;
 import org.atri.platodb.store.data.platotrie.HashCodesPartition;
 import org.atri.platodb.store.data.platotrie.Hashtable;
+import org.atri.platodb.store.data.platotrie.KeySlots;
 import org.atri.platodb.store.data.platotrie.KeysPartition;
 import org.atri.platodb.store.data.platotrie.ValuesPartition;
 import org.atri.platodb.store.data.FileHandler;
 import org.atri.platodb.store.data.Metadata;
+import org.atri.platodb.store.data.PostingsPartition;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Set;
 
 /**
  * File system access interface.
@@ -50,16 +57,37 @@ public class Accessor {
 
   private Metadata metadata;
   private Hashtable hashtable;
+  /** metadata generation when the current hashtable id last was checked */
+  private long hashtableGeneration = -1;
+  private Hashtable rehashingHashtable;
+  /** metadata generation when the rehashing hashtable id last was checked */
+  private long rehashingHashtableGeneration = -1;
+  private KeySlots keySlots;
+  /** metadata generation when the current key slots id last was checked */
+  private long keySlotsGeneration = -1;
   private Map<Integer, HashCodesPartition> hashCodesPartitions = new HashMap<Integer, HashCodesPartition>();
   private Map<Integer, KeysPartition> keyPartitions = new HashMap<Integer, KeysPartition>();
   private Map<Integer, ValuesPartition> valuePartitions = new HashMap<Integer, ValuesPartition>();
+  /** number of partitions retired by compaction when the open partitions last were checked */
+  private long retiredPartitions = 0;
 
 
   Accessor(final Store store, boolean readOnly) throws IOException {
     this.store = store;
     access = readOnly ? "r" : "rw";    
-    storeWriteLock = store.getConfiguration().getLockFactory().makeLock("lock");
-    metadata = new Metadata(store.getConfiguration().getDataPath(), access, store.getConfiguration().getLockFactory());
+    storeWriteLock = new InProcessLock(store.getInProcessWriteLock(), store.getConfiguration().getLockFactory().makeLock("lock"));
+    storeWriteLock.getListeners().add(new LockListener() {
+      public void obtained(Lock lock, int depth) {
+      }
+
+      public void released(Lock lock, int depth) {
+        if (depth == 0) {
+          store.writeLockReleased();
+        }
+      }
+    });
+    metadata = new Metadata(store.getConfiguration().getDataPath(), access, store.getConfiguration().getLockFactory(), store.getConfiguration().getFileAccessFactory(), store.getSharedMetadataHeader());
+    metadata.setDurabilityManager(store.getPartitionsDurabilityManager());
 
     if (metadata.getFile().exists()) {
       metadata.open();
@@ -77,24 +105,29 @@ public class Accessor {
         public Object doBody() throws IOException {
           if (!metadata.getFile().exists()) {
 
-            metadata.format(metadata.getHeaderByteSize());
+            metadata.format(metadata.getHeaderByteSize(), store.getConfiguration().isFormattingSparse());
             metadata.open();
             Metadata.Header mdh = new Metadata.Header();
-            mdh.setFileFormatVersion(0);
+            mdh.setFileFormatVersion(Metadata.FILE_FORMAT_VERSION);
             mdh.setStoreRevision(0);
             mdh.setCurrentHashtableId(0);
             mdh.setCurrentHashCodesPartition(0);
             mdh.setCurrentKeysPartition(0);
             mdh.setValuePostingsCount(0);
+            mdh.setKeyHashFunction(store.getConfiguration().getKeyHashFunction());
             metadata.writeHeader(mdh);
 
-            hashtable = new Hashtable(store.getConfiguration().getDataPath(), 0, access, store.getConfiguration().getLockFactory());
-            hashtable.format((store.getConfiguration().getInitialCapacity() * Hashtable.Posting.POSTING_BYTE_SIZE) + hashtable.getHeaderByteSize());
+            hashtable = new Hashtable(store.getConfiguration().getDataPath(), 0, access, store.getConfiguration().getLockFactory(), store.getConfiguration().getFileAccessFactory());
+            hashtable.setDurabilityManager(store.getPartitionsDurabilityManager());
+            hashtable.format(((long) store.getConfiguration().getInitialCapacity() * Hashtable.Posting.POSTING_BYTE_SIZE) + hashtable.getHeaderByteSize(), store.getConfiguration().isFormattingSparse());
             hashtable.open();
             Hashtable.Header hth = new Hashtable.Header();
             hth.setPostingsCapacity(store.getConfiguration().getInitialCapacity());
             hashtable.writeHeader(hth);
 
+          } else {
+            // created by a concurrent accessor
+            metadata.open();
           }
           return null;
         }
@@ -129,6 +162,12 @@ public class Accessor {
     if (hashtable != null) {
       hashtable.close();
     }
+    if (rehashingHashtable != null) {
+      rehashingHashtable.close();
+    }
+    if (keySlots != null) {
+      keySlots.close();
+    }
     for (FileHandler fileHandler : hashCodesPartitions.values()) {
       fileHandler.close();
     }
@@ -140,44 +179,128 @@ public class Accessor {
     }
     metadata = null;
     hashtable = null;
+    rehashingHashtable = null;
+    keySlots = null;
     hashCodesPartitions = null;
     keyPartitions = null;
     valuePartitions = null;
   }
 
 
+  /**
+   * Closes the partitions retired by compaction since last time, called when the accessor is not in use.
+   *
+   * @param retiredPartitions number of partitions retired so far
+   * @param retiredFiles      files of the retired partitions
+   * @throws IOException
+   * @see Compactor
+   */
+  void closeRetiredPartitions(long retiredPartitions, Set<File> retiredFiles) throws IOException {
+    if (this.retiredPartitions == retiredPartitions) {
+      return;
+    }
+    closeRetiredPartitions(keyPartitions, retiredFiles);
+    closeRetiredPartitions(valuePartitions, retiredFiles);
+    this.retiredPartitions = retiredPartitions;
+  }
+
+  private void closeRetiredPartitions(Map<Integer, ? extends FileHandler<?, ?>> partitions, Set<File> retiredFiles) throws IOException {
+    for (Iterator<? extends FileHandler<?, ?>> iterator = partitions.values().iterator(); iterator.hasNext();) {
+      FileHandler<?, ?> partition = iterator.next();
+      if (retiredFiles.contains(partition.getFile())) {
+        partition.close();
+        iterator.remove();
+      }
+    }
+  }
+
   public Metadata getMetadata() throws IOException {
     return metadata;
   }
 
   public Hashtable getHashtable() throws IOException {
+    long generation = metadata.getGeneration();
+    if (hashtable != null && generation != -1 && generation == hashtableGeneration) {
+      return hashtable;
+    }
     Metadata.Header metadataHeader = new Metadata.Header();
     metadata.readHeader(metadataHeader);
     if (hashtable == null || metadataHeader.getCurrentHashtableId() != hashtable.getVersionId()) {
       if (hashtable != null) {
-        hashtable.getRAF().close();
+        hashtable.close();
       }
-      hashtable = new Hashtable(store.getConfiguration().getDataPath(), metadataHeader.getCurrentHashtableId(), access, store.getConfiguration().getLockFactory());
+      hashtable = new Hashtable(store.getConfiguration().getDataPath(), metadataHeader.getCurrentHashtableId(), access, store.getConfiguration().getLockFactory(), store.getConfiguration().getFileAccessFactory());
+      hashtable.setDurabilityManager(store.getPartitionsDurabilityManager());
       hashtable.open();
     }
+    hashtableGeneration = generation;
     return hashtable;
   }
 
+  /**
+   * @return the hashtable the current hashtable is being rehashed to, or null if not rehashing.
+   */
+  public Hashtable getRehashingHashtable() throws IOException {
+    long generation = metadata.getGeneration();
+    if (generation != -1 && generation == rehashingHashtableGeneration) {
+      return rehashingHashtable;
+    }
+    Metadata.Header metadataHeader = new Metadata.Header();
+    metadata.readHeader(metadataHeader);
+    if (rehashingHashtable != null && metadataHeader.getRehashingHashtableId() != rehashingHashtable.getVersionId()) {
+      rehashingHashtable.close();
+      rehashingHashtable = null;
+    }
+    if (rehashingHashtable == null && metadataHeader.getRehashingHashtableId() != 0) {
+      rehashingHashtable = new Hashtable(store.getConfiguration().getDataPath(), metadataHeader.getRehashingHashtableId(), access, store.getConfiguration().getLockFactory(), store.getConfiguration().getFileAccessFactory());
+      rehashingHashtable.setDurabilityManager(store.getPartitionsDurabilityManager());
+      rehashingHashtable.open();
+    }
+    rehashingHashtableGeneration = generation;
+    return rehashingHashtable;
+  }
+
+  /**
+   * @return the current key slots
+   * @see Configuration#isUsingKeySlots()
+   */
+  public KeySlots getKeySlots() throws IOException {
+    long generation = metadata.getGeneration();
+    if (keySlots != null && generation != -1 && generation == keySlotsGeneration) {
+      return keySlots;
+    }
+    Metadata.Header metadataHeader = new Metadata.Header();
+    metadata.readHeader(metadataHeader);
+    if (keySlots == null || metadataHeader.getCurrentKeySlotsId() != keySlots.getVersionId()) {
+      if (keySlots != null) {
+        keySlots.close();
+      }
+      keySlots = new KeySlots(store.getConfiguration().getDataPath(), metadataHeader.getCurrentKeySlotsId(), access, store.getConfiguration().getLockFactory(), store.getConfiguration().getFileAccessFactory());
+      keySlots.setDurabilityManager(store.getPartitionsDurabilityManager());
+      keySlots.open();
+    }
+    keySlotsGeneration = generation;
+    return keySlots;
+  }
+
   public HashCodesPartition getHashCodesPartition(int partitionId) throws IOException {
     HashCodesPartition partition = hashCodesPartitions.get(partitionId);
     if (partition == null) {
-      partition = new HashCodesPartition(store.getConfiguration().getDataPath(), partitionId, access, store.getConfiguration().getLockFactory());
+      partition = new HashCodesPartition(store.getConfiguration().getDataPath(), partitionId, access, store.getConfiguration().getLockFactory(), store.getConfiguration().getFileAccessFactory());
+      partition.setDurabilityManager(store.getPartitionsDurabilityManager());
       if (!partition.getFile().exists()) {
         final HashCodesPartition p = partition;
         Lock.With with = new Lock.With(storeWriteLock, store.getConfiguration().getLockWaitTimeoutMilliseconds()) {
           public Object doBody() throws IOException {
             if (!p.getFile().exists()) {
-              p.format(store.getConfiguration().getHashCodesPartitionByteSize());
+              format(p, getInitialPartitionByteSize(store.getConfiguration().getHashCodesPartitionByteSize()));
               p.open();
               HashCodesPartition.Header hch = new HashCodesPartition.Header();
               hch.setNextPostingOffset(p.getHeaderByteSize());
               hch.setBytesLeft(store.getConfiguration().getHashCodesPartitionByteSize() - p.getHeaderByteSize());
               p.writeHeader(hch);
+            } else {
+              p.open();
             }
             return null;
           }
@@ -186,6 +309,7 @@ public class Accessor {
       } else {
         partition.open();
       }
+      preallocate(new HashCodesPartition(store.getConfiguration().getDataPath(), partitionId + 1, access, store.getConfiguration().getLockFactory(), store.getConfiguration().getFileAccessFactory()), getInitialPartitionByteSize(store.getConfiguration().getHashCodesPartitionByteSize()));
       hashCodesPartitions.put(partitionId, partition);
     }
     return partition;
@@ -196,7 +320,8 @@ public class Accessor {
   public KeysPartition getKeysPartition(int partitionId, boolean createNew) throws IOException {
     KeysPartition partition = keyPartitions.get(partitionId);
     if (partition == null) {
-      partition = new KeysPartition(store.getConfiguration().getDataPath(), partitionId, access, store.getConfiguration().getLockFactory());
+      partition = new KeysPartition(store.getConfiguration().getDataPath(), partitionId, access, store.getConfiguration().getLockFactory(), store.getConfiguration().getFileAccessFactory());
+      partition.setDurabilityManager(store.getPartitionsDurabilityManager());
 
       if (!partition.getFile().exists() && !createNew) {
         partition.close();
@@ -209,12 +334,14 @@ public class Accessor {
         Lock.With with = new Lock.With(storeWriteLock, store.getConfiguration().getLockWaitTimeoutMilliseconds()) {
           public Object doBody() throws IOException {
             if (!p.getFile().exists()) {
-              p.format(store.getConfiguration().getKeysPartitionByteSize());
+              format(p, getInitialPartitionByteSize(store.getConfiguration().getKeysPartitionByteSize()));
               p.open();
               KeysPartition.Header kh = new KeysPartition.Header();
               kh.setNextPostingOffset(p.getHeaderByteSize());
               kh.setBytesLeft(store.getConfiguration().getKeysPartitionByteSize() - p.getHeaderByteSize());
               p.writeHeader(kh);
+            } else {
+              p.open();
             }
             return null;
           }
@@ -223,6 +350,7 @@ public class Accessor {
       } else {
         partition.open();
       }
+      preallocate(new KeysPartition(store.getConfiguration().getDataPath(), partitionId + 1, access, store.getConfiguration().getLockFactory(), store.getConfiguration().getFileAccessFactory()), getInitialPartitionByteSize(store.getConfiguration().getKeysPartitionByteSize()));
       keyPartitions.put(partitionId, partition);
     }
     return partition;
@@ -231,18 +359,21 @@ public class Accessor {
   public ValuesPartition getValuesPartition(int partitionId) throws IOException {
     ValuesPartition partition = valuePartitions.get(partitionId);
     if (partition == null) {
-      partition = new ValuesPartition(store.getConfiguration().getDataPath(), partitionId, access, store.getConfiguration().getLockFactory());
+      partition = new ValuesPartition(store.getConfiguration().getDataPath(), partitionId, access, store.getConfiguration().getLockFactory(), store.getConfiguration().getFileAccessFactory());
+      partition.setDurabilityManager(store.getPartitionsDurabilityManager());
       if (!partition.getFile().exists()) {
         final ValuesPartition p = partition;
         Lock.With with = new Lock.With(storeWriteLock, store.getConfiguration().getLockWaitTimeoutMilliseconds()) {
           public Object doBody() throws IOException {
             if (!p.getFile().exists()) {
-              p.format(store.getConfiguration().getValuesPartitionByteSize());
+              format(p, getInitialPartitionByteSize(store.getConfiguration().getValuesPartitionByteSize()));
               p.open();
               ValuesPartition.Header vh = new ValuesPartition.Header();
               vh.setNextPostingOffset(p.getHeaderByteSize());
               vh.setBytesLeft(store.getConfiguration().getValuesPartitionByteSize() - p.getHeaderByteSize());
               p.writeHeader(vh);
+            } else {
+              p.open();
             }
             return null;
           }
@@ -251,11 +382,83 @@ public class Accessor {
       } else {
         partition.open();
       }
+      preallocate(new ValuesPartition(store.getConfiguration().getDataPath(), partitionId + 1, access, store.getConfiguration().getLockFactory(), store.getConfiguration().getFileAccessFactory()), getInitialPartitionByteSize(store.getConfiguration().getValuesPartitionByteSize()));
       valuePartitions.put(partitionId, partition);
     }
     return partition;
   }
 
+  /**
+   * Require write lock!
+   * <p/>
+   * Formats a new partition, or moves the preallocated file in place if available.
+   */
+  private void format(FileHandler<?, ?> partition, long size) throws IOException {
+    PartitionPreallocator preallocator = store.getPartitionPreallocator();
+    if (preallocator == null || !preallocator.claim(partition)) {
+      partition.format(size, store.getConfiguration().isFormattingSparse());
+    }
+  }
+
+  /**
+   * @return size of a new partition file
+   */
+  private long getInitialPartitionByteSize(long maximumByteSize) {
+    return Math.min(store.getConfiguration().getPartitionExtentByteSize(), maximumByteSize);
+  }
+
+  /**
+   * Require write lock!
+   * <p/>
+   * Grows the partition file so that it fits the requested posting.
+   */
+  private void allocate(FileHandler<?, ?> partition, long length, long maximumByteSize) throws IOException {
+    partition.allocate(length, store.getConfiguration().getPartitionExtentByteSize(), maximumByteSize, store.getConfiguration().isFormattingSparse());
+  }
+
+  /**
+   * Require write lock!
+   * <p/>
+   * Allocates space for a new posting using the store partition allocator
+   * and grows the partition file so that it fits.
+   *
+   * @return offset of the new posting, or -1 if it does not fit the partition
+   */
+  private <T extends FileHandler<?, ?> & PostingsPartition> long allocatePosting(T partition, int requestedBytes, long maximumByteSize, long createdRevision) throws IOException {
+    long startOffset = store.getPartitionAllocator().allocate(partition, requestedBytes, maximumByteSize, createdRevision);
+    if (startOffset >= 0) {
+      allocate(partition, startOffset + requestedBytes, maximumByteSize);
+    }
+    return startOffset;
+  }
+
+  /**
+   * @param type        partition class
+   * @param partitionId partition id
+   * @return the hash codes, keys or values partition
+   * @throws IOException
+   */
+  public PostingsPartition getPartition(Class<? extends PostingsPartition> type, int partitionId) throws IOException {
+    if (type == HashCodesPartition.class) {
+      return getHashCodesPartition(partitionId);
+    } else if (type == KeysPartition.class) {
+      return getKeysPartition(partitionId, true);
+    } else if (type == ValuesPartition.class) {
+      return getValuesPartition(partitionId);
+    }
+    throw new IllegalArgumentException("Unknown partition type " + type.getName());
+  }
+
+  /**
+   * Schedules background formatting of the partition following the one just opened.
+   */
+  private void preallocate(FileHandler<?, ?> nextPartition, long size) {
+    PartitionPreallocator preallocator = store.getPartitionPreallocator();
+    if (preallocator != null && !"r".equals(access)) {
+      preallocator.preallocate(nextPartition, size);
+    }
+  }
+
   /**
    * Require write lock!
    *
@@ -267,35 +470,30 @@ public class Accessor {
 
     int requestedBytes = posting.getPostingByteSize();
 
+    long maximumByteSize = store.getConfiguration().getValuesPartitionByteSize();
+    long maxPostingByteSize = maximumByteSize - ValuesPartition.HEADER_BYTE_SIZE;
+    if (requestedBytes > maxPostingByteSize) {
+      throw new IOException("Value posting is too large ("+requestedBytes+" bytes) to fit the maximum values postings paritition size of "+ maxPostingByteSize +" bytes.");
+    }
+
     Metadata.Header mdh = new Metadata.Header();
     metadata.readHeader(mdh);
 
     ValuesPartition vp = getValuesPartition(mdh.getCurrentValuesPartition());
-    ValuesPartition.Header vph = new ValuesPartition.Header();
-
-    vp.readHeader(vph);
-    if (vph.getBytesLeft() < requestedBytes) {
-
-      int maxPostingByteSize = store.getConfiguration().getValuesPartitionByteSize() - vp.getHeaderByteSize();
-      if (requestedBytes > maxPostingByteSize) {
-        throw new IOException("Value posting is too large ("+requestedBytes+" bytes) to fit the maximum values postings paritition size of "+ maxPostingByteSize +" bytes.");
-      }
+    long startOffset = allocatePosting(vp, requestedBytes, maximumByteSize, posting.getCreatedRevision());
+    if (startOffset < 0) {
 
       mdh.setCurrentValuesPartition(mdh.getCurrentValuesPartition() + 1);
       metadata.writeHeader(mdh);
 
       vp = getValuesPartition(mdh.getCurrentValuesPartition());
-      vp.readHeader(vph);
+      startOffset = allocatePosting(vp, requestedBytes, maximumByteSize, posting.getCreatedRevision());
     }
 
     RequestPartitionWriterResponse<ValuesPartition> response = new RequestPartitionWriterResponse<ValuesPartition>();
 
     response.fileHandler = vp;
-    response.startOffset = vph.getNextPostingOffset();
-
-    vph.setBytesLeft(vph.getBytesLeft() - requestedBytes);
-    vph.setNextPostingOffset(vph.getNextPostingOffset() + requestedBytes);
-    vp.writeHeader(vph);
+    response.startOffset = startOffset;
 
     return response;
   }
@@ -311,36 +509,32 @@ public class Accessor {
 
     int requestedBytes = posting.getPostingByteSize();
 
+    long maximumByteSize = store.getConfiguration().getKeysPartitionByteSize();
+    long maxPostingByteSize = maximumByteSize - KeysPartition.HEADER_BYTE_SIZE;
+    if (requestedBytes > maxPostingByteSize) {
+      throw new IOException("Key posting is too large ("+requestedBytes+" bytes) to fit the maximum key postings paritition size of "+ maxPostingByteSize +" bytes.");
+    }
+
     Metadata.Header mdh = new Metadata.Header();
     metadata.readHeader(mdh);
 
     KeysPartition kp = getKeysPartition(mdh.getCurrentKeysPartition(), true);
-    KeysPartition.Header kh = new KeysPartition.Header();
-
-    kp.readHeader(kh);
-    if (kh.getBytesLeft() < requestedBytes) {
-
-      int maxPostingByteSize = store.getConfiguration().getKeysPartitionByteSize() - kp.getHeaderByteSize();
-      if (requestedBytes > maxPostingByteSize) {
-        throw new IOException("Key posting is too large ("+requestedBytes+" bytes) to fit the maximum key postings paritition size of "+ maxPostingByteSize +" bytes.");
-      }
-
+    long startOffset = allocatePosting(kp, requestedBytes, maximumByteSize, posting.getCreatedRevision());
+    if (startOffset < 0) {
 
       mdh.setCurrentKeysPartition(mdh.getCurrentKeysPartition() + 1);
       metadata.writeHeader(mdh);
 
       kp = getKeysPartition(mdh.getCurrentKeysPartition(), true);
-      kp.readHeader(kh);
+      startOffset = allocatePosting(kp, requestedBytes, maximumByteSize, posting.getCreatedRevision());
     }
 
+    store.keyPostingAppended(kp, startOffset, posting);
+
     RequestPartitionWriterResponse<KeysPartition> response = new RequestPartitionWriterResponse<KeysPartition>();
 
     response.fileHandler = kp;
-    response.startOffset = kh.getNextPostingOffset();
-
-    kh.setBytesLeft(kh.getBytesLeft() - requestedBytes);
-    kh.setNextPostingOffset(kh.getNextPostingOffset() + requestedBytes);
-    kp.writeHeader(kh);
+    response.startOffset = startOffset;
 
     return response;
   }
@@ -356,49 +550,43 @@ public class Accessor {
 
     int requestedBytes = posting.getPostingByteSize();
 
+    long maximumByteSize = store.getConfiguration().getHashCodesPartitionByteSize();
+    long maxPostingByteSize = maximumByteSize - HashCodesPartition.HEADER_BYTE_SIZE;
+    if (requestedBytes > maxPostingByteSize) {
+      throw new IOException("Hash code posting is too large ("+requestedBytes+" bytes) to fit the maximum hash code postings paritition size of "+ maxPostingByteSize +" bytes.");
+    }
+
     Metadata.Header mdh = new Metadata.Header();
     metadata.readHeader(mdh);
 
     HashCodesPartition hcp = getHashCodesPartition(mdh.getCurrentHashCodesPartition());
-    HashCodesPartition.Header hch = new HashCodesPartition.Header();
-
-    hcp.readHeader(hch);
-    if (hch.getBytesLeft() < requestedBytes) {
-
-      int maxPostingByteSize = store.getConfiguration().getHashCodesPartitionByteSize() - hcp.getHeaderByteSize();
-      if (requestedBytes > maxPostingByteSize) {
-        throw new IOException("Hash code posting is too large ("+requestedBytes+" bytes) to fit the maximum hash code postings paritition size of "+ maxPostingByteSize +" bytes.");
-      }
-
+    long startOffset = allocatePosting(hcp, requestedBytes, maximumByteSize, posting.getCreatedRevision());
+    if (startOffset < 0) {
 
       mdh.setCurrentHashCodesPartition(mdh.getCurrentHashCodesPartition() + 1);
       metadata.writeHeader(mdh);
 
       hcp = getHashCodesPartition(mdh.getCurrentHashCodesPartition());
-      hcp.readHeader(hch);
+      startOffset = allocatePosting(hcp, requestedBytes, maximumByteSize, posting.getCreatedRevision());
     }
 
     RequestPartitionWriterResponse<HashCodesPartition> response = new RequestPartitionWriterResponse<HashCodesPartition>();
 
     response.fileHandler = hcp;
-    response.startOffset = hch.getNextPostingOffset();
-
-    hch.setBytesLeft(hch.getBytesLeft() - requestedBytes);
-    hch.setNextPostingOffset(hch.getNextPostingOffset() + requestedBytes);
-    hcp.writeHeader(hch);
+    response.startOffset = startOffset;
 
     return response;
   }
 
   public static class RequestPartitionWriterResponse<T extends FileHandler> {
     private T fileHandler;
-    private int startOffset;
+    private long startOffset;
 
     public T getFileHandler() {
       return fileHandler;
     }
 
-    public int getStartOffset() {
+    public long getStartOffset() {
       return startOffset;
     }
   }
@@ -0,0 +1,206 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.atri.platodb.store.data.FileHandler;
+import org.atri.platodb.store.data.MurmurHash3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In memory Bloom filter of all keys ever put in a store, used to answer that a key does not exist
+ * without reading any postings.
+ * <p/>
+ * Keys are never removed from the filter. A key that has been removed might still exist
+ * in an older revision, and it is at worst a false positive that is resolved by the postings.
+ * <p/>
+ * Bits are only set by the thread holding the store write lock and read without locking.
+ *
+ * @author atri
+ * @since 2017-sep-16 19:12:37
+ */
+public class BloomFilter {
+
+  public static final String SUFFIX = "bf";
+
+  public static final int FILE_FORMAT_VERSION = 0;
+
+  /** number of keys the filter is sized for */
+  private final long expectedKeys;
+  private final int bitsPerKey;
+  private final int hashFunctions;
+  private final long bits;
+  private final AtomicLongArray words;
+
+  /** number of added keys that set at least one bit, guarded by the store write lock */
+  private long keys;
+
+  /**
+   * @param expectedKeys number of keys the filter is sized for
+   * @param bitsPerKey   bits per expected key, 10 gives about one percent false positives
+   */
+  public BloomFilter(long expectedKeys, int bitsPerKey) {
+    if (expectedKeys < 1 || bitsPerKey < 1) {
+      throw new IllegalArgumentException("Expected keys and bits per key must be greater than 0");
+    }
+    this.expectedKeys = expectedKeys;
+    this.bitsPerKey = bitsPerKey;
+    hashFunctions = Math.max(1, (int) Math.round(bitsPerKey * Math.log(2)));
+    int words = (int) Math.min(Integer.MAX_VALUE, (expectedKeys * bitsPerKey + 63) / 64);
+    bits = 64l * words;
+    this.words = new AtomicLongArray(words);
+  }
+
+  /**
+   * @param directory store directory
+   * @return the file the filter is persisted to when the store is closed
+   */
+  public static File getFile(File directory) {
+    return new File(directory, FileHandler.fileName(0, SUFFIX));
+  }
+
+  /**
+   * Require write lock!
+   *
+   * @param key
+   * @return true if the key was not already in the filter, false if it was or is a false positive.
+   */
+  public boolean add(byte[] key) {
+    long hashCode = MurmurHash3.hash64(key);
+    long increment = MurmurHash3.fmix64(hashCode) | 1;
+    boolean added = false;
+    for (int i = 0; i < hashFunctions; i++) {
+      long bit = (hashCode & Long.MAX_VALUE) % bits;
+      int word = (int) (bit >>> 6);
+      long mask = 1l << bit;
+      long value = words.get(word);
+      if ((value & mask) == 0) {
+        words.set(word, value | mask);
+        added = true;
+      }
+      hashCode += increment;
+    }
+    if (added) {
+      keys++;
+    }
+    return added;
+  }
+
+  /**
+   * @param key
+   * @return false if the key has never been added, true if it might have been.
+   */
+  public boolean mightContain(byte[] key) {
+    long hashCode = MurmurHash3.hash64(key);
+    long increment = MurmurHash3.fmix64(hashCode) | 1;
+    for (int i = 0; i < hashFunctions; i++) {
+      long bit = (hashCode & Long.MAX_VALUE) % bits;
+      if ((words.get((int) (bit >>> 6)) & (1l << bit)) == 0) {
+        return false;
+      }
+      hashCode += increment;
+    }
+    return true;
+  }
+
+  /**
+   * @return true if more keys than the filter is sized for has been added,
+   *         i.e. the false positive rate is higher than intended.
+   */
+  public boolean isFull() {
+    return keys > expectedKeys;
+  }
+
+  public long getExpectedKeys() {
+    return expectedKeys;
+  }
+
+  public int getBitsPerKey() {
+    return bitsPerKey;
+  }
+
+  public long getKeys() {
+    return keys;
+  }
+
+  /**
+   * Writes to a temporary file that replaces the file, a partially written filter is thus never read.
+   *
+   * @param file
+   * @throws IOException
+   */
+  public void write(File file) throws IOException {
+    File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 65536));
+    try {
+      out.writeInt(FILE_FORMAT_VERSION);
+      out.writeLong(expectedKeys);
+      out.writeInt(bitsPerKey);
+      out.writeLong(keys);
+      out.writeInt(words.length());
+      for (int i = 0; i < words.length(); i++) {
+        out.writeLong(words.get(i));
+      }
+    } finally {
+      out.close();
+    }
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Could not delete " + file.getAbsolutePath());
+    }
+    if (!temporary.renameTo(file)) {
+      throw new IOException("Could not rename " + temporary.getAbsolutePath() + " to " + file.getAbsolutePath());
+    }
+  }
+
+  /**
+   * @param file
+   * @return the filter written to the file
+   * @throws IOException if the file is not a complete filter
+   */
+  public static BloomFilter read(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+    try {
+      int fileFormatVersion = in.readInt();
+      if (fileFormatVersion != FILE_FORMAT_VERSION) {
+        throw new StoreException("Unknown Bloom filter file format version " + fileFormatVersion + " in " + file.getAbsolutePath());
+      }
+      BloomFilter bloomFilter = new BloomFilter(in.readLong(), in.readInt());
+      bloomFilter.keys = in.readLong();
+      int words = in.readInt();
+      if (words != bloomFilter.words.length()) {
+        throw new StoreException("Expected " + bloomFilter.words.length() + " words in " + file.getAbsolutePath() + " but found " + words);
+      }
+      for (int i = 0; i < words; i++) {
+        bloomFilter.words.set(i, in.readLong());
+      }
+      return bloomFilter;
+    } finally {
+      in.close();
+    }
+  }
+
+}
@@ -0,0 +1,102 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.atri.platodb.store.data.platotrie.ValuesPartition;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a large value from the chunk postings listed in its manifest
+ * one chunk at the time rather than loading the whole value in to memory.
+ * <p/>
+ * Chunk postings are never modified once written, deleting a value only flags the postings,
+ * so no lock is held while reading.
+ *
+ * @see org.atri.platodb.store.data.platotrie.ValuesPartition.ChunkManifest
+ * @author atri
+ * @since 2017-aug-24 21:37:12
+ */
+class ChunkedValueInputStream extends InputStream {
+
+  private Accessor accessor;
+  private ValuesPartition.ChunkManifest manifest;
+
+  private int chunk = -1;
+  private ValuesPartition.Posting chunkPosting = new ValuesPartition.Posting();
+  /** the current chunk, decompressed */
+  private byte[] chunkBytes;
+  private int chunkOffset = 0;
+
+  ChunkedValueInputStream(Accessor accessor, ValuesPartition.ChunkManifest manifest) {
+    this.accessor = accessor;
+    this.manifest = manifest;
+  }
+
+  /**
+   * @return false if there are no more chunks
+   */
+  private boolean nextChunk() throws IOException {
+    while (chunkBytes == null || chunkOffset == chunkBytes.length) {
+      if (manifest == null || chunk + 1 >= manifest.getChunksCount()) {
+        return false;
+      }
+      chunk++;
+      accessor.getValuesPartition(manifest.getPartition(chunk)).readPosting(chunkPosting, manifest.getOffset(chunk));
+      chunkBytes = Store.getBytes(chunkPosting);
+      chunkOffset = 0;
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!nextChunk()) {
+      return -1;
+    }
+    return chunkBytes[chunkOffset++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    if (!nextChunk()) {
+      return -1;
+    }
+    int read = Math.min(length, chunkBytes.length - chunkOffset);
+    System.arraycopy(chunkBytes, chunkOffset, bytes, offset, read);
+    chunkOffset += read;
+    return read;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return chunkBytes == null ? 0 : chunkBytes.length - chunkOffset;
+  }
+
+  @Override
+  public void close() throws IOException {
+    manifest = null;
+    chunkBytes = null;
+  }
+
+}
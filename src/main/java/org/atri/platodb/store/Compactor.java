@@ -0,0 +1,974 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.atri.platodb.store.data.BlockReadingFileAccess;
+import org.atri.platodb.store.data.FileHandler;
+import org.atri.platodb.store.data.FileHandler.Posting;
+import org.atri.platodb.store.data.Metadata;
+import org.atri.platodb.store.data.platotrie.HashCodesPartition;
+import org.atri.platodb.store.data.platotrie.Hashtable;
+import org.atri.platodb.store.data.platotrie.KeysPartition;
+import org.atri.platodb.store.data.platotrie.ValuesPartition;
+import org.atri.platodb.store.lock.Lock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Reclaims the space of keys and values partitions that mostly contain dead postings,
+ * i.e. postings relocated by an earlier compaction and postings deleted in or before
+ * {@link Store#getOldestRetainedRevision()} that no read will ever see again.
+ * <p/>
+ * A cycle first surveys the partitions without locking, reading them in large sequential blocks,
+ * and selects those with at least {@link Configuration#getCompactionDeadRatio()} dead bytes.
+ * It then sweeps all keys partitions in batches of {@link Configuration#getCompactionBatchPostings()}
+ * postings, holding the store write lock one batch at the time.
+ * Live postings in the selected partitions are copied to the current partitions,
+ * the chain link or key slot pointing at the original is repointed at the copy
+ * and the original is flagged as {@link Posting#FLAG_RELOCATED}. Dead key postings are unlinked.
+ * <p/>
+ * Readers that followed a link to an original before it was relocated still see it as it was,
+ * so the selected partitions are retired rather than deleted, and deleted once every accessor
+ * borrowed at the time has been returned. Accessors close their handles to retired partitions
+ * when borrowed. Retired partitions not yet deleted are listed in a file and deleted when the store is opened.
+ * <p/>
+ * A scan that passed an original before it was relocated would return the entry again when it reaches the copy,
+ * so no postings are relocated while any {@link Scan} is open. A cycle is stopped at the first batch
+ * that finds a scan open, and retried the next time. {@link Store#keys()} cursors used directly are not tracked
+ * and might return an entry twice if iterated concurrently with a cycle. Hash code partitions are not compacted.
+ * <p/>
+ * Cycles run in a background thread every {@link Configuration#getCompactionIntervalMilliseconds()}
+ * when {@link Configuration#isCompactingPartitions()}, limited to {@link Configuration#getCompactionBytesPerSecond()},
+ * or in the calling thread of {@link Store#optimize()}. One cycle runs at the time.
+ *
+ * @author atri
+ * @since 2017-sep-19 20:41:13
+ */
+public class Compactor {
+
+  private static final Log log = new Log(Compactor.class);
+
+  public static final String SUFFIX = "rp";
+
+  public static final int FILE_FORMAT_VERSION = 0;
+
+  private final Store store;
+
+  /** held while running a cycle */
+  private final Object cycleMonitor = new Object();
+  /** waited on by the background thread between cycles and when rate limited */
+  private final Object waitMonitor = new Object();
+
+  private volatile Thread thread;
+  private volatile boolean stopping;
+
+  /** rate limit of the current cycle, bytes read and written since it started */
+  private long throttleStart;
+  private long throttledBytes;
+
+  /** number of partitions retired so far, guarded by this */
+  private long retiredPartitions;
+  /** retired partition file -> the number of partitions retired when it was retired, guarded by this */
+  private final Map<File, Long> retired = new HashMap<File, Long>();
+  /** borrowed accessor -> the number of partitions retired when it was borrowed, guarded by this */
+  private final Map<Accessor, Long> borrowed = new IdentityHashMap<Accessor, Long>();
+  /** files of all partitions retired since the store was opened, replaced when changed */
+  private volatile Set<File> retiredFiles = Collections.emptySet();
+
+  private volatile boolean compacting;
+  private volatile long cycles;
+  private volatile long partitionsSelected;
+  private volatile long postingsSwept;
+  private volatile long postingsRelocated;
+  private volatile long postingsUnlinked;
+  private volatile long partitionsReclaimed;
+  private volatile long bytesReclaimed;
+
+  public Compactor(Store store) {
+    this.store = store;
+  }
+
+  /**
+   * @param directory store directory
+   * @return the file listing retired partitions not yet deleted
+   */
+  public static File getFile(File directory) {
+    return new File(directory, FileHandler.fileName(0, SUFFIX));
+  }
+
+  /**
+   * Deletes the partitions retired but not deleted when the store last was closed,
+   * called when opening the store before any partition is read.
+   *
+   * @throws IOException
+   */
+  public void open() throws IOException {
+    File file = getFile(store.getConfiguration().getDataPath());
+    if (!file.exists()) {
+      return;
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      int fileFormatVersion = in.readInt();
+      if (fileFormatVersion != FILE_FORMAT_VERSION) {
+        throw new StoreException("Unknown retired partitions file format version " + fileFormatVersion + " in " + file.getAbsolutePath());
+      }
+      for (int partitions = in.readInt(); partitions > 0; partitions--) {
+        File partition = new File(store.getConfiguration().getDataPath(), in.readUTF());
+        if (partition.exists() && !partition.delete()) {
+          throw new IOException("Could not delete retired partition " + partition.getAbsolutePath());
+        }
+      }
+    } finally {
+      in.close();
+    }
+    if (!file.delete()) {
+      throw new IOException("Could not delete " + file.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Starts the background thread if {@link Configuration#isCompactingPartitions()}.
+   */
+  public void start() {
+    if (!store.getConfiguration().isCompactingPartitions() || thread != null) {
+      return;
+    }
+    stopping = false;
+    thread = new Thread("PlatoDB compactor " + store.getConfiguration().getDataPath().getAbsolutePath()) {
+      @Override
+      public void run() {
+        while (!stopping) {
+          synchronized (waitMonitor) {
+            try {
+              if (!stopping) {
+                waitMonitor.wait(store.getConfiguration().getCompactionIntervalMilliseconds());
+              }
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+          if (stopping) {
+            return;
+          }
+          try {
+            deleteRetiredPartitions();
+            compact(false);
+          } catch (Exception e) {
+            log.error("Compaction failed, it will be retried.", e);
+          }
+        }
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @return true if the background thread is running
+   */
+  public boolean isRunning() {
+    return thread != null;
+  }
+
+  /**
+   * Stops the background thread after the batch it is working on,
+   * the postings relocated so far stay relocated.
+   *
+   * @throws IOException
+   */
+  public void stop() throws IOException {
+    Thread thread = this.thread;
+    if (thread == null) {
+      return;
+    }
+    stopping = true;
+    synchronized (waitMonitor) {
+      waitMonitor.notifyAll();
+    }
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StoreException("Interrupted while waiting for the compactor to stop", e);
+    } finally {
+      stopping = false;
+      this.thread = null;
+    }
+  }
+
+  /**
+   * Deletes all retired partitions, called when closing the store after all accessors has been closed.
+   * Partitions that can not be deleted are listed and deleted when the store is opened.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    synchronized (this) {
+      borrowed.clear();
+    }
+    deleteRetiredPartitions();
+  }
+
+  //
+  // retired partitions
+  //
+
+  /**
+   * @param file partition file
+   * @return true if the partition has been retired and must not be read by new readers.
+   */
+  public boolean isRetired(File file) {
+    return retiredFiles.contains(file);
+  }
+
+  /**
+   * Called by the store when an accessor is borrowed.
+   * Closes the partitions retired since the accessor last was borrowed.
+   */
+  void borrowed(Accessor accessor) throws IOException {
+    synchronized (this) {
+      borrowed.put(accessor, retiredPartitions);
+      accessor.closeRetiredPartitions(retiredPartitions, retiredFiles);
+    }
+  }
+
+  /**
+   * Require write lock!
+   * <p/>
+   * Closes the partitions retired since last time of an accessor that is not borrowed from the store,
+   * i.e. the one of the write-ahead log applier.
+   */
+  synchronized void closeRetiredPartitions(Accessor accessor) throws IOException {
+    accessor.closeRetiredPartitions(retiredPartitions, retiredFiles);
+  }
+
+  /**
+   * Called by the store when an accessor is returned.
+   */
+  synchronized void returned(Accessor accessor) {
+    borrowed.remove(accessor);
+  }
+
+  /**
+   * Require write lock!
+   * <p/>
+   * Stops allocating from the partitions, they are deleted when no accessor borrowed before now is in use.
+   */
+  private void retire(Accessor accessor, Set<Integer> keysPartitions, Set<Integer> valuesPartitions) throws IOException {
+    Set<File> files = new HashSet<File>();
+    for (int keysPartitionId : keysPartitions) {
+      KeysPartition keysPartition = accessor.getKeysPartition(keysPartitionId, false);
+      store.getPartitionAllocator().forget(keysPartition);
+      store.forgetLivenessMap(keysPartitionId);
+      files.add(keysPartition.getFile());
+    }
+    for (int valuesPartitionId : valuesPartitions) {
+      ValuesPartition valuesPartition = accessor.getValuesPartition(valuesPartitionId);
+      store.getPartitionAllocator().forget(valuesPartition);
+      files.add(valuesPartition.getFile());
+    }
+    synchronized (this) {
+      retiredPartitions += files.size();
+      for (File file : files) {
+        retired.put(file, retiredPartitions);
+      }
+      Set<File> retiredFiles = new HashSet<File>(this.retiredFiles);
+      retiredFiles.addAll(files);
+      this.retiredFiles = retiredFiles;
+      writeRetiredPartitions();
+    }
+  }
+
+  /**
+   * Deletes the retired partitions that no borrowed accessor might be reading,
+   * after forcing the postings that no longer point at them.
+   *
+   * @throws IOException
+   */
+  public void deleteRetiredPartitions() throws IOException {
+    synchronized (this) {
+      if (retired.isEmpty()) {
+        return;
+      }
+      long oldestBorrowed = retiredPartitions;
+      for (long borrowedAt : borrowed.values()) {
+        oldestBorrowed = Math.min(oldestBorrowed, borrowedAt);
+      }
+      boolean deleting = false;
+      for (long retiredAt : retired.values()) {
+        if (retiredAt <= oldestBorrowed) {
+          deleting = true;
+          break;
+        }
+      }
+      if (!deleting) {
+        return;
+      }
+      DurabilityManager durabilityManager = store.getPartitionsDurabilityManager();
+      if (durabilityManager != null) {
+        durabilityManager.sync();
+      }
+      for (Iterator<Map.Entry<File, Long>> iterator = retired.entrySet().iterator(); iterator.hasNext();) {
+        Map.Entry<File, Long> entry = iterator.next();
+        if (entry.getValue() > oldestBorrowed) {
+          continue;
+        }
+        long length = entry.getKey().length();
+        if (entry.getKey().exists() && !entry.getKey().delete()) {
+          log.warn("Could not delete retired partition " + entry.getKey().getAbsolutePath() + ", it will be retried.");
+          continue;
+        }
+        iterator.remove();
+        partitionsReclaimed++;
+        bytesReclaimed += length;
+      }
+      writeRetiredPartitions();
+    }
+  }
+
+  /**
+   * Writes the list of retired partitions not yet deleted to a temporary file that replaces the file,
+   * or deletes the file if there are none.
+   */
+  private void writeRetiredPartitions() throws IOException {
+    File file = getFile(store.getConfiguration().getDataPath());
+    if (retired.isEmpty()) {
+      if (file.exists() && !file.delete()) {
+        throw new IOException("Could not delete " + file.getAbsolutePath());
+      }
+      return;
+    }
+    File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+    try {
+      out.writeInt(FILE_FORMAT_VERSION);
+      out.writeInt(retired.size());
+      for (File partition : retired.keySet()) {
+        out.writeUTF(partition.getName());
+      }
+    } finally {
+      out.close();
+    }
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Could not delete " + file.getAbsolutePath());
+    }
+    if (!temporary.renameTo(file)) {
+      throw new IOException("Could not rename " + temporary.getAbsolutePath() + " to " + file.getAbsolutePath());
+    }
+  }
+
+  //
+  // cycle
+  //
+
+  /**
+   * Runs one compaction cycle in the calling thread. Must not be called while holding the store write lock.
+   *
+   * @param optimizing if true all partitions with any dead postings are selected and the rate is not limited.
+   * @return false if there was nothing to compact or the cycle was stopped.
+   * @throws IOException
+   */
+  public boolean compact(boolean optimizing) throws IOException {
+    synchronized (cycleMonitor) {
+      long ms = System.currentTimeMillis();
+      throttleStart = ms;
+      throttledBytes = 0;
+      compacting = true;
+      Sweep sweep = new Sweep();
+      Accessor accessor = store.borrowAccessor();
+      try {
+        if (store.getRetentionManager().isScanning()) {
+          log.debug("Not compacting while scans are open.");
+          return false;
+        }
+        if (!survey(accessor, sweep, optimizing)) {
+          return false;
+        }
+        partitionsSelected += sweep.keysPartitions.size() + sweep.valuesPartitions.size();
+        if (!sweep(accessor, sweep, optimizing)) {
+          return false;
+        }
+        final Accessor retiring = accessor;
+        final Sweep retired = sweep;
+        new Lock.With<Object>(accessor.getStoreWriteLock(), store.getConfiguration().getLockWaitTimeoutMilliseconds()) {
+          public Object doBody() throws IOException {
+            retire(retiring, retired.keysPartitions, retired.valuesPartitions);
+            return null;
+          }
+        }.run();
+      } finally {
+        store.returnAccessor(accessor);
+        compacting = false;
+      }
+      cycles++;
+      deleteRetiredPartitions();
+      if (log.isInfo()) {
+        log.info("Compacted " + sweep.keysPartitions.size() + " keys partitions and " + sweep.valuesPartitions.size()
+            + " values partitions, relocated " + sweep.relocated + " and unlinked " + sweep.unlinked
+            + " postings in " + (System.currentTimeMillis() - ms) + " milliseconds.");
+      }
+      return true;
+    }
+  }
+
+  /**
+   * State of a cycle.
+   */
+  private static class Sweep {
+    /** revision postings deleted in or before are dead, read when the cycle started */
+    private long oldestRetainedRevision;
+    private final Set<Integer> keysPartitions = new TreeSet<Integer>();
+    private final Set<Integer> valuesPartitions = new TreeSet<Integer>();
+    /** the lowest selected values partition id */
+    private int valuesPartitionsFrom = Integer.MAX_VALUE;
+
+    /** the keys partition the sweep ends in and the end of its postings, set when the sweep starts */
+    private int lastKeysPartition = -1;
+    private long lastKeysPartitionEnd;
+
+    /** next posting to sweep */
+    private int keysPartition = 0;
+    private long offset = KeysPartition.HEADER_BYTE_SIZE;
+
+    private long relocated;
+    private long unlinked;
+
+    private boolean isSelectedValuesPartition(int valuesPartitionId) {
+      return valuesPartitionId >= valuesPartitionsFrom && valuesPartitions.contains(valuesPartitionId);
+    }
+  }
+
+  /**
+   * @return true if the posting is relocated or deleted in a revision no longer retained.
+   */
+  private boolean isDead(Posting posting, long oldestRetainedRevision) {
+    return posting.getFlag() == Posting.FLAG_RELOCATED
+        || (posting.getFlag() == Posting.FLAG_DELETED && posting.getDeletedRevision() <= oldestRetainedRevision);
+  }
+
+  /**
+   * Selects partitions to compact, reading without locking.
+   *
+   * @return false if no partition was selected or the cycle was stopped.
+   */
+  private boolean survey(Accessor accessor, final Sweep sweep, final boolean optimizing) throws IOException {
+    sweep.oldestRetainedRevision = store.getOldestRetainedRevision();
+    Metadata.Header mdh = new Metadata.Header();
+    accessor.getMetadata().readHeader(mdh);
+
+    // the current partitions are allocated from and never selected
+    KeysPartition.Posting keyPosting = new KeysPartition.Posting();
+    for (int keysPartitionId = 0; keysPartitionId < mdh.getCurrentKeysPartition(); keysPartitionId++) {
+      KeysPartition keysPartition = accessor.getKeysPartition(keysPartitionId, false);
+      if (keysPartition == null || isRetired(keysPartition.getFile())) {
+        continue;
+      }
+      BlockReadingFileAccess block = new BlockReadingFileAccess(keysPartition.getFileAccess(), store.getConfiguration().getScanBlockByteSize());
+      final long[] dead = new long[1];
+      long offset = keysPartition.getHeaderByteSize();
+      LivenessMap livenessMap = store.getLivenessMap(keysPartitionId);
+      if (livenessMap != null) {
+        // postings in use are never read, nor those known to be dead
+        for (int posting = 0; posting < livenessMap.size(); posting++) {
+          if (livenessMap.isRelocated(posting) || livenessMap.isDeletedAtOrBefore(posting, sweep.oldestRetainedRevision)) {
+            dead[0] += livenessMap.getByteSize(posting);
+          } else if (livenessMap.isDeleted(posting)) {
+            keysPartition.readPosting(keyPosting, livenessMap.getOffset(posting), block);
+            if (isDead(keyPosting, sweep.oldestRetainedRevision)) {
+              dead[0] += keyPosting.getPostingByteSize();
+            }
+            if (throttle(keyPosting.getPostingByteSize(), optimizing)) {
+              return false;
+            }
+          }
+        }
+        offset = livenessMap.getEnd();
+      }
+      offset = store.visitKeyPostings(keysPartition, offset, new Store.KeyPostingVisitor() {
+        public boolean visit(KeysPartition keysPartition, long offset, KeysPartition.Posting keyPosting) throws IOException {
+          if (isDead(keyPosting, sweep.oldestRetainedRevision)) {
+            dead[0] += keyPosting.getPostingByteSize();
+          }
+          return !throttle(keyPosting.getPostingByteSize(), optimizing);
+        }
+      });
+      if (offset < 0) {
+        // throttled until stopped
+        return false;
+      }
+      if (isSelected(dead[0], offset - keysPartition.getHeaderByteSize(), optimizing)) {
+        sweep.keysPartitions.add(keysPartitionId);
+      }
+    }
+
+    ValuesPartition.Posting valuePosting = new ValuesPartition.Posting();
+    for (int valuesPartitionId = 0; valuesPartitionId < mdh.getCurrentValuesPartition(); valuesPartitionId++) {
+      if (!new File(store.getConfiguration().getDataPath(), FileHandler.fileName(valuesPartitionId, "v")).exists()) {
+        continue;
+      }
+      ValuesPartition valuesPartition = accessor.getValuesPartition(valuesPartitionId);
+      if (isRetired(valuesPartition.getFile())) {
+        continue;
+      }
+      BlockReadingFileAccess block = new BlockReadingFileAccess(valuesPartition.getFileAccess(), store.getConfiguration().getScanBlockByteSize());
+      long end = store.getPartitionAllocator().getNextPostingOffset(valuesPartition);
+      long dead = 0;
+      long offset = valuesPartition.getHeaderByteSize();
+      while (offset < end) {
+        valuesPartition.readPosting(valuePosting, offset, block);
+        if (valuePosting.getFlag() == Posting.FLAG_NEVER_USED) {
+          break;
+        }
+        if (isDead(valuePosting, sweep.oldestRetainedRevision)) {
+          dead += valuePosting.getPostingByteSize();
+        }
+        offset += valuePosting.getPostingByteSize();
+        if (throttle(valuePosting.getPostingByteSize(), optimizing)) {
+          return false;
+        }
+      }
+      if (isSelected(dead, offset - valuesPartition.getHeaderByteSize(), optimizing)) {
+        sweep.valuesPartitions.add(valuesPartitionId);
+        sweep.valuesPartitionsFrom = Math.min(sweep.valuesPartitionsFrom, valuesPartitionId);
+      }
+    }
+
+    return !sweep.keysPartitions.isEmpty() || !sweep.valuesPartitions.isEmpty();
+  }
+
+  private boolean isSelected(long deadBytes, long bytes, boolean optimizing) {
+    if (deadBytes == 0) {
+      return false;
+    }
+    return optimizing || (double) deadBytes / bytes >= store.getConfiguration().getCompactionDeadRatio();
+  }
+
+  /**
+   * Sweeps all keys partitions in batches, relocating the live postings of the selected partitions.
+   *
+   * @return false if the cycle was stopped.
+   */
+  private boolean sweep(final Accessor accessor, final Sweep sweep, boolean optimizing) throws IOException {
+    while (sweep.lastKeysPartition < 0 || sweep.keysPartition <= sweep.lastKeysPartition) {
+      Long bytes = new Lock.With<Long>(accessor.getStoreWriteLock(), store.getConfiguration().getLockWaitTimeoutMilliseconds()) {
+        public Long doBody() throws IOException {
+          if (store.getRetentionManager().isScanning()) {
+            // checked while holding the lock, scans are pinned while no batch is in progress
+            return -2l;
+          }
+          if (accessor.getRehashingHashtable() != null) {
+            // chains are being moved to a new hashtable, wait for it to finish
+            return -1l;
+          }
+          if (sweep.lastKeysPartition < 0) {
+            Metadata.Header mdh = new Metadata.Header();
+            accessor.getMetadata().readHeader(mdh);
+            sweep.lastKeysPartition = mdh.getCurrentKeysPartition();
+            sweep.lastKeysPartitionEnd = store.getPartitionAllocator().getNextPostingOffset(accessor.getKeysPartition(sweep.lastKeysPartition, true));
+          }
+          return sweepBatch(accessor, sweep);
+        }
+      }.run();
+      if (bytes == -2) {
+        log.debug("Stopped compaction cycle as a scan was opened.");
+        return false;
+      }
+      if (bytes < 0) {
+        synchronized (waitMonitor) {
+          try {
+            waitMonitor.wait(100);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StoreException("Interrupted while waiting for rehashing to finish", e);
+          }
+        }
+      }
+      if (throttle(Math.max(0, bytes), optimizing)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Require write lock!
+   *
+   * @return bytes read in the batch
+   */
+  private long sweepBatch(Accessor accessor, Sweep sweep) throws IOException {
+    KeysPartition.Posting keyPosting = new KeysPartition.Posting();
+    long bytes = 0;
+    for (int postings = 0; postings < store.getConfiguration().getCompactionBatchPostings() && sweep.keysPartition <= sweep.lastKeysPartition;) {
+      KeysPartition keysPartition = accessor.getKeysPartition(sweep.keysPartition, false);
+      long end = keysPartition == null || isRetired(keysPartition.getFile()) ? 0
+          : sweep.keysPartition == sweep.lastKeysPartition ? sweep.lastKeysPartitionEnd
+          : store.getPartitionAllocator().getNextPostingOffset(keysPartition);
+      if (sweep.offset >= end) {
+        sweep.keysPartition++;
+        sweep.offset = KeysPartition.HEADER_BYTE_SIZE;
+        continue;
+      }
+      keysPartition.readPosting(keyPosting, sweep.offset);
+      if (keyPosting.getFlag() == Posting.FLAG_NEVER_USED) {
+        sweep.offset = end;
+        continue;
+      }
+      sweep(accessor, sweep, keysPartition, sweep.offset, keyPosting);
+      sweep.offset += keyPosting.getPostingByteSize();
+      bytes += keyPosting.getPostingByteSize();
+      postings++;
+      postingsSwept++;
+    }
+    return bytes;
+  }
+
+  /**
+   * Require write lock!
+   * <p/>
+   * Relocates the value of a live key posting in a partition not selected, and the key posting
+   * and value of a live key posting in a selected partition. Dead key postings in a selected partition are unlinked.
+   */
+  private void sweep(Accessor accessor, Sweep sweep, KeysPartition keysPartition, long offset, KeysPartition.Posting keyPosting) throws IOException {
+
+    if (!sweep.keysPartitions.contains(keysPartition.getPartitionId())) {
+      if (!isDead(keyPosting, sweep.oldestRetainedRevision) && relocateValue(accessor, sweep, keyPosting)) {
+        keysPartition.writePosting(keyPosting, offset);
+      }
+      return;
+    }
+
+    Link link = findLink(accessor, keyPosting, keysPartition.getPartitionId(), offset);
+    boolean slotted = store.getConfiguration().isUsingKeySlots()
+        && store.isKeySlotPointingAt(accessor, keyPosting.getBytes(), keyPosting.getKeyHashCode(), keysPartition.getPartitionId(), offset);
+
+    if (keyPosting.getFlag() == Posting.FLAG_RELOCATED) {
+      if (!link.found && !slotted) {
+        return;
+      }
+      // relocated by a cycle that did not finish repointing
+      keyPosting.setFlag(keyPosting.getDeletedRevision() == -1 ? Posting.FLAG_IN_USE : Posting.FLAG_DELETED);
+    }
+
+    boolean dead = isDead(keyPosting, sweep.oldestRetainedRevision);
+    boolean keeping = slotted
+        // the copy of a posting relocated by a cycle that did not finish repointing
+        || (!dead && (link.found || !link.duplicate));
+
+    if (!keeping) {
+      if (link.found) {
+        repoint(accessor, link, keyPosting.getNextKeyPostingPartition(), keyPosting.getNextKeyPostingPartitionOffset());
+        sweep.unlinked++;
+        postingsUnlinked++;
+      }
+      return;
+    }
+
+    if (dead) {
+      // no read will see the value
+      keyPosting.setValuePostingPartition(-1);
+      keyPosting.setValuePostingPartitionOffset(-1);
+    } else {
+      relocateValue(accessor, sweep, keyPosting);
+    }
+
+    Accessor.RequestPartitionWriterResponse<KeysPartition> reservation = accessor.requestValueWrite(keyPosting);
+    reservation.getFileHandler().writePosting(keyPosting, reservation.getStartOffset());
+    if (link.found) {
+      repoint(accessor, link, reservation.getFileHandler().getPartitionId(), reservation.getStartOffset());
+    }
+    if (slotted) {
+      store.updateKeySlot(accessor, keyPosting.getBytes(), keyPosting.getKeyHashCode(), reservation.getFileHandler().getPartitionId(), reservation.getStartOffset(), false);
+    }
+    keysPartition.markPostingAsRelocated(offset);
+    store.keyPostingRelocated(keysPartition.getPartitionId(), offset);
+    sweep.relocated++;
+    postingsRelocated++;
+  }
+
+  /**
+   * Require write lock!
+   * <p/>
+   * Copies the value posting of a key posting, and the chunks of a large value,
+   * that are in selected values partitions to the current values partition.
+   *
+   * @return true if the key posting was updated to point at a new value posting
+   */
+  private boolean relocateValue(Accessor accessor, Sweep sweep, KeysPartition.Posting keyPosting) throws IOException {
+    int valuesPartitionId = keyPosting.getValuePostingPartition();
+    if (valuesPartitionId < sweep.valuesPartitionsFrom) {
+      // including null values
+      return false;
+    }
+
+    ValuesPartition valuesPartition = accessor.getValuesPartition(valuesPartitionId);
+    ValuesPartition.Posting valuePosting = new ValuesPartition.Posting();
+    valuesPartition.readPosting(valuePosting, keyPosting.getValuePostingPartitionOffset());
+    boolean relocating = sweep.isSelectedValuesPartition(valuesPartitionId);
+
+    if (valuePosting.isChunkManifest()) {
+      ValuesPartition.ChunkManifest manifest = ValuesPartition.ChunkManifest.fromBytes(valuePosting.getBytes());
+      ValuesPartition.ChunkManifest relocated = new ValuesPartition.ChunkManifest();
+      ValuesPartition.Posting chunkPosting = new ValuesPartition.Posting();
+      for (int chunk = 0; chunk < manifest.getChunksCount(); chunk++) {
+        if (!sweep.isSelectedValuesPartition(manifest.getPartition(chunk))) {
+          relocated.addChunk(manifest.getPartition(chunk), manifest.getOffset(chunk), manifest.getLength(chunk));
+          continue;
+        }
+        ValuesPartition chunkPartition = accessor.getValuesPartition(manifest.getPartition(chunk));
+        chunkPartition.readPosting(chunkPosting, manifest.getOffset(chunk));
+        Accessor.RequestPartitionWriterResponse<ValuesPartition> reservation = write(accessor, chunkPosting);
+        chunkPartition.markPostingAsRelocated(manifest.getOffset(chunk));
+        relocated.addChunk(reservation.getFileHandler().getPartitionId(), reservation.getStartOffset(), manifest.getLength(chunk));
+        postingsRelocated++;
+        relocating = true;
+      }
+      if (relocating) {
+        byte[] bytes = relocated.toBytes();
+        valuePosting.setBytes(bytes);
+        valuePosting.setBytesLength(bytes.length);
+      }
+    }
+
+    if (!relocating) {
+      return false;
+    }
+    Accessor.RequestPartitionWriterResponse<ValuesPartition> reservation = write(accessor, valuePosting);
+    valuesPartition.markPostingAsRelocated(keyPosting.getValuePostingPartitionOffset());
+    keyPosting.setValuePostingPartition(reservation.getFileHandler().getPartitionId());
+    keyPosting.setValuePostingPartitionOffset(reservation.getStartOffset());
+    postingsRelocated++;
+    return true;
+  }
+
+  /**
+   * Require write lock!
+   *
+   * @return where the copy of the value posting was written
+   */
+  private Accessor.RequestPartitionWriterResponse<ValuesPartition> write(Accessor accessor, ValuesPartition.Posting valuePosting) throws IOException {
+    if (valuePosting.getFlag() == Posting.FLAG_RELOCATED) {
+      // relocated by a cycle that did not finish repointing
+      valuePosting.setFlag(valuePosting.getDeletedRevision() == -1 ? Posting.FLAG_IN_USE : Posting.FLAG_DELETED);
+    }
+    Accessor.RequestPartitionWriterResponse<ValuesPartition> reservation = accessor.requestValueWrite(valuePosting);
+    reservation.getFileHandler().writePosting(valuePosting, reservation.getStartOffset());
+    return reservation;
+  }
+
+  /**
+   * The posting pointing at a key posting in the chains.
+   */
+  private static class Link {
+    /** true if the key posting is linked */
+    private boolean found;
+    /** true if the link is the first key posting of a hash code posting, false if the next of a key posting */
+    private boolean hashCodePosting;
+    /** true if the link is the first of the history chain of the hash code posting rather than of the live chain */
+    private boolean history;
+    private int partition;
+    private long offset;
+    /** true if another key posting of the same key created in the same revision is linked */
+    private boolean duplicate;
+  }
+
+  /**
+   * Require write lock!
+   * <p/>
+   * Follows all hash code postings of the hash code of a key posting and their live and history chains.
+   *
+   * @return the posting pointing at the key posting, if any.
+   */
+  private Link findLink(Accessor accessor, KeysPartition.Posting keyPosting, int keysPartitionId, long offset) throws IOException {
+    Link link = new Link();
+    long hashCode = keyPosting.getKeyHashCode();
+    Hashtable hashtable = accessor.getHashtable();
+    Hashtable.Posting hashtablePosting = new Hashtable.Posting();
+    hashtable.readPosting(hashtablePosting, hashtable.calculateHashCodePostingOffset(hashCode));
+    if (hashtablePosting.getFlag() == Posting.FLAG_NEVER_USED) {
+      return link;
+    }
+
+    HashCodesPartition.Posting hashCodePosting = new HashCodesPartition.Posting();
+    KeysPartition.Posting chained = new KeysPartition.Posting();
+    int hashCodesPartitionId = hashtablePosting.getHashCodePostingPartition();
+    long hashCodesPartitionOffset = hashtablePosting.getHashCodePostingPartitionOffset();
+    while (hashCodesPartitionId >= 0) {
+      accessor.getHashCodesPartition(hashCodesPartitionId).readPosting(hashCodePosting, hashCodesPartitionOffset);
+      if (hashCodePosting.getFlag() == Posting.FLAG_NEVER_USED) {
+        break;
+      }
+      if (hashCodePosting.getKeyHashCode() == hashCode) {
+        for (int chain = 0; chain < 2; chain++) {
+          link.hashCodePosting = true;
+          link.history = chain == 1;
+          link.partition = hashCodesPartitionId;
+          link.offset = hashCodesPartitionOffset;
+          int chainedPartition = link.history ? hashCodePosting.getFirstHistoryKeyPostingPartition() : hashCodePosting.getFirstKeyPostingPartition();
+          long chainedOffset = link.history ? hashCodePosting.getFirstHistoryKeyPostingPartitionOffset() : hashCodePosting.getFirstKeyPostingPartitionOffset();
+          while (chainedPartition >= 0) {
+            if (chainedPartition == keysPartitionId && chainedOffset == offset) {
+              link.found = true;
+              return link;
+            }
+            accessor.getKeysPartition(chainedPartition, true).readPosting(chained, chainedOffset);
+            if (chained.getCreatedRevision() == keyPosting.getCreatedRevision() && Arrays.equals(chained.getBytes(), keyPosting.getBytes())) {
+              link.duplicate = true;
+            }
+            link.hashCodePosting = false;
+            link.partition = chainedPartition;
+            link.offset = chainedOffset;
+            chainedPartition = chained.getNextKeyPostingPartition();
+            chainedOffset = chained.getNextKeyPostingPartitionOffset();
+          }
+        }
+      }
+      hashCodesPartitionId = hashCodePosting.getNextPostingPartition();
+      hashCodesPartitionOffset = hashCodePosting.getNextPostingPartitionOffset();
+    }
+    link.found = false;
+    return link;
+  }
+
+  /**
+   * Require write lock!
+   * <p/>
+   * Points the link at another key posting.
+   */
+  private void repoint(Accessor accessor, Link link, int keyPostingPartition, long keyPostingPartitionOffset) throws IOException {
+    if (link.hashCodePosting) {
+      HashCodesPartition hashCodesPartition = accessor.getHashCodesPartition(link.partition);
+      HashCodesPartition.Posting hashCodePosting = new HashCodesPartition.Posting();
+      hashCodesPartition.readPosting(hashCodePosting, link.offset);
+      if (link.history) {
+        hashCodePosting.setFirstHistoryKeyPostingPartition(keyPostingPartition);
+        hashCodePosting.setFirstHistoryKeyPostingPartitionOffset(keyPostingPartitionOffset);
+      } else {
+        hashCodePosting.setFirstKeyPostingPartition(keyPostingPartition);
+        hashCodePosting.setFirstKeyPostingPartitionOffset(keyPostingPartitionOffset);
+      }
+      hashCodesPartition.writePosting(hashCodePosting, link.offset);
+    } else {
+      KeysPartition keysPartition = accessor.getKeysPartition(link.partition, true);
+      KeysPartition.Posting keyPosting = new KeysPartition.Posting();
+      keysPartition.readPosting(keyPosting, link.offset);
+      keyPosting.setNextKeyPostingPartition(keyPostingPartition);
+      keyPosting.setNextKeyPostingPartitionOffset(keyPostingPartitionOffset);
+      keysPartition.writePosting(keyPosting, link.offset);
+    }
+  }
+
+  /**
+   * Waits if the cycle is ahead of {@link Configuration#getCompactionBytesPerSecond()}.
+   *
+   * @param bytes read since last call
+   * @return true if the cycle should stop
+   */
+  private boolean throttle(long bytes, boolean optimizing) {
+    if (stopping) {
+      return true;
+    }
+    long bytesPerSecond = store.getConfiguration().getCompactionBytesPerSecond();
+    if (optimizing || bytesPerSecond <= 0) {
+      return false;
+    }
+    throttledBytes += bytes;
+    long wait = throttleStart + throttledBytes * 1000 / bytesPerSecond - System.currentTimeMillis();
+    if (wait > 0) {
+      synchronized (waitMonitor) {
+        try {
+          if (!stopping) {
+            waitMonitor.wait(wait);
+          }
+        } catch (InterruptedException e) {
+          return true;
+        }
+      }
+    }
+    return stopping;
+  }
+
+  //
+  // progress
+  //
+
+  /**
+   * @return true if a cycle is running
+   */
+  public boolean isCompacting() {
+    return compacting;
+  }
+
+  /**
+   * @return number of cycles that retired partitions since the store was opened
+   */
+  public long getCycles() {
+    return cycles;
+  }
+
+  public long getPartitionsSelected() {
+    return partitionsSelected;
+  }
+
+  public long getPostingsSwept() {
+    return postingsSwept;
+  }
+
+  /**
+   * @return number of key, value and chunk postings copied out of selected partitions
+   */
+  public long getPostingsRelocated() {
+    return postingsRelocated;
+  }
+
+  /**
+   * @return number of dead key postings unlinked from the chains
+   */
+  public long getPostingsUnlinked() {
+    return postingsUnlinked;
+  }
+
+  /**
+   * @return number of retired partitions deleted since the store was opened
+   */
+  public long getPartitionsReclaimed() {
+    return partitionsReclaimed;
+  }
+
+  public long getBytesReclaimed() {
+    return bytesReclaimed;
+  }
+
+}
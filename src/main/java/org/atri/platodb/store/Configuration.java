@@ -18,11 +18,17 @@ package org.atri.platodb.store;
  */
 
 
+import org.atri.platodb.store.codec.Codec;
+import org.atri.platodb.store.codec.LZFCodec;
+import org.atri.platodb.store.data.FileAccessFactory;
+import org.atri.platodb.store.data.MemoryMappedFileAccessFactory;
+import org.atri.platodb.store.data.Metadata;
 import org.atri.platodb.store.lock.LockFactory;
 import org.atri.platodb.store.lock.NativeFSLockFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 
 /**
  * @author atri
@@ -46,18 +52,18 @@ public class Configuration {
    *
    * In order to retain durability
    * postings in the files of a store are never deleted,
-   * they are flagged as in use, deleted or never used.
+   * they are flagged as in use, deleted or never used,
+   * until compacted when no longer retained, see {@link org.atri.platodb.store.Compactor}.
    *
    * Durable posting links are pointers to data in chained posting files
    * (keys with same hash code and hash codes with same hashtable position)
    * that points at data deleted or replaced in earlier revisions.
    * They make it possible to instantly access the store as if it was any given revision.
+   * Removed keys are always linked, this is about the values replaced by a put.
    *
-   *
-   * This will have very little effect on the speed for stores
-   * that contains few deletions and changes
-   * and quite a lot if it contains many changes,
-   * as it means more I/O seek.
+   * The replaced key postings are linked in history chains separate from the key postings in use,
+   * reading the current revision is thus as fast as without durable posting links.
+   * Reading an earlier revision of a store that contains many changes means more I/O seek.
    *
    * Go SSD!
    */
@@ -74,7 +80,7 @@ public class Configuration {
   private double automaticRehashCapacityGrowFactor = 1.7d;
 
   /**
-   * Ratio of available key posting left required to trigger a rehash at put()-time.
+   * Ratio of hash code postings to hashtable capacity that triggers a rehash at put()-time.
    * <p/>
    * The default identified sweetspot
    * is to have at least 8x greater capacity than items in the hashtable.
@@ -86,34 +92,280 @@ public class Configuration {
    */
   private double automaticRehashThreadshold = 0.125d;
 
+  /**
+   * If true the hashtable is rehashed to {@link #automaticRehashCapacityGrowFactor} times the capacity
+   * when a put makes it fuller than {@link #automaticRehashThreadshold}.
+   * <p/>
+   * The rehash is incremental, a background thread moves {@link #rehashBatchPositions} hashtable positions at the time
+   * to the new hashtable while holding the write lock. Lookups use the new hashtable for positions
+   * that have been moved and the current hashtable for the rest. A rehash in progress when the store
+   * is closed is continued when it is opened again.
+   * <p/>
+   * If false a rehash in progress is only continued by {@link org.atri.platodb.store.Store#rehash(Accessor, int)}.
+   * <p/>
+   * Off by default as the background thread contends with the writers for the store write lock.
+   */
+  private boolean automaticRehashing = false;
+
+  /**
+   * Number of hashtable positions an incremental rehash moves each time it holds the write lock.
+   */
+  private int rehashBatchPositions = 4096;
+
+  /**
+   * If true keys are looked up using open addressing {@link org.atri.platodb.store.data.platotrie.KeySlots}
+   * holding the hash code and key posting location of each key, rather than by following
+   * the hashtable, hash code and key posting chains. A miss then usually reads no more than
+   * a few neighbouring slots and a hit one key posting. Lookups in revisions older than
+   * the most recent change of a key still follow the chains.
+   * <p/>
+   * The key slots are created, or rebuilt from the keys partitions, when the store is opened
+   * and deleted when the store is opened with this set to false.
+   * The chains are always maintained, writes thus cost a bit more.
+   */
+  private boolean usingKeySlots = false;
+
+  /**
+   * Ratio of key slots in use that makes the key slots grow to twice the capacity.
+   * The initial capacity is {@link #initialCapacity}.
+   */
+  private double keySlotsMaximumLoadFactor = 0.7d;
+
+  /**
+   * If true an in memory {@link org.atri.platodb.store.BloomFilter} of all keys ever put
+   * answers get and contains key of keys that never existed without reading any postings,
+   * e.g. the checks for existing entities when new entities are put.
+   * <p/>
+   * The filter is written next to the metadata when the store is closed and read when it is opened,
+   * or rebuilt from the keys partitions if the store was not closed. It is rebuilt twice the size
+   * when more keys than it is sized for has been put, initially sized for {@link #initialCapacity} keys.
+   */
+  private boolean usingBloomFilter = false;
+
+  /**
+   * Bits of the Bloom filter per key it is sized for, 10 gives about one percent false positives.
+   */
+  private int bloomFilterBitsPerKey = 10;
+
+  /**
+   * If true an in memory {@link org.atri.platodb.store.LivenessMap} of each keys partition
+   * lets {@link org.atri.platodb.store.Store#keys()}, scans, counts and compaction jump over
+   * deleted and relocated key postings without reading them, at the cost of about 8 bytes of memory per key posting.
+   * <p/>
+   * The maps are written next to the keys partitions when the store is closed and read when it is opened,
+   * or rebuilt from the keys partitions if the store was not closed.
+   */
+  private boolean usingLivenessMaps = false;
+
+  /**
+   * If true a background {@link org.atri.platodb.store.Compactor} rewrites keys and values partitions
+   * in which at least {@link #compactionDeadRatio} of the bytes are postings no longer needed,
+   * i.e. deleted before {@link org.atri.platodb.store.Store#getOldestRetainedRevision()}
+   * or already copied elsewhere. The postings still needed are copied to the current partitions,
+   * the chains are linked to the copies and the old partition files are deleted.
+   * <p/>
+   * See {@link org.atri.platodb.store.Store#optimize()} to compact all partitions in the calling thread.
+   */
+  private boolean compactingPartitions = false;
+
+  /**
+   * Time between the background compactor looking for partitions to compact.
+   */
+  private long compactionIntervalMilliseconds = 60000;
+
+  /**
+   * Share of the bytes in a partition that must be postings no longer needed for the background compactor to rewrite it.
+   */
+  private double compactionDeadRatio = 0.5d;
+
+  /**
+   * Bytes per second the background compactor reads and writes at most, 0 for no limit.
+   */
+  private long compactionBytesPerSecond = 16 * 1024 * 1024;
+
+  /**
+   * Number of key postings compaction processes each time it holds the write lock.
+   */
+  private int compactionBatchPostings = 1000;
+
+  /**
+   * Number of most recent revisions that can be read, older revisions are reclaimed by compaction
+   * unless pinned or retained by {@link #revisionRetentionMilliseconds}. 0 retains all revisions.
+   *
+   * @see org.atri.platodb.store.RetentionManager
+   */
+  private int retainedRevisions = 0;
+
+  /**
+   * Revisions that were current within this time can be read, older revisions are reclaimed by compaction
+   * unless pinned or retained by {@link #retainedRevisions}. 0 retains all revisions.
+   *
+   * @see org.atri.platodb.store.RetentionManager
+   */
+  private long revisionRetentionMilliseconds = 0;
+
   private LockFactory lockFactory;
 
+  /**
+   * I/O backend used to read and write postings.
+   * <p/>
+   * Memory mapped files by default, use
+   * {@link org.atri.platodb.store.data.RandomAccessFileAccessFactory}
+   * on platforms with little address space or
+   * {@link org.atri.platodb.store.data.PositionalFileAccessFactory}
+   * to share one file descriptor per partition between all accessors.
+   */
+  private FileAccessFactory fileAccessFactory = new MemoryMappedFileAccessFactory();
+
   private long lockWaitTimeoutMilliseconds = 60000;
 
+  /**
+   * When writes are forced to the storage device.
+   * {@link Durability#NONE} by default, i.e. a crash of the machine might lose recent commits.
+   *
+   * @see org.atri.platodb.store.DurabilityManager
+   */
+  private Durability durability = Durability.NONE;
+
+  /**
+   * Time the first committer waits for other commits to join the same force
+   * in {@link Durability#GROUP_COMMIT} mode.
+   */
+  private long groupCommitWindowMilliseconds = 10;
+
+  /**
+   * If true puts and removes are appended to a sequential log
+   * and applied to the partitions in a background thread.
+   *
+   * @see org.atri.platodb.store.WriteAheadLog
+   */
+  private boolean writeAheadLogging = false;
+
+  /**
+   * When the write-ahead log grows beyond this size
+   * the partitions are forced and the log is truncated.
+   */
+  private long writeAheadLogCheckpointByteSize = 64 * 1024 * 1024;
+
+  /**
+   * Writers wait for the write-ahead log applier when this many records are not yet applied.
+   */
+  private int writeAheadLogMaximumPendingRecords = 10000;
+
+  /**
+   * Runs the asynchronous operations such as {@link Store#getAsync(byte[], long, long)}.
+   * If null the store creates a pool of {@link #asynchronousThreads} daemon threads
+   * that is shut down when the store is closed. A pool set here is not shut down by the store.
+   */
+  private ExecutorService asynchronousExecutor = null;
+
+  /**
+   * Number of threads in the pool created when no {@link #asynchronousExecutor} is set,
+   * i.e. maximum number of asynchronous operations waiting on disk at the same time.
+   */
+  private int asynchronousThreads = 8;
+
+  /**
+   * If true {@link Store#getAll(Accessor, byte[][], long[], long)} reads
+   * the values of each values partition in parallel using the {@link #asynchronousExecutor}.
+   */
+  private boolean parallelBatchedGets = false;
+
+  /**
+   * Number of keys read at the time by a {@link Scan}, values of a batch are read in partition and offset order.
+   */
+  private int scanBatchSize = 1000;
+
+  /**
+   * Bytes read at the time when scanning keys and values partitions.
+   */
+  private int scanBlockByteSize = 1024 * 1024;
+
+  /**
+   * Key hash function recorded in the metadata of new stores,
+   * {@link Metadata#KEY_HASH_FUNCTION_UNSPECIFIED} or {@link Metadata#KEY_HASH_FUNCTION_MURMUR3}.
+   * Stores are not affected by this, it tells clients how to calculate key hash codes.
+   * Ignored when opening an existing store, see {@link Store#getKeyHashFunction()}.
+   */
+  private int keyHashFunction = Metadata.KEY_HASH_FUNCTION_UNSPECIFIED;
+
   public static final int megaByte = 1024 * 1024;
 
-  private int valuesPartitionByteSize = 100 * megaByte;
-  private int keysPartitionByteSize = 50 * megaByte;
-  private int hashCodesPartitionByteSize = 25 * megaByte;
+  /**
+   * Maximum partition sizes.
+   * Partitions are created with the size of one extent
+   * and grow an extent at the time until the maximum size is reached.
+   */
+  private long valuesPartitionByteSize = 100 * megaByte;
+  private long keysPartitionByteSize = 50 * megaByte;
+  private long hashCodesPartitionByteSize = 25 * megaByte;
+
+  /**
+   * Values larger than this are stored as a number of
+   * {@link #valueChunkByteSize} chunks that might span multiple values partitions.
+   */
+  private int chunkedValueThresholdByteSize = 4 * megaByte;
+
+  /**
+   * Size of each chunk of a value larger than {@link #chunkedValueThresholdByteSize}.
+   * Must fit in a values partition.
+   */
+  private int valueChunkByteSize = megaByte;
+
+  /**
+   * Codec used to compress values, or null to store values uncompressed.
+   * Values that does not compress to fewer bytes are always stored uncompressed.
+   */
+  private Codec valueCodec = new LZFCodec();
 
+  /**
+   * Values and chunks of this size or smaller are stored uncompressed.
+   */
+  private int valueCompressionThresholdByteSize = 128;
+
+  /**
+   * Initial size and growth increment of partition files.
+   *
+   * @see #valuesPartitionByteSize
+   */
+  private int partitionExtentByteSize = megaByte;
+
+  /**
+   * If true new partitions are created as sparse files
+   * rather than written full of zeros,
+   * i.e. creating a store or rolling over to a new partition
+   * costs no I/O until postings are written.
+   * <p/>
+   * A never used posting is all zeros, so a hole in a sparse file is a valid empty posting.
+   * Set to false to have the disk space allocated up front.
+   */
+  private boolean formattingSparse = true;
+
+  /**
+   * If true the next hash codes, keys and values partition
+   * is formatted in a background thread ahead of time.
+   *
+   * @see org.atri.platodb.store.PartitionPreallocator
+   */
+  private boolean preallocatingPartitions = true;
 
   /**
    * Durability as in D of ACID.
    *
    * In order to retain durability
    * postings in the files of a store are never deleted,
-   * they are flagged as in use, deleted or never used.
+   * they are flagged as in use, deleted or never used,
+   * until compacted when no longer retained, see {@link org.atri.platodb.store.Compactor}.
    *
    * Durable posting links are pointers to data in chained posting files
    * (keys with same hash code and hash codes with same hashtable position)
    * that points at data deleted or replaced in earlier revisions.
    * They make it possible to instantly access the store as if it was any given revision.
+   * Removed keys are always linked, this is about the values replaced by a put.
    *
-   *
-   * This will have very little effect on the speed for stores
-   * that contains few deletions and changes
-   * and quite a lot if it contains many changes,
-   * as it means more I/O seek.
+   * The replaced key postings are linked in history chains separate from the key postings in use,
+   * reading the current revision is thus as fast as without durable posting links.
+   * Reading an earlier revision of a store that contains many changes means more I/O seek.
    *
    * Go SSD!
    */
@@ -126,18 +378,18 @@ public class Configuration {
    *
    * In order to retain durability
    * postings in the files of a store are never deleted,
-   * they are flagged as in use, deleted or never used.
+   * they are flagged as in use, deleted or never used,
+   * until compacted when no longer retained, see {@link org.atri.platodb.store.Compactor}.
    *
    * Durable posting links are pointers to data in chained posting files
    * (keys with same hash code and hash codes with same hashtable position)
    * that points at data deleted or replaced in earlier revisions.
    * They make it possible to instantly access the store as if it was any given revision.
+   * Removed keys are always linked, this is about the values replaced by a put.
    *
-   *
-   * This will have very little effect on the speed for stores
-   * that contains few deletions and changes
-   * and quite a lot if it contains many changes,
-   * as it means more I/O seek.
+   * The replaced key postings are linked in history chains separate from the key postings in use,
+   * reading the current revision is thus as fast as without durable posting links.
+   * Reading an earlier revision of a store that contains many changes means more I/O seek.
    *
    * Go SSD!
    */
@@ -153,6 +405,46 @@ public class Configuration {
     this.initialCapacity = initialCapacity;
   }
 
+  public boolean isUsingKeySlots() {
+    return usingKeySlots;
+  }
+
+  public void setUsingKeySlots(boolean usingKeySlots) {
+    this.usingKeySlots = usingKeySlots;
+  }
+
+  public double getKeySlotsMaximumLoadFactor() {
+    return keySlotsMaximumLoadFactor;
+  }
+
+  public void setKeySlotsMaximumLoadFactor(double keySlotsMaximumLoadFactor) {
+    this.keySlotsMaximumLoadFactor = keySlotsMaximumLoadFactor;
+  }
+
+  public boolean isUsingBloomFilter() {
+    return usingBloomFilter;
+  }
+
+  public void setUsingBloomFilter(boolean usingBloomFilter) {
+    this.usingBloomFilter = usingBloomFilter;
+  }
+
+  public int getBloomFilterBitsPerKey() {
+    return bloomFilterBitsPerKey;
+  }
+
+  public void setBloomFilterBitsPerKey(int bloomFilterBitsPerKey) {
+    this.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+  }
+
+  public boolean isUsingLivenessMaps() {
+    return usingLivenessMaps;
+  }
+
+  public void setUsingLivenessMaps(boolean usingLivenessMaps) {
+    this.usingLivenessMaps = usingLivenessMaps;
+  }
+
   public double getAutomaticRehashCapacityGrowFactor() {
     return automaticRehashCapacityGrowFactor;
   }
@@ -161,6 +453,78 @@ public class Configuration {
     this.automaticRehashCapacityGrowFactor = automaticRehashCapacityGrowFactor;
   }
 
+  public boolean isAutomaticRehashing() {
+    return automaticRehashing;
+  }
+
+  public void setAutomaticRehashing(boolean automaticRehashing) {
+    this.automaticRehashing = automaticRehashing;
+  }
+
+  public int getRehashBatchPositions() {
+    return rehashBatchPositions;
+  }
+
+  public void setRehashBatchPositions(int rehashBatchPositions) {
+    this.rehashBatchPositions = rehashBatchPositions;
+  }
+
+  public boolean isCompactingPartitions() {
+    return compactingPartitions;
+  }
+
+  public void setCompactingPartitions(boolean compactingPartitions) {
+    this.compactingPartitions = compactingPartitions;
+  }
+
+  public long getCompactionIntervalMilliseconds() {
+    return compactionIntervalMilliseconds;
+  }
+
+  public void setCompactionIntervalMilliseconds(long compactionIntervalMilliseconds) {
+    this.compactionIntervalMilliseconds = compactionIntervalMilliseconds;
+  }
+
+  public double getCompactionDeadRatio() {
+    return compactionDeadRatio;
+  }
+
+  public void setCompactionDeadRatio(double compactionDeadRatio) {
+    this.compactionDeadRatio = compactionDeadRatio;
+  }
+
+  public long getCompactionBytesPerSecond() {
+    return compactionBytesPerSecond;
+  }
+
+  public void setCompactionBytesPerSecond(long compactionBytesPerSecond) {
+    this.compactionBytesPerSecond = compactionBytesPerSecond;
+  }
+
+  public int getCompactionBatchPostings() {
+    return compactionBatchPostings;
+  }
+
+  public void setCompactionBatchPostings(int compactionBatchPostings) {
+    this.compactionBatchPostings = compactionBatchPostings;
+  }
+
+  public int getRetainedRevisions() {
+    return retainedRevisions;
+  }
+
+  public void setRetainedRevisions(int retainedRevisions) {
+    this.retainedRevisions = retainedRevisions;
+  }
+
+  public long getRevisionRetentionMilliseconds() {
+    return revisionRetentionMilliseconds;
+  }
+
+  public void setRevisionRetentionMilliseconds(long revisionRetentionMilliseconds) {
+    this.revisionRetentionMilliseconds = revisionRetentionMilliseconds;
+  }
+
   public double getAutomaticRehashThreadshold() {
     return automaticRehashThreadshold;
   }
@@ -177,6 +541,30 @@ public class Configuration {
     this.lockFactory = lockFactory;
   }
 
+  public FileAccessFactory getFileAccessFactory() {
+    return fileAccessFactory;
+  }
+
+  public void setFileAccessFactory(FileAccessFactory fileAccessFactory) {
+    this.fileAccessFactory = fileAccessFactory;
+  }
+
+  public boolean isFormattingSparse() {
+    return formattingSparse;
+  }
+
+  public void setFormattingSparse(boolean formattingSparse) {
+    this.formattingSparse = formattingSparse;
+  }
+
+  public boolean isPreallocatingPartitions() {
+    return preallocatingPartitions;
+  }
+
+  public void setPreallocatingPartitions(boolean preallocatingPartitions) {
+    this.preallocatingPartitions = preallocatingPartitions;
+  }
+
   public long getLockWaitTimeoutMilliseconds() {
     return lockWaitTimeoutMilliseconds;
   }
@@ -185,27 +573,155 @@ public class Configuration {
     this.lockWaitTimeoutMilliseconds = lockWaitTimeoutMilliseconds;
   }
 
-  public int getValuesPartitionByteSize() {
+  public Durability getDurability() {
+    return durability;
+  }
+
+  public void setDurability(Durability durability) {
+    this.durability = durability;
+  }
+
+  public long getGroupCommitWindowMilliseconds() {
+    return groupCommitWindowMilliseconds;
+  }
+
+  public void setGroupCommitWindowMilliseconds(long groupCommitWindowMilliseconds) {
+    this.groupCommitWindowMilliseconds = groupCommitWindowMilliseconds;
+  }
+
+  public boolean isWriteAheadLogging() {
+    return writeAheadLogging;
+  }
+
+  public void setWriteAheadLogging(boolean writeAheadLogging) {
+    this.writeAheadLogging = writeAheadLogging;
+  }
+
+  public long getWriteAheadLogCheckpointByteSize() {
+    return writeAheadLogCheckpointByteSize;
+  }
+
+  public void setWriteAheadLogCheckpointByteSize(long writeAheadLogCheckpointByteSize) {
+    this.writeAheadLogCheckpointByteSize = writeAheadLogCheckpointByteSize;
+  }
+
+  public int getWriteAheadLogMaximumPendingRecords() {
+    return writeAheadLogMaximumPendingRecords;
+  }
+
+  public void setWriteAheadLogMaximumPendingRecords(int writeAheadLogMaximumPendingRecords) {
+    this.writeAheadLogMaximumPendingRecords = writeAheadLogMaximumPendingRecords;
+  }
+
+  public ExecutorService getAsynchronousExecutor() {
+    return asynchronousExecutor;
+  }
+
+  public void setAsynchronousExecutor(ExecutorService asynchronousExecutor) {
+    this.asynchronousExecutor = asynchronousExecutor;
+  }
+
+  public int getAsynchronousThreads() {
+    return asynchronousThreads;
+  }
+
+  public void setAsynchronousThreads(int asynchronousThreads) {
+    this.asynchronousThreads = asynchronousThreads;
+  }
+
+  public boolean isParallelBatchedGets() {
+    return parallelBatchedGets;
+  }
+
+  public void setParallelBatchedGets(boolean parallelBatchedGets) {
+    this.parallelBatchedGets = parallelBatchedGets;
+  }
+
+  public int getScanBatchSize() {
+    return scanBatchSize;
+  }
+
+  public void setScanBatchSize(int scanBatchSize) {
+    this.scanBatchSize = scanBatchSize;
+  }
+
+  public int getScanBlockByteSize() {
+    return scanBlockByteSize;
+  }
+
+  public void setScanBlockByteSize(int scanBlockByteSize) {
+    this.scanBlockByteSize = scanBlockByteSize;
+  }
+
+  public int getKeyHashFunction() {
+    return keyHashFunction;
+  }
+
+  public void setKeyHashFunction(int keyHashFunction) {
+    this.keyHashFunction = keyHashFunction;
+  }
+
+  public Codec getValueCodec() {
+    return valueCodec;
+  }
+
+  public void setValueCodec(Codec valueCodec) {
+    this.valueCodec = valueCodec;
+  }
+
+  public int getValueCompressionThresholdByteSize() {
+    return valueCompressionThresholdByteSize;
+  }
+
+  public void setValueCompressionThresholdByteSize(int valueCompressionThresholdByteSize) {
+    this.valueCompressionThresholdByteSize = valueCompressionThresholdByteSize;
+  }
+
+  public int getChunkedValueThresholdByteSize() {
+    return chunkedValueThresholdByteSize;
+  }
+
+  public void setChunkedValueThresholdByteSize(int chunkedValueThresholdByteSize) {
+    this.chunkedValueThresholdByteSize = chunkedValueThresholdByteSize;
+  }
+
+  public int getValueChunkByteSize() {
+    return valueChunkByteSize;
+  }
+
+  public void setValueChunkByteSize(int valueChunkByteSize) {
+    this.valueChunkByteSize = valueChunkByteSize;
+  }
+
+  public int getPartitionExtentByteSize() {
+    return partitionExtentByteSize;
+  }
+
+  public void setPartitionExtentByteSize(int partitionExtentByteSize) {
+    this.partitionExtentByteSize = partitionExtentByteSize;
+  }
+
+  public long getValuesPartitionByteSize() {
     return valuesPartitionByteSize;
   }
 
-  public void setValuesPartitionByteSize(int valuesPartitionByteSize) {
+  public void setValuesPartitionByteSize(long valuesPartitionByteSize) {
     this.valuesPartitionByteSize = valuesPartitionByteSize;
   }
 
-  public int getKeysPartitionByteSize() {
+  public long getKeysPartitionByteSize() {
     return keysPartitionByteSize;
   }
 
-  public void setKeysPartitionByteSize(int keysPartitionByteSize) {
+  public void setKeysPartitionByteSize(long keysPartitionByteSize) {
     this.keysPartitionByteSize = keysPartitionByteSize;
   }
 
-  public int getHashCodesPartitionByteSize() {
+  public long getHashCodesPartitionByteSize() {
     return hashCodesPartitionByteSize;
   }
 
-  public void setHashCodesPartitionByteSize(int hashCodesPartitionByteSize) {
+  public void setHashCodesPartitionByteSize(long hashCodesPartitionByteSize) {
     this.hashCodesPartitionByteSize = hashCodesPartitionByteSize;
   }
 
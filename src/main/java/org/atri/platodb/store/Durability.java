@@ -0,0 +1,51 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+/**
+ * When writes are forced to the storage device.
+ *
+ * @see org.atri.platodb.store.Configuration#setDurability(Durability)
+ * @see org.atri.platodb.store.DurabilityManager
+ * @author atri
+ * @since 2017-aug-30 20:12:51
+ */
+public enum Durability {
+
+  /**
+   * Writes are never forced, the operating system writes them to disk whenever it likes.
+   * A crash of the machine might lose any number of recent commits.
+   */
+  NONE,
+
+  /**
+   * Every commit forces all files written since the previous commit before returning.
+   */
+  COMMIT,
+
+  /**
+   * Commits arriving within the group commit window share a single force of all written files.
+   * Every commit still returns only once its writes are on the storage device,
+   * but concurrent committers pay for one force rather than one each.
+   *
+   * @see org.atri.platodb.store.Configuration#setGroupCommitWindowMilliseconds(long)
+   */
+  GROUP_COMMIT
+
+}
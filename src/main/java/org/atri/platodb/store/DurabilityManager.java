@@ -0,0 +1,224 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps track of files written since they were last forced to the storage device
+ * and forces them when a commit requires it.
+ * <p/>
+ * Anything that buffers writes in the operating system registers itself as {@link #dirty(Syncable)}
+ * after writing, {@link #makeDurable()} then forces everything registered so far.
+ * In {@link Durability#GROUP_COMMIT} mode the first committer to arrive is the leader,
+ * it waits for the group commit window to pass and forces the files on behalf of
+ * all commits that arrived in the mean time.
+ * <p/>
+ * A single instance is shared by all stores of an {@link org.atri.platodb.entity.EntityStore}
+ * so that a transaction spanning multiple primary indices is forced as one group.
+ * <p/>
+ * New partition files are forced, but Java offers no way to force the directory that contains them.
+ *
+ * @see org.atri.platodb.store.Durability
+ * @author atri
+ * @since 2017-aug-30 20:31:06
+ */
+public class DurabilityManager {
+
+  private static final Log log = new Log(DurabilityManager.class);
+
+  /**
+   * Something that can be forced to the storage device.
+   */
+  public static interface Syncable {
+    public abstract void sync() throws IOException;
+  }
+
+  private final Durability durability;
+  private final long groupCommitWindowMilliseconds;
+
+  private final Set<Syncable> dirty = new LinkedHashSet<Syncable>();
+
+  /**
+   * Held while forcing. A file written while it's being forced is not registered as dirty again,
+   * so a sync must not return before a sync already in progress has finished.
+   */
+  private final Object syncLock = new Object();
+
+  /** guards the group commit state below */
+  private final Object groupLock = new Object();
+  /** number of commits that requested durability */
+  private long requests = 0;
+  /** number of commits known to be durable */
+  private long durableRequests = 0;
+  /** commits in the range (failedRequestsFrom, failedRequestsTo] failed to be forced */
+  private long failedRequestsFrom = 0;
+  private long failedRequestsTo = 0;
+  private IOException failure;
+  private boolean leaderSyncing = false;
+
+  public DurabilityManager(Durability durability, long groupCommitWindowMilliseconds) {
+    this.durability = durability;
+    this.groupCommitWindowMilliseconds = groupCommitWindowMilliseconds;
+  }
+
+  public Durability getDurability() {
+    return durability;
+  }
+
+  /**
+   * @param syncable something written since it was last forced.
+   */
+  public void dirty(Syncable syncable) {
+    synchronized (dirty) {
+      dirty.add(syncable);
+    }
+  }
+
+  /**
+   * Forces everything written so far, no matter the durability mode.
+   * Waits for any sync in progress to finish first.
+   *
+   * @throws IOException
+   */
+  public void sync() throws IOException {
+    synchronized (syncLock) {
+      doSync();
+    }
+  }
+
+  /**
+   * Require sync lock!
+   */
+  private void doSync() throws IOException {
+    List<Syncable> syncables;
+    synchronized (dirty) {
+      if (dirty.isEmpty()) {
+        return;
+      }
+      syncables = new ArrayList<Syncable>(dirty);
+      dirty.clear();
+    }
+    long ms = System.currentTimeMillis();
+    IOException failure = null;
+    for (int i = 0; i < syncables.size(); i++) {
+      try {
+        syncables.get(i).sync();
+      } catch (IOException e) {
+        // keep it dirty, it might succeed next time
+        dirty(syncables.get(i));
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    if (log.isDebug()) {
+      log.debug("Forced " + syncables.size() + " files in " + (System.currentTimeMillis() - ms) + " milliseconds");
+    }
+  }
+
+  /**
+   * Returns when everything written so far is durable as defined by the durability mode.
+   * Call after a commit has written all of its data, and without holding the store write lock
+   * or commits can not be grouped.
+   *
+   * @throws IOException if the data could not be forced
+   */
+  public void makeDurable() throws IOException {
+    if (durability == Durability.NONE) {
+      return;
+    } else if (durability == Durability.COMMIT) {
+      sync();
+      return;
+    }
+
+    long request;
+    synchronized (groupLock) {
+      request = ++requests;
+    }
+
+    while (true) {
+
+      synchronized (groupLock) {
+        while (true) {
+          if (durableRequests >= request) {
+            if (request > failedRequestsFrom && request <= failedRequestsTo) {
+              throw new StoreException("Group commit failed", failure);
+            }
+            return;
+          }
+          if (!leaderSyncing) {
+            break;
+          }
+          try {
+            groupLock.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StoreException("Interrupted while waiting for group commit", e);
+          }
+        }
+        leaderSyncing = true;
+      }
+
+      // this thread is the leader of the next group.
+      if (groupCommitWindowMilliseconds > 0) {
+        try {
+          Thread.sleep(groupCommitWindowMilliseconds);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      long groupRequests;
+      synchronized (groupLock) {
+        groupRequests = requests;
+      }
+
+      IOException failure = null;
+      try {
+        sync();
+      } catch (IOException e) {
+        failure = e;
+      }
+
+      synchronized (groupLock) {
+        if (failure != null) {
+          failedRequestsFrom = durableRequests;
+          failedRequestsTo = groupRequests;
+          this.failure = failure;
+        }
+        durableRequests = groupRequests;
+        leaderSyncing = false;
+        groupLock.notifyAll();
+      }
+
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,245 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.atri.platodb.store.codec.Codec;
+import org.atri.platodb.store.data.FileHandler;
+import org.atri.platodb.store.data.Metadata;
+import org.atri.platodb.store.data.platotrie.ValuesPartition;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Copies a store written in an earlier file format version,
+ * 0 (int offsets), 1 (no value posting options) or 2 (no separate history chains),
+ * to a new store in the current file format version.
+ * <p/>
+ * This is a logical copy. Every key in use is put to the target store
+ * with the revision it was created in, the history of deleted and replaced values is not copied.
+ * <p/>
+ * Directories that are not stores, e.g. an {@link org.atri.platodb.entity.EntityStore} root
+ * with one store per primary index, are traversed and all other files are copied as is.
+ * <p/>
+ * Usage: java org.atri.platodb.store.FileFormatMigration [source directory] [target directory]
+ *
+ * @see org.atri.platodb.store.data.Metadata#FILE_FORMAT_VERSION
+ * @author atri
+ * @since 2017-aug-21 22:10:34
+ */
+public class FileFormatMigration {
+
+  private static final Log log = new Log(FileFormatMigration.class);
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("Usage: java " + FileFormatMigration.class.getName() + " [source directory] [target directory]");
+      System.exit(1);
+    }
+    new FileFormatMigration().migrate(new File(args[0]), new File(args[1]));
+  }
+
+  /**
+   * @param source directory containing a store, or directories containing stores.
+   * @param target new directory
+   * @throws IOException
+   */
+  public void migrate(File source, File target) throws IOException {
+    if (target.exists()) {
+      throw new IOException("Target " + target.getAbsolutePath() + " already exists");
+    }
+    if (Store.isStore(source)) {
+      migrateStore(source, new Configuration(target));
+      return;
+    }
+    if (!target.mkdirs()) {
+      throw new IOException("Could not create directory " + target.getAbsolutePath());
+    }
+    File[] files = source.listFiles();
+    if (files == null) {
+      throw new IOException("Could not list " + source.getAbsolutePath());
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        migrate(file, new File(target, file.getName()));
+      } else {
+        copy(file, new File(target, file.getName()));
+      }
+    }
+  }
+
+  /**
+   * @param source store directory in file format version 0, 1 or 2
+   * @param target configuration of the new store
+   * @return number of keys copied
+   * @throws IOException
+   */
+  public long migrateStore(File source, Configuration target) throws IOException {
+    log.info("Migrating " + source.getAbsolutePath() + " to " + target.getDataPath().getAbsolutePath());
+    long ms = System.currentTimeMillis();
+
+    RandomAccessFile metadata = new RandomAccessFile(new File(source, FileHandler.fileName(0, Metadata.SUFFIX)), "r");
+    int fileFormatVersion = metadata.readInt();
+    long storeRevision = metadata.readLong();
+    metadata.close();
+    if (fileFormatVersion < 0 || fileFormatVersion >= Metadata.FILE_FORMAT_VERSION) {
+      throw new StoreException("Expected file format version 0 to " + (Metadata.FILE_FORMAT_VERSION - 1) + " in " + source.getAbsolutePath() + " but found " + fileFormatVersion);
+    }
+    // version 0 used int offsets
+    boolean longOffsets = fileFormatVersion > 0;
+    // version 2 added options to value postings
+    boolean valueOptions = fileFormatVersion > 1;
+
+    long keys = 0;
+    Store store = new Store(target);
+    store.open();
+    Accessor accessor = store.borrowAccessor();
+    Map<Integer, RandomAccessFile> valuesPartitions = new HashMap<Integer, RandomAccessFile>();
+    try {
+      for (int keysPartitionId = 0; ; keysPartitionId++) {
+        File keysPartitionFile = new File(source, FileHandler.fileName(keysPartitionId, "k"));
+        if (!keysPartitionFile.exists()) {
+          break;
+        }
+        RandomAccessFile keysPartition = new RandomAccessFile(keysPartitionFile, "r");
+        try {
+          keys += migrateKeysPartition(source, keysPartition, longOffsets, valueOptions, valuesPartitions, store, accessor);
+        } finally {
+          keysPartition.close();
+        }
+      }
+
+      Metadata.Header mdh = new Metadata.Header();
+      accessor.getMetadata().readHeader(mdh);
+      mdh.setStoreRevision(storeRevision);
+      accessor.getMetadata().writeHeader(mdh);
+
+    } finally {
+      for (RandomAccessFile valuesPartition : valuesPartitions.values()) {
+        valuesPartition.close();
+      }
+      store.returnAccessor(accessor);
+      store.close();
+    }
+
+    log.info("Migrated " + keys + " keys in " + (System.currentTimeMillis() - ms) + " milliseconds");
+    return keys;
+  }
+
+  private long migrateKeysPartition(File source, RandomAccessFile keysPartition, boolean longOffsets, boolean valueOptions, Map<Integer, RandomAccessFile> valuesPartitions, Store store, Accessor accessor) throws IOException {
+    int offsetByteSize = longOffsets ? 8 : 4;
+    long keys = 0;
+    long nextPostingOffset = readOffset(keysPartition, longOffsets);
+    long offset = 1024;
+    while (offset < nextPostingOffset) {
+      keysPartition.seek(offset);
+      byte flag = keysPartition.readByte();
+      if (flag == 0) {
+        break;
+      }
+      long createdRevision = keysPartition.readLong();
+      keysPartition.skipBytes(4 + offsetByteSize); // next key posting partition and offset
+      long keyHashCode = keysPartition.readLong();
+      int valuePostingPartition = keysPartition.readInt();
+      long valuePostingPartitionOffset = readOffset(keysPartition, longOffsets);
+      byte[] key = new byte[keysPartition.readInt()];
+      keysPartition.readFully(key);
+      keysPartition.skipBytes(8); // deleted revision
+
+      // posting byte size as in version 0 to 2 of KeysPartition.Posting
+      offset += 1 + 8 + 4 + offsetByteSize + 8 + 4 + offsetByteSize + 4 + key.length + 8;
+
+      if (flag != 1) {
+        continue;
+      }
+
+      byte[] value = null;
+      if (valuePostingPartition >= 0) {
+        value = readValue(source, valuesPartitions, valuePostingPartition, valuePostingPartitionOffset, valueOptions);
+      }
+
+      store.put(accessor, key, keyHashCode, value, createdRevision);
+      keys++;
+    }
+    return keys;
+  }
+
+  /**
+   * @return the value of a value posting, assembled from its chunks and decompressed if written so in version 2.
+   */
+  private byte[] readValue(File source, Map<Integer, RandomAccessFile> valuesPartitions, int valuePostingPartition, long valuePostingPartitionOffset, boolean valueOptions) throws IOException {
+    RandomAccessFile valuesPartition = valuesPartitions.get(valuePostingPartition);
+    if (valuesPartition == null) {
+      valuesPartition = new RandomAccessFile(new File(source, FileHandler.fileName(valuePostingPartition, "v")), "r");
+      valuesPartitions.put(valuePostingPartition, valuesPartition);
+    }
+    valuesPartition.seek(valuePostingPartitionOffset);
+    valuesPartition.skipBytes(1 + 8); // flag and created revision
+    byte options = valueOptions ? valuesPartition.readByte() : 0;
+    byte[] bytes = new byte[valuesPartition.readInt()];
+    valuesPartition.readFully(bytes);
+
+    if ((options & ValuesPartition.Posting.OPTION_CHUNK_MANIFEST) != 0) {
+      ValuesPartition.ChunkManifest manifest = ValuesPartition.ChunkManifest.fromBytes(bytes);
+      byte[] value = new byte[(int) manifest.getValueByteLength()];
+      int valueOffset = 0;
+      for (int chunk = 0; chunk < manifest.getChunksCount(); chunk++) {
+        byte[] chunkBytes = readValue(source, valuesPartitions, manifest.getPartition(chunk), manifest.getOffset(chunk), true);
+        System.arraycopy(chunkBytes, 0, value, valueOffset, manifest.getLength(chunk));
+        valueOffset += manifest.getLength(chunk);
+      }
+      return value;
+    }
+    int codecId = (options & ValuesPartition.Posting.OPTION_CODEC_MASK) >>> ValuesPartition.Posting.OPTION_CODEC_SHIFT;
+    if (codecId != 0) {
+      return Codec.getCodec(codecId).decompress(bytes, 0, bytes.length);
+    }
+    return bytes;
+  }
+
+  private static long readOffset(RandomAccessFile file, boolean longOffsets) throws IOException {
+    return longOffsets ? file.readLong() : file.readInt();
+  }
+
+  private static void copy(File source, File target) throws IOException {
+    InputStream in = new FileInputStream(source);
+    try {
+      OutputStream out = new FileOutputStream(target);
+      try {
+        byte[] buf = new byte[8192];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+          out.write(buf, 0, read);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+}
@@ -0,0 +1,252 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.atri.platodb.store.data.FileHandler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Number of keys in use and their bytes, i.e. key bytes plus uncompressed value bytes,
+ * in each revision of a store, kept up to date by puts and removes.
+ * <p/>
+ * The counts are logged once per revision written, as the counts at the end of that revision,
+ * and a revision is counted by a binary search of the log. Revisions older than
+ * the {@link RetentionManager#getOldestRetainedRevision()} are forgotten when the log fills up,
+ * as are all revisions before the counts were built from the keys partitions.
+ * <p/>
+ * Updated by the thread holding the store write lock, all methods are synchronized.
+ *
+ * @author atri
+ * @since 2017-sep-24 11:38:52
+ */
+public class LiveCounts {
+
+  public static final String SUFFIX = "lc";
+
+  public static final int FILE_FORMAT_VERSION = 0;
+
+  /** counts are known for this revision and later ones, {@link Long#MIN_VALUE} if all */
+  private long firstRevision;
+  /** counts from the first revision until the first logged revision */
+  private long firstKeys;
+  private long firstBytes;
+
+  /** logged revisions in ascending order, and the counts at the end of each */
+  private long[] revisions;
+  private long[] keys;
+  private long[] bytes;
+  private int size;
+
+  /**
+   * @param firstRevision counts are known for this revision and later ones, {@link Long#MIN_VALUE} if all
+   * @param keys          keys in use in the first revision
+   * @param bytes         bytes in use in the first revision
+   */
+  public LiveCounts(long firstRevision, long keys, long bytes) {
+    this.firstRevision = firstRevision;
+    this.firstKeys = keys;
+    this.firstBytes = bytes;
+    this.revisions = new long[16];
+    this.keys = new long[16];
+    this.bytes = new long[16];
+  }
+
+  /**
+   * @param directory store directory
+   * @return the file the counts are persisted to when the store is closed
+   */
+  public static File getFile(File directory) {
+    return new File(directory, FileHandler.fileName(0, SUFFIX));
+  }
+
+  /**
+   * Require write lock!
+   *
+   * @param revision         revision written, the most recent revision in the store
+   * @param keysDelta        change of the number of keys in use
+   * @param bytesDelta       change of the bytes in use
+   * @param retentionManager asked what revisions can be forgotten when the log is full
+   */
+  public synchronized void add(long revision, long keysDelta, long bytesDelta, RetentionManager retentionManager) {
+    // a revision written before the counts were built, or replayed, changes the first known revision
+    revision = Math.max(revision, firstRevision);
+    if (size > 0 && revisions[size - 1] == revision) {
+      keys[size - 1] += keysDelta;
+      bytes[size - 1] += bytesDelta;
+      return;
+    }
+    long currentKeys = getKeys(Long.MAX_VALUE);
+    long currentBytes = getBytes(Long.MAX_VALUE);
+    if (size == revisions.length) {
+      forget(retentionManager.getOldestRetainedRevision());
+    }
+    if (size == revisions.length) {
+      revisions = grow(revisions);
+      keys = grow(keys);
+      bytes = grow(bytes);
+    }
+    revisions[size] = revision;
+    keys[size] = currentKeys + keysDelta;
+    bytes[size] = currentBytes + bytesDelta;
+    size++;
+  }
+
+  private static long[] grow(long[] array) {
+    long[] grown = new long[array.length * 2];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+
+  /**
+   * Forgets the counts of revisions older than the revision.
+   *
+   * @param oldestRevision oldest revision that might still be counted
+   */
+  public synchronized void forget(long oldestRevision) {
+    int position = seek(oldestRevision);
+    if (position < 0) {
+      return;
+    }
+    firstRevision = revisions[position];
+    firstKeys = keys[position];
+    firstBytes = bytes[position];
+    size -= position + 1;
+    System.arraycopy(revisions, position + 1, revisions, 0, size);
+    System.arraycopy(keys, position + 1, keys, 0, size);
+    System.arraycopy(bytes, position + 1, bytes, 0, size);
+  }
+
+  /**
+   * @return position of the most recent logged revision at or before the revision, -1 if none.
+   */
+  private int seek(long revision) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (revisions[middle] <= revision) {
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return high;
+  }
+
+  /**
+   * @param revision read revision
+   * @return true if the revision can be counted
+   */
+  public synchronized boolean isKnown(long revision) {
+    return revision >= firstRevision;
+  }
+
+  /**
+   * @param revision read revision, must be {@link #isKnown(long)}
+   * @return number of keys in use in the revision
+   */
+  public synchronized long getKeys(long revision) {
+    int position = seek(revision);
+    return position < 0 ? firstKeys : keys[position];
+  }
+
+  /**
+   * @param revision read revision, must be {@link #isKnown(long)}
+   * @return key and uncompressed value bytes in use in the revision
+   */
+  public synchronized long getBytes(long revision) {
+    int position = seek(revision);
+    return position < 0 ? firstBytes : bytes[position];
+  }
+
+  public synchronized long getFirstRevision() {
+    return firstRevision;
+  }
+
+  /**
+   * Writes to a temporary file that replaces the file, partially written counts are thus never read.
+   *
+   * @param file
+   * @throws IOException
+   */
+  public synchronized void write(File file) throws IOException {
+    File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 65536));
+    try {
+      out.writeInt(FILE_FORMAT_VERSION);
+      out.writeLong(firstRevision);
+      out.writeLong(firstKeys);
+      out.writeLong(firstBytes);
+      out.writeInt(size);
+      for (int i = 0; i < size; i++) {
+        out.writeLong(revisions[i]);
+        out.writeLong(keys[i]);
+        out.writeLong(bytes[i]);
+      }
+    } finally {
+      out.close();
+    }
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Could not delete " + file.getAbsolutePath());
+    }
+    if (!temporary.renameTo(file)) {
+      throw new IOException("Could not rename " + temporary.getAbsolutePath() + " to " + file.getAbsolutePath());
+    }
+  }
+
+  /**
+   * @param file
+   * @return the counts written to the file
+   * @throws IOException if the file is not complete
+   */
+  public static LiveCounts read(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+    try {
+      int fileFormatVersion = in.readInt();
+      if (fileFormatVersion != FILE_FORMAT_VERSION) {
+        throw new StoreException("Unknown live counts file format version " + fileFormatVersion + " in " + file.getAbsolutePath());
+      }
+      LiveCounts liveCounts = new LiveCounts(in.readLong(), in.readLong(), in.readLong());
+      int size = in.readInt();
+      while (liveCounts.revisions.length < size) {
+        liveCounts.revisions = grow(liveCounts.revisions);
+        liveCounts.keys = grow(liveCounts.keys);
+        liveCounts.bytes = grow(liveCounts.bytes);
+      }
+      for (int i = 0; i < size; i++) {
+        liveCounts.revisions[i] = in.readLong();
+        liveCounts.keys[i] = in.readLong();
+        liveCounts.bytes[i] = in.readLong();
+      }
+      liveCounts.size = size;
+      return liveCounts;
+    } finally {
+      in.close();
+    }
+  }
+
+}
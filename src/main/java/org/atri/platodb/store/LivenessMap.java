@@ -0,0 +1,314 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.atri.platodb.store.data.FileHandler;
+import org.atri.platodb.store.data.FileHandler.Posting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * In memory map of the postings appended to a keys partition: the offset of each posting
+ * and bitmaps of the deleted and relocated ones, postings past the last one are never used.
+ * Readers use it to jump over postings that can not be in use in the read revision without reading them.
+ * <p/>
+ * Deleted postings are grouped 64 at the time, one word of the bitmaps,
+ * along with the most recent revision any of them was deleted in.
+ * The deleted postings of a word are skipped when reading that revision or a later one,
+ * relocated postings are always skipped.
+ * <p/>
+ * Updated by the thread holding the store write lock, all methods are synchronized.
+ *
+ * @author atri
+ * @since 2017-sep-25 20:47:09
+ */
+public class LivenessMap {
+
+  public static final String SUFFIX = "kl";
+
+  public static final int FILE_FORMAT_VERSION = 0;
+
+  /** offset of each posting in the order appended */
+  private long[] offsets;
+  /** end of the last posting */
+  private long end;
+  private int size;
+
+  private long[] deleted;
+  private long[] relocated;
+  /** most recent deleted revision of the deleted postings in each word */
+  private long[] deletedRevisions;
+
+  /**
+   * @param end offset of the first posting, i.e. the header size
+   */
+  public LivenessMap(long end) {
+    this.end = end;
+    offsets = new long[64];
+    deleted = new long[1];
+    relocated = new long[1];
+    deletedRevisions = new long[]{Long.MIN_VALUE};
+  }
+
+  /**
+   * @param directory      store directory
+   * @param keysPartitionId
+   * @return the file the map of the keys partition is persisted to when the store is closed
+   */
+  public static File getFile(File directory, int keysPartitionId) {
+    return new File(directory, FileHandler.fileName(keysPartitionId, SUFFIX));
+  }
+
+  /**
+   * Require write lock!
+   *
+   * @param offset          offset of the new posting, the end of the postings
+   * @param byteSize        posting size in bytes
+   * @param flag            flag of the new posting, a relocated posting is copied in use or deleted
+   * @param deletedRevision deleted revision of the new posting
+   * @throws StoreInconsistencyException if the posting is not appended at the end of the postings
+   */
+  public synchronized void appended(long offset, int byteSize, byte flag, long deletedRevision) throws StoreInconsistencyException {
+    if (offset != end) {
+      throw new StoreInconsistencyException("Posting appended at offset " + offset + " but postings end at offset " + end);
+    }
+    if (size == offsets.length) {
+      long[] grown = new long[offsets.length * 2];
+      System.arraycopy(offsets, 0, grown, 0, size);
+      offsets = grown;
+      deleted = grow(deleted, offsets.length / 64, 0);
+      relocated = grow(relocated, offsets.length / 64, 0);
+      deletedRevisions = grow(deletedRevisions, offsets.length / 64, Long.MIN_VALUE);
+    }
+    offsets[size] = offset;
+    end = offset + byteSize;
+    if (flag == Posting.FLAG_DELETED) {
+      setDeleted(size, deletedRevision);
+    } else if (flag == Posting.FLAG_RELOCATED) {
+      relocated[size >>> 6] |= 1l << size;
+    }
+    size++;
+  }
+
+  private static long[] grow(long[] words, int length, long value) {
+    long[] grown = new long[length];
+    System.arraycopy(words, 0, grown, 0, words.length);
+    for (int i = words.length; i < length; i++) {
+      grown[i] = value;
+    }
+    return grown;
+  }
+
+  private void setDeleted(int posting, long revision) {
+    int word = posting >>> 6;
+    deleted[word] |= 1l << posting;
+    deletedRevisions[word] = Math.max(deletedRevisions[word], revision);
+  }
+
+  /**
+   * Require write lock!
+   *
+   * @param offset   offset of a posting flagged as deleted
+   * @param revision deleted revision
+   */
+  public synchronized void deleted(long offset, long revision) {
+    int posting = indexOf(offset);
+    if (posting >= 0) {
+      setDeleted(posting, revision);
+    }
+  }
+
+  /**
+   * Require write lock!
+   *
+   * @param offset offset of a posting flagged as relocated
+   */
+  public synchronized void relocated(long offset) {
+    int posting = indexOf(offset);
+    if (posting >= 0) {
+      relocated[posting >>> 6] |= 1l << posting;
+    }
+  }
+
+  /**
+   * @return index of the posting at the offset, or a negative value if no posting starts at the offset.
+   */
+  private int indexOf(long offset) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (offsets[middle] < offset) {
+        low = middle + 1;
+      } else if (offsets[middle] > offset) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @param offset   offset of a posting
+   * @param revision read revision
+   * @return offset of the first posting at or after the offset that might be in use in the revision,
+   *         the end of the postings if none, or the offset itself if no posting starts at it.
+   */
+  public synchronized long seekLive(long offset, long revision) {
+    int posting = indexOf(offset);
+    if (posting < 0) {
+      return offset;
+    }
+    while (posting < size) {
+      int word = posting >>> 6;
+      long skipped = relocated[word];
+      if (revision >= deletedRevisions[word]) {
+        skipped |= deleted[word];
+      }
+      long candidates = ~skipped & (-1l << posting);
+      if (candidates != 0) {
+        posting = (word << 6) + Long.numberOfTrailingZeros(candidates);
+        return posting < size ? offsets[posting] : end;
+      }
+      posting = (word + 1) << 6;
+    }
+    return end;
+  }
+
+  /**
+   * @return number of postings appended
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * @return end of the postings appended
+   */
+  public synchronized long getEnd() {
+    return end;
+  }
+
+  public synchronized long getOffset(int posting) {
+    return offsets[posting];
+  }
+
+  /**
+   * @return size in bytes of the posting
+   */
+  public synchronized long getByteSize(int posting) {
+    return (posting + 1 < size ? offsets[posting + 1] : end) - offsets[posting];
+  }
+
+  public synchronized boolean isRelocated(int posting) {
+    return (relocated[posting >>> 6] & (1l << posting)) != 0;
+  }
+
+  public synchronized boolean isDeleted(int posting) {
+    return (deleted[posting >>> 6] & (1l << posting)) != 0;
+  }
+
+  /**
+   * @return true if the posting is known to be deleted in or before the revision,
+   *         false if it is not deleted or might be deleted after the revision.
+   */
+  public synchronized boolean isDeletedAtOrBefore(int posting, long revision) {
+    return isDeleted(posting) && deletedRevisions[posting >>> 6] <= revision;
+  }
+
+  /**
+   * Writes to a temporary file that replaces the file, a partially written map is thus never read.
+   *
+   * @param file
+   * @throws IOException
+   */
+  public synchronized void write(File file) throws IOException {
+    File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 65536));
+    try {
+      out.writeInt(FILE_FORMAT_VERSION);
+      out.writeLong(end);
+      out.writeInt(size);
+      for (int i = 0; i < size; i++) {
+        out.writeLong(offsets[i]);
+      }
+      int words = (size + 63) >>> 6;
+      for (int i = 0; i < words; i++) {
+        out.writeLong(deleted[i]);
+        out.writeLong(relocated[i]);
+        out.writeLong(deletedRevisions[i]);
+      }
+    } finally {
+      out.close();
+    }
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Could not delete " + file.getAbsolutePath());
+    }
+    if (!temporary.renameTo(file)) {
+      throw new IOException("Could not rename " + temporary.getAbsolutePath() + " to " + file.getAbsolutePath());
+    }
+  }
+
+  /**
+   * @param file
+   * @return the map written to the file
+   * @throws IOException if the file is not a complete map
+   */
+  public static LivenessMap read(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+    try {
+      int fileFormatVersion = in.readInt();
+      if (fileFormatVersion != FILE_FORMAT_VERSION) {
+        throw new StoreException("Unknown liveness map file format version " + fileFormatVersion + " in " + file.getAbsolutePath());
+      }
+      LivenessMap map = new LivenessMap(in.readLong());
+      int size = in.readInt();
+      int capacity = 64;
+      while (capacity < size) {
+        capacity *= 2;
+      }
+      map.offsets = new long[capacity];
+      map.deleted = new long[capacity / 64];
+      map.relocated = new long[capacity / 64];
+      map.deletedRevisions = grow(new long[0], capacity / 64, Long.MIN_VALUE);
+      for (int i = 0; i < size; i++) {
+        map.offsets[i] = in.readLong();
+      }
+      int words = (size + 63) >>> 6;
+      for (int i = 0; i < words; i++) {
+        map.deleted[i] = in.readLong();
+        map.relocated[i] = in.readLong();
+        map.deletedRevisions[i] = in.readLong();
+      }
+      map.size = size;
+      return map;
+    } finally {
+      in.close();
+    }
+  }
+
+}
@@ -0,0 +1,181 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.atri.platodb.store.data.PostingsPartition;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out space for new postings in the hash codes, keys and values partitions
+ * from memory rather than by reading and writing the partition header for each posting.
+ * <p/>
+ * Headers are only written by {@link #writeHeaders(Accessor)}, i.e. when the store is made durable,
+ * at write-ahead log checkpoints and when the store is closed. A header on disk might thus lag
+ * behind the postings in the partition. The first time a partition is allocated from
+ * its next posting offset is reconstructed by reading postings from the header offset
+ * until one that was never used.
+ * <p/>
+ * The lowest created revision of the postings in each partition is kept along with the offsets,
+ * it allows readers of an old revision to skip partitions that only contain postings created after it.
+ * <p/>
+ * One instance per store, shared by all accessors. The offsets are never read again from the headers,
+ * which is safe as {@link Store#open()} fails if another store instance has the store open.
+ *
+ * @author atri
+ * @since 2017-sep-05 20:34:18
+ */
+public class PartitionAllocator {
+
+  private static final Log log = new Log(PartitionAllocator.class);
+
+  private final Map<File, Allocation> allocations = new HashMap<File, Allocation>();
+  private int dirtyAllocations = 0;
+
+  private static class Allocation {
+    private final Class<? extends PostingsPartition> type;
+    private final int partitionId;
+    private long nextPostingOffset;
+    private long bytesLeft;
+    /** lowest created revision of the postings in the partition, {@link Long#MAX_VALUE} if none, 0 if unknown */
+    private long lowestRevision;
+    /** true if the header on disk is behind */
+    private boolean dirty;
+
+    private Allocation(Class<? extends PostingsPartition> type, int partitionId, long nextPostingOffset, long bytesLeft, long lowestRevision) {
+      this.type = type;
+      this.partitionId = partitionId;
+      this.nextPostingOffset = nextPostingOffset;
+      this.bytesLeft = bytesLeft;
+      this.lowestRevision = lowestRevision;
+    }
+  }
+
+  /**
+   * Require write lock!
+   *
+   * @param partition       partition to allocate from
+   * @param byteSize        posting size in bytes
+   * @param maximumByteSize maximum partition file size
+   * @param createdRevision created revision of the new posting
+   * @return offset of the new posting, or -1 if it does not fit the partition
+   * @throws IOException
+   */
+  public synchronized long allocate(PostingsPartition partition, int byteSize, long maximumByteSize, long createdRevision) throws IOException {
+    Allocation allocation = getAllocation(partition);
+    if (allocation.nextPostingOffset + byteSize > maximumByteSize) {
+      return -1;
+    }
+    long startOffset = allocation.nextPostingOffset;
+    allocation.nextPostingOffset += byteSize;
+    allocation.bytesLeft -= byteSize;
+    allocation.lowestRevision = Math.min(allocation.lowestRevision, createdRevision);
+    if (!allocation.dirty) {
+      allocation.dirty = true;
+      dirtyAllocations++;
+    }
+    return startOffset;
+  }
+
+  /**
+   * @param partition
+   * @return offset in the partition for next new posting, i.e. the end of the postings in the partition.
+   * @throws IOException
+   */
+  public synchronized long getNextPostingOffset(PostingsPartition partition) throws IOException {
+    return getAllocation(partition).nextPostingOffset;
+  }
+
+  /**
+   * @param partition
+   * @return lowest created revision of the postings in the partition,
+   *         {@link Long#MAX_VALUE} if there are none and 0 if unknown.
+   * @throws IOException
+   */
+  public synchronized long getLowestRevision(PostingsPartition partition) throws IOException {
+    return getAllocation(partition).lowestRevision;
+  }
+
+  /**
+   * @return true if any partition header on disk is behind
+   */
+  public synchronized boolean isDirty() {
+    return dirtyAllocations > 0;
+  }
+
+  /**
+   * Require write lock!
+   * <p/>
+   * Writes the header of all partitions allocated from since last time.
+   *
+   * @param accessor
+   * @throws IOException
+   */
+  public synchronized void writeHeaders(Accessor accessor) throws IOException {
+    if (dirtyAllocations == 0) {
+      return;
+    }
+    for (Allocation allocation : allocations.values()) {
+      if (allocation.dirty) {
+        accessor.getPartition(allocation.type, allocation.partitionId).writeHeader(allocation.nextPostingOffset, allocation.bytesLeft, allocation.lowestRevision);
+        allocation.dirty = false;
+        dirtyAllocations--;
+      }
+    }
+  }
+
+  /**
+   * Require write lock!
+   * <p/>
+   * Drops the allocation of a partition that is no longer allocated from, i.e. one that is about to be deleted.
+   *
+   * @param partition
+   */
+  public synchronized void forget(PostingsPartition partition) {
+    Allocation allocation = allocations.remove(partition.getFile());
+    if (allocation != null && allocation.dirty) {
+      dirtyAllocations--;
+    }
+  }
+
+  private Allocation getAllocation(PostingsPartition partition) throws IOException {
+    Allocation allocation = allocations.get(partition.getFile());
+    if (allocation == null) {
+      long headerNextPostingOffset = partition.readNextPostingOffset();
+      long nextPostingOffset = partition.seekNeverUsedPosting(headerNextPostingOffset);
+      long lowestRevision = partition.readLowestRevision();
+      if (nextPostingOffset != headerNextPostingOffset) {
+        lowestRevision = Math.min(lowestRevision, partition.readLowestRevision(headerNextPostingOffset, nextPostingOffset));
+      }
+      allocation = new Allocation(partition.getClass(), partition.getPartitionId(), nextPostingOffset,
+          partition.readBytesLeft() - (nextPostingOffset - headerNextPostingOffset), lowestRevision);
+      if (nextPostingOffset != headerNextPostingOffset) {
+        log.info("Header of " + partition.getFile().getAbsolutePath() + " was " + (nextPostingOffset - headerNextPostingOffset) + " bytes behind, it will be updated at next checkpoint.");
+        allocation.dirty = true;
+        dirtyAllocations++;
+      }
+      allocations.put(partition.getFile(), allocation);
+    }
+    return allocation;
+  }
+
+}
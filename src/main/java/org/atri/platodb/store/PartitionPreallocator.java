@@ -0,0 +1,166 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.atri.platodb.store.data.FileHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formats the next hash codes, keys and values partition in a background thread
+ * so that writers don't stall on formatting when a partition is full.
+ * <p/>
+ * A partition is formatted to {@link org.atri.platodb.store.data.FileHandler#getPreallocatedFile()}
+ * and renamed in place by {@link #claim(org.atri.platodb.store.data.FileHandler)}
+ * when the accessor rolls over to it while holding the store write lock.
+ * If the preallocation is not done at that time the writer waits for it to finish.
+ * <p/>
+ * Preallocated files that never were claimed are removed on {@link #close()},
+ * and stale ones left behind by a crash are removed when the partition is claimed.
+ *
+ * @see org.atri.platodb.store.Configuration#setPreallocatingPartitions(boolean)
+ * @author atri
+ * @since 2017-aug-14 19:47:05
+ */
+public class PartitionPreallocator {
+
+  private static final Log log = new Log(PartitionPreallocator.class);
+
+  private final boolean formattingSparse;
+  private final long shutdownTimeoutMilliseconds;
+  private final ExecutorService executor;
+
+  /** preallocated files ever requested, in order to not check the file system for existence more than once. */
+  private final Set<File> requested = new HashSet<File>();
+  /** preallocated file -> formatting task */
+  private final Map<File, Future<File>> preallocations = new HashMap<File, Future<File>>();
+
+  PartitionPreallocator(final Configuration configuration) {
+    formattingSparse = configuration.isFormattingSparse();
+    shutdownTimeoutMilliseconds = configuration.getLockWaitTimeoutMilliseconds();
+    executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "PlatoDB partition preallocator " + configuration.getDataPath().getAbsolutePath());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Schedules formatting of the partition unless it already exists.
+   *
+   * @param partition partition to be formatted in the background
+   * @param size      file size in bytes
+   */
+  public synchronized void preallocate(final FileHandler<?, ?> partition, final long size) {
+    if (executor.isShutdown() || !requested.add(partition.getPreallocatedFile()) || partition.exists()) {
+      return;
+    }
+    preallocations.put(partition.getPreallocatedFile(), executor.submit(new Callable<File>() {
+      public File call() throws Exception {
+        partition.preallocate(size, formattingSparse);
+        return partition.getPreallocatedFile();
+      }
+    }));
+  }
+
+  /**
+   * Require write lock!
+   * <p/>
+   * Moves a preallocated file in place of the partition file,
+   * waiting for the preallocation to finish if it is still in progress.
+   *
+   * @param partition partition that does not yet exist
+   * @return true if the partition file was moved in place, false if the caller has to format the partition.
+   * @throws IOException
+   */
+  public boolean claim(FileHandler<?, ?> partition) throws IOException {
+    File preallocated = partition.getPreallocatedFile();
+    Future<File> future;
+    synchronized (this) {
+      future = preallocations.remove(preallocated);
+    }
+    if (future == null) {
+      if (preallocated.exists() && !preallocated.delete()) {
+        throw new IOException("Could not delete stale preallocated file " + preallocated.getAbsolutePath());
+      }
+      return false;
+    }
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      synchronized (this) {
+        preallocations.put(preallocated, future);
+      }
+      return false;
+    } catch (ExecutionException e) {
+      log.warn("Preallocation of " + partition.getFile().getAbsolutePath() + " failed, formatting it inline", e.getCause());
+      preallocated.delete();
+      return false;
+    }
+    if (!preallocated.renameTo(partition.getFile())) {
+      throw new IOException("Could not rename " + preallocated.getAbsolutePath() + " to " + partition.getFile().getAbsolutePath());
+    }
+    if (log.isDebug()) {
+      log.debug("Claimed preallocated " + partition.getFile().getAbsolutePath());
+    }
+    return true;
+  }
+
+  /**
+   * Stops the background thread and removes all unclaimed preallocated files.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    Map<File, Future<File>> unclaimed;
+    synchronized (this) {
+      executor.shutdownNow();
+      unclaimed = new HashMap<File, Future<File>>(preallocations);
+      preallocations.clear();
+    }
+    try {
+      if (!executor.awaitTermination(shutdownTimeoutMilliseconds, TimeUnit.MILLISECONDS)) {
+        log.warn("Timed out waiting for partition preallocation to finish");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (File preallocated : unclaimed.keySet()) {
+      if (preallocated.exists() && !preallocated.delete()) {
+        log.warn("Could not delete unclaimed preallocated file " + preallocated.getAbsolutePath());
+      }
+    }
+  }
+
+}
@@ -0,0 +1,222 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decides the oldest revision that might still be read, postings deleted in or before it
+ * are no longer needed and reclaimed by the {@link Compactor}.
+ * <p/>
+ * The watermark is the oldest revision retained by any policy,
+ * {@link Configuration#getRetainedRevisions()}, {@link Configuration#getRevisionRetentionMilliseconds()}
+ * and {@link #setOldestRetainedRevision(long)}, but never newer than the oldest pinned revision.
+ * Revisions are pinned by open transactions, scans and explicit {@link Pin}s.
+ * Without any policy all revisions are retained.
+ * <p/>
+ * Revisions are learned from writes and not persisted, i.e. nothing is released
+ * until the store has been written to after it was opened.
+ * <p/>
+ * Shared by all stores of an {@link org.atri.platodb.entity.EntityStore} as they share revisions.
+ *
+ * @author atri
+ * @since 2017-sep-20 21:06:44
+ */
+public class RetentionManager {
+
+  /** number of most recent revisions retained, 0 if all */
+  private final int retainedRevisions;
+  /** revisions current within this time are retained, 0 if all */
+  private final long retentionMilliseconds;
+
+  /** explicit watermark, {@link Long#MIN_VALUE} if not set */
+  private long oldestRetainedRevision = Long.MIN_VALUE;
+
+  /** the most recent revision written since the store was opened, read without locking */
+  private volatile long latestRevision = Long.MIN_VALUE;
+  /** revision -> when first written, only the revisions that might still be within the retention time */
+  private final TreeMap<Long, Long> writtenMilliseconds = new TreeMap<Long, Long>();
+
+  /** pinned revision -> number of pins */
+  private final TreeMap<Long, Integer> pins = new TreeMap<Long, Integer>();
+  /** number of pins held by scans */
+  private int scans = 0;
+
+  public RetentionManager(int retainedRevisions, long retentionMilliseconds) {
+    this.retainedRevisions = retainedRevisions;
+    this.retentionMilliseconds = retentionMilliseconds;
+  }
+
+  /**
+   * Called by the store for each put and remove.
+   *
+   * @param revision revision written
+   */
+  public synchronized void written(long revision) {
+    if (revision <= latestRevision) {
+      return;
+    }
+    latestRevision = revision;
+    if (retentionMilliseconds > 0) {
+      writtenMilliseconds.put(revision, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * @return the most recent revision written since the store was opened, {@link Long#MIN_VALUE} if none.
+   */
+  public long getLatestRevision() {
+    return latestRevision;
+  }
+
+  /**
+   * @param revision revision that must be retained until the pin is released
+   * @return the pin, to be released by the caller
+   */
+  public synchronized Pin pin(long revision) {
+    return pin(revision, false);
+  }
+
+  /**
+   * @param revision revision that must be retained until the pin is released
+   * @param scanning if true the pin is held by a scan iterating the keys partitions,
+   *                 the {@link Compactor} does not relocate postings until it is released.
+   * @return the pin, to be released by the caller
+   */
+  public synchronized Pin pin(long revision, boolean scanning) {
+    Integer count = pins.get(revision);
+    pins.put(revision, count == null ? 1 : count + 1);
+    if (scanning) {
+      scans++;
+    }
+    return new Pin(revision, scanning);
+  }
+
+  /**
+   * @return true if any scan holds a pin
+   */
+  public synchronized boolean isScanning() {
+    return scans > 0;
+  }
+
+  private synchronized void unpin(Pin pin) {
+    if (pin.scanning) {
+      scans--;
+    }
+    Integer count = pins.get(pin.revision);
+    if (count == 1) {
+      pins.remove(pin.revision);
+    } else {
+      pins.put(pin.revision, count - 1);
+    }
+  }
+
+  /**
+   * @return the oldest pinned revision, {@link Long#MAX_VALUE} if none.
+   */
+  public synchronized long getOldestPinnedRevision() {
+    return pins.isEmpty() ? Long.MAX_VALUE : pins.firstKey();
+  }
+
+  /**
+   * @param oldestRetainedRevision revisions older than this are not needed, {@link Long#MIN_VALUE} to retain all.
+   */
+  public synchronized void setOldestRetainedRevision(long oldestRetainedRevision) {
+    this.oldestRetainedRevision = oldestRetainedRevision;
+  }
+
+  /**
+   * @return postings deleted in or before this revision are never read again,
+   *         {@link Long#MIN_VALUE} if all revisions are retained.
+   */
+  public synchronized long getOldestRetainedRevision() {
+    long oldest = Long.MAX_VALUE;
+    boolean retaining = false;
+    if (oldestRetainedRevision != Long.MIN_VALUE) {
+      oldest = oldestRetainedRevision;
+      retaining = true;
+    }
+    if (retainedRevisions > 0) {
+      oldest = Math.min(oldest, latestRevision == Long.MIN_VALUE ? Long.MIN_VALUE : latestRevision - retainedRevisions + 1);
+      retaining = true;
+    }
+    if (retentionMilliseconds > 0) {
+      oldest = Math.min(oldest, getOldestCurrentRevision(System.currentTimeMillis() - retentionMilliseconds));
+      retaining = true;
+    }
+    if (!retaining) {
+      return Long.MIN_VALUE;
+    }
+    return Math.min(oldest, getOldestPinnedRevision());
+  }
+
+  /**
+   * Forgets the revisions replaced before the time.
+   *
+   * @return the revision that was current at the time, {@link Long#MIN_VALUE} if it is unknown.
+   */
+  private long getOldestCurrentRevision(long milliseconds) {
+    // revisions are written in order, so are the times
+    Long current = null;
+    for (Map.Entry<Long, Long> entry : writtenMilliseconds.entrySet()) {
+      if (entry.getValue() > milliseconds) {
+        break;
+      }
+      current = entry.getKey();
+    }
+    if (current == null) {
+      return Long.MIN_VALUE;
+    }
+    writtenMilliseconds.headMap(current).clear();
+    return current;
+  }
+
+  /**
+   * A revision that must be retained until released.
+   */
+  public class Pin {
+
+    private final long revision;
+    private final boolean scanning;
+    private boolean released = false;
+
+    private Pin(long revision, boolean scanning) {
+      this.revision = revision;
+      this.scanning = scanning;
+    }
+
+    public long getRevision() {
+      return revision;
+    }
+
+    /**
+     * Releases the revision, calling it again has no effect.
+     */
+    public void release() {
+      synchronized (RetentionManager.this) {
+        if (!released) {
+          released = true;
+          unpin(this);
+        }
+      }
+    }
+  }
+
+}
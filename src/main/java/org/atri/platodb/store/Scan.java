@@ -0,0 +1,219 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.atri.platodb.store.data.BlockReadingFileAccess;
+import org.atri.platodb.store.data.platotrie.KeysPartition;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Full scan of all keys, and optionally their values, in a revision of a store.
+ * <p/>
+ * Keys are read using {@link Store#keys()}, i.e. in large sequential blocks of the keys partitions,
+ * in batches of {@link Configuration#getScanBatchSize()} keys. The values of a batch are read
+ * in partition and offset order, again in large sequential blocks. While the consumer
+ * iterates one batch the next one is read ahead by the {@link Store#getAsynchronousExecutor()}.
+ * <p/>
+ * Entries are returned in the same order as by {@link Store#keys()}.
+ * <p/>
+ * The revision is pinned in the {@link RetentionManager} until the scan is closed or iterated to the end.
+ * <p/>
+ * Not thread safe. Must be closed unless iterated to the end.
+ *
+ * @author atri
+ * @since 2017-sep-11 23:20:17
+ */
+public class Scan {
+
+  private final Store store;
+  private final long revision;
+  private final boolean readingValues;
+
+  private final Cursor<KeysPartition.Posting> keys;
+  private final RetentionManager.Pin pin;
+  private boolean keysExhausted = false;
+
+  private Batch batch;
+  private int index = -1;
+  private Future<Batch> readAhead;
+
+  private static class Batch {
+    private final List<KeysPartition.Posting> keyPostings = new ArrayList<KeysPartition.Posting>();
+    private byte[][] values;
+  }
+
+  /**
+   * @param store
+   * @param revision      read revision
+   * @param readingValues if false only keys are read
+   * @see Store#scan(long, boolean)
+   */
+  Scan(Store store, long revision, boolean readingValues) {
+    this.store = store;
+    this.revision = revision;
+    this.readingValues = readingValues;
+    this.keys = store.keys();
+    pin = store.pinScan(revision);
+  }
+
+  /**
+   * @return true if positioned at the next entry, false if there are no more entries.
+   * @throws IOException
+   */
+  public boolean next() throws IOException {
+    if (batch != null && ++index < batch.keyPostings.size()) {
+      return true;
+    }
+    if (readAhead == null) {
+      if (keysExhausted) {
+        batch = null;
+        pin.release();
+        return false;
+      }
+      readAhead = readAhead();
+    }
+    batch = get(readAhead);
+    readAhead = null;
+    index = 0;
+    if (batch.keyPostings.isEmpty()) {
+      batch = null;
+      pin.release();
+      return false;
+    }
+    if (!keysExhausted) {
+      readAhead = readAhead();
+    }
+    return true;
+  }
+
+  /**
+   * @return key posting of the current entry
+   */
+  public KeysPartition.Posting getKeyPosting() {
+    return batch.keyPostings.get(index);
+  }
+
+  /**
+   * @return key of the current entry
+   */
+  public byte[] getKey() {
+    return getKeyPosting().getBytes();
+  }
+
+  /**
+   * @return value of the current entry, or null if the value is null or values are not read.
+   */
+  public byte[] getValue() {
+    return batch.values == null ? null : batch.values[index];
+  }
+
+  /**
+   * Waits for any read ahead to finish and releases the revision.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    try {
+      if (readAhead != null) {
+        // still reading postings of the pinned revision
+        get(readAhead);
+        readAhead = null;
+      }
+    } finally {
+      pin.release();
+      batch = null;
+    }
+  }
+
+  private Future<Batch> readAhead() {
+    return store.submit(store.new AsynchronousOperation<Batch>() {
+      protected Batch call(Accessor accessor) throws IOException {
+        return read(accessor);
+      }
+    });
+  }
+
+  private Batch get(Future<Batch> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StoreException("Interrupted while waiting for scan read ahead", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new StoreException("Could not read ahead", e.getCause());
+    }
+  }
+
+  /**
+   * Reads the next batch.
+   */
+  private Batch read(Accessor accessor) throws IOException {
+    Batch batch = new Batch();
+    int batchSize = store.getConfiguration().getScanBatchSize();
+    while (batch.keyPostings.size() < batchSize) {
+      KeysPartition.Posting keyPosting = keys.next(accessor, new KeysPartition.Posting(), revision);
+      if (keyPosting == null) {
+        keysExhausted = true;
+        break;
+      }
+      batch.keyPostings.add(keyPosting);
+    }
+
+    if (readingValues) {
+      batch.values = new byte[batch.keyPostings.size()][];
+      Integer[] order = new Integer[batch.keyPostings.size()];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      final List<KeysPartition.Posting> keyPostings = batch.keyPostings;
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          KeysPartition.Posting postingA = keyPostings.get(a);
+          KeysPartition.Posting postingB = keyPostings.get(b);
+          if (postingA.getValuePostingPartition() != postingB.getValuePostingPartition()) {
+            return postingA.getValuePostingPartition() < postingB.getValuePostingPartition() ? -1 : 1;
+          }
+          if (postingA.getValuePostingPartitionOffset() != postingB.getValuePostingPartitionOffset()) {
+            return postingA.getValuePostingPartitionOffset() < postingB.getValuePostingPartitionOffset() ? -1 : 1;
+          }
+          return 0;
+        }
+      });
+      Map<Integer, BlockReadingFileAccess> blocks = new HashMap<Integer, BlockReadingFileAccess>();
+      for (Integer i : order) {
+        KeysPartition.Posting keyPosting = keyPostings.get(i);
+        batch.values[i] = store.readValue(accessor, keyPosting.getValuePostingPartition(), keyPosting.getValuePostingPartitionOffset(), blocks);
+      }
+    }
+    return batch;
+  }
+
+}
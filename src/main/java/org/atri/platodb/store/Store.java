@@ -20,38 +20,113 @@ package org.atri.platodb.store;
 
 import org.apache.commons.pool.BasePoolableObjectFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
+import org.atri.platodb.store.codec.Codec;
+import org.atri.platodb.store.data.BlockReadingFileAccess;
 import org.atri.platodb.store.data.FileHandler;
 import org.atri.platodb.store.data.FileHandler.Posting;
 import org.atri.platodb.store.data.Metadata;
 import org.atri.platodb.store.data.platotrie.HashCodesPartition;
 import org.atri.platodb.store.data.platotrie.Hashtable;
+import org.atri.platodb.store.data.platotrie.KeySlots;
 import org.atri.platodb.store.data.platotrie.KeysPartition;
 import org.atri.platodb.store.data.platotrie.ValuesPartition;
 import org.atri.platodb.store.lock.Lock;
+import org.atri.platodb.store.lock.NativeFSLockFactory;
 import org.atri.platodb.exceptions.DatabaseException;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This is the core Index<byte[], byte[]> that is stored on filesystem.
+ * <p/>
+ * Each hash code posting points at two chains of key postings. The live chain holds the key postings in use,
+ * the history chain the deleted key postings, most recently deleted first. Reading the current revision only
+ * follows the live chain, reading an earlier revision follows the history chain too, until a key posting
+ * deleted in or before the revision.
  *
  * @author atri
  * @see org.atri.platodb.entity.EntityStore
- *      <p/>
- *      todo make sure deleted postings are the last postings in all hash code chains!
- *      <p/>
  **/
 public class Store {
 
   private static final Log log = new Log(Store.class);
 
+  /** name of the lock file held while the store is open */
+  public static final String OPEN_LOCK_NAME = "open.lock";
+
   private Configuration configuration;
 
+  /** held while the store is open */
+  private Lock openLock;
+
   private GenericObjectPool accessorPool;
 
+  private PartitionPreallocator partitionPreallocator;
+
+  private DurabilityManager durabilityManager;
+
+  private WriteAheadLog writeAheadLog;
+
+  private Metadata.SharedHeader sharedMetadataHeader;
+
+  /** obtained by the store write lock of all accessors before the lock of the lock factory */
+  private final ReentrantLock inProcessWriteLock = new ReentrantLock();
+  /** increased each time the store write lock is released, i.e. when postings might have been written */
+  private final AtomicLong writeGeneration = new AtomicLong();
+
+  private PartitionAllocator partitionAllocator;
+
+  /** number of key slots in use, guarded by the store write lock */
+  private long keySlotsEntries;
+  /** true if the key slots header is flagged as dirty, guarded by the store write lock */
+  private boolean keySlotsDirty;
+
+  /** keys ever put, null if not {@link Configuration#isUsingBloomFilter()} */
+  private volatile BloomFilter bloomFilter;
+
+  /** keys and bytes in use per revision, null until built if the store was not closed */
+  private volatile LiveCounts liveCounts;
+
+  /** keys partition id -> liveness map, null if not {@link Configuration#isUsingLivenessMaps()} */
+  private volatile Map<Integer, LivenessMap> livenessMaps;
+
+  /** number of positions of the current hashtable that has been rehashed, -1 if not rehashing */
+  private volatile int rehashedPositions = -1;
+  /** background thread of an automatic rehash, guarded by the store write lock */
+  private volatile Thread rehasher;
+  private volatile boolean rehasherStopping;
+
+  /** reclaims the space of dead postings */
+  private Compactor compactor;
+  /** decides which revisions compaction may reclaim */
+  private RetentionManager retentionManager;
+
+  /** runs the asynchronous operations */
+  private ExecutorService asynchronousExecutor;
+  /** true if the executor was created by and thus is shut down by this store */
+  private boolean shuttingDownAsynchronousExecutor;
+
   public Store(File dataPath) throws IOException {
     this(new Configuration(dataPath));
   }
@@ -69,6 +144,84 @@ public class Store {
         throw new IOException("Could not create directory " + getConfiguration().getDataPath().getAbsolutePath());
       }
     }
+    obtainOpenLock();
+    boolean opened = false;
+    try {
+      doOpen();
+      opened = true;
+    } finally {
+      if (!opened) {
+        releaseOpenLock();
+      }
+    }
+  }
+
+  /**
+   * The metadata header and the partition allocations are held in memory by the store instance,
+   * it is thus the only one that may access the store until it is closed.
+   * A native file system lock is obtained no matter the configured lock factory
+   * so that a second store instance, in this or another process, fails to open.
+   *
+   * @throws StoreException if the store is already open
+   */
+  private void obtainOpenLock() throws IOException {
+    Lock openLock = new NativeFSLockFactory(getConfiguration().getDataPath()).makeLock(OPEN_LOCK_NAME);
+    if (!openLock.obtain()) {
+      throw new StoreException("Store " + getConfiguration().getDataPath().getAbsolutePath() + " is already open by another store instance, in this or another process");
+    }
+    this.openLock = openLock;
+  }
+
+  private void releaseOpenLock() throws IOException {
+    if (openLock != null) {
+      try {
+        openLock.release();
+      } finally {
+        openLock = null;
+      }
+    }
+  }
+
+  private void doOpen() throws IOException {
+    boolean creating = !isStore(getConfiguration().getDataPath());
+    if (!creating) {
+      Metadata metadata = new Metadata(getConfiguration().getDataPath(), "r", getConfiguration().getLockFactory(), getConfiguration().getFileAccessFactory());
+      metadata.open();
+      Metadata.Header mdh = new Metadata.Header();
+      try {
+        metadata.readHeader(mdh);
+      } finally {
+        metadata.close();
+      }
+      if (mdh.getFileFormatVersion() != Metadata.FILE_FORMAT_VERSION) {
+        throw new StoreException("Store " + getConfiguration().getDataPath().getAbsolutePath() + " is in file format version " + mdh.getFileFormatVersion()
+            + ", expected version " + Metadata.FILE_FORMAT_VERSION + ". See " + FileFormatMigration.class.getName());
+      }
+    }
+    sharedMetadataHeader = new Metadata.SharedHeader();
+    partitionAllocator = new PartitionAllocator();
+    if (durabilityManager == null && getConfiguration().getDurability() != Durability.NONE) {
+      durabilityManager = new DurabilityManager(getConfiguration().getDurability(), getConfiguration().getGroupCommitWindowMilliseconds());
+    }
+    if (retentionManager == null) {
+      retentionManager = new RetentionManager(getConfiguration().getRetainedRevisions(), getConfiguration().getRevisionRetentionMilliseconds());
+    }
+    if (getConfiguration().getAsynchronousExecutor() != null) {
+      asynchronousExecutor = getConfiguration().getAsynchronousExecutor();
+      shuttingDownAsynchronousExecutor = false;
+    } else {
+      asynchronousExecutor = Executors.newFixedThreadPool(getConfiguration().getAsynchronousThreads(), new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "PlatoDB asynchronous operation " + getConfiguration().getDataPath().getAbsolutePath());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      shuttingDownAsynchronousExecutor = true;
+    }
+    if (getConfiguration().isPreallocatingPartitions() && partitionPreallocator == null) {
+      partitionPreallocator = new PartitionPreallocator(getConfiguration());
+    }
     GenericObjectPool.Config config = new GenericObjectPool.Config();
     config.maxIdle = 2;
     config.maxActive = 20;
@@ -85,16 +238,83 @@ public class Store {
         ((Accessor) o).close();
       }
     }, config);
+
+    compactor = new Compactor(this);
+    compactor.open();
+
+    // before any write-ahead log is replayed
+    openKeySlots();
+    openBloomFilter();
+    openLiveCounts(creating);
+    openLivenessMaps();
+    openRehash();
+
+    if (getConfiguration().isWriteAheadLogging() || WriteAheadLog.getFile(getConfiguration().getDataPath()).exists()) {
+      writeAheadLog = new WriteAheadLog(this);
+      writeAheadLog.open();
+      if (!getConfiguration().isWriteAheadLogging()) {
+        // replayed the log of a store that used to have write-ahead logging enabled
+        writeAheadLog.close();
+        writeAheadLog = null;
+        if (!WriteAheadLog.getFile(getConfiguration().getDataPath()).delete()) {
+          throw new IOException("Could not delete " + WriteAheadLog.getFile(getConfiguration().getDataPath()).getAbsolutePath());
+        }
+      }
+    }
+
+    if (getConfiguration().isCompactingPartitions()) {
+      // otherwise only optimize() compacts, in the calling thread
+      compactor.start();
+    }
+  }
+
+  /**
+   * @param directory
+   * @return true if the directory contains a store
+   */
+  public static boolean isStore(File directory) {
+    return new File(directory, FileHandler.fileName(0, Metadata.SUFFIX)).exists();
   }
 
   public void close() throws IOException {
+    try {
+      doClose();
+    } finally {
+      releaseOpenLock();
+    }
+  }
+
+  private void doClose() throws IOException {
     log.info("Closing store..");
+    if (shuttingDownAsynchronousExecutor) {
+      // let operations already submitted finish
+      asynchronousExecutor.shutdown();
+      try {
+        if (!asynchronousExecutor.awaitTermination(getConfiguration().getLockWaitTimeoutMilliseconds(), TimeUnit.MILLISECONDS)) {
+          log.warn("Timed out waiting for asynchronous operations to finish");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new StoreException("Interrupted while waiting for asynchronous operations to finish", e);
+      }
+    }
+    stopRehasher();
+    compactor.stop();
 //    if (accessors.size() > 0) {
 //      log.warn("There are " + accessors.size() + " open accessors. They will be closed.");
 //    }
 //    for (Accessor accessor : new ArrayList<Accessor>(accessors)) {
 //      accessor.close();
 //    }
+    if (writeAheadLog != null) {
+      writeAheadLog.close();
+      writeAheadLog = null;
+    }
+    writePartitionHeaders();
+    closeKeySlots();
+    closeBloomFilter();
+    closeLiveCounts();
+    closeLivenessMaps();
     try {
       accessorPool.close();
     } catch (IOException e) {
@@ -102,17 +322,189 @@ public class Store {
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
+    compactor.close();
+    if (partitionPreallocator != null) {
+      partitionPreallocator.close();
+      partitionPreallocator = null;
+    }
+    if (durabilityManager != null) {
+      durabilityManager.sync();
+    }
     log.info("Store has been closed.");
 
   }
 
+  /**
+   * @return the partition preallocator, or null if not {@link Configuration#isPreallocatingPartitions()}
+   */
+  public PartitionPreallocator getPartitionPreallocator() {
+    return partitionPreallocator;
+  }
+
+  /**
+   * @return the durability manager notified about all file writes, or null if writes are never forced.
+   */
+  public DurabilityManager getDurabilityManager() {
+    return durabilityManager;
+  }
+
+  /**
+   * @return metadata header state shared by all accessors of the store.
+   */
+  Metadata.SharedHeader getSharedMetadataHeader() {
+    return sharedMetadataHeader;
+  }
+
+  /**
+   * @return lock serializing the threads of this JVM that write lock the store, e.g. background appliers, rehashers and compactors.
+   * @see org.atri.platodb.store.lock.InProcessLock
+   */
+  ReentrantLock getInProcessWriteLock() {
+    return inProcessWriteLock;
+  }
+
+  /**
+   * @return number of times the store write lock has been released,
+   *         postings read in to memory before it changed might since have been written.
+   */
+  long getWriteGeneration() {
+    return writeGeneration.get();
+  }
+
+  void writeLockReleased() {
+    writeGeneration.incrementAndGet();
+  }
+
+  /**
+   * Pins the revision of a scan while no compaction batch is in progress,
+   * so that compaction either stops before relocating more postings or completed its batch before the scan started.
+   *
+   * @see Compactor
+   */
+  RetentionManager.Pin pinScan(long revision) {
+    inProcessWriteLock.lock();
+    try {
+      return getRetentionManager().pin(revision, true);
+    } finally {
+      inProcessWriteLock.unlock();
+    }
+  }
+
+  /**
+   * @return the allocator of space for new postings in the partitions, shared by all accessors of the store.
+   */
+  PartitionAllocator getPartitionAllocator() {
+    return partitionAllocator;
+  }
+
+  /**
+   * Write locking.
+   * <p/>
+   * Writes the headers of all partitions new postings has been allocated in since last time,
+   * unless there is a write-ahead log as then they are written at log checkpoints.
+   * Called when the store is made durable and closed.
+   *
+   * @throws IOException
+   */
+  public void writePartitionHeaders() throws IOException {
+    if (writeAheadLog != null || !partitionAllocator.isDirty()) {
+      return;
+    }
+    Accessor accessor = borrowAccessor();
+    try {
+      writePartitionHeaders(accessor);
+    } finally {
+      returnAccessor(accessor);
+    }
+  }
+
+  /**
+   * Write locking.
+   * <p/>
+   * Writes the headers of all partitions new postings has been allocated in since last time.
+   *
+   * @param accessor
+   * @throws IOException
+   * @see PartitionAllocator#writeHeaders(Accessor)
+   */
+  void writePartitionHeaders(final Accessor accessor) throws IOException {
+    if (!partitionAllocator.isDirty()) {
+      return;
+    }
+    new Lock.With<Object>(accessor.getStoreWriteLock(), getConfiguration().getLockWaitTimeoutMilliseconds()) {
+      public Object doBody() throws IOException {
+        partitionAllocator.writeHeaders(accessor);
+        return null;
+      }
+    }.run();
+  }
+
+  /**
+   * @return the write-ahead log, or null if not {@link Configuration#isWriteAheadLogging()}
+   */
+  public WriteAheadLog getWriteAheadLog() {
+    return writeAheadLog;
+  }
+
+  /**
+   * @return the durability manager notified when partitions are written,
+   * the write-ahead log checkpoint manager if the log is used as then only the log is forced at commit.
+   */
+  DurabilityManager getPartitionsDurabilityManager() {
+    return writeAheadLog != null ? writeAheadLog.getCheckpointManager() : durabilityManager;
+  }
+
+  /**
+   * Must be called before {@link #open()}.
+   * Allows for multiple stores to share one manager and thus to be forced in the same group commit.
+   *
+   * @param durabilityManager durability manager to be used rather than one created from the configuration.
+   */
+  public void setDurabilityManager(DurabilityManager durabilityManager) {
+    this.durabilityManager = durabilityManager;
+  }
+
+  /**
+   * Must be called before {@link #open()}.
+   * Allows for multiple stores sharing revisions to share one manager.
+   *
+   * @param retentionManager retention manager to be used rather than one created from the configuration.
+   */
+  public void setRetentionManager(RetentionManager retentionManager) {
+    this.retentionManager = retentionManager;
+  }
+
+  /**
+   * @return decides which revisions compaction may reclaim, revisions are pinned here.
+   */
+  public RetentionManager getRetentionManager() {
+    return retentionManager;
+  }
+
+  /**
+   * Returns when everything written to the store so far is durable
+   * as defined by {@link Configuration#getDurability()}.
+   * Must not be called while holding the store write lock.
+   *
+   * @throws IOException
+   * @see DurabilityManager#makeDurable()
+   */
+  public void makeDurable() throws IOException {
+    if (durabilityManager != null) {
+      writePartitionHeaders();
+      durabilityManager.makeDurable();
+    }
+  }
+
   public Accessor borrowAccessor() {
     try {
 	if (accessorPool == null)
 	    {
 		this.open();
 	    }
-      return (Accessor) accessorPool.borrowObject();
+      Accessor accessor = (Accessor) accessorPool.borrowObject();
+      compactor.borrowed(accessor);
+      return accessor;
     } catch (Exception e) {
       throw new DatabaseException(e);
     }
@@ -120,6 +512,7 @@ public class Store {
 
   public void returnAccessor(Accessor accessor)  {
     try {
+      compactor.returned(accessor);
       accessorPool.returnObject(accessor);
     } catch (Exception e) {
       throw new DatabaseException(e);
@@ -140,152 +533,760 @@ public class Store {
 
     validateKey(key);
 
-    Hashtable hashtable = accessor.getHashtable();
-    Hashtable.Posting hashtablePosting = new Hashtable.Posting();
-    hashtable.readPosting(hashtablePosting, hashtable.calculateHashCodePostingOffset(hashCode));
-
-    //
-    // seek to the correct hash code posting
-    //
-    HashCodesPartition hashCodesPartition = accessor.getHashCodesPartition(hashtablePosting.getHashCodePostingPartition());
-    HashCodesPartition.Posting hashCodePosting = new HashCodesPartition.Posting();
-    hashCodesPartition.readPosting(hashCodePosting, hashtablePosting.getHashCodePostingPartitionOffset());
-    if (hashCodePosting.getFlagForRevision(revision) != Posting.FLAG_IN_USE) {
-      return null;
-    }
-    while (true) {
-
-      if (hashCodePosting.getFlagForRevision(revision) == Posting.FLAG_IN_USE
-          && hashCode == hashCodePosting.getKeyHashCode()) {
-        break;
-      }
-
-      if (hashCodePosting.getNextPostingPartition() < 0) {
-        return null;
-      }
-      if (hashCodePosting.getNextPostingPartition() != hashCodesPartition.getPartitionId()) {
-        hashCodesPartition = accessor.getHashCodesPartition(hashCodePosting.getNextPostingPartition());
-      }
-      hashCodesPartition.readPosting(hashCodePosting, hashCodePosting.getNextPostingPartitionOffset());
-    }
-
-    //
-    // seek to the correct key posting
-    //
-
-    KeysPartition.Posting keyPosting = new KeysPartition.Posting();
-
-    KeysPartition keysPartition = accessor.getKeysPartition(hashCodePosting.getFirstKeyPostingPartition(), true);
-    keysPartition.readPosting(keyPosting, hashCodePosting.getFirstKeyPostingPartitionOffset());
-    while (true) {
-
-      if (keyPosting.getFlagForRevision(revision) == Posting.FLAG_IN_USE
-          && Arrays.equals(key, keyPosting.getBytes())) {
-        break;
-      }
-
-      if (keyPosting.getNextKeyPostingPartition() < 0) {
-        return null;
-      }
-      if (keyPosting.getNextKeyPostingPartition() != keysPartition.getPartitionId()) {
-        keysPartition = accessor.getKeysPartition(keyPosting.getNextKeyPostingPartition(), true);
-      }
-      keysPartition.readPosting(keyPosting, keyPosting.getNextKeyPostingPartitionOffset());
+    WriteAheadLog.Record pending = getPending(key, revision);
+    if (pending != null) {
+      return pending.getValue() == null ? null : pending.getValue().clone();
     }
 
-    //
-    // seek to the correct value posting
-    //
-
-    ValuesPartition.Posting valuePosting = new ValuesPartition.Posting();
-
-    ValuesPartition valuesPartition = accessor.getValuesPartition(keyPosting.getValuePostingPartition());
-    valuesPartition.readPosting(valuePosting, keyPosting.getValuePostingPartitionOffset());
-
-    if (valuePosting.getBytesLength() == 0) {
+    KeysPartition.Posting keyPosting = seekKeyPosting(accessor, key, hashCode, revision);
+    if (keyPosting == null) {
       return null;
     }
-
-    return valuePosting.getBytes();
+    return getValue(accessor, keyPosting);
   }
 
+  public InputStream getInputStream(Accessor accessor, byte[] key, long hashCode) throws IOException {
+    return getInputStream(accessor, key, hashCode, Long.MAX_VALUE);
+  }
 
   /**
-   * Write locking.
+   * Streams the value rather than loading it in to memory,
+   * a large value is read one chunk at the time.
+   * <p/>
+   * The stream reads using the accessor, it must be consumed or closed before the accessor is returned.
    *
    * @param accessor
    * @param key
    * @param hashCode
-   * @param value
    * @param revision
-   * @return
+   * @return value of the key in the revision, or null if the key or value does not exist.
    * @throws IOException
+   * @see java.nio.channels.Channels#newChannel(java.io.InputStream)
    */
-  public byte[] put(final Accessor accessor, final byte[] key, final long hashCode, final byte[] value, final long revision) throws IOException {
+  public InputStream getInputStream(Accessor accessor, byte[] key, long hashCode, long revision) throws IOException {
 
     validateKey(key);
 
-    Lock.With<byte[]> with = new Lock.With<byte[]>(accessor.getStoreWriteLock(), getConfiguration().getLockWaitTimeoutMilliseconds()) {
-      public byte[] doBody() throws IOException {
-        return doPut(accessor, key, hashCode, value, revision);
-      }
-    };
-    return with.run();
+    WriteAheadLog.Record pending = getPending(key, revision);
+    if (pending != null) {
+      return pending.getValue() == null ? null : new ByteArrayInputStream(pending.getValue());
+    }
+
+    KeysPartition.Posting keyPosting = seekKeyPosting(accessor, key, hashCode, revision);
+    if (keyPosting == null) {
+      return null;
+    }
+    return getValueInputStream(accessor, keyPosting);
   }
 
   /**
-   * Should be write locked at this time.
+   * Gets the values of many keys at once.
    * <p/>
-   * revision must be the most recent revision in the store.
+   * Rather than seeking from hashtable to value one key at the time, each level of postings is
+   * resolved for all keys before moving on to the next level. The reads of a level are ordered by
+   * partition and offset so that the disk sees near sequential access.
+   * <p/>
+   * If {@link Configuration#isParallelBatchedGets()} the values of each values partition
+   * are read in parallel by the {@link #getAsynchronousExecutor()}, the first one by the calling thread.
+   * Values are read sequentially when called from an asynchronous operation,
+   * as waiting for operations queued behind itself could starve the executor.
    *
    * @param accessor
-   * @param key
-   * @param hashCode
-   * @param value
-   * @return
+   * @param keys      keys to get
+   * @param hashCodes hash code of each key
+   * @param revision
+   * @return the value of each key in the revision, null where the key or value does not exist.
    * @throws IOException
    */
-  private byte[] doPut(final Accessor accessor, final byte[] key, final long hashCode, final byte[] value, final long revision) throws IOException {
-
+  public byte[][] getAll(Accessor accessor, byte[][] keys, long[] hashCodes, long revision) throws IOException {
+    if (keys.length != hashCodes.length) {
+      throw new IllegalArgumentException("Expected one hash code per key");
+    }
+    final byte[][] values = new byte[keys.length][];
+
+    List<BatchedGet> pending = new ArrayList<BatchedGet>(keys.length);
+    for (int i = 0; i < keys.length; i++) {
+      validateKey(keys[i]);
+      WriteAheadLog.Record record = getPending(keys[i], revision);
+      if (record != null) {
+        values[i] = record.getValue() == null ? null : record.getValue().clone();
+      } else if (!isNeverPut(keys[i])) {
+        pending.add(new BatchedGet(i, keys[i], hashCodes[i]));
+      }
+    }
 
     //
-    // create new value posting
+    // hashtable postings
     //
 
-    int newValuePostingPartitionNumber;
-    int newValuePostingPartitionOffset;
-
-    ValuesPartition.Posting valuePosting = new ValuesPartition.Posting();
-    valuePosting.setFlag(FileHandler.Posting.FLAG_IN_USE);
-
-    valuePosting.setCreatedRevision(revision);
-    if (value == null || value.length == 0) {
-      valuePosting.setBytesLength(0);
-      valuePosting.setBytes(null);
-
-      newValuePostingPartitionNumber = -1;
-      newValuePostingPartitionOffset = -1;
-
-    } else {
-      valuePosting.setBytesLength(value.length);
-      valuePosting.setBytes(value);
-
-      Accessor.RequestPartitionWriterResponse<ValuesPartition> valueReservation = accessor.requestValueWrite(valuePosting);
-      newValuePostingPartitionNumber = valueReservation.getFileHandler().getPartitionId();
-      ValuesPartition valuesPartition = valueReservation.getFileHandler();
-      newValuePostingPartitionOffset = valueReservation.getStartOffset();
+    Hashtable.Posting hashtablePosting = new Hashtable.Posting();
+    for (BatchedGet get : pending) {
+      Hashtable hashtable = getHashtable(accessor, get.hashCode);
+      get.seek(hashtable.getVersionId(), hashtable.calculateHashCodePostingOffset(get.hashCode));
+    }
+    Collections.sort(pending);
+    List<BatchedGet> next = new ArrayList<BatchedGet>(pending.size());
+    for (BatchedGet get : pending) {
+      // resolved again as a rehash might have moved the position since
+      Hashtable hashtable = getHashtable(accessor, get.hashCode);
+      hashtable.readPosting(hashtablePosting, hashtable.calculateHashCodePostingOffset(get.hashCode));
+      // a deleted hashtable posting still points at the hash codes of older revisions
+      if (hashtablePosting.getFlag() != Posting.FLAG_NEVER_USED) {
+        get.seek(hashtablePosting.getHashCodePostingPartition(), hashtablePosting.getHashCodePostingPartitionOffset());
+        next.add(get);
+      }
+    }
 
-      // write new value posting, keep track of partition and offset
-      valuesPartition.writePosting(valuePosting, newValuePostingPartitionOffset);
+    //
+    // hash code postings, one round per link in the chains
+    //
 
+    boolean readingHistory = isReadingHistory(revision);
+    HashCodesPartition.Posting hashCodePosting = new HashCodesPartition.Posting();
+    List<BatchedGet> keysLevel = new ArrayList<BatchedGet>(next.size());
+    while (!next.isEmpty()) {
+      pending = next;
+      next = new ArrayList<BatchedGet>(pending.size());
+      Collections.sort(pending);
+      for (BatchedGet get : pending) {
+        accessor.getHashCodesPartition(get.partition).readPosting(hashCodePosting, get.offset);
+        if (hashCodePosting.getFlagForRevision(revision) == Posting.FLAG_IN_USE
+            && get.hashCode == hashCodePosting.getKeyHashCode()) {
+          if (readingHistory) {
+            get.historyPartition = hashCodePosting.getFirstHistoryKeyPostingPartition();
+            get.historyOffset = hashCodePosting.getFirstHistoryKeyPostingPartitionOffset();
+          }
+          get.seek(hashCodePosting.getFirstKeyPostingPartition(), hashCodePosting.getFirstKeyPostingPartitionOffset());
+          if (get.partition >= 0 || get.seekHistory()) {
+            keysLevel.add(get);
+          }
+        } else if (hashCodePosting.getNextPostingPartition() >= 0) {
+          get.seek(hashCodePosting.getNextPostingPartition(), hashCodePosting.getNextPostingPartitionOffset());
+          next.add(get);
+        }
+      }
     }
 
-
     //
-    // create new key posting
+    // key postings, one round per link in the live chains and then the history chains
     //
 
-    KeysPartition.Posting newKeyPosting = new KeysPartition.Posting();
+    next = keysLevel;
+    List<BatchedGet> valuesLevel = new ArrayList<BatchedGet>(next.size());
+    while (!next.isEmpty()) {
+      pending = next;
+      next = new ArrayList<BatchedGet>(pending.size());
+      Collections.sort(pending);
+      for (BatchedGet get : pending) {
+        KeysPartition.Posting keyPosting = new KeysPartition.Posting();
+        accessor.getKeysPartition(get.partition, true).readPosting(keyPosting, get.offset);
+        if (get.history && keyPosting.getDeletedRevision() <= revision) {
+          // the history chain is ordered by deleted revision, the rest was deleted before the revision too
+          continue;
+        }
+        if (keyPosting.getFlagForRevision(revision) == Posting.FLAG_IN_USE
+            && Arrays.equals(get.key, keyPosting.getBytes())) {
+          get.seek(keyPosting.getValuePostingPartition(), keyPosting.getValuePostingPartitionOffset());
+          valuesLevel.add(get);
+        } else if (keyPosting.getNextKeyPostingPartition() >= 0) {
+          get.seek(keyPosting.getNextKeyPostingPartition(), keyPosting.getNextKeyPostingPartitionOffset());
+          next.add(get);
+        } else if (get.seekHistory()) {
+          next.add(get);
+        }
+      }
+    }
+
+    //
+    // values
+    //
+
+    Collections.sort(valuesLevel);
+    if (!getConfiguration().isParallelBatchedGets() || runningAsynchronousOperation.get() != null) {
+      for (BatchedGet get : valuesLevel) {
+        values[get.index] = readValue(accessor, get.partition, get.offset);
+      }
+      return values;
+    }
+
+    Map<Integer, List<BatchedGet>> valuesByPartition = new HashMap<Integer, List<BatchedGet>>();
+    for (BatchedGet get : valuesLevel) {
+      List<BatchedGet> partitionGets = valuesByPartition.get(get.partition);
+      if (partitionGets == null) {
+        valuesByPartition.put(get.partition, partitionGets = new ArrayList<BatchedGet>());
+      }
+      partitionGets.add(get);
+    }
+    List<Future<Object>> reads = new ArrayList<Future<Object>>(valuesByPartition.size());
+    List<BatchedGet> callingThreadGets = null;
+    for (final List<BatchedGet> partitionGets : valuesByPartition.values()) {
+      if (callingThreadGets == null) {
+        callingThreadGets = partitionGets;
+        continue;
+      }
+      reads.add(submit(new AsynchronousOperation<Object>() {
+        protected Object call(Accessor accessor) throws IOException {
+          for (BatchedGet get : partitionGets) {
+            values[get.index] = readValue(accessor, get.partition, get.offset);
+          }
+          return null;
+        }
+      }));
+    }
+    if (callingThreadGets != null) {
+      for (BatchedGet get : callingThreadGets) {
+        values[get.index] = readValue(accessor, get.partition, get.offset);
+      }
+    }
+    for (Future<Object> read : reads) {
+      try {
+        read.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new StoreException("Interrupted while waiting for values to be read", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new StoreException("Could not read values", e.getCause());
+      }
+    }
+    return values;
+  }
+
+  public byte[][] getAll(Accessor accessor, byte[][] keys, long[] hashCodes) throws IOException {
+    return getAll(accessor, keys, hashCodes, Long.MAX_VALUE);
+  }
+
+  /**
+   * State of a key in {@link Store#getAll(Accessor, byte[][], long[], long)},
+   * ordered by the position of the posting to read next.
+   */
+  private static class BatchedGet implements Comparable<BatchedGet> {
+    private final int index;
+    private final byte[] key;
+    private final long hashCode;
+
+    /** partition of the posting to read next */
+    private int partition;
+    /** offset of the posting to read next */
+    private long offset;
+
+    /** first key posting of the history chain, -1 if the history is not read */
+    private int historyPartition = -1;
+    private long historyOffset = -1;
+    /** true if following the history chain */
+    private boolean history;
+
+    private BatchedGet(int index, byte[] key, long hashCode) {
+      this.index = index;
+      this.key = key;
+      this.hashCode = hashCode;
+    }
+
+    private void seek(int partition, long offset) {
+      this.partition = partition;
+      this.offset = offset;
+    }
+
+    /**
+     * @return true if there is a history chain to follow once the live chain is exhausted
+     */
+    private boolean seekHistory() {
+      if (history || historyPartition < 0) {
+        return false;
+      }
+      history = true;
+      seek(historyPartition, historyOffset);
+      return true;
+    }
+
+    public int compareTo(BatchedGet batchedGet) {
+      if (partition != batchedGet.partition) {
+        return partition < batchedGet.partition ? -1 : 1;
+      }
+      return offset < batchedGet.offset ? -1 : offset == batchedGet.offset ? 0 : 1;
+    }
+  }
+
+  /**
+   * @return the record of the key not yet applied to the partitions, or null if the partitions are up to date with the revision.
+   */
+  private WriteAheadLog.Record getPending(byte[] key, long revision) throws IOException {
+    if (writeAheadLog == null) {
+      return null;
+    }
+    WriteAheadLog.Record pending = writeAheadLog.getPending(key);
+    if (pending == null) {
+      return null;
+    }
+    if (pending.getRevision() <= revision) {
+      return pending;
+    }
+    // an older revision than pending, older records of the key might also be pending
+    writeAheadLog.drain();
+    return null;
+  }
+
+  /**
+   * @return the key posting in use in the revision, or null if the key does not exist.
+   */
+  private KeysPartition.Posting seekKeyPosting(Accessor accessor, byte[] key, long hashCode, long revision) throws IOException {
+
+    if (isNeverPut(key)) {
+      return null;
+    }
+
+    if (configuration.isUsingKeySlots()) {
+      KeysPartition.Posting keyPosting = new KeysPartition.Posting();
+      if (!seekKeySlot(accessor, key, hashCode, keyPosting)) {
+        return null;
+      }
+      if (keyPosting.getCreatedRevision() <= revision) {
+        return keyPosting.getFlagForRevision(revision) == Posting.FLAG_IN_USE ? keyPosting : null;
+      }
+      // the key has changed since the revision, follow the chains
+    }
+
+    Hashtable hashtable = getHashtable(accessor, hashCode);
+    Hashtable.Posting hashtablePosting = new Hashtable.Posting();
+    hashtable.readPosting(hashtablePosting, hashtable.calculateHashCodePostingOffset(hashCode));
+
+    //
+    // seek to the correct hash code posting
+    //
+    HashCodesPartition hashCodesPartition = accessor.getHashCodesPartition(hashtablePosting.getHashCodePostingPartition());
+    HashCodesPartition.Posting hashCodePosting = new HashCodesPartition.Posting();
+    hashCodesPartition.readPosting(hashCodePosting, hashtablePosting.getHashCodePostingPartitionOffset());
+    // the first posting in a rehashed chain is not necessarily the oldest, only an empty chain ends the seek here
+    if (hashCodePosting.getFlag() == Posting.FLAG_NEVER_USED) {
+      return null;
+    }
+    while (true) {
+
+      if (hashCodePosting.getFlagForRevision(revision) == Posting.FLAG_IN_USE
+          && hashCode == hashCodePosting.getKeyHashCode()) {
+        break;
+      }
+
+      if (hashCodePosting.getNextPostingPartition() < 0) {
+        return null;
+      }
+      if (hashCodePosting.getNextPostingPartition() != hashCodesPartition.getPartitionId()) {
+        hashCodesPartition = accessor.getHashCodesPartition(hashCodePosting.getNextPostingPartition());
+      }
+      hashCodesPartition.readPosting(hashCodePosting, hashCodePosting.getNextPostingPartitionOffset());
+    }
+
+    return seekKeyPosting(accessor, hashCodePosting, key, revision);
+  }
+
+  /**
+   * Follows the live chain of the hash code posting,
+   * and the history chain if the revision is earlier than the current one.
+   *
+   * @return the key posting in use in the revision, or null if the key does not exist.
+   */
+  private KeysPartition.Posting seekKeyPosting(Accessor accessor, HashCodesPartition.Posting hashCodePosting, byte[] key, long revision) throws IOException {
+
+    KeysPartition.Posting keyPosting = new KeysPartition.Posting();
+    KeysPartition keysPartition = null;
+
+    int partition = hashCodePosting.getFirstKeyPostingPartition();
+    long offset = hashCodePosting.getFirstKeyPostingPartitionOffset();
+    while (partition >= 0) {
+      if (keysPartition == null || keysPartition.getPartitionId() != partition) {
+        keysPartition = accessor.getKeysPartition(partition, true);
+      }
+      keysPartition.readPosting(keyPosting, offset);
+      if (keyPosting.getFlagForRevision(revision) == Posting.FLAG_IN_USE
+          && Arrays.equals(key, keyPosting.getBytes())) {
+        return keyPosting;
+      }
+      partition = keyPosting.getNextKeyPostingPartition();
+      offset = keyPosting.getNextKeyPostingPartitionOffset();
+    }
+
+    if (!isReadingHistory(revision)) {
+      return null;
+    }
+
+    partition = hashCodePosting.getFirstHistoryKeyPostingPartition();
+    offset = hashCodePosting.getFirstHistoryKeyPostingPartitionOffset();
+    while (partition >= 0) {
+      if (keysPartition == null || keysPartition.getPartitionId() != partition) {
+        keysPartition = accessor.getKeysPartition(partition, true);
+      }
+      keysPartition.readPosting(keyPosting, offset);
+      if (keyPosting.getDeletedRevision() <= revision) {
+        // the history chain is ordered by deleted revision, the rest was deleted before the revision too
+        return null;
+      }
+      if (keyPosting.getFlagForRevision(revision) == Posting.FLAG_IN_USE
+          && Arrays.equals(key, keyPosting.getBytes())) {
+        return keyPosting;
+      }
+      partition = keyPosting.getNextKeyPostingPartition();
+      offset = keyPosting.getNextKeyPostingPartitionOffset();
+    }
+    return null;
+  }
+
+  /**
+   * Postings are deleted in the revision written, a read of the latest written revision
+   * or later can thus not see a deleted posting.
+   *
+   * @return true if a key posting in the history chains might be in use in the revision
+   */
+  private boolean isReadingHistory(long revision) {
+    if (revision == Long.MAX_VALUE) {
+      return false;
+    }
+    long latestRevision = retentionManager.getLatestRevision();
+    // nothing written since the store was opened, the latest revision is not known
+    return latestRevision == Long.MIN_VALUE || revision < latestRevision;
+  }
+
+  /**
+   * @param accessor
+   * @param keyPosting key posting in use
+   * @return the value of the key posting, or null if it has a null value.
+   * @throws IOException
+   */
+  public byte[] getValue(Accessor accessor, KeysPartition.Posting keyPosting) throws IOException {
+    return readValue(accessor, keyPosting.getValuePostingPartition(), keyPosting.getValuePostingPartitionOffset());
+  }
+
+  /**
+   * @param accessor
+   * @param keyPosting key posting in use
+   * @return the value of the key posting as a stream, or null if it has a null value.
+   * @throws IOException
+   * @see #getInputStream(Accessor, byte[], long, long)
+   */
+  public InputStream getValueInputStream(Accessor accessor, KeysPartition.Posting keyPosting) throws IOException {
+    if (keyPosting.getValuePostingPartition() < 0) {
+      // null value
+      return null;
+    }
+    ValuesPartition.Posting valuePosting = new ValuesPartition.Posting();
+    accessor.getValuesPartition(keyPosting.getValuePostingPartition()).readPosting(valuePosting, keyPosting.getValuePostingPartitionOffset());
+    if (valuePosting.getBytesLength() == 0) {
+      return null;
+    }
+    if (valuePosting.isChunkManifest()) {
+      return new ChunkedValueInputStream(accessor, ValuesPartition.ChunkManifest.fromBytes(valuePosting.getBytes()));
+    }
+    return new ByteArrayInputStream(getBytes(valuePosting));
+  }
+
+  /**
+   * @param valuePosting value or chunk posting
+   * @return the bytes of the posting, decompressed if it was compressed.
+   * @throws IOException
+   */
+  static byte[] getBytes(ValuesPartition.Posting valuePosting) throws IOException {
+    if (valuePosting.getCodecId() == 0) {
+      return valuePosting.getBytes();
+    }
+    return Codec.getCodec(valuePosting.getCodecId()).decompress(valuePosting.getBytes(), 0, valuePosting.getBytesLength());
+  }
+
+  /**
+   * @return the value at the given posting, assembled from its chunks if it's a large value.
+   */
+  private byte[] readValue(Accessor accessor, int partition, long offset) throws IOException {
+    return readValue(accessor, partition, offset, null);
+  }
+
+  /**
+   * @param blocks values partition id -> view used to read the partition, or null to read directly.
+   * @see org.atri.platodb.store.Scan
+   */
+  byte[] readValue(Accessor accessor, int partition, long offset, Map<Integer, BlockReadingFileAccess> blocks) throws IOException {
+    if (partition < 0) {
+      // null value
+      return null;
+    }
+
+    ValuesPartition.Posting valuePosting = new ValuesPartition.Posting();
+    readValuePosting(accessor, valuePosting, partition, offset, blocks);
+
+    if (valuePosting.getBytesLength() == 0) {
+      return null;
+    }
+    if (!valuePosting.isChunkManifest()) {
+      return getBytes(valuePosting);
+    }
+
+    ValuesPartition.ChunkManifest manifest = ValuesPartition.ChunkManifest.fromBytes(valuePosting.getBytes());
+    if (manifest.getValueByteLength() > Integer.MAX_VALUE) {
+      throw new StoreException("Value of " + manifest.getValueByteLength() + " bytes does not fit in a byte array, use a stream");
+    }
+    byte[] value = new byte[(int) manifest.getValueByteLength()];
+    int valueOffset = 0;
+    for (int chunk = 0; chunk < manifest.getChunksCount(); chunk++) {
+      readValuePosting(accessor, valuePosting, manifest.getPartition(chunk), manifest.getOffset(chunk), blocks);
+      System.arraycopy(getBytes(valuePosting), 0, value, valueOffset, manifest.getLength(chunk));
+      valueOffset += manifest.getLength(chunk);
+    }
+    return value;
+  }
+
+  private void readValuePosting(Accessor accessor, ValuesPartition.Posting valuePosting, int partition, long offset, Map<Integer, BlockReadingFileAccess> blocks) throws IOException {
+    ValuesPartition valuesPartition = accessor.getValuesPartition(partition);
+    if (blocks == null) {
+      valuesPartition.readPosting(valuePosting, offset);
+      return;
+    }
+    BlockReadingFileAccess block = blocks.get(partition);
+    if (block == null) {
+      blocks.put(partition, block = new BlockReadingFileAccess(valuesPartition.getFileAccess(), getConfiguration().getScanBlockByteSize()));
+    }
+    valuesPartition.readPosting(valuePosting, offset, block);
+  }
+
+
+  /**
+   * Should be write locked at this time.
+   * <p/>
+   * Writes the value as a single value posting,
+   * or as chunks and a manifest if it is larger than {@link Configuration#getChunkedValueThresholdByteSize()}.
+   *
+   * @return the reservation of the value posting the key posting should point at, or null if the value is null.
+   */
+  private Accessor.RequestPartitionWriterResponse<ValuesPartition> writeValue(Accessor accessor, byte[] value, long revision) throws IOException {
+    if (value == null || value.length == 0) {
+      return null;
+    }
+    if (value.length > getConfiguration().getChunkedValueThresholdByteSize()) {
+      return writeChunkedValue(accessor, new ByteArrayInputStream(value), revision);
+    }
+    return writeValuePosting(accessor, value, value.length, (byte) 0, revision);
+  }
+
+  /**
+   * Should be write locked at this time.
+   *
+   * @see #writeValue(Accessor, byte[], long)
+   */
+  private Accessor.RequestPartitionWriterResponse<ValuesPartition> writeValue(Accessor accessor, InputStream value, long revision) throws IOException {
+    if (value == null) {
+      return null;
+    }
+    int threshold = getConfiguration().getChunkedValueThresholdByteSize();
+    byte[] head = new byte[Math.min(threshold + 1, 8192)];
+    int headLength = 0;
+    int read;
+    while (headLength <= threshold && (read = value.read(head, headLength, head.length - headLength)) > -1) {
+      headLength += read;
+      if (headLength == head.length && headLength <= threshold) {
+        byte[] grown = new byte[(int) Math.min((long) threshold + 1, head.length * 2l)];
+        System.arraycopy(head, 0, grown, 0, headLength);
+        head = grown;
+      }
+    }
+    if (headLength == 0) {
+      return null;
+    }
+    if (headLength <= threshold) {
+      return writeValuePosting(accessor, head, headLength, (byte) 0, revision);
+    }
+    return writeChunkedValue(accessor, new SequenceInputStream(new ByteArrayInputStream(head, 0, headLength), value), revision);
+  }
+
+  private Accessor.RequestPartitionWriterResponse<ValuesPartition> writeChunkedValue(Accessor accessor, InputStream value, long revision) throws IOException {
+    ValuesPartition.ChunkManifest manifest = new ValuesPartition.ChunkManifest();
+    byte[] chunk = new byte[getConfiguration().getValueChunkByteSize()];
+    while (true) {
+      int chunkLength = 0;
+      int read;
+      while (chunkLength < chunk.length && (read = value.read(chunk, chunkLength, chunk.length - chunkLength)) > -1) {
+        chunkLength += read;
+      }
+      if (chunkLength == 0) {
+        break;
+      }
+      Accessor.RequestPartitionWriterResponse<ValuesPartition> chunkReservation = writeValuePosting(accessor, chunk, chunkLength, ValuesPartition.Posting.OPTION_CHUNK, revision);
+      manifest.addChunk(chunkReservation.getFileHandler().getPartitionId(), chunkReservation.getStartOffset(), chunkLength);
+    }
+    byte[] manifestBytes = manifest.toBytes();
+    return writeValuePosting(accessor, manifestBytes, manifestBytes.length, ValuesPartition.Posting.OPTION_CHUNK_MANIFEST, revision);
+  }
+
+  private Accessor.RequestPartitionWriterResponse<ValuesPartition> writeValuePosting(Accessor accessor, byte[] bytes, int bytesLength, byte options, long revision) throws IOException {
+    ValuesPartition.Posting valuePosting = new ValuesPartition.Posting();
+    valuePosting.setFlag(FileHandler.Posting.FLAG_IN_USE);
+    valuePosting.setCreatedRevision(revision);
+    valuePosting.setOptions(options);
+    valuePosting.setBytesLength(bytesLength);
+    valuePosting.setBytes(bytes);
+
+    Codec codec = getConfiguration().getValueCodec();
+    if (codec != null
+        && !valuePosting.isChunkManifest()
+        && bytesLength > getConfiguration().getValueCompressionThresholdByteSize()) {
+      byte[] compressed = codec.compress(bytes, 0, bytesLength);
+      if (compressed != null) {
+        valuePosting.setCodecId(codec.getId());
+        valuePosting.setBytesLength(compressed.length);
+        valuePosting.setBytes(compressed);
+      }
+    }
+
+    Accessor.RequestPartitionWriterResponse<ValuesPartition> valueReservation = accessor.requestValueWrite(valuePosting);
+    valueReservation.getFileHandler().writePosting(valuePosting, valueReservation.getStartOffset());
+    return valueReservation;
+  }
+
+  /**
+   * Should be write locked at this time.
+   * <p/>
+   * Marks the value posting, and all chunks if it is a large value, as deleted.
+   *
+   * @param read if true the deleted value is read and returned
+   * @return the deleted value if read is true, else null
+   */
+  private byte[] deleteValue(Accessor accessor, int partition, long offset, long revision, boolean read) throws IOException {
+    if (partition < 0) {
+      // null value
+      return null;
+    }
+
+    byte[] oldValue = read ? readValue(accessor, partition, offset) : null;
+
+    ValuesPartition valuesPartition = accessor.getValuesPartition(partition);
+    ValuesPartition.Posting valuePosting = new ValuesPartition.Posting();
+    valuesPartition.readPosting(valuePosting, offset);
+    if (valuePosting.isChunkManifest()) {
+      ValuesPartition.ChunkManifest manifest = ValuesPartition.ChunkManifest.fromBytes(valuePosting.getBytes());
+      for (int chunk = 0; chunk < manifest.getChunksCount(); chunk++) {
+        accessor.getValuesPartition(manifest.getPartition(chunk)).markPostingAsDeleted(manifest.getOffset(chunk), revision);
+      }
+    }
+    valuesPartition.markPostingAsDeleted(offset, revision);
+
+    return oldValue;
+  }
+
+
+  /**
+   * Write locking.
+   *
+   * @param accessor
+   * @param key
+   * @param hashCode
+   * @param value
+   * @param revision
+   * @return
+   * @throws IOException
+   */
+  public byte[] put(final Accessor accessor, final byte[] key, final long hashCode, final byte[] value, final long revision) throws IOException {
+
+    validateKey(key);
+
+    if (writeAheadLog != null) {
+      return writeAheadLog.put(accessor, key, hashCode, value, revision);
+    }
+
+    Lock.With<byte[]> with = new Lock.With<byte[]>(accessor.getStoreWriteLock(), getConfiguration().getLockWaitTimeoutMilliseconds()) {
+      public byte[] doBody() throws IOException {
+        return doPut(accessor, key, hashCode, writeValue(accessor, value, revision), revision, true);
+      }
+    };
+    return with.run();
+  }
+
+  /**
+   * Write locking.
+   * <p/>
+   * Streams the value to the store, a value larger than {@link Configuration#getChunkedValueThresholdByteSize()}
+   * is written one chunk at the time. The store is write locked until the stream is consumed.
+   * <p/>
+   * The previous value is not returned as it might not fit in memory.
+   *
+   * @param accessor
+   * @param key
+   * @param hashCode
+   * @param value stream of the value, not closed by this method. Null or empty is a null value.
+   * @param revision
+   * @throws IOException
+   * @see java.nio.channels.Channels#newInputStream(java.nio.channels.ReadableByteChannel)
+   */
+  public void put(final Accessor accessor, final byte[] key, final long hashCode, final InputStream value, final long revision) throws IOException {
+
+    validateKey(key);
+
+    if (writeAheadLog != null) {
+      // written in place rather than logged, pending records of the key must be applied before it
+      writeAheadLog.drain();
+    }
+
+    Lock.With<byte[]> with = new Lock.With<byte[]>(accessor.getStoreWriteLock(), getConfiguration().getLockWaitTimeoutMilliseconds()) {
+      public byte[] doBody() throws IOException {
+        return doPut(accessor, key, hashCode, writeValue(accessor, value, revision), revision, false);
+      }
+    };
+    with.run();
+
+    if (writeAheadLog != null) {
+      // the value is not in the log, force it
+      writeAheadLog.checkpoint();
+    }
+  }
+
+  /**
+   * Should be write locked at this time.
+   * <p/>
+   * Applies a record of the write-ahead log to the partitions.
+   * A remove of a key that does not exist is ignored as the record might be replayed.
+   */
+  void applyLogged(Accessor accessor, WriteAheadLog.Record record) throws IOException {
+    if (record.isRemove()) {
+      try {
+        doRemove(accessor, record.getKey(), record.getKeyHashCode(), record.getRevision());
+      } catch (NoSuchElementException e) {
+        // already removed
+      }
+    } else {
+      doPut(accessor, record.getKey(), record.getKeyHashCode(), writeValue(accessor, record.getValue(), record.getRevision()), record.getRevision(), false);
+    }
+  }
+
+  /**
+   * Should be write locked at this time.
+   * <p/>
+   * revision must be the most recent revision in the store.
+   *
+   * @param accessor
+   * @param key
+   * @param hashCode
+   * @param valueReservation the new value posting, or null if a null value
+   * @param returnPreviousValue if false the replaced value is not read
+   * @return the replaced value
+   * @throws IOException
+   */
+  private byte[] doPut(final Accessor accessor, final byte[] key, final long hashCode, final Accessor.RequestPartitionWriterResponse<ValuesPartition> valueReservation, final long revision, final boolean returnPreviousValue) throws IOException {
+
+    retentionManager.written(revision);
+
+    int newValuePostingPartitionNumber;
+    long newValuePostingPartitionOffset;
+
+    if (valueReservation == null) {
+      newValuePostingPartitionNumber = -1;
+      newValuePostingPartitionOffset = -1;
+    } else {
+      newValuePostingPartitionNumber = valueReservation.getFileHandler().getPartitionId();
+      newValuePostingPartitionOffset = valueReservation.getStartOffset();
+    }
+
+
+    //
+    // create new key posting
+    //
+
+    KeysPartition.Posting newKeyPosting = new KeysPartition.Posting();
     newKeyPosting.setCreatedRevision(revision);
     newKeyPosting.setFlag(Posting.FLAG_IN_USE);
     newKeyPosting.setBytes(key);
@@ -297,26 +1298,59 @@ public class Store {
     newKeyPosting.setValuePostingPartitionOffset(newValuePostingPartitionOffset);
 
     Accessor.RequestPartitionWriterResponse<KeysPartition> keyReservation = accessor.requestValueWrite(newKeyPosting);
-    int newKeyPostingPartitionNumber = keyReservation.getFileHandler().getPartitionId();
-    KeysPartition newKeyPostingPartition = keyReservation.getFileHandler();
-    int newKeyPostingPartitionOffset = keyReservation.getStartOffset();
 
     // note that the key posting is written to disk later later as it might need updates
     // due to durable posting links!
 
+    byte[] previousValue = doPutPostings(accessor, key, hashCode, newKeyPosting, keyReservation, revision, returnPreviousValue);
+
+    if (configuration.isUsingKeySlots()) {
+      updateKeySlot(accessor, key, hashCode, keyReservation.getFileHandler().getPartitionId(), keyReservation.getStartOffset(), false);
+    }
+
+    if (bloomFilter != null) {
+      bloomFilter.add(key);
+      if (bloomFilter.isFull()) {
+        buildBloomFilter(accessor, 2 * bloomFilter.getExpectedKeys());
+      }
+    }
+
+    return previousValue;
+  }
+
+  /**
+   * Should be write locked at this time.
+   * <p/>
+   * Writes the new key posting and links it in to the hash code and key posting chains.
+   *
+   * @param accessor
+   * @param key
+   * @param hashCode
+   * @param newKeyPosting       the new key posting, not yet written
+   * @param keyReservation      where to write the new key posting
+   * @param revision
+   * @param returnPreviousValue if false the replaced value is not read
+   * @return the replaced value
+   * @throws IOException
+   */
+  private byte[] doPutPostings(final Accessor accessor, final byte[] key, final long hashCode, final KeysPartition.Posting newKeyPosting, final Accessor.RequestPartitionWriterResponse<KeysPartition> keyReservation, final long revision, final boolean returnPreviousValue) throws IOException {
+
+    int newKeyPostingPartitionNumber = keyReservation.getFileHandler().getPartitionId();
+    KeysPartition newKeyPostingPartition = keyReservation.getFileHandler();
+    long newKeyPostingPartitionOffset = keyReservation.getStartOffset();
 
     //
     // find hashcode posting and hashtable posting for the new key
     //
 
-    Hashtable hashtable = accessor.getHashtable();
+    Hashtable hashtable = getHashtable(accessor, hashCode);
     Hashtable.Posting hashtablePosting = new Hashtable.Posting();
 
     HashCodesPartition.Posting hashCodePosting = new HashCodesPartition.Posting();
 
-    int hashtablePostingOffset = hashtable.calculateHashCodePostingOffset(hashCode);
-    hashtable.getRAF().seek(hashtablePostingOffset);
-    byte flag = hashtable.getRAF().readByte();
+    long hashtablePostingOffset = hashtable.calculateHashCodePostingOffset(hashCode);
+    hashtable.getFileAccess().seek(hashtablePostingOffset);
+    byte flag = hashtable.getFileAccess().readByte();
     if (flag == Posting.FLAG_NEVER_USED) {
 
       // this is the first time we create a posting at this hashtable position
@@ -336,7 +1370,7 @@ public class Store {
       Accessor.RequestPartitionWriterResponse<HashCodesPartition> hashCodeReservation = accessor.requestValueWrite(hashCodePosting);
       int newHashCodePostingPatition = hashCodeReservation.getFileHandler().getPartitionId();
       HashCodesPartition hashCodesPartition = hashCodeReservation.getFileHandler();
-      int newHashCodePostingPatitionOffset = hashCodeReservation.getStartOffset();
+      long newHashCodePostingPatitionOffset = hashCodeReservation.getStartOffset();
 
       hashCodesPartition.writePosting(hashCodePosting, newHashCodePostingPatitionOffset);
 
@@ -348,6 +1382,8 @@ public class Store {
       hashtablePosting.setCreatedRevision(revision);
       hashtable.writePosting(hashtablePosting, hashtablePostingOffset);
 
+      hashCodePostingCreated(accessor);
+      updateLiveCounts(accessor, revision, newKeyPosting, null);
 
       return null;
 
@@ -362,7 +1398,7 @@ public class Store {
       //      
 
       HashCodesPartition hashCodesPartition = accessor.getHashCodesPartition(hashtablePosting.getHashCodePostingPartition());
-      int currentHashCodesPostingPartitionOffset = hashtablePosting.getHashCodePostingPartitionOffset();
+      long currentHashCodesPostingPartitionOffset = hashtablePosting.getHashCodePostingPartitionOffset();
       hashCodesPartition.readPosting(hashCodePosting, hashtablePosting.getHashCodePostingPartitionOffset());
       while (true) {
 
@@ -393,794 +1429,1873 @@ public class Store {
 
           Accessor.RequestPartitionWriterResponse<HashCodesPartition> hashCodeReservation = accessor.requestValueWrite(newHashCodePosting);
 
-          int newHashCodePostingPartition = hashCodeReservation.getFileHandler().getPartitionId();
-          int newHashCodePostingPartitionOffset = hashCodeReservation.getStartOffset();
+          int newHashCodePostingPartition = hashCodeReservation.getFileHandler().getPartitionId();
+          long newHashCodePostingPartitionOffset = hashCodeReservation.getStartOffset();
+
+          hashCodeReservation.getFileHandler().writePosting(newHashCodePosting, newHashCodePostingPartitionOffset);
+
+
+          //
+          // and update the current posting to point at the new one as next in chain.
+          //
+
+          hashCodePosting.setNextPostingPartition(newHashCodePostingPartition);
+          hashCodePosting.setNextPostingPartitionOffset(newHashCodePostingPartitionOffset);
+          hashCodesPartition.writePosting(hashCodePosting, currentHashCodesPostingPartitionOffset);
+
+          hashCodePostingCreated(accessor);
+          updateLiveCounts(accessor, revision, newKeyPosting, null);
+
+          return null;
+
+        }
+
+        // keep seeking..
+        if (hashCodePosting.getNextPostingPartition() != hashCodesPartition.getPartitionId()) {
+          hashCodesPartition = accessor.getHashCodesPartition(hashCodePosting.getNextPostingPartition());
+        }
+        currentHashCodesPostingPartitionOffset = hashCodePosting.getNextPostingPartitionOffset();
+        hashCodesPartition.readPosting(hashCodePosting, hashCodePosting.getNextPostingPartitionOffset());
+      }
+
+      //
+      // seek for the same key in the live chain
+      //
+
+      LiveKeyPosting replaced = seekLiveKeyPosting(accessor, hashCodePosting, key, revision);
+      if (replaced == null) {
+
+        // the key did not exist, the new key posting becomes the first in the live chain
+        // [hash code posting] ---first key link+-> [nk] [...]
+        newKeyPosting.setNextKeyPostingPartition(hashCodePosting.getFirstKeyPostingPartition());
+        newKeyPosting.setNextKeyPostingPartitionOffset(hashCodePosting.getFirstKeyPostingPartitionOffset());
+        newKeyPostingPartition.writePosting(newKeyPosting, newKeyPostingPartitionOffset);
+
+        hashCodePosting.setFirstKeyPostingPartition(newKeyPostingPartitionNumber);
+        hashCodePosting.setFirstKeyPostingPartitionOffset(newKeyPostingPartitionOffset);
+        hashCodesPartition.writePosting(hashCodePosting, currentHashCodesPostingPartitionOffset);
+        updateLiveCounts(accessor, revision, newKeyPosting, null);
+
+        return null;
+      }
+
+      //
+      // a posting exists for this key.
+      //
+
+      // the new key posting takes the place of the replaced in the live chain
+      // [pk] [ck] [...] -> [pk] [nk] [...]
+      newKeyPosting.setNextKeyPostingPartition(replaced.posting.getNextKeyPostingPartition());
+      newKeyPosting.setNextKeyPostingPartitionOffset(replaced.posting.getNextKeyPostingPartitionOffset());
+      newKeyPostingPartition.writePosting(newKeyPosting, newKeyPostingPartitionOffset);
+      relink(replaced, hashCodePosting, hashCodesPartition, currentHashCodesPostingPartitionOffset, newKeyPostingPartitionNumber, newKeyPostingPartitionOffset);
+
+      // [hash code posting] ---first history key link+-> [ck deleted] [...]
+      moveToHistory(replaced, hashCodePosting, hashCodesPartition, currentHashCodesPostingPartitionOffset, revision, true);
+      updateLiveCounts(accessor, revision, newKeyPosting, replaced.posting);
+
+      // read the old value and mark it as deleted
+      return deleteValue(accessor, replaced.posting.getValuePostingPartition(), replaced.posting.getValuePostingPartitionOffset(), revision, returnPreviousValue);
+
+    }
+
+  }
+
+  /**
+   * A key posting in the live chain of a hash code posting, and the key posting linking to it.
+   */
+  private static class LiveKeyPosting {
+    private final KeysPartition.Posting posting;
+    private final KeysPartition partition;
+    private final long offset;
+
+    /** the key posting linking to this one, null if the hash code posting links to it */
+    private final KeysPartition.Posting previousPosting;
+    private final KeysPartition previousPartition;
+    private final long previousOffset;
+
+    private LiveKeyPosting(KeysPartition.Posting posting, KeysPartition partition, long offset, KeysPartition.Posting previousPosting, KeysPartition previousPartition, long previousOffset) {
+      this.posting = posting;
+      this.partition = partition;
+      this.offset = offset;
+      this.previousPosting = previousPosting;
+      this.previousPartition = previousPartition;
+      this.previousOffset = previousOffset;
+    }
+  }
+
+  /**
+   * Should be write locked at this time.
+   *
+   * @return the key posting of the key in the live chain of the hash code posting, or null if the key is not in use.
+   */
+  private LiveKeyPosting seekLiveKeyPosting(Accessor accessor, HashCodesPartition.Posting hashCodePosting, byte[] key, long revision) throws IOException {
+    KeysPartition.Posting posting = new KeysPartition.Posting();
+    KeysPartition.Posting previousPosting = null;
+    KeysPartition previousPartition = null;
+    long previousOffset = -1;
+
+    int partition = hashCodePosting.getFirstKeyPostingPartition();
+    long offset = hashCodePosting.getFirstKeyPostingPartitionOffset();
+    while (partition >= 0) {
+      KeysPartition keysPartition = accessor.getKeysPartition(partition, true);
+      keysPartition.readPosting(posting, offset);
+      if (posting.getFlagForRevision(revision) == Posting.FLAG_IN_USE
+          && Arrays.equals(key, posting.getBytes())) {
+        return new LiveKeyPosting(posting, keysPartition, offset, previousPosting, previousPartition, previousOffset);
+      }
+      KeysPartition.Posting tmp = previousPosting == null ? new KeysPartition.Posting() : previousPosting;
+      previousPosting = posting;
+      previousPartition = keysPartition;
+      previousOffset = offset;
+      posting = tmp;
+      partition = previousPosting.getNextKeyPostingPartition();
+      offset = previousPosting.getNextKeyPostingPartitionOffset();
+    }
+    return null;
+  }
+
+  /**
+   * Should be write locked at this time.
+   * <p/>
+   * Points the posting linking to a key posting in the live chain at another key posting.
+   */
+  private void relink(LiveKeyPosting live, HashCodesPartition.Posting hashCodePosting, HashCodesPartition hashCodesPartition, long hashCodePostingOffset, int keyPostingPartition, long keyPostingPartitionOffset) throws IOException {
+    if (live.previousPosting == null) {
+      hashCodePosting.setFirstKeyPostingPartition(keyPostingPartition);
+      hashCodePosting.setFirstKeyPostingPartitionOffset(keyPostingPartitionOffset);
+      hashCodesPartition.writePosting(hashCodePosting, hashCodePostingOffset);
+    } else {
+      live.previousPosting.setNextKeyPostingPartition(keyPostingPartition);
+      live.previousPosting.setNextKeyPostingPartitionOffset(keyPostingPartitionOffset);
+      live.previousPartition.writePosting(live.previousPosting, live.previousOffset);
+    }
+  }
+
+  /**
+   * Should be write locked at this time.
+   * <p/>
+   * Flags a key posting unlinked from the live chain as deleted and makes it the first in the history chain
+   * of the hash code posting, the history chain is thus ordered by deleted revision.
+   * A replaced key posting is only kept in the history if {@link Configuration#isUsingDurablePostingLinks()}.
+   * <p/>
+   * Readers of the current revision never see the replaced posting once it is unlinked,
+   * but a read of an earlier revision at the same time might miss it until it is in the history chain.
+   */
+  private void moveToHistory(LiveKeyPosting live, HashCodesPartition.Posting hashCodePosting, HashCodesPartition hashCodesPartition, long hashCodePostingOffset, long revision, boolean replaced) throws IOException {
+    live.posting.setFlag(Posting.FLAG_DELETED);
+    live.posting.setDeletedRevision(revision);
+    keyPostingDeleted(live.partition.getPartitionId(), live.offset, revision);
+    if (replaced && !configuration.isUsingDurablePostingLinks()) {
+      // not linked from anywhere, readers that already followed a link to it continue in the live chain
+      live.partition.writePosting(live.posting, live.offset);
+      return;
+    }
+    live.posting.setNextKeyPostingPartition(hashCodePosting.getFirstHistoryKeyPostingPartition());
+    live.posting.setNextKeyPostingPartitionOffset(hashCodePosting.getFirstHistoryKeyPostingPartitionOffset());
+    live.partition.writePosting(live.posting, live.offset);
+
+    hashCodePosting.setFirstHistoryKeyPostingPartition(live.partition.getPartitionId());
+    hashCodePosting.setFirstHistoryKeyPostingPartitionOffset(live.offset);
+    hashCodesPartition.writePosting(hashCodePosting, hashCodePostingOffset);
+  }
+
+  /**
+   * Write locking.
+   *
+   * @param accessor
+   * @param key
+   * @param hashCode
+   * @param revision revision flaggad as deletion revision
+   * @return
+   * @throws IOException
+   */
+  public byte[] remove(final Accessor accessor, final byte[] key, final long hashCode, final long revision) throws IOException {
+
+    validateKey(key);
+
+    if (writeAheadLog != null) {
+      return writeAheadLog.remove(accessor, key, hashCode, revision);
+    }
+
+    Lock.With<byte[]> with = new Lock.With<byte[]>(accessor.getStoreWriteLock(), getConfiguration().getLockWaitTimeoutMilliseconds()) {
+      public byte[] doBody() throws IOException {
+
+        return doRemove(accessor, key, hashCode, revision);
+
+      }
+    };
+    return with.run();
+  }
+
+  /**
+   * Marks all postings related with a key and its value as deleted using a specific revision.
+   * <p/>
+   * Should be write locked at this point!
+   * <p/>
+   * The code is written to handle only the current revision of the store as deletion revision,
+   * it might however work with earlier revisions too.
+   *
+   * @param accessor
+   * @param key
+   * @param hashCode
+   * @param revision
+   * @return
+   * @throws IOException
+   */
+  private byte[] doRemove(final Accessor accessor, final byte[] key, final long hashCode, final long revision) throws IOException {
+
+    retentionManager.written(revision);
+
+    Hashtable.Posting hashtablePosting = new Hashtable.Posting();
+
+    //
+    // find hashtable posting
+    //
 
-          hashCodeReservation.getFileHandler().writePosting(newHashCodePosting, newHashCodePostingPartitionOffset);
+    Hashtable hashtable = getHashtable(accessor, hashCode);
+    long hashtablePostingOffset = hashtable.calculateHashCodePostingOffset(hashCode);
+    hashtable.readPosting(hashtablePosting, hashtablePostingOffset);
 
+    byte hashtableFlagForRevision = hashtablePosting.getFlagForRevision(revision);
+    if (hashtableFlagForRevision != FileHandler.Posting.FLAG_IN_USE) {
+      throw new NoSuchElementException();
+    }
 
-          //
-          // and update the current posting to point at the new one as next in chain.
-          //
+    if (hashtablePosting.getHashCodePostingPartition() < 0) {
+      throw new StoreInconsistencyException("There is a hash table posting in the store at offset " + hashtablePostingOffset + ", hash code " + hashCode + ", but there is no pointer to a hash codes partition!");
+    }
 
-          hashCodePosting.setNextPostingPartition(newHashCodePostingPartition);
-          hashCodePosting.setNextPostingPartitionOffset(newHashCodePostingPartitionOffset);
-          hashCodesPartition.writePosting(hashCodePosting, currentHashCodesPostingPartitionOffset);
 
-          return null;
+    //
+    // seek to the correct hash code posting
+    //
 
-        }
+    HashCodesPartition.Posting hashCodePosting = new HashCodesPartition.Posting();
 
-        // keep seeking..
-        if (hashCodePosting.getNextPostingPartition() != hashCodesPartition.getPartitionId()) {
-          hashCodesPartition = accessor.getHashCodesPartition(hashCodePosting.getNextPostingPartition());
-        }
-        currentHashCodesPostingPartitionOffset = hashCodePosting.getNextPostingPartitionOffset();
-        hashCodesPartition.readPosting(hashCodePosting, hashCodePosting.getNextPostingPartitionOffset());
+    HashCodesPartition hashCodesPartition = accessor.getHashCodesPartition(hashtablePosting.getHashCodePostingPartition());
+    long currentHashCodePostingPartitionOffset = hashtablePosting.getHashCodePostingPartitionOffset();
+    hashCodesPartition.readPosting(hashCodePosting, hashtablePosting.getHashCodePostingPartitionOffset());
+    while (hashCode != hashCodePosting.getKeyHashCode()) {
+      if (hashCodePosting.getNextPostingPartition() < 0) {
+        // no hash code link postings in chain
+        throw new NoSuchElementException();
       }
 
-      //
-      // seek for the same key
-      //
+      if (hashCodePosting.getNextPostingPartition() != hashCodesPartition.getPartitionId()) {
+        hashCodesPartition = accessor.getHashCodesPartition(hashCodePosting.getNextPostingPartition());
+      }
 
-      KeysPartition currentKeyPostingPartition = accessor.getKeysPartition(hashCodePosting.getFirstKeyPostingPartition(), true);
-      KeysPartition previousKeyPostingPartition = null;
+      currentHashCodePostingPartitionOffset = hashCodePosting.getNextPostingPartitionOffset();
+      hashCodesPartition.readPosting(hashCodePosting, hashCodePosting.getNextPostingPartitionOffset());
+    }
 
-      KeysPartition.Posting currentKeyPosting = new KeysPartition.Posting();
-      KeysPartition.Posting previousKeyPosting = new KeysPartition.Posting();
+    //
+    // seek for the same key in the live chain
+    //
 
+    LiveKeyPosting removed = seekLiveKeyPosting(accessor, hashCodePosting, key, revision);
+    if (removed == null) {
+      throw new NoSuchElementException();
+    }
 
-      int previousKeyPostingPartitionOffset = -1;
+    // link what ever linked to the removed posting with what ever the removed posting was linked to
+    // [pk] [ck] [...] -> [pk] [...]
+    // the hash code posting stays in use even if the live chain is empty, as it holds the history of the key.
+    relink(removed, hashCodePosting, hashCodesPartition, currentHashCodePostingPartitionOffset, removed.posting.getNextKeyPostingPartition(), removed.posting.getNextKeyPostingPartitionOffset());
 
-      int currentKeyPostingPartitionOffset = hashCodePosting.getFirstKeyPostingPartitionOffset();
-      currentKeyPostingPartition.readPosting(currentKeyPosting, hashCodePosting.getFirstKeyPostingPartitionOffset());
-      while (true) {
+    // [hash code posting] ---first history key link+-> [ck deleted] [...]
+    moveToHistory(removed, hashCodePosting, hashCodesPartition, currentHashCodePostingPartitionOffset, revision, false);
+    updateLiveCounts(accessor, revision, null, removed.posting);
 
-        if (currentKeyPosting.getFlagForRevision(revision) == Posting.FLAG_IN_USE
-            && Arrays.equals(key, currentKeyPosting.getBytes())) {
-          break;
-        }
-        if (currentKeyPosting.getNextKeyPostingPartition() < 0) {
+    // read the old value and mark it as deleted
+    return deleteValue(accessor, removed.posting.getValuePostingPartition(), removed.posting.getValuePostingPartitionOffset(), revision, true);
 
-          // the key did not exist
-          // update the current key posting to point at the new key posting partition and offset as next in chain.
-          currentKeyPosting.setNextKeyPostingPartition(newKeyPostingPartitionNumber);
-          currentKeyPosting.setNextKeyPostingPartitionOffset(newKeyPostingPartitionOffset);
-          currentKeyPostingPartition.writePosting(currentKeyPosting, currentKeyPostingPartitionOffset);
+  }
 
-          newKeyPostingPartition.writePosting(newKeyPosting, newKeyPostingPartitionOffset);
+  public boolean containsKey(Accessor accessor, byte[] key, long hashCode) throws IOException {
+    return containsKey(accessor, key, hashCode, Long.MAX_VALUE);
+  }
 
-          return null;
-        }
+  public boolean containsKey(Accessor accessor, byte[] key, long hashCode, long revision) throws IOException {
 
-        if (currentKeyPosting.getNextKeyPostingPartition() != currentKeyPostingPartition.getPartitionId()) {
-          currentKeyPostingPartition = accessor.getKeysPartition(currentKeyPosting.getNextKeyPostingPartition(), true);
-        }
+    validateKey(key);
 
-        previousKeyPostingPartition = currentKeyPostingPartition;
-        previousKeyPostingPartitionOffset = currentKeyPostingPartitionOffset;
+    WriteAheadLog.Record pending = getPending(key, revision);
+    if (pending != null) {
+      return !pending.isRemove();
+    }
 
-        currentKeyPostingPartitionOffset = currentKeyPosting.getNextKeyPostingPartitionOffset();
+    if (isNeverPut(key)) {
+      return false;
+    }
 
-        currentKeyPostingPartition.readPosting(previousKeyPosting, currentKeyPosting.getNextKeyPostingPartitionOffset());
-        KeysPartition.Posting tmp = previousKeyPosting;
-        previousKeyPosting = currentKeyPosting;
-        currentKeyPosting = tmp;
+    if (configuration.isUsingKeySlots()) {
+      KeysPartition.Posting keyPosting = new KeysPartition.Posting();
+      if (!seekKeySlot(accessor, key, hashCode, keyPosting)) {
+        return false;
       }
+      if (keyPosting.getCreatedRevision() <= revision) {
+        return keyPosting.getFlagForRevision(revision) == Posting.FLAG_IN_USE;
+      }
+      // the key has changed since the revision, follow the chains
+    }
 
-      //
-      // a posting exists for this key.
-      //
+    Hashtable hashtable = getHashtable(accessor, hashCode);
+    Hashtable.Posting hashtablePosting = new Hashtable.Posting();
+    hashtable.readPosting(hashtablePosting, hashtable.calculateHashCodePostingOffset(hashCode));
 
+    //
+    // seek to the correct hash code posting
+    //
 
-      if (previousKeyPostingPartition == null) {
-        // chain of keys with same hash code contains only two links
+    HashCodesPartition.Posting hashCodePosting = new HashCodesPartition.Posting();
 
-        // write new key posting that nothing yet points at
-        // but make that new posting point at the key link we are replacing
-        if (configuration.isUsingDurablePostingLinks()) {
-          newKeyPosting.setNextKeyPostingPartition(currentKeyPostingPartition.getPartitionId());
-          newKeyPosting.setNextKeyPostingPartitionOffset(currentKeyPostingPartitionOffset);
-        }
-        newKeyPostingPartition.writePosting(newKeyPosting, newKeyPostingPartitionOffset);
+    HashCodesPartition hashCodesPartition = accessor.getHashCodesPartition(hashtablePosting.getHashCodePostingPartition());
+    hashCodesPartition.readPosting(hashCodePosting, hashtablePosting.getHashCodePostingPartitionOffset());
 
 
-        // making the replaced link last of the two.
-        // [nk] [ck deleted]
-        currentKeyPosting.setFlag(Posting.FLAG_DELETED);
-        currentKeyPosting.setDeletedRevision(revision);
-	//assert currentKeyPosting.getNextKeyPostingPartition() == -1;
-	//assert currentKeyPosting.getNextKeyPostingPartitionOffset() == -1;
-        currentKeyPostingPartition.writePosting(currentKeyPosting, currentKeyPostingPartitionOffset);
-
-        if (hashCodePosting.getFirstKeyPostingPartition() == currentKeyPostingPartition.getPartitionId()
-            && hashCodePosting.getFirstKeyPostingPartitionOffset() == currentKeyPostingPartitionOffset) {
-          // update the hash code posting
-          // to point at new key posting as the first in chain
-          //  [hash code posting] ---first key link+-> [nk] [ck]
-          // if it used to be the current key that was the first.
-          hashCodePosting.setFirstKeyPostingPartition(newKeyPostingPartitionNumber);
-          hashCodePosting.setFirstKeyPostingPartitionOffset(newKeyPostingPartitionOffset);
-          hashCodesPartition.writePosting(hashCodePosting, currentHashCodesPostingPartitionOffset);
-        }
+    if (hashCodePosting.getFlag() == Posting.FLAG_NEVER_USED) {
+      return false;
+    }
 
-      } else {
+    while (true) {
 
-        // there are at least three links in the chain of keys with the same hash code
+      if (hashCode == hashCodePosting.getKeyHashCode()
+          && hashCodePosting.getFlagForRevision(revision) == Posting.FLAG_IN_USE) {
+        break;
+      }
 
-        if (configuration.isUsingDurablePostingLinks()) {
+      if (hashCodePosting.getNextPostingPartition() < 0) {
+        // no more hash code links in chain
+        return false;
+      }
+      if (hashCodePosting.getNextPostingPartition() != hashCodesPartition.getPartitionId()) {
+        hashCodesPartition = accessor.getHashCodesPartition(hashCodePosting.getNextPostingPartition());
+      }
+      hashCodesPartition.readPosting(hashCodePosting, hashCodePosting.getNextPostingPartitionOffset());
+    }
 
-          // todo this is sort of ugly code
+    return seekKeyPosting(accessor, hashCodePosting, key, revision) != null;
+  }
 
-          // we have
-          // [pk] [ck]
+  /**
+   * Set while the current thread runs an {@link AsynchronousOperation}.
+   */
+  private final ThreadLocal<Boolean> runningAsynchronousOperation = new ThreadLocal<Boolean>();
 
-          // and now we replace current key with new key
+  /**
+   * An operation run by the asynchronous executor using an accessor of its own.
+   */
+  abstract class AsynchronousOperation<T> implements Callable<T> {
+    public T call() throws Exception {
+      // an executor might run an operation in the thread of another one
+      boolean nested = runningAsynchronousOperation.get() != null;
+      runningAsynchronousOperation.set(Boolean.TRUE);
+      try {
+        Accessor accessor = borrowAccessor();
+        try {
+          return call(accessor);
+        } finally {
+          returnAccessor(accessor);
+        }
+      } finally {
+        if (!nested) {
+          runningAsynchronousOperation.remove();
+        }
+      }
+    }
 
-          // [pk] [nk] [ck (deleted)]
+    protected abstract T call(Accessor accessor) throws IOException;
+  }
 
-          // new points at the current to be deleted
-          newKeyPosting.setNextKeyPostingPartition(currentKeyPostingPartition.getPartitionId());
-          newKeyPosting.setNextKeyPostingPartitionOffset(currentHashCodesPostingPartitionOffset);
+  /**
+   * @param operation
+   * @return the future result of the operation
+   * @throws java.util.concurrent.RejectedExecutionException if the store has been closed
+   */
+  <T> Future<T> submit(AsynchronousOperation<T> operation) {
+    if (asynchronousExecutor == null) {
+      throw new IllegalStateException("Store is not open");
+    }
+    return asynchronousExecutor.submit(operation);
+  }
 
-          // previous points at new
-          previousKeyPosting.setNextKeyPostingPartition(newKeyPostingPartition.getPartitionId());
-          previousKeyPosting.setNextKeyPostingPartitionOffset(newKeyPostingPartitionOffset);
+  /**
+   * @return the executor running the asynchronous operations of this store.
+   * @see Configuration#setAsynchronousExecutor(java.util.concurrent.ExecutorService)
+   */
+  public ExecutorService getAsynchronousExecutor() {
+    return asynchronousExecutor;
+  }
 
-          // deleted points at whatever it used to point at.
-          currentKeyPosting.setFlag(Posting.FLAG_DELETED);
-          currentKeyPosting.setDeletedRevision(revision);
+  /**
+   * Asynchronous {@link #get(Accessor, byte[], long, long)}.
+   * The calling thread does neither block nor need an accessor,
+   * a pooled one is borrowed by the executor thread for the duration of the operation.
+   *
+   * @param key
+   * @param hashCode
+   * @param revision
+   * @return the future value, {@link java.util.concurrent.ExecutionException} wraps any IOException.
+   */
+  public Future<byte[]> getAsync(final byte[] key, final long hashCode, final long revision) {
+    return submit(new AsynchronousOperation<byte[]>() {
+      protected byte[] call(Accessor accessor) throws IOException {
+        return get(accessor, key, hashCode, revision);
+      }
+    });
+  }
 
-          // if first of three is deleted and it is the first of links in the whole chain
-          // then make new key point at previous key and previous key back at current key
-          // and point at new key as first key hash code posting link
-          //
-          // i.e. from:
-          //  [hash code posting] ---first key link+-> [pk deleted] [nk] [ck deleted]
-          // to:
-          //  [hash code posting] ---first key link+-> [nk] [pk deleted] [ck deleted]
-          //
-          if (previousKeyPosting.getFlag() == Posting.FLAG_DELETED
-              && hashCodePosting.getFirstKeyPostingPartition() == previousKeyPostingPartition.getPartitionId()
-              && hashCodePosting.getFirstKeyPostingPartitionOffset() == previousKeyPostingPartitionOffset) {
+  public Future<byte[]> getAsync(byte[] key, long hashCode) {
+    return getAsync(key, hashCode, Long.MAX_VALUE);
+  }
 
-            // write new key
-            newKeyPosting.setNextKeyPostingPartition(previousKeyPostingPartition.getPartitionId());
-            newKeyPosting.setNextKeyPostingPartitionOffset(previousKeyPostingPartitionOffset);
-            newKeyPostingPartition.writePosting(newKeyPosting, newKeyPostingPartitionOffset);
+  /**
+   * Asynchronous {@link #put(Accessor, byte[], long, byte[], long)}.
+   *
+   * @see #getAsync(byte[], long, long)
+   */
+  public Future<byte[]> putAsync(final byte[] key, final long hashCode, final byte[] value, final long revision) {
+    return submit(new AsynchronousOperation<byte[]>() {
+      protected byte[] call(Accessor accessor) throws IOException {
+        return put(accessor, key, hashCode, value, revision);
+      }
+    });
+  }
+
+  /**
+   * Asynchronous {@link #remove(Accessor, byte[], long, long)}.
+   *
+   * @see #getAsync(byte[], long, long)
+   */
+  public Future<byte[]> removeAsync(final byte[] key, final long hashCode, final long revision) {
+    return submit(new AsynchronousOperation<byte[]>() {
+      protected byte[] call(Accessor accessor) throws IOException {
+        return remove(accessor, key, hashCode, revision);
+      }
+    });
+  }
 
-            // todo short possible glitch here where old key is deleted and new key is not available
-            currentKeyPostingPartition.markPostingAsDeleted(currentHashCodesPostingPartitionOffset, revision);
+  /**
+   * Asynchronous {@link #containsKey(Accessor, byte[], long, long)}.
+   *
+   * @see #getAsync(byte[], long, long)
+   */
+  public Future<Boolean> containsKeyAsync(final byte[] key, final long hashCode, final long revision) {
+    return submit(new AsynchronousOperation<Boolean>() {
+      protected Boolean call(Accessor accessor) throws IOException {
+        return containsKey(accessor, key, hashCode, revision);
+      }
+    });
+  }
 
-            // update hash code posting to point at new key posting
-            hashCodePosting.setFirstKeyPostingPartition(newKeyPostingPartitionNumber);
-            hashCodePosting.setFirstKeyPostingPartitionOffset(newKeyPostingPartitionOffset);
-            hashCodesPartition.writePosting(hashCodePosting, hashtablePostingOffset);
+  public Future<Boolean> containsKeyAsync(byte[] key, long hashCode) {
+    return containsKeyAsync(key, hashCode, Long.MAX_VALUE);
+  }
 
-          } else {
+  /**
+   * Full scan of the store using large sequential reads and read ahead,
+   * considerably faster than {@link #keys()} followed by {@link #getValue(Accessor, KeysPartition.Posting)}.
+   *
+   * @param revision      read revision
+   * @param readingValues if false only keys are read
+   * @return a scan positioned before the first entry
+   */
+  public Scan scan(long revision, boolean readingValues) {
+    return new Scan(this, revision, readingValues);
+  }
 
-            // write the values
-            newKeyPostingPartition.writePosting(newKeyPosting, newKeyPostingPartitionOffset);
-            currentKeyPostingPartition.writePosting(currentKeyPosting, currentKeyPostingPartitionOffset);
-            previousKeyPostingPartition.writePosting(previousKeyPosting, previousKeyPostingPartitionOffset);
-          }
+  /**
+   * Iterates the key postings in the order they were written to the keys partitions.
+   * Partitions that only contain postings created after the read revision are skipped without being read,
+   * as are postings known by the {@link LivenessMap} not to be in use in the read revision.
+   *
+   * @return cursor over the key postings in use in the read revision passed to {@link Cursor#next}
+   */
+  public Cursor<KeysPartition.Posting> keys() {
+    return new Cursor<KeysPartition.Posting>() {
 
-        } else {
+      private long nextOffset = KeysPartition.HEADER_BYTE_SIZE;
+      private int nextPartition = 0;
 
-          // no durable postings
+      /** pending write-ahead log records are applied before iterating */
+      private boolean drained = writeAheadLog == null;
 
+      /** end of the postings in the next partition, partitions grow so it's looked up again when reaching the end */
+      private long nextPostingOffset;
+      private int nextPostingOffsetPartition = -1;
 
-          if (previousKeyPosting.getFlag() == Posting.FLAG_DELETED
-              && hashCodePosting.getFirstKeyPostingPartition() == previousKeyPostingPartition.getPartitionId()
-              && hashCodePosting.getFirstKeyPostingPartitionOffset() == previousKeyPostingPartitionOffset) {
+      /** postings are read in large sequential blocks, read again if the store was written since */
+      private BlockReadingFileAccess block;
+      private KeysPartition blockPartition;
+      private long blockWriteGeneration;
 
-            // if the previous key is the deleted
-            // and the first in chain of same hash code
-            // then make the new key the first link in chain, followed by the previous
-            // by updating the hash code posting
+      public KeysPartition.Posting next(Accessor accessor, KeysPartition.Posting posting, long revision) throws IOException {
+        if (!drained) {
+          writeAheadLog.drain();
+          drained = true;
+        }
+        if (blockPartition != null && blockWriteGeneration != getWriteGeneration()) {
+          // postings in the block might have been deleted or repointed since
+          blockPartition = null;
+        }
+        while (true) {
+          KeysPartition keysPartition = accessor.getKeysPartition(nextPartition, false);
+          if (keysPartition == null || compactor.isRetired(keysPartition.getFile())) {
+            // deleted or retired by compaction
+            if (!isBeforeCurrentKeysPartition(accessor, nextPartition)) {
+              return null;
+            }
+            nextPartition++;
+            nextOffset = KeysPartition.HEADER_BYTE_SIZE;
+            continue;
+          }
+          if (nextOffset == KeysPartition.HEADER_BYTE_SIZE && partitionAllocator.getLowestRevision(keysPartition) > revision
+              && isBeforeCurrentKeysPartition(accessor, nextPartition)) {
+            // all postings created after the read revision, and only the current partition is appended to
+            nextPartition++;
+            continue;
+          }
+          if (nextPostingOffsetPartition != nextPartition || nextOffset >= nextPostingOffset) {
+            nextPostingOffset = partitionAllocator.getNextPostingOffset(keysPartition);
+            nextPostingOffsetPartition = nextPartition;
+            // postings appended since the block was read
+            blockPartition = null;
+            if (nextOffset >= nextPostingOffset) {
+              if (!isBeforeCurrentKeysPartition(accessor, nextPartition)) {
+                return null;
+              }
+              nextPartition++;
+              nextOffset = KeysPartition.HEADER_BYTE_SIZE;
+              continue;
+            }
+          }
+          LivenessMap livenessMap = getLivenessMap(nextPartition);
+          if (livenessMap != null) {
+            long liveOffset = livenessMap.seekLive(nextOffset, revision);
+            if (liveOffset != nextOffset) {
+              // jump over postings that are not in use in the revision
+              nextOffset = liveOffset;
+              continue;
+            }
+          }
+          if (keysPartition != blockPartition) {
+            blockWriteGeneration = getWriteGeneration();
+            block = new BlockReadingFileAccess(keysPartition.getFileAccess(), getConfiguration().getScanBlockByteSize());
+            blockPartition = keysPartition;
+          }
+          keysPartition.readPosting(posting, nextOffset, block);
+          nextOffset += posting.getPostingByteSize();
+          if (posting.getFlag() == 0) {
+            nextPartition++;
+            nextOffset = KeysPartition.HEADER_BYTE_SIZE;
+          } else if (posting.getFlag() != Posting.FLAG_RELOCATED
+              && posting.getCreatedRevision() <= revision && (posting.getDeletedRevision() == -1 || posting.getDeletedRevision() > revision)) {
+            return posting;
+          }
+        }
+      }
+    };
+  }
 
-            // new points at previous
-            // [nk] [pk] [ck]
-            newKeyPosting.setNextKeyPostingPartition(previousKeyPostingPartition.getPartitionId());
-            newKeyPosting.setNextKeyPostingPartitionOffset(previousKeyPostingPartitionOffset);
-            newKeyPostingPartition.writePosting(newKeyPosting, newKeyPostingPartitionOffset);
+  /**
+   * @return true if the keys partition is older than the current keys partition,
+   *         i.e. there might be more postings in later partitions.
+   */
+  private boolean isBeforeCurrentKeysPartition(Accessor accessor, int keysPartitionId) throws IOException {
+    Metadata.Header mdh = new Metadata.Header();
+    accessor.getMetadata().readHeader(mdh);
+    return keysPartitionId < mdh.getCurrentKeysPartition();
+  }
 
+  /**
+   * Visits key postings in the order they were written to a keys partition.
+   */
+  interface KeyPostingVisitor {
+    /**
+     * @param keysPartition partition of the posting
+     * @param offset        offset of the posting in the partition
+     * @param keyPosting    the posting, in any state but never used. Reused between calls.
+     * @return false to stop visiting
+     */
+    boolean visit(KeysPartition keysPartition, long offset, KeysPartition.Posting keyPosting) throws IOException;
+  }
 
-            // update hash code
-            // [hash code posting] ---first key link+-> [pk]
-            // to
-            // [hash code posting] ---first key link+-> [nk]
-            hashCodePosting.setFirstKeyPostingPartition(newKeyPostingPartitionNumber);
-            hashCodePosting.setFirstKeyPostingPartitionOffset(newKeyPostingPartitionOffset);
-            hashCodesPartition.writePosting(hashCodePosting, currentHashCodesPostingPartitionOffset);
+  /**
+   * Visits the key postings of all keys partitions not deleted or retired by compaction,
+   * reading large sequential blocks.
+   *
+   * @return false if the visitor stopped
+   */
+  boolean visitKeyPostings(Accessor accessor, KeyPostingVisitor visitor) throws IOException {
+    Metadata.Header mdh = new Metadata.Header();
+    accessor.getMetadata().readHeader(mdh);
+    for (int keysPartitionId = 0; keysPartitionId <= mdh.getCurrentKeysPartition(); keysPartitionId++) {
+      KeysPartition keysPartition = accessor.getKeysPartition(keysPartitionId, false);
+      if (keysPartition == null || compactor.isRetired(keysPartition.getFile())) {
+        // deleted or retired by compaction
+        continue;
+      }
+      if (visitKeyPostings(keysPartition, keysPartition.getHeaderByteSize(), visitor) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
 
-            // mark old key as deleted
-            // [nk] [pk] [ck deleted]
-            currentKeyPostingPartition.markPostingAsDeleted(currentKeyPostingPartitionOffset, revision);
+  /**
+   * Visits the key postings of a keys partition, reading large sequential blocks.
+   *
+   * @param offset offset of the first posting to visit
+   * @return offset after the last posting visited, or -1 if the visitor stopped
+   */
+  long visitKeyPostings(KeysPartition keysPartition, long offset, KeyPostingVisitor visitor) throws IOException {
+    KeysPartition.Posting keyPosting = new KeysPartition.Posting();
+    BlockReadingFileAccess block = new BlockReadingFileAccess(keysPartition.getFileAccess(), getConfiguration().getScanBlockByteSize());
+    long nextPostingOffset = partitionAllocator.getNextPostingOffset(keysPartition);
+    while (offset < nextPostingOffset) {
+      keysPartition.readPosting(keyPosting, offset, block);
+      if (keyPosting.getFlag() == Posting.FLAG_NEVER_USED) {
+        break;
+      }
+      if (!visitor.visit(keysPartition, offset, keyPosting)) {
+        return -1;
+      }
+      offset += keyPosting.getPostingByteSize();
+    }
+    return offset;
+  }
 
-            // [pk] disconnects from [ck deleted]
-            previousKeyPosting.setNextKeyPostingPartitionOffset(-1);
-            previousKeyPosting.setNextKeyPostingPartitionOffset(-1);
-            previousKeyPostingPartition.writePosting(previousKeyPosting, previousKeyPostingPartitionOffset);
+  /**
+   * Relocates the live postings out of all keys and values partitions that contain dead postings
+   * and deletes the partitions, in the calling thread. Must not be called while holding the store write lock.
+   * <p/>
+   * Partitions still read by a borrowed accessor are deleted once it has been returned,
+   * by the background compactor or when the store is closed.
+   *
+   * @throws IOException
+   * @see Compactor
+   * @see #setOldestRetainedRevision(long)
+   */
+  public void optimize() throws IOException {
+    compactor.compact(true);
+  }
 
-          } else {
+  /**
+   * @return the compactor reclaiming the space of dead postings
+   */
+  public Compactor getCompactor() {
+    return compactor;
+  }
 
-            // we have [pk] [ck]
+  /**
+   * @return postings deleted in or before this revision are dead and reclaimed by compaction,
+   *         {@link Long#MIN_VALUE} by default, i.e. all revisions are retained.
+   * @see RetentionManager#getOldestRetainedRevision()
+   */
+  public long getOldestRetainedRevision() {
+    return retentionManager.getOldestRetainedRevision();
+  }
 
+  /**
+   * Reads in revisions older than this are no longer supported once compaction has run,
+   * unless pinned. Not persisted, it is reset when the store is opened.
+   *
+   * @param oldestRetainedRevision postings deleted in or before this revision are dead and reclaimed by compaction.
+   * @see RetentionManager#setOldestRetainedRevision(long)
+   */
+  public void setOldestRetainedRevision(long oldestRetainedRevision) {
+    retentionManager.setOldestRetainedRevision(oldestRetainedRevision);
+  }
 
-            // create new key posting
-            // and make it point at what ever [ck] points at
-            newKeyPosting.setNextKeyPostingPartition(currentKeyPosting.getNextKeyPostingPartition());
-            newKeyPosting.setNextKeyPostingPartitionOffset(currentKeyPosting.getNextKeyPostingPartitionOffset());
-            newKeyPostingPartition.writePosting(newKeyPosting, newKeyPostingPartitionOffset);
+  /**
+   * Rehashes the hash table file, finishing any rehash in progress first.
+   * <p/>
+   * Holds the write lock until done, see {@link Configuration#isAutomaticRehashing()} for rehashing in the background.
+   *
+   * @param accessor
+   * @param resolution resolution in number of hashtable postings in new hashtable file.
+   * @throws IOException
+   */
+  public void rehash(final Accessor accessor, final int resolution) throws IOException {
+    new Lock.With<Object>(accessor.getStoreWriteLock(), getConfiguration().getLockWaitTimeoutMilliseconds()) {
+      public Object doBody() throws IOException {
+        if (accessor.getRehashingHashtable() != null) {
+          rehashPositions(accessor, Integer.MAX_VALUE);
+        }
+        createRehashingHashtable(accessor, resolution);
+        rehashPositions(accessor, Integer.MAX_VALUE);
+        return null;
+      }
+    }.run();
+  }
 
-            // replace current key as link from previous key with new key
-            // [pk] [nk]
-            previousKeyPosting.setNextKeyPostingPartition(newKeyPostingPartitionNumber);
-            previousKeyPosting.setNextKeyPostingPartitionOffset(newKeyPostingPartitionOffset);
-            previousKeyPostingPartition.writePosting(previousKeyPosting, previousKeyPostingPartitionOffset);
+  //
+  // incremental rehash
+  //
 
-            // mark old disconnected key as deleted
-            // [ck deleted]
-            currentKeyPostingPartition.markPostingAsDeleted(currentKeyPostingPartitionOffset, revision);
+  /**
+   * @return true if the hashtable is being rehashed
+   */
+  public boolean isRehashing() {
+    return rehashedPositions >= 0;
+  }
 
+  /**
+   * @return the hashtable to look up the hash code in,
+   *         the rehashing hashtable if the position of the hash code in the current hashtable has been rehashed.
+   */
+  private Hashtable getHashtable(Accessor accessor, long hashCode) throws IOException {
+    Hashtable hashtable = accessor.getHashtable();
+    int rehashedPositions = this.rehashedPositions;
+    if (rehashedPositions > 0 && hashtable.calculatePosition(hashCode) < rehashedPositions) {
+      Hashtable rehashingHashtable = accessor.getRehashingHashtable();
+      if (rehashingHashtable != null) {
+        return rehashingHashtable;
+      }
+      // finished since the current hashtable was read
+      return accessor.getHashtable();
+    }
+    return hashtable;
+  }
 
+  /**
+   * Unlinks copies of hash code postings of positions not yet rehashed from the rehashing hashtable,
+   * i.e. the part of a batch that was written before the store crashed, as the postings might have changed since.
+   * Starts the background rehasher if {@link Configuration#isAutomaticRehashing()}.
+   */
+  private void openRehash() throws IOException {
+    rehashedPositions = -1;
+    final Accessor accessor = borrowAccessor();
+    try {
+      new Lock.With<Object>(accessor.getStoreWriteLock(), getConfiguration().getLockWaitTimeoutMilliseconds()) {
+        public Object doBody() throws IOException {
+          Hashtable rehashingHashtable = accessor.getRehashingHashtable();
+          if (rehashingHashtable == null) {
+            return null;
+          }
+          Metadata.Header mdh = new Metadata.Header();
+          accessor.getMetadata().readHeader(mdh);
+          Hashtable hashtable = accessor.getHashtable();
+          Hashtable.Posting hashtablePosting = new Hashtable.Posting();
+          HashCodesPartition.Posting previousHashCodePosting = new HashCodesPartition.Posting();
+          HashCodesPartition.Posting hashCodePosting = new HashCodesPartition.Posting();
+          int unlinked = 0;
+          for (int position = 0; position < rehashingHashtable.getPostingsCapacity(); position++) {
+            long hashtablePostingOffset = rehashingHashtable.calculatePostingOffset(position);
+            rehashingHashtable.readPosting(hashtablePosting, hashtablePostingOffset);
+            if (hashtablePosting.getFlag() == Posting.FLAG_NEVER_USED) {
+              continue;
+            }
+            int previousPartition = -1;
+            long previousOffset = -1;
+            int partition = hashtablePosting.getHashCodePostingPartition();
+            long offset = hashtablePosting.getHashCodePostingPartitionOffset();
+            while (partition >= 0) {
+              accessor.getHashCodesPartition(partition).readPosting(hashCodePosting, offset);
+              if (hashtable.calculatePosition(hashCodePosting.getKeyHashCode()) < mdh.getRehashedPositions()) {
+                HashCodesPartition.Posting tmp = previousHashCodePosting;
+                previousHashCodePosting = hashCodePosting;
+                hashCodePosting = tmp;
+                previousPartition = partition;
+                previousOffset = offset;
+                partition = previousHashCodePosting.getNextPostingPartition();
+                offset = previousHashCodePosting.getNextPostingPartitionOffset();
+                continue;
+              }
+              unlinked++;
+              if (previousPartition < 0) {
+                if (hashCodePosting.getNextPostingPartition() < 0) {
+                  hashtablePosting = new Hashtable.Posting();
+                  hashtablePosting.setHashCodePostingPartition(-1);
+                  hashtablePosting.setHashCodePostingPartitionOffset(-1);
+                } else {
+                  hashtablePosting.setHashCodePostingPartition(hashCodePosting.getNextPostingPartition());
+                  hashtablePosting.setHashCodePostingPartitionOffset(hashCodePosting.getNextPostingPartitionOffset());
+                }
+                rehashingHashtable.writePosting(hashtablePosting, hashtablePostingOffset);
+              } else {
+                previousHashCodePosting.setNextPostingPartition(hashCodePosting.getNextPostingPartition());
+                previousHashCodePosting.setNextPostingPartitionOffset(hashCodePosting.getNextPostingPartitionOffset());
+                accessor.getHashCodesPartition(previousPartition).writePosting(previousHashCodePosting, previousOffset);
+              }
+              partition = hashCodePosting.getNextPostingPartition();
+              offset = hashCodePosting.getNextPostingPartitionOffset();
+            }
+          }
+          if (unlinked > 0) {
+            log.warn("Unlinked " + unlinked + " hash code postings of positions not yet rehashed, left by a store that was not closed.");
           }
+          rehashedPositions = mdh.getRehashedPositions();
+          if (getConfiguration().isAutomaticRehashing()) {
+            startRehasher();
+          }
+          return null;
         }
-      }
-
-
-      // read the old value
-      ValuesPartition valuesPartition = accessor.getValuesPartition(currentKeyPosting.getValuePostingPartition());
-      valuesPartition.readPosting(valuePosting, currentKeyPosting.getValuePostingPartitionOffset());
-      byte[] oldValue;
-      if (valuePosting.getBytesLength() > 0) {
-        oldValue = valuePosting.getBytes();
-      } else {
-        oldValue = null;
-      }
-
-      // mark the old value as deleted
-      valuesPartition.markPostingAsDeleted(currentKeyPosting.getValuePostingPartitionOffset(), revision);
+      }.run();
+    } finally {
+      returnAccessor(accessor);
+    }
+  }
 
-      return oldValue;
+  /**
+   * Require write lock!
+   * <p/>
+   * Counts a new hash code posting and starts an automatic rehash
+   * if the hashtable is fuller than {@link Configuration#getAutomaticRehashThreadshold()}.
+   * <p/>
+   * While an automatic rehash is in progress the writer also rehashes a few positions,
+   * enough for the rehash to finish before the new hashtable is full, as the background rehasher
+   * might not get the lock while writers are busy.
+   */
+  private void hashCodePostingCreated(Accessor accessor) throws IOException {
+    Metadata.Header mdh = new Metadata.Header();
+    accessor.getMetadata().readHeader(mdh);
+    mdh.setHashCodePostingsCount(mdh.getHashCodePostingsCount() + 1);
+    accessor.getMetadata().writeHeader(mdh);
 
+    if (!getConfiguration().isAutomaticRehashing()) {
+      return;
     }
 
+    Hashtable rehashingHashtable = accessor.getRehashingHashtable();
+    if (rehashingHashtable != null) {
+      long remainingPositions = accessor.getHashtable().getPostingsCapacity() - mdh.getRehashedPositions();
+      long remainingHashCodePostings = (long) (rehashingHashtable.getPostingsCapacity() * getConfiguration().getAutomaticRehashThreadshold()) - mdh.getHashCodePostingsCount();
+      rehashPositions(accessor, (int) Math.min(Integer.MAX_VALUE, 1 + remainingPositions / Math.max(1, remainingHashCodePostings)));
+    } else {
+      int capacity = accessor.getHashtable().getPostingsCapacity();
+      if (mdh.getHashCodePostingsCount() > capacity * getConfiguration().getAutomaticRehashThreadshold()) {
+        createRehashingHashtable(accessor, (int) Math.min(Integer.MAX_VALUE, Math.ceil(capacity * getConfiguration().getAutomaticRehashCapacityGrowFactor())));
+        startRehasher();
+      }
+    }
   }
 
   /**
    * Write locking.
+   * <p/>
+   * Starts rehashing without rehashing any positions,
+   * see {@link #rehashIncrementally(Accessor, int)}.
    *
    * @param accessor
-   * @param key
-   * @param hashCode
-   * @param revision revision flaggad as deletion revision
-   * @return
+   * @param capacity number of hashtable postings in the new hashtable
    * @throws IOException
    */
-  public byte[] remove(final Accessor accessor, final byte[] key, final long hashCode, final long revision) throws IOException {
-
-    validateKey(key);
-
-    Lock.With<byte[]> with = new Lock.With<byte[]>(accessor.getStoreWriteLock(), getConfiguration().getLockWaitTimeoutMilliseconds()) {
-      public byte[] doBody() throws IOException {
-
-        return doRemove(accessor, key, hashCode, revision);
-
+  void startRehash(final Accessor accessor, final int capacity) throws IOException {
+    new Lock.With<Object>(accessor.getStoreWriteLock(), getConfiguration().getLockWaitTimeoutMilliseconds()) {
+      public Object doBody() throws IOException {
+        if (accessor.getRehashingHashtable() != null) {
+          throw new StoreException("Already rehashing");
+        }
+        createRehashingHashtable(accessor, capacity);
+        return null;
       }
-    };
-    return with.run();
+    }.run();
   }
 
   /**
-   * Marks all postings related with a key and its value as deleted using a specific revision.
+   * Require write lock!
    * <p/>
-   * Should be write locked at this point!
+   * Creates a new hashtable that the current hashtable is rehashed to, no positions are rehashed yet.
+   */
+  private void createRehashingHashtable(Accessor accessor, int capacity) throws IOException {
+    int rehashingHashtableId = accessor.getHashtable().getVersionId() + 1;
+    log.info("Rehashing hashtable capacity " + accessor.getHashtable().getPostingsCapacity() + " -> " + capacity);
+
+    Hashtable rehashingHashtable = new Hashtable(getConfiguration().getDataPath(), rehashingHashtableId, accessor.getAccess(), getConfiguration().getLockFactory(), getConfiguration().getFileAccessFactory());
+    if (rehashingHashtable.getFile().exists() && !rehashingHashtable.getFile().delete()) {
+      throw new IOException("Could not delete " + rehashingHashtable.getFile().getAbsolutePath());
+    }
+    rehashingHashtable.format(((long) capacity * Hashtable.Posting.POSTING_BYTE_SIZE) + rehashingHashtable.getHeaderByteSize(), getConfiguration().isFormattingSparse());
+    rehashingHashtable.setDurabilityManager(getPartitionsDurabilityManager());
+    rehashingHashtable.open();
+    Hashtable.Header header = new Hashtable.Header();
+    header.setPostingsCapacity(capacity);
+    rehashingHashtable.writeHeader(header);
+    rehashingHashtable.close();
+
+    Metadata.Header mdh = new Metadata.Header();
+    accessor.getMetadata().readHeader(mdh);
+    mdh.setRehashingHashtableId(rehashingHashtableId);
+    mdh.setRehashedPositions(0);
+    accessor.getMetadata().writeHeader(mdh);
+    rehashedPositions = 0;
+  }
+
+  /**
+   * Write locking.
    * <p/>
-   * The code is written to handle only the current revision of the store as deletion revision,
-   * it might however work with earlier revisions too.
+   * Rehashes the next positions of the rehash in progress.
    *
    * @param accessor
-   * @param key
-   * @param hashCode
-   * @param revision
-   * @return
+   * @param positions number of positions of the current hashtable to rehash
+   * @return true if the rehash is finished or there is no rehash in progress
    * @throws IOException
    */
-  private byte[] doRemove(final Accessor accessor, final byte[] key, final long hashCode, final long revision) throws IOException {
-
-    Hashtable.Posting hashtablePosting = new Hashtable.Posting();
-
-    //
-    // find hashtable posting
-    //
+  boolean rehashIncrementally(final Accessor accessor, final int positions) throws IOException {
+    return new Lock.With<Boolean>(accessor.getStoreWriteLock(), getConfiguration().getLockWaitTimeoutMilliseconds()) {
+      public Boolean doBody() throws IOException {
+        return accessor.getRehashingHashtable() == null || rehashPositions(accessor, positions);
+      }
+    }.run();
+  }
 
+  /**
+   * Require write lock!
+   * <p/>
+   * Copies the hash code postings of the next positions of the current hashtable to the rehashing hashtable,
+   * in the order of the chains. The copies point at the same key postings. Makes the rehashing hashtable current
+   * when all positions are rehashed.
+   *
+   * @return true if the rehash is finished
+   */
+  private boolean rehashPositions(Accessor accessor, int positions) throws IOException {
+    Metadata.Header mdh = new Metadata.Header();
+    accessor.getMetadata().readHeader(mdh);
     Hashtable hashtable = accessor.getHashtable();
-    int hashtablePostingOffset = hashtable.calculateHashCodePostingOffset(hashCode);
-    accessor.getHashtable().readPosting(hashtablePosting, hashtablePostingOffset);
-
-    byte hashtableFlagForRevision = hashtablePosting.getFlagForRevision(revision);
-    if (hashtableFlagForRevision != FileHandler.Posting.FLAG_IN_USE) {
-      throw new NoSuchElementException();
-    }
-
-    if (hashtablePosting.getHashCodePostingPartition() < 0) {
-      throw new StoreInconsistencyException("There is a hash table posting in the store at offset " + hashtablePostingOffset + ", hash code " + hashCode + ", but there is no pointer to a hash codes partition!");
-    }
-
-
-    //
-    // seek to the correct hash code posting
-    //
+    Hashtable rehashingHashtable = accessor.getRehashingHashtable();
 
+    int position = mdh.getRehashedPositions();
+    int end = (int) Math.min(hashtable.getPostingsCapacity(), (long) position + positions);
+    Hashtable.Posting hashtablePosting = new Hashtable.Posting();
     HashCodesPartition.Posting hashCodePosting = new HashCodesPartition.Posting();
-
-    HashCodesPartition hashCodesPartition = accessor.getHashCodesPartition(hashtablePosting.getHashCodePostingPartition());
-    int currentHashCodePostingPartitionOffset = hashtablePosting.getHashCodePostingPartitionOffset();
-    int currentHashCodePostingPartition = hashtablePosting.getHashCodePostingPartition();
-    hashCodesPartition.readPosting(hashCodePosting, hashtablePosting.getHashCodePostingPartitionOffset());
-    while (hashCode != hashCodePosting.getKeyHashCode()) {
-      if (hashCodePosting.getNextPostingPartition() < 0) {
-        // no hash code link postings in chain
-        throw new NoSuchElementException();
+    for (; position < end; position++) {
+      hashtable.readPosting(hashtablePosting, hashtable.calculatePostingOffset(position));
+      if (hashtablePosting.getFlag() == Posting.FLAG_NEVER_USED) {
+        continue;
       }
-
-      if (hashCodePosting.getNextPostingPartition() != hashCodesPartition.getPartitionId()) {
-        hashCodesPartition = accessor.getHashCodesPartition(hashCodePosting.getNextPostingPartition());
+      int partition = hashtablePosting.getHashCodePostingPartition();
+      long offset = hashtablePosting.getHashCodePostingPartitionOffset();
+      while (partition >= 0) {
+        accessor.getHashCodesPartition(partition).readPosting(hashCodePosting, offset);
+        partition = hashCodePosting.getNextPostingPartition();
+        offset = hashCodePosting.getNextPostingPartitionOffset();
+        if (hashCodePosting.getFlag() != Posting.FLAG_NEVER_USED) {
+          appendRehashedHashCodePosting(accessor, rehashingHashtable, hashtablePosting, hashCodePosting);
+        }
       }
-
-      currentHashCodePostingPartitionOffset = hashCodePosting.getNextPostingPartitionOffset();
-      currentHashCodePostingPartition = hashCodePosting.getNextPostingPartition();
-      hashCodesPartition.readPosting(hashCodePosting, hashCodePosting.getNextPostingPartitionOffset());
     }
 
-    //
-    // seek for the same key
-    //
-
-
-    KeysPartition currentKeyLinkPostingPartition = accessor.getKeysPartition(hashCodePosting.getFirstKeyPostingPartition(), true);
-    KeysPartition.Posting currentKeyLinkPosting = new KeysPartition.Posting();
-    int currentKeyPostingPartitionOffset = hashCodePosting.getFirstKeyPostingPartitionOffset();
-
-    KeysPartition previousKeyPostingPartition = null;
-    KeysPartition.Posting previousKeyLinkPosting = new KeysPartition.Posting();
-    int previousKeyPostingPartitionOffset = -1;
-
-    currentKeyLinkPostingPartition.readPosting(currentKeyLinkPosting, hashCodePosting.getFirstKeyPostingPartitionOffset());
-    while (true) {
-
-      byte flagForKeyInRevision = currentKeyLinkPosting.getFlagForRevision(revision);
-
-      if (flagForKeyInRevision == Posting.FLAG_IN_USE
-          && Arrays.equals(key, currentKeyLinkPosting.getBytes())) {
-        break;
-      }
-
-      if (currentKeyLinkPosting.getNextKeyPostingPartition() < 0) {
-        // no more key link postings in chain
-        throw new NoSuchElementException();
-      }
-
-      if (currentKeyLinkPosting.getNextKeyPostingPartition() != currentKeyLinkPostingPartition.getPartitionId()) {
-        currentKeyLinkPostingPartition = accessor.getKeysPartition(currentKeyLinkPosting.getNextKeyPostingPartition(), true);
-      }
-      previousKeyPostingPartition = currentKeyLinkPostingPartition;
-      previousKeyPostingPartitionOffset = currentKeyPostingPartitionOffset;
-
-      currentKeyPostingPartitionOffset = currentKeyLinkPosting.getNextKeyPostingPartitionOffset();
-
-      KeysPartition.Posting tmp = currentKeyLinkPosting;
-      currentKeyLinkPostingPartition.readPosting(previousKeyLinkPosting, currentKeyLinkPosting.getNextKeyPostingPartitionOffset());
-      currentKeyLinkPosting = previousKeyLinkPosting;
-      previousKeyLinkPosting = tmp;
-
+    accessor.getMetadata().readHeader(mdh);
+    if (end == hashtable.getPostingsCapacity()) {
+      mdh.setCurrentHashtableId(rehashingHashtable.getVersionId());
+      mdh.setRehashingHashtableId(0);
+      mdh.setRehashedPositions(0);
+      accessor.getMetadata().writeHeader(mdh);
+      rehashedPositions = -1;
+      log.info("Rehashed hashtable capacity " + hashtable.getPostingsCapacity() + " -> " + rehashingHashtable.getPostingsCapacity());
+      return true;
     }
+    mdh.setRehashedPositions(end);
+    accessor.getMetadata().writeHeader(mdh);
+    rehashedPositions = end;
+    return false;
+  }
 
-    //
-    // a posting exists for this key.
-    //
-
-
-    // process key chain
-    //
-    if (hashCodePosting.getFirstKeyPostingPartition() == currentKeyLinkPostingPartition.getPartitionId()
-        && hashCodePosting.getFirstKeyPostingPartitionOffset() == currentKeyPostingPartitionOffset) {
-
-      //
-      // no previous key in chain
-      //
-
-      if (hashtablePosting.getHashCodePostingPartition() == currentHashCodePostingPartition
-          && hashtablePosting.getHashCodePostingPartitionOffset() == currentHashCodePostingPartitionOffset) {
-
-        //
-        // no previous hash code posting in chain
-        // i.e. there are now no postings in the hashtable that match the hash code of this key
-        // so delete the hashtable and hash code posting
-        //
-
-        hashCodesPartition.markPostingAsDeleted(currentHashCodePostingPartitionOffset, revision);
-
-        hashtable.markPostingAsDeleted(hashtablePostingOffset, revision);
-
-      }
-
-    } else {
-
-      //
-      // there is a previous key in the chain.
-      // update it to point at the next key in chain as defined by the current key
-      //
+  /**
+   * Require write lock!
+   * <p/>
+   * Appends a copy of a hash code posting to the chain of its position in the rehashing hashtable.
+   *
+   * @param accessor
+   * @param rehashingHashtable
+   * @param hashtablePosting   the posting in the current hashtable that the hash code posting is chained from
+   * @param hashCodePosting    posting to copy
+   * @throws IOException
+   */
+  private void appendRehashedHashCodePosting(Accessor accessor, Hashtable rehashingHashtable, Hashtable.Posting hashtablePosting, HashCodesPartition.Posting hashCodePosting) throws IOException {
+    HashCodesPartition.Posting copy = new HashCodesPartition.Posting();
+    copy.setFlag(hashCodePosting.getFlag());
+    copy.setCreatedRevision(hashCodePosting.getCreatedRevision());
+    copy.setDeletedRevision(hashCodePosting.getDeletedRevision());
+    copy.setKeyHashCode(hashCodePosting.getKeyHashCode());
+    copy.setFirstKeyPostingPartition(hashCodePosting.getFirstKeyPostingPartition());
+    copy.setFirstKeyPostingPartitionOffset(hashCodePosting.getFirstKeyPostingPartitionOffset());
+    copy.setFirstHistoryKeyPostingPartition(hashCodePosting.getFirstHistoryKeyPostingPartition());
+    copy.setFirstHistoryKeyPostingPartitionOffset(hashCodePosting.getFirstHistoryKeyPostingPartitionOffset());
+    copy.setNextPostingPartition(-1);
+    copy.setNextPostingPartitionOffset(-1);
+    Accessor.RequestPartitionWriterResponse<HashCodesPartition> copyReservation = accessor.requestValueWrite(copy);
+    copyReservation.getFileHandler().writePosting(copy, copyReservation.getStartOffset());
+
+    Hashtable.Posting rehashedHashtablePosting = new Hashtable.Posting();
+    long rehashedHashtablePostingOffset = rehashingHashtable.calculateHashCodePostingOffset(hashCodePosting.getKeyHashCode());
+    rehashingHashtable.readPosting(rehashedHashtablePosting, rehashedHashtablePostingOffset);
+    if (rehashedHashtablePosting.getHashCodePostingPartition() < 0 || rehashedHashtablePosting.getFlag() == Posting.FLAG_NEVER_USED) {
+      rehashedHashtablePosting.setFlag(Posting.FLAG_IN_USE);
+      rehashedHashtablePosting.setCreatedRevision(hashtablePosting.getCreatedRevision());
+      rehashedHashtablePosting.setDeletedRevision(-1);
+      rehashedHashtablePosting.setHashCodePostingPartition(copyReservation.getFileHandler().getPartitionId());
+      rehashedHashtablePosting.setHashCodePostingPartitionOffset(copyReservation.getStartOffset());
+      rehashingHashtable.writePosting(rehashedHashtablePosting, rehashedHashtablePostingOffset);
+      return;
+    }
 
-      if (configuration.isUsingDurablePostingLinks()) {
+    if (hashtablePosting.getCreatedRevision() < rehashedHashtablePosting.getCreatedRevision()) {
+      // the position now holds hash codes of several positions of the current hashtable
+      rehashedHashtablePosting.setCreatedRevision(hashtablePosting.getCreatedRevision());
+      rehashingHashtable.writePosting(rehashedHashtablePosting, rehashedHashtablePostingOffset);
+    }
 
-        //
-        // place deleted posting in end of key link chain for this hash code
-        //
+    HashCodesPartition.Posting lastHashCodePosting = new HashCodesPartition.Posting();
+    int lastPartition = rehashedHashtablePosting.getHashCodePostingPartition();
+    long lastOffset = rehashedHashtablePosting.getHashCodePostingPartitionOffset();
+    accessor.getHashCodesPartition(lastPartition).readPosting(lastHashCodePosting, lastOffset);
+    while (lastHashCodePosting.getNextPostingPartition() >= 0) {
+      lastPartition = lastHashCodePosting.getNextPostingPartition();
+      lastOffset = lastHashCodePosting.getNextPostingPartitionOffset();
+      accessor.getHashCodesPartition(lastPartition).readPosting(lastHashCodePosting, lastOffset);
+    }
+    lastHashCodePosting.setNextPostingPartition(copyReservation.getFileHandler().getPartitionId());
+    lastHashCodePosting.setNextPostingPartitionOffset(copyReservation.getStartOffset());
+    accessor.getHashCodesPartition(lastPartition).writePosting(lastHashCodePosting, lastOffset);
+  }
 
-        KeysPartition.Posting lastKeyLinkPosting = new KeysPartition.Posting();
-        int lastKeyLinkPartitionPostingOffset = -1;
-        // seek..
-        lastKeyLinkPosting.setNextKeyPostingPartition(currentKeyLinkPostingPartition.getPartitionId());
-        lastKeyLinkPosting.setNextKeyPostingPartitionOffset(currentKeyPostingPartitionOffset);
-        KeysPartition lastKeyLinkPartition;
-        while (true) {
-          lastKeyLinkPartitionPostingOffset = lastKeyLinkPosting.getNextKeyPostingPartitionOffset();
-          lastKeyLinkPartition = accessor.getKeysPartition(lastKeyLinkPosting.getNextKeyPostingPartition(), true);
-          lastKeyLinkPartition.readPosting(lastKeyLinkPosting, lastKeyLinkPosting.getNextKeyPostingPartitionOffset());
-          if (lastKeyLinkPosting.getNextKeyPostingPartition() < 0) {
-            break;
+  /**
+   * Require write lock!
+   * <p/>
+   * Starts a thread that rehashes {@link Configuration#getRehashBatchPositions()} at the time
+   * until the rehash in progress is finished or the store is closed.
+   */
+  private void startRehasher() {
+    if (rehasher != null) {
+      return;
+    }
+    rehasher = new Thread("PlatoDB rehasher " + getConfiguration().getDataPath().getAbsolutePath()) {
+      @Override
+      public void run() {
+        try {
+          while (!rehasherStopping) {
+            final Accessor accessor = borrowAccessor();
+            try {
+              boolean finished = new Lock.With<Boolean>(accessor.getStoreWriteLock(), getConfiguration().getLockWaitTimeoutMilliseconds()) {
+                public Boolean doBody() throws IOException {
+                  if (accessor.getRehashingHashtable() == null || rehashPositions(accessor, getConfiguration().getRehashBatchPositions())) {
+                    // cleared while holding the lock so that a rehash started after this is given a new thread
+                    rehasher = null;
+                    return true;
+                  }
+                  return false;
+                }
+              }.run();
+              if (finished) {
+                return;
+              }
+            } finally {
+              returnAccessor(accessor);
+            }
           }
+        } catch (Exception e) {
+          log.error("Rehashing failed, it will be continued when the store is opened again.", e);
         }
-
-        lastKeyLinkPosting.setNextKeyPostingPartition(currentKeyLinkPostingPartition.getPartitionId());
-        lastKeyLinkPosting.setNextKeyPostingPartitionOffset(currentHashCodePostingPartitionOffset);
-        lastKeyLinkPartition.writePosting(lastKeyLinkPosting, lastKeyLinkPartitionPostingOffset);
-
-        currentKeyLinkPosting.setNextKeyPostingPartition(-1);
-        currentKeyLinkPosting.setNextKeyPostingPartitionOffset(-1);
-        currentKeyLinkPostingPartition.writePosting(currentKeyLinkPosting, currentHashCodePostingPartitionOffset);
-
-        // todo handle internal break downs, attempt rollbacks et c
-      }
-
-
-      //
-      // link the previous posting with what ever the deleted posting was linked to.
-      //
-
-      if (previousKeyPostingPartition != null) {
-        previousKeyLinkPosting.setNextKeyPostingPartition(currentKeyLinkPosting.getNextKeyPostingPartition());
-        previousKeyLinkPosting.setNextKeyPostingPartitionOffset(currentKeyLinkPosting.getNextKeyPostingPartitionOffset());
-        previousKeyPostingPartition.writePosting(previousKeyLinkPosting, previousKeyPostingPartitionOffset);
       }
+    };
+    rehasher.setDaemon(true);
+    rehasher.start();
+  }
 
+  /**
+   * Stops the background rehasher after the batch it is working on, the rehash is continued when the store is opened again.
+   */
+  private void stopRehasher() throws IOException {
+    Thread rehasher = this.rehasher;
+    if (rehasher == null) {
+      return;
     }
-
-
-    // mark old key as deleted
-    currentKeyLinkPostingPartition.markPostingAsDeleted(currentKeyPostingPartitionOffset, revision);
-
-
-    // read the old value
-    ValuesPartition.Posting valuePosting = new ValuesPartition.Posting();
-
-    ValuesPartition oldValuePartition = accessor.getValuesPartition(currentKeyLinkPosting.getValuePostingPartition());
-    oldValuePartition.readPosting(valuePosting, currentKeyLinkPosting.getValuePostingPartitionOffset());
-    byte[] oldValue;
-    if (valuePosting.getBytesLength() > 0) {
-      oldValue = valuePosting.getBytes();
-    } else {
-      oldValue = null;
+    rehasherStopping = true;
+    try {
+      rehasher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new StoreException("Interrupted while waiting for the rehasher to stop", e);
+    } finally {
+      rehasherStopping = false;
+      this.rehasher = null;
     }
+  }
 
-    // mark the old value as deleted
-    oldValuePartition.markPostingAsDeleted(currentKeyLinkPosting.getValuePostingPartitionOffset(), revision);
-
-    return oldValue;
+  //
+  // key slots
+  //
 
+  /**
+   * Creates the key slots, or rebuilds them if they might not match the key postings,
+   * when {@link Configuration#isUsingKeySlots()}. Deletes all key slots files but the current one,
+   * i.e. all of them when not using key slots as they will be stale by the time they are used again.
+   */
+  private void openKeySlots() throws IOException {
+    final Accessor accessor = borrowAccessor();
+    try {
+      new Lock.With<Object>(accessor.getStoreWriteLock(), getConfiguration().getLockWaitTimeoutMilliseconds()) {
+        public Object doBody() throws IOException {
+          Metadata.Header mdh = new Metadata.Header();
+          accessor.getMetadata().readHeader(mdh);
+          int keySlotsId = -1;
+          if (getConfiguration().isUsingKeySlots()) {
+            keySlotsId = mdh.getCurrentKeySlotsId();
+            boolean building = true;
+            if (new File(getConfiguration().getDataPath(), FileHandler.fileName(keySlotsId, KeySlots.SUFFIX)).exists()) {
+              KeySlots.Header header = new KeySlots.Header();
+              accessor.getKeySlots().readHeader(header);
+              if (header.isDirty()) {
+                log.warn("Key slots were not closed, they will be rebuilt.");
+                keySlotsId++;
+              } else {
+                keySlotsEntries = header.getEntries();
+                building = false;
+              }
+            }
+            if (building) {
+              buildKeySlots(accessor, keySlotsId);
+            }
+          }
+          File[] files = getConfiguration().getDataPath().listFiles();
+          if (files != null) {
+            for (File file : files) {
+              if (file.getName().endsWith("." + KeySlots.SUFFIX)
+                  && !file.getName().equals(FileHandler.fileName(keySlotsId, KeySlots.SUFFIX))
+                  && !file.delete()) {
+                log.warn("Could not delete " + file.getAbsolutePath());
+              }
+            }
+          }
+          return null;
+        }
+      }.run();
+    } finally {
+      returnAccessor(accessor);
+    }
   }
 
-  public boolean containsKey(Accessor accessor, byte[] key, long hashCode) throws IOException {
-    return containsKey(accessor, key, hashCode, Long.MAX_VALUE);
+  /**
+   * Marks the key slots as matching the key postings.
+   */
+  private void closeKeySlots() throws IOException {
+    if (!getConfiguration().isUsingKeySlots() || !keySlotsDirty) {
+      return;
+    }
+    final Accessor accessor = borrowAccessor();
+    try {
+      new Lock.With<Object>(accessor.getStoreWriteLock(), getConfiguration().getLockWaitTimeoutMilliseconds()) {
+        public Object doBody() throws IOException {
+          writeKeySlotsHeader(accessor, false);
+          return null;
+        }
+      }.run();
+    } finally {
+      returnAccessor(accessor);
+    }
   }
 
-  public boolean containsKey(Accessor accessor, byte[] key, long hashCode, long revision) throws IOException {
-
-    validateKey(key);
-
-    Hashtable hashtable = accessor.getHashtable();
-    Hashtable.Posting hashtablePosting = new Hashtable.Posting();
-    hashtable.readPosting(hashtablePosting, hashtable.calculateHashCodePostingOffset(hashCode));
+  /**
+   * Require write lock!
+   * <p/>
+   * Creates new key slots and makes them current.
+   *
+   * @return the new key slots, to be closed by the caller
+   */
+  private KeySlots createKeySlots(Accessor accessor, int keySlotsId, int capacity, long entries) throws IOException {
+    KeySlots keySlots = new KeySlots(getConfiguration().getDataPath(), keySlotsId, accessor.getAccess(), getConfiguration().getLockFactory(), getConfiguration().getFileAccessFactory());
+    keySlots.format(keySlots.getHeaderByteSize() + ((long) capacity * KeySlots.POSTING_BYTE_SIZE), getConfiguration().isFormattingSparse());
+    keySlots.setDurabilityManager(getPartitionsDurabilityManager());
+    keySlots.open();
+    KeySlots.Header header = new KeySlots.Header();
+    header.setCapacity(capacity);
+    header.setEntries(entries);
+    header.setDirty(true);
+    keySlots.writeHeader(header);
+    keySlotsEntries = entries;
+    keySlotsDirty = true;
+    return keySlots;
+  }
 
-    //
-    // seek to the correct hash code posting
-    //
+  /**
+   * Require write lock!
+   */
+  private void makeKeySlotsCurrent(Accessor accessor, KeySlots keySlots) throws IOException {
+    Metadata.Header mdh = new Metadata.Header();
+    accessor.getMetadata().readHeader(mdh);
+    mdh.setCurrentKeySlotsId(keySlots.getVersionId());
+    accessor.getMetadata().writeHeader(mdh);
+  }
 
-    HashCodesPartition.Posting hashCodePosting = new HashCodesPartition.Posting();
+  /**
+   * Require write lock!
+   * <p/>
+   * Creates key slots from the most recent key posting of each key in the keys partitions.
+   */
+  private void buildKeySlots(final Accessor accessor, int keySlotsId) throws IOException {
+    log.info("Building key slots..");
+    long ms = System.currentTimeMillis();
+
+    KeySlots keySlots = createKeySlots(accessor, keySlotsId, getConfiguration().getInitialCapacity(), 0);
+    makeKeySlotsCurrent(accessor, keySlots);
+    keySlots.close();
+
+    visitKeyPostings(accessor, new KeyPostingVisitor() {
+      public boolean visit(KeysPartition keysPartition, long offset, KeysPartition.Posting keyPosting) throws IOException {
+        if (keyPosting.getFlag() != Posting.FLAG_RELOCATED) {
+          updateKeySlot(accessor, keyPosting.getBytes(), keyPosting.getKeyHashCode(), keysPartition.getPartitionId(), offset, true);
+        }
+        return true;
+      }
+    });
 
-    HashCodesPartition hashCodesPartition = accessor.getHashCodesPartition(hashtablePosting.getHashCodePostingPartition());
-    hashCodesPartition.readPosting(hashCodePosting, hashtablePosting.getHashCodePostingPartitionOffset());
+    writeKeySlotsHeader(accessor, false);
+    log.info("Built key slots of " + keySlotsEntries + " keys in " + (System.currentTimeMillis() - ms) + " milliseconds.");
+  }
 
+  /**
+   * Require write lock!
+   */
+  private void writeKeySlotsHeader(Accessor accessor, boolean dirty) throws IOException {
+    KeySlots keySlots = accessor.getKeySlots();
+    KeySlots.Header header = new KeySlots.Header();
+    header.setCapacity(keySlots.getCapacity());
+    header.setEntries(keySlotsEntries);
+    header.setDirty(dirty);
+    keySlots.writeHeader(header);
+    keySlotsDirty = dirty;
+  }
 
-    if (hashCodePosting.getFlag() == Posting.FLAG_NEVER_USED) {
-      return false;
+  /**
+   * Require write lock!
+   * <p/>
+   * Points the slot of the key at a key posting, the slot is created if the key has none.
+   *
+   * @param accessor
+   * @param key
+   * @param hashCode
+   * @param keyPostingPartition       partition of the most recent key posting of the key
+   * @param keyPostingPartitionOffset offset of the most recent key posting of the key
+   * @param keepingMostRecent         if true the slot is not updated if it points at a more recent key posting
+   * @throws IOException
+   */
+  void updateKeySlot(Accessor accessor, byte[] key, long hashCode, int keyPostingPartition, long keyPostingPartitionOffset, boolean keepingMostRecent) throws IOException {
+    KeySlots keySlots = accessor.getKeySlots();
+    if (keySlotsEntries + 1 > keySlots.getCapacity() * getConfiguration().getKeySlotsMaximumLoadFactor()) {
+      growKeySlots(accessor, keySlots);
+      keySlots = accessor.getKeySlots();
+    }
+    if (!keySlotsDirty) {
+      writeKeySlotsHeader(accessor, true);
     }
 
+    KeySlots.Posting slot = new KeySlots.Posting();
+    KeysPartition.Posting keyPosting = null;
+    int position = keySlots.calculatePosition(hashCode);
     while (true) {
-
-      if (hashCode == hashCodePosting.getKeyHashCode()
-          && hashCodePosting.getFlagForRevision(revision) == Posting.FLAG_IN_USE) {
-        break;
+      long slotOffset = keySlots.calculateSlotOffset(position);
+      keySlots.readPosting(slot, slotOffset);
+      if (slot.getFlag() == Posting.FLAG_NEVER_USED) {
+        slot.setFlag(Posting.FLAG_IN_USE);
+        slot.setKeyHashCode(hashCode);
+        slot.setKeyPostingPartition(keyPostingPartition);
+        slot.setKeyPostingPartitionOffset(keyPostingPartitionOffset);
+        keySlots.writePosting(slot, slotOffset);
+        keySlotsEntries++;
+        return;
+      }
+      if (slot.getKeyHashCode() == hashCode) {
+        if (keyPosting == null) {
+          keyPosting = new KeysPartition.Posting();
+        }
+        accessor.getKeysPartition(slot.getKeyPostingPartition(), true).readPosting(keyPosting, slot.getKeyPostingPartitionOffset());
+        if (Arrays.equals(key, keyPosting.getBytes())) {
+          if (keepingMostRecent && isMoreRecent(keyPosting, slot.getKeyPostingPartition(), slot.getKeyPostingPartitionOffset(), accessor, keyPostingPartition, keyPostingPartitionOffset)) {
+            return;
+          }
+          slot.setKeyPostingPartition(keyPostingPartition);
+          slot.setKeyPostingPartitionOffset(keyPostingPartitionOffset);
+          keySlots.writePosting(slot, slotOffset);
+          return;
+        }
       }
+      if (++position == keySlots.getCapacity()) {
+        position = 0;
+      }
+    }
+  }
+
+  /**
+   * @return true if the key posting in the slot is more recent than the other key posting of the same key,
+   *         i.e. created in a later revision or, if in the same revision, appended after it.
+   */
+  private boolean isMoreRecent(KeysPartition.Posting slotKeyPosting, int slotKeyPostingPartition, long slotKeyPostingPartitionOffset, Accessor accessor, int keyPostingPartition, long keyPostingPartitionOffset) throws IOException {
+    KeysPartition.Posting keyPosting = new KeysPartition.Posting();
+    accessor.getKeysPartition(keyPostingPartition, true).readPosting(keyPosting, keyPostingPartitionOffset);
+    if (slotKeyPosting.getCreatedRevision() != keyPosting.getCreatedRevision()) {
+      return slotKeyPosting.getCreatedRevision() > keyPosting.getCreatedRevision();
+    }
+    if (slotKeyPosting.getDeletedRevision() != keyPosting.getDeletedRevision()) {
+      // replaced in the same revision, relocated postings are not appended in order
+      return slotKeyPosting.getDeletedRevision() == -1
+          || (keyPosting.getDeletedRevision() != -1 && slotKeyPosting.getDeletedRevision() > keyPosting.getDeletedRevision());
+    }
+    if (slotKeyPostingPartition != keyPostingPartition) {
+      return slotKeyPostingPartition > keyPostingPartition;
+    }
+    return slotKeyPostingPartitionOffset > keyPostingPartitionOffset;
+  }
 
-      if (hashCodePosting.getNextPostingPartition() < 0) {
-        // no more hash code links in chain
-        return false;
+  /**
+   * Require write lock!
+   * <p/>
+   * Copies the slots to new key slots of twice the capacity.
+   * The old file is deleted the next time the store is opened.
+   */
+  private void growKeySlots(Accessor accessor, KeySlots keySlots) throws IOException {
+    int capacity = (int) Math.min(Integer.MAX_VALUE, 2l * keySlots.getCapacity());
+    log.info("Growing key slots capacity " + keySlots.getCapacity() + " -> " + capacity);
+
+    KeySlots grown = createKeySlots(accessor, keySlots.getVersionId() + 1, capacity, keySlotsEntries);
+    BlockReadingFileAccess block = new BlockReadingFileAccess(keySlots.getFileAccess(), getConfiguration().getScanBlockByteSize());
+    KeySlots.Posting slot = new KeySlots.Posting();
+    for (int position = 0; position < keySlots.getCapacity(); position++) {
+      keySlots.readPosting(slot, keySlots.calculateSlotOffset(position), block);
+      if (slot.getFlag() != Posting.FLAG_IN_USE) {
+        continue;
       }
-      if (hashCodePosting.getNextPostingPartition() != hashCodesPartition.getPartitionId()) {
-        hashCodesPartition = accessor.getHashCodesPartition(hashCodePosting.getNextPostingPartition());
+      // all keys are unique, find the first slot never used
+      int grownPosition = grown.calculatePosition(slot.getKeyHashCode());
+      while (true) {
+        grown.getFileAccess().seek(grown.calculateSlotOffset(grownPosition));
+        if (grown.getFileAccess().readByte() == Posting.FLAG_NEVER_USED) {
+          break;
+        }
+        if (++grownPosition == capacity) {
+          grownPosition = 0;
+        }
       }
-      hashCodesPartition.readPosting(hashCodePosting, hashCodePosting.getNextPostingPartitionOffset());
+      grown.writePosting(slot, grown.calculateSlotOffset(grownPosition));
     }
 
-    //
-    // seek to the correct key posting
-    //
+    makeKeySlotsCurrent(accessor, grown);
+    grown.close();
+  }
 
+  /**
+   * @return true if the slot of the key points at the key posting.
+   */
+  boolean isKeySlotPointingAt(Accessor accessor, byte[] key, long hashCode, int keyPostingPartition, long keyPostingPartitionOffset) throws IOException {
+    KeySlots keySlots = accessor.getKeySlots();
+    KeySlots.Posting slot = new KeySlots.Posting();
     KeysPartition.Posting keyPosting = new KeysPartition.Posting();
-
-    KeysPartition keysPartition = accessor.getKeysPartition(hashCodePosting.getFirstKeyPostingPartition(), true);
-    keysPartition.readPosting(keyPosting, hashCodePosting.getFirstKeyPostingPartitionOffset());
-    while (true) {
-      if (keyPosting.getFlagForRevision(revision) == Posting.FLAG_IN_USE
-          && keyPosting.getCreatedRevision() <= revision
-          && Arrays.equals(key, keyPosting.getBytes())) {
-        break;
+    int position = keySlots.calculatePosition(hashCode);
+    for (int probes = 0; probes < keySlots.getCapacity(); probes++) {
+      keySlots.readPosting(slot, keySlots.calculateSlotOffset(position));
+      if (slot.getFlag() == Posting.FLAG_NEVER_USED) {
+        return false;
+      }
+      if (slot.getKeyHashCode() == hashCode) {
+        if (slot.getKeyPostingPartition() == keyPostingPartition && slot.getKeyPostingPartitionOffset() == keyPostingPartitionOffset) {
+          return true;
+        }
+        accessor.getKeysPartition(slot.getKeyPostingPartition(), true).readPosting(keyPosting, slot.getKeyPostingPartitionOffset());
+        if (Arrays.equals(key, keyPosting.getBytes())) {
+          return false;
+        }
       }
-      if (keyPosting.getNextKeyPostingPartition() < 0) {
+      if (++position == keySlots.getCapacity()) {
+        position = 0;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Finds the most recent key posting of a key using the key slots.
+   *
+   * @param accessor
+   * @param key
+   * @param hashCode
+   * @param keyPosting the most recent key posting of the key if found, in use or deleted.
+   * @return false if the key never was put to the store
+   * @throws IOException
+   */
+  private boolean seekKeySlot(Accessor accessor, byte[] key, long hashCode, KeysPartition.Posting keyPosting) throws IOException {
+    KeySlots keySlots = accessor.getKeySlots();
+    KeySlots.Posting slot = new KeySlots.Posting();
+    int position = keySlots.calculatePosition(hashCode);
+    for (int probes = 0; probes < keySlots.getCapacity(); probes++) {
+      keySlots.readPosting(slot, keySlots.calculateSlotOffset(position));
+      if (slot.getFlag() == Posting.FLAG_NEVER_USED) {
         return false;
       }
-      if (keyPosting.getNextKeyPostingPartition() != keysPartition.getPartitionId()) {
-        keysPartition = accessor.getKeysPartition(keyPosting.getNextKeyPostingPartition(), true);
+      if (slot.getKeyHashCode() == hashCode) {
+        accessor.getKeysPartition(slot.getKeyPostingPartition(), true).readPosting(keyPosting, slot.getKeyPostingPartitionOffset());
+        if (Arrays.equals(key, keyPosting.getBytes())) {
+          return true;
+        }
+      }
+      if (++position == keySlots.getCapacity()) {
+        position = 0;
       }
-      keysPartition.readPosting(keyPosting, keyPosting.getNextKeyPostingPartitionOffset());
     }
+    return false;
+  }
 
-    return true;
+  //
+  // Bloom filter
+  //
 
+  /**
+   * @return the Bloom filter of keys ever put, or null if not {@link Configuration#isUsingBloomFilter()}
+   */
+  public BloomFilter getBloomFilter() {
+    return bloomFilter;
   }
 
-  public Cursor<KeysPartition.Posting> keys() {
-    return new Cursor<KeysPartition.Posting>() {
-
-      private int nextOffset = KeysPartition.HEADER_BYTE_SIZE;
-      private int nextPartition = 0;
+  /**
+   * @return true if the Bloom filter tells that the key never was put to the store.
+   */
+  private boolean isNeverPut(byte[] key) {
+    BloomFilter bloomFilter = this.bloomFilter;
+    return bloomFilter != null && !bloomFilter.mightContain(key);
+  }
 
-      public KeysPartition.Posting next(Accessor accessor, KeysPartition.Posting posting, long revision) throws IOException {
-        while (true) {
-          KeysPartition keysPartition = accessor.getKeysPartition(nextPartition, false);
-          if (keysPartition == null) {
-            return null;
-          }
-          keysPartition.readPosting(posting, nextOffset);
-          nextOffset += posting.getPostingByteSize();
-          if (posting.getFlag() == 0) {
-            nextPartition++;
-            nextOffset = KeysPartition.HEADER_BYTE_SIZE;
-          } else if (posting.getCreatedRevision() <= revision && (posting.getDeletedRevision() == -1 || posting.getDeletedRevision() > revision)) {
-            return posting;
+  /**
+   * Reads the Bloom filter written when the store was closed, or builds it from the keys partitions,
+   * when {@link Configuration#isUsingBloomFilter()}.
+   * <p/>
+   * The file is deleted once read so that a store that is not closed rebuilds the filter
+   * rather than reading one that lacks keys put later on. It is also deleted when not using
+   * a Bloom filter as it will be stale by the time it is used again.
+   */
+  private void openBloomFilter() throws IOException {
+    final File file = BloomFilter.getFile(getConfiguration().getDataPath());
+    bloomFilter = null;
+    if (getConfiguration().isUsingBloomFilter()) {
+      if (file.exists()) {
+        try {
+          BloomFilter read = BloomFilter.read(file);
+          if (read.getBitsPerKey() == getConfiguration().getBloomFilterBitsPerKey()) {
+            bloomFilter = read;
           }
+        } catch (IOException e) {
+          log.warn("Could not read Bloom filter " + file.getAbsolutePath() + ", it will be rebuilt.", e);
         }
       }
-    };
+      if (bloomFilter == null) {
+        final Accessor accessor = borrowAccessor();
+        try {
+          new Lock.With<Object>(accessor.getStoreWriteLock(), getConfiguration().getLockWaitTimeoutMilliseconds()) {
+            public Object doBody() throws IOException {
+              buildBloomFilter(accessor, getConfiguration().getInitialCapacity());
+              return null;
+            }
+          }.run();
+        } finally {
+          returnAccessor(accessor);
+        }
+      }
+    }
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Could not delete " + file.getAbsolutePath());
+    }
   }
 
   /**
-   * Removes all deleted postings from the store
-   * Write locking.
+   * Writes the Bloom filter next to the metadata. Requires all writes to be applied.
    */
-  public void optimize() {
-    throw new UnsupportedOperationException();
-
+  private void closeBloomFilter() throws IOException {
+    if (bloomFilter != null) {
+      bloomFilter.write(BloomFilter.getFile(getConfiguration().getDataPath()));
+      bloomFilter = null;
+    }
   }
 
   /**
-   * Rehashes the hash table file.
+   * Require write lock!
+   * <p/>
+   * Replaces the Bloom filter with one built from all key postings in the keys partitions,
+   * in use or deleted, as removed keys still exist in older revisions.
    *
    * @param accessor
-   * @param resolution resolution in number of hashtable postings in new hashtable file.
+   * @param expectedKeys number of keys to size the filter for, grows if there are more keys than that.
    * @throws IOException
    */
-  public void rehash(final Accessor accessor, final int resolution) throws IOException {
-    Lock.With with = new Lock.With(accessor.getStoreWriteLock(), getConfiguration().getLockWaitTimeoutMilliseconds()) {
-      public Object doBody() throws IOException {
-
-        log.info("Rehashing hashtable capacity ??? -> " + resolution);
-
-        Metadata metadata = accessor.getMetadata();
-        Metadata.Header mdh = new Metadata.Header();
-        metadata.readHeader(mdh);
-        int topOldHashCodesPartition = mdh.getCurrentHashCodesPartition();
-        mdh.setCurrentHashCodesPartition(mdh.getCurrentHashCodesPartition() + 1);
-        metadata.writeHeader(mdh);
-
-        Hashtable rehashedTable = new Hashtable(getConfiguration().getDataPath(), mdh.getCurrentHashtableId() + 1, accessor.getAccess(), getConfiguration().getLockFactory());
-        rehashedTable.format((resolution * Hashtable.Posting.POSTING_BYTE_SIZE) + rehashedTable.getHeaderByteSize());
-        rehashedTable.open();
-
-        Hashtable.Header rehashedTableHeader = new Hashtable.Header();
-        rehashedTableHeader.setPostingsCapacity(resolution);
-        rehashedTable.writeHeader(rehashedTableHeader);
-
-        // will data a new one!
-        HashCodesPartition rehashCodesPartition = accessor.getHashCodesPartition(mdh.getCurrentHashCodesPartition());
-
-        Hashtable.Posting rehashedTablePosting = new Hashtable.Posting();
-        HashCodesPartition.Posting rehashCodePosting = new HashCodesPartition.Posting();
-        HashCodesPartition.Header rehashCodeHeader = new HashCodesPartition.Header();
-        rehashCodesPartition.readHeader(rehashCodeHeader);
-
-        for (int currentOldHashCodePostingsPartitionId = 0; currentOldHashCodePostingsPartitionId <= topOldHashCodesPartition; currentOldHashCodePostingsPartitionId++) {
-          HashCodesPartition currentOldHashCodesPartition = new HashCodesPartition(getConfiguration().getDataPath(), currentOldHashCodePostingsPartitionId, accessor.getAccess(), getConfiguration().getLockFactory());
-          if (currentOldHashCodesPartition.exists()) {
-            currentOldHashCodesPartition.open();
-            HashCodesPartition.Header hcph = new HashCodesPartition.Header();
-            currentOldHashCodesPartition.readHeader(hcph);
-
-            HashCodesPartition.Posting hcpp = new HashCodesPartition.Posting();
-
-            int hcpStartOffset = currentOldHashCodesPartition.getHeaderByteSize();
-            while (hcpStartOffset < hcph.getNextPostingOffset()) {
-              currentOldHashCodesPartition.readPosting(hcpp, hcpStartOffset);
-              hcpStartOffset += hcpp.getPostingByteSize();
-
-              if (hcpp.getFlag() == (byte) 2) {
-                continue;
-              } else if (hcpp.getFlag() == (byte) 0) {
-                break;
-              } else if (hcpp.getFlag() != (byte) 1) {
-                log.warn("Unknown flag at offset " + hcpStartOffset + ": " + hcpp);
-              }
-
-              //
-              // insert hashcode posting in rehashedtable and rehashcodes
-              //
-              rehash(accessor, hcpp, rehashedTable, rehashedTablePosting, rehashCodesPartition, rehashCodeHeader, rehashCodePosting);
-
-              //
-              // update rehashed codes partition header
-              //
-              rehashCodeHeader.setNextPostingOffset(rehashCodeHeader.getNextPostingOffset() + rehashCodePosting.getPostingByteSize());
-              rehashCodeHeader.setBytesLeft(rehashCodeHeader.getBytesLeft() - rehashCodePosting.getPostingByteSize());
-
-              // todo if there is no space for yet another rehased code in the partition, create new partition.
-              if (rehashCodeHeader.getBytesLeft() < rehashCodePosting.getPostingByteSize()) {
-                System.currentTimeMillis();
-              }
-
-            }
-
-            currentOldHashCodesPartition.close();
-          }
+  private void buildBloomFilter(Accessor accessor, long expectedKeys) throws IOException {
+    log.info("Building Bloom filter for " + expectedKeys + " keys..");
+    long ms = System.currentTimeMillis();
+
+    final BloomFilter[] built = new BloomFilter[]{new BloomFilter(Math.max(1, expectedKeys), getConfiguration().getBloomFilterBitsPerKey())};
+    KeyPostingVisitor visitor = new KeyPostingVisitor() {
+      public boolean visit(KeysPartition keysPartition, long offset, KeysPartition.Posting keyPosting) {
+        if (keyPosting.getFlag() != Posting.FLAG_RELOCATED) {
+          built[0].add(keyPosting.getBytes());
         }
-
-
-        // write meta data header so the new hash table will be used
-        metadata.readHeader(mdh);
-        mdh.setCurrentHashtableId(rehashedTable.getVersionId());
-        accessor.getMetadata().writeHeader(mdh);
-
-        return null;
+        return !built[0].isFull();
       }
     };
-    with.run();
-  }
+    while (!visitKeyPostings(accessor, visitor)) {
+      // start over with a larger filter
+      built[0] = new BloomFilter(2 * built[0].getExpectedKeys(), getConfiguration().getBloomFilterBitsPerKey());
+    }
 
-  public Configuration getConfiguration() {
-    return configuration;
+    bloomFilter = built[0];
+    log.info("Built Bloom filter of " + built[0].getKeys() + " keys in " + (System.currentTimeMillis() - ms) + " milliseconds.");
   }
 
+  //
+  // live counts
+  //
 
   /**
+   * Write locking if the counts are not known, i.e. the first time after the store was not closed.
+   * <p/>
+   * Applies any pending write-ahead log records first.
+   *
    * @param accessor
-   * @param hashCodePosting      posting to add to rehashed table
-   * @param rehashedtable        rehaseed table
-   * @param rehashedtablePosting reusable posting
-   * @param rehashCodePartition  rehashed codes partition
-   * @param rehashCodeHeader     current header
-   * @param rehashCodePosting    reusable posting
+   * @param revision read revision
+   * @return number of keys in use in the revision
    * @throws IOException
+   * @see LiveCounts
    */
-  private void rehash(Accessor accessor,
-                      HashCodesPartition.Posting hashCodePosting,
-                      Hashtable rehashedtable, Hashtable.Posting rehashedtablePosting,
-                      HashCodesPartition rehashCodePartition, HashCodesPartition.Header rehashCodeHeader, HashCodesPartition.Posting rehashCodePosting) throws IOException {
-    //
-    // find hashcode posting and hashtable posting for the new key
-    //
-
-    int rehashedtablePostingOffset = rehashedtable.calculateHashCodePostingOffset(hashCodePosting.getKeyHashCode());
-    rehashedtable.readPosting(rehashedtablePosting, rehashedtablePostingOffset);
-    if (rehashedtablePosting.getFlag() != (byte) 1) {
-
-      // this is the first time we create a posting at this hashtable position
-      // that means there is no hash code posting either
+  public long count(Accessor accessor, long revision) throws IOException {
+    LiveCounts liveCounts = getLiveCounts(accessor);
+    if (liveCounts.isKnown(revision)) {
+      return liveCounts.getKeys(revision);
+    }
+    return countByScan(accessor, revision, false);
+  }
 
-      rehashCodePosting.setFlag((byte) 1);
-      rehashCodePosting.setFirstKeyPostingPartition(hashCodePosting.getFirstKeyPostingPartition());
-      rehashCodePosting.setFirstKeyPostingPartitionOffset(hashCodePosting.getFirstKeyPostingPartitionOffset());
-      rehashCodePosting.setKeyHashCode(hashCodePosting.getKeyHashCode());
-      rehashCodePosting.setNextPostingPartition(-1);
-      rehashCodePosting.setNextPostingPartitionOffset(-1);
-      rehashCodePosting.setCreatedRevision(hashCodePosting.getCreatedRevision());
-      rehashCodePosting.setDeletedRevision(hashCodePosting.getDeletedRevision());
+  /**
+   * Write locking if the counts are not known, i.e. the first time after the store was not closed.
+   * <p/>
+   * Applies any pending write-ahead log records first.
+   *
+   * @param accessor
+   * @param revision read revision
+   * @return key bytes plus uncompressed value bytes in use in the revision
+   * @throws IOException
+   * @see LiveCounts
+   */
+  public long countBytes(Accessor accessor, long revision) throws IOException {
+    LiveCounts liveCounts = getLiveCounts(accessor);
+    if (liveCounts.isKnown(revision)) {
+      return liveCounts.getBytes(revision);
+    }
+    return countByScan(accessor, revision, true);
+  }
 
-      rehashCodePartition.writePosting(rehashCodePosting, rehashCodeHeader.getNextPostingOffset());
+  /**
+   * Counts a revision the live counts no longer, or not yet, know about by iterating all keys in it.
+   */
+  private long countByScan(Accessor accessor, long revision, boolean countingBytes) throws IOException {
+    Cursor<KeysPartition.Posting> keys = keys();
+    KeysPartition.Posting posting = new KeysPartition.Posting();
+    long count = 0;
+    while (keys.next(accessor, posting, revision) != null) {
+      count += countingBytes ? posting.getBytesLength() + readValueByteLength(accessor, posting) : 1;
+    }
+    return count;
+  }
 
-      // update hashtable posting
+  /**
+   * Write locking if the counts are not known.
+   *
+   * @return the live counts, built if the store was not closed and they are not yet known.
+   */
+  LiveCounts getLiveCounts(final Accessor accessor) throws IOException {
+    if (writeAheadLog != null) {
+      writeAheadLog.drain();
+    }
+    LiveCounts liveCounts = this.liveCounts;
+    if (liveCounts != null) {
+      return liveCounts;
+    }
+    return new Lock.With<LiveCounts>(accessor.getStoreWriteLock(), getConfiguration().getLockWaitTimeoutMilliseconds()) {
+      public LiveCounts doBody() throws IOException {
+        if (Store.this.liveCounts == null) {
+          buildLiveCounts(accessor);
+        }
+        return Store.this.liveCounts;
+      }
+    }.run();
+  }
 
-      rehashedtablePosting.setFlag((byte) 1);
-      rehashedtablePosting.setHashCodePostingPartition(rehashCodePartition.getPartitionId());
-      rehashedtablePosting.setHashCodePostingPartitionOffset(rehashCodeHeader.getNextPostingOffset());
-      rehashedtable.writePosting(rehashedtablePosting, rehashedtablePostingOffset);
+  /**
+   * @return uncompressed length of the value of a key posting, 0 if a null value.
+   */
+  private long readValueByteLength(Accessor accessor, KeysPartition.Posting keyPosting) throws IOException {
+    if (keyPosting.getValuePostingPartition() < 0) {
+      return 0;
+    }
+    return accessor.getValuesPartition(keyPosting.getValuePostingPartition()).readValueByteLength(keyPosting.getValuePostingPartitionOffset());
+  }
 
+  /**
+   * Should be write locked at this time.
+   * <p/>
+   * Counts a key posting that became live and a key posting that no longer is, unless the counts are not known.
+   *
+   * @param added   key posting put in the revision, or null
+   * @param removed key posting replaced or removed in the revision, or null
+   */
+  private void updateLiveCounts(Accessor accessor, long revision, KeysPartition.Posting added, KeysPartition.Posting removed) throws IOException {
+    LiveCounts liveCounts = this.liveCounts;
+    if (liveCounts == null) {
       return;
+    }
+    long keysDelta = 0;
+    long bytesDelta = 0;
+    if (added != null) {
+      keysDelta++;
+      bytesDelta += added.getBytesLength() + readValueByteLength(accessor, added);
+    }
+    if (removed != null) {
+      keysDelta--;
+      bytesDelta -= removed.getBytesLength() + readValueByteLength(accessor, removed);
+    }
+    liveCounts.add(revision, keysDelta, bytesDelta, retentionManager);
+  }
 
-    } else {
-
-      // there is a hashtable posting at the position for this hash code
-
-      //
-      // seek to the correct hash code posting
-      //
+  /**
+   * Reads the live counts written when the store was closed. The file is deleted once read
+   * so that a store that is not closed rebuilds the counts rather than reading stale ones.
+   * The counts are otherwise built the first time they are needed.
+   *
+   * @param creating true if the store is new and thus empty in all revisions
+   */
+  private void openLiveCounts(boolean creating) throws IOException {
+    File file = LiveCounts.getFile(getConfiguration().getDataPath());
+    liveCounts = creating ? new LiveCounts(Long.MIN_VALUE, 0, 0) : null;
+    if (file.exists()) {
+      try {
+        liveCounts = LiveCounts.read(file);
+      } catch (IOException e) {
+        log.warn("Could not read live counts " + file.getAbsolutePath() + ", they will be rebuilt.", e);
+      }
+      if (!file.delete()) {
+        throw new IOException("Could not delete " + file.getAbsolutePath());
+      }
+    }
+  }
 
-      HashCodesPartition currentRehashedCodesPartition = rehashCodePartition;
-      int currentRehashCodesPostingPartitionOffset = rehashedtablePosting.getHashCodePostingPartitionOffset();
-      rehashCodePartition.readPosting(rehashCodePosting, rehashedtablePosting.getHashCodePostingPartitionOffset());
-      while (hashCodePosting.getKeyHashCode() != rehashCodePosting.getKeyHashCode()) {
-        if (rehashCodePosting.getNextPostingPartition() < 0) {
+  /**
+   * Writes the live counts next to the metadata. Requires all writes to be applied.
+   */
+  private void closeLiveCounts() throws IOException {
+    if (liveCounts != null) {
+      liveCounts.write(LiveCounts.getFile(getConfiguration().getDataPath()));
+      liveCounts = null;
+    }
+  }
 
-          // there is no hash code posting matching this hash code.
+  /**
+   * Require write lock!
+   * <p/>
+   * Counts the key postings in use in the keys partitions. Earlier revisions are not known
+   * by the built counts, as the values of postings deleted before then might be gone.
+   *
+   * @param accessor
+   * @throws IOException
+   */
+  private void buildLiveCounts(final Accessor accessor) throws IOException {
+    log.info("Building live counts..");
+    long ms = System.currentTimeMillis();
+
+    // latest revision, keys and bytes
+    final long[] counts = new long[]{retentionManager.getLatestRevision(), 0, 0};
+    visitKeyPostings(accessor, new KeyPostingVisitor() {
+      public boolean visit(KeysPartition keysPartition, long offset, KeysPartition.Posting keyPosting) throws IOException {
+        if (keyPosting.getFlag() != Posting.FLAG_RELOCATED) {
+          counts[0] = Math.max(counts[0], Math.max(keyPosting.getCreatedRevision(), keyPosting.getDeletedRevision()));
+          if (keyPosting.getFlag() == Posting.FLAG_IN_USE) {
+            counts[1]++;
+            counts[2] += keyPosting.getBytesLength() + readValueByteLength(accessor, keyPosting);
+          }
+        }
+        return true;
+      }
+    });
 
-          //
-          //  create new hash code posting
-          //
+    liveCounts = new LiveCounts(counts[0], counts[1], counts[2]);
+    log.info("Built live counts of " + counts[1] + " keys in " + (System.currentTimeMillis() - ms) + " milliseconds.");
+  }
 
-          HashCodesPartition.Posting newHashCodePosting = new HashCodesPartition.Posting();
-          newHashCodePosting.setFlag((byte) 1);
-          newHashCodePosting.setKeyHashCode(hashCodePosting.getKeyHashCode());
-          newHashCodePosting.setNextPostingPartition(-1);
-          newHashCodePosting.setNextPostingPartitionOffset(-1);
-          newHashCodePosting.setFirstKeyPostingPartition(hashCodePosting.getFirstKeyPostingPartition());
-          newHashCodePosting.setFirstKeyPostingPartitionOffset(hashCodePosting.getFirstKeyPostingPartitionOffset());
+  //
+  // liveness maps
+  //
 
-          rehashCodePartition.writePosting(newHashCodePosting, rehashCodeHeader.getNextPostingOffset());
+  /**
+   * @param keysPartitionId
+   * @return the liveness map of the keys partition, or null if not {@link Configuration#isUsingLivenessMaps()}
+   */
+  LivenessMap getLivenessMap(int keysPartitionId) {
+    Map<Integer, LivenessMap> livenessMaps = this.livenessMaps;
+    return livenessMaps == null ? null : livenessMaps.get(keysPartitionId);
+  }
 
+  /**
+   * Require write lock!
+   * <p/>
+   * Called for each key posting allocated, the map of a new partition is created.
+   *
+   * @param keysPartition partition the posting is allocated in
+   * @param offset        offset of the posting
+   * @param posting       the new posting, to be written at the offset
+   */
+  void keyPostingAppended(KeysPartition keysPartition, long offset, KeysPartition.Posting posting) throws IOException {
+    Map<Integer, LivenessMap> livenessMaps = this.livenessMaps;
+    if (livenessMaps == null) {
+      return;
+    }
+    LivenessMap livenessMap = livenessMaps.get(keysPartition.getPartitionId());
+    if (livenessMap == null) {
+      livenessMap = new LivenessMap(keysPartition.getHeaderByteSize());
+      livenessMaps.put(keysPartition.getPartitionId(), livenessMap);
+    }
+    livenessMap.appended(offset, posting.getPostingByteSize(), posting.getFlag(), posting.getDeletedRevision());
+  }
 
-          //
-          // and update the current posting to point at the new one as next in chain.
-          //
+  /**
+   * Require write lock!
+   */
+  void keyPostingDeleted(int keysPartitionId, long offset, long revision) {
+    LivenessMap livenessMap = getLivenessMap(keysPartitionId);
+    if (livenessMap != null) {
+      livenessMap.deleted(offset, revision);
+    }
+  }
 
-          rehashCodePosting.setNextPostingPartition(rehashCodePartition.getPartitionId());
-          rehashCodePosting.setNextPostingPartitionOffset(rehashCodeHeader.getNextPostingOffset());
-          currentRehashedCodesPartition.writePosting(rehashCodePosting, currentRehashCodesPostingPartitionOffset);
+  /**
+   * Require write lock!
+   */
+  void keyPostingRelocated(int keysPartitionId, long offset) {
+    LivenessMap livenessMap = getLivenessMap(keysPartitionId);
+    if (livenessMap != null) {
+      livenessMap.relocated(offset);
+    }
+  }
 
-          return;
+  /**
+   * Require write lock!
+   * <p/>
+   * Drops the map of a keys partition retired by compaction.
+   */
+  void forgetLivenessMap(int keysPartitionId) {
+    Map<Integer, LivenessMap> livenessMaps = this.livenessMaps;
+    if (livenessMaps != null) {
+      livenessMaps.remove(keysPartitionId);
+    }
+  }
 
+  /**
+   * Reads the liveness maps written when the store was closed, or builds them from the keys partitions,
+   * when {@link Configuration#isUsingLivenessMaps()}.
+   * <p/>
+   * The files are deleted once read so that a store that is not closed rebuilds the maps
+   * rather than reading ones that lack postings written later on. They are also deleted
+   * when not using liveness maps as they will be stale by the time they are used again.
+   */
+  private void openLivenessMaps() throws IOException {
+    livenessMaps = null;
+    if (getConfiguration().isUsingLivenessMaps()) {
+      final Map<Integer, LivenessMap> livenessMaps = new ConcurrentHashMap<Integer, LivenessMap>();
+      final Accessor accessor = borrowAccessor();
+      try {
+        new Lock.With<Object>(accessor.getStoreWriteLock(), getConfiguration().getLockWaitTimeoutMilliseconds()) {
+          public Object doBody() throws IOException {
+            long ms = System.currentTimeMillis();
+            int built = 0;
+            Metadata.Header mdh = new Metadata.Header();
+            accessor.getMetadata().readHeader(mdh);
+            for (int keysPartitionId = 0; keysPartitionId <= mdh.getCurrentKeysPartition(); keysPartitionId++) {
+              KeysPartition keysPartition = accessor.getKeysPartition(keysPartitionId, false);
+              if (keysPartition == null || compactor.isRetired(keysPartition.getFile())) {
+                // deleted or retired by compaction
+                continue;
+              }
+              File file = LivenessMap.getFile(getConfiguration().getDataPath(), keysPartitionId);
+              LivenessMap livenessMap = null;
+              if (file.exists()) {
+                try {
+                  livenessMap = LivenessMap.read(file);
+                  if (livenessMap.getEnd() != partitionAllocator.getNextPostingOffset(keysPartition)) {
+                    log.warn("Liveness map " + file.getAbsolutePath() + " does not match the keys partition, it will be rebuilt.");
+                    livenessMap = null;
+                  }
+                } catch (IOException e) {
+                  log.warn("Could not read liveness map " + file.getAbsolutePath() + ", it will be rebuilt.", e);
+                }
+              }
+              if (livenessMap == null) {
+                livenessMap = buildLivenessMap(keysPartition);
+                built++;
+              }
+              livenessMaps.put(keysPartitionId, livenessMap);
+            }
+            if (built > 0) {
+              log.info("Built liveness maps of " + built + " keys partitions in " + (System.currentTimeMillis() - ms) + " milliseconds.");
+            }
+            return null;
+          }
+        }.run();
+      } finally {
+        returnAccessor(accessor);
+      }
+      this.livenessMaps = livenessMaps;
+    }
+    File[] files = getConfiguration().getDataPath().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().endsWith("." + LivenessMap.SUFFIX) && !file.delete()) {
+          throw new IOException("Could not delete " + file.getAbsolutePath());
         }
-        if (rehashCodePosting.getNextPostingPartition() != currentRehashedCodesPartition.getPartitionId()) {
-          currentRehashedCodesPartition = accessor.getHashCodesPartition(rehashCodePosting.getNextPostingPartition());
-        }
-        currentRehashCodesPostingPartitionOffset = rehashCodePosting.getNextPostingPartitionOffset();
-        currentRehashedCodesPartition.readPosting(rehashCodePosting, rehashCodePosting.getNextPostingPartitionOffset());
       }
+    }
+  }
 
+  /**
+   * Writes the liveness map of each keys partition next to it. Requires all writes to be applied.
+   */
+  private void closeLivenessMaps() throws IOException {
+    if (livenessMaps != null) {
+      for (Map.Entry<Integer, LivenessMap> entry : livenessMaps.entrySet()) {
+        entry.getValue().write(LivenessMap.getFile(getConfiguration().getDataPath(), entry.getKey()));
+      }
+      livenessMaps = null;
     }
+  }
+
+  /**
+   * Require write lock!
+   *
+   * @return a liveness map of the postings in the keys partition
+   */
+  private LivenessMap buildLivenessMap(KeysPartition keysPartition) throws IOException {
+    final LivenessMap livenessMap = new LivenessMap(keysPartition.getHeaderByteSize());
+    visitKeyPostings(keysPartition, keysPartition.getHeaderByteSize(), new KeyPostingVisitor() {
+      public boolean visit(KeysPartition keysPartition, long offset, KeysPartition.Posting keyPosting) throws IOException {
+        livenessMap.appended(offset, keyPosting.getPostingByteSize(), keyPosting.getFlag(), keyPosting.getDeletedRevision());
+        return true;
+      }
+    });
+    return livenessMap;
+  }
 
+  public Configuration getConfiguration() {
+    return configuration;
+  }
 
+  /**
+   * @return how clients calculate key hash codes, as recorded when the store was created.
+   * @throws IOException
+   * @see Configuration#setKeyHashFunction(int)
+   */
+  public int getKeyHashFunction() throws IOException {
+    Accessor accessor = borrowAccessor();
+    try {
+      Metadata.Header mdh = new Metadata.Header();
+      accessor.getMetadata().readHeader(mdh);
+      return mdh.getKeyHashFunction();
+    } finally {
+      returnAccessor(accessor);
+    }
   }
 
 }
@@ -0,0 +1,616 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.atri.platodb.store.data.FileHandler;
+import org.atri.platodb.store.data.Metadata;
+import org.atri.platodb.store.lock.Lock;
+import org.atri.platodb.store.lock.LockObtainFailedException;
+import org.atri.platodb.store.lock.LockReleaseFailedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Appends every put and remove as one record to a sequential log file
+ * and applies it to the partitions in a background thread.
+ * <p/>
+ * A write is acknowledged as soon as it is appended, the scattered writes to the
+ * values, keys and hash codes partitions and the hashtable are made by the applier,
+ * many records at the time while holding the store write lock once.
+ * Until a record is applied it is pending, reads of the key are served from memory.
+ * Reads that can not be served from memory, e.g. cursors and reads of an older revision
+ * than the pending record, wait for the applier to catch up.
+ * <p/>
+ * When the log grows beyond {@link Configuration#getWriteAheadLogCheckpointByteSize()}
+ * the applier forces all written partitions to the storage device and truncates the log.
+ * Only the log is forced by {@link Store#makeDurable()}, as any record not yet checkpointed
+ * is applied again when the store is opened after a crash.
+ * <p/>
+ * The pending records are held in the memory of this JVM,
+ * a store with a write-ahead log must not be accessed by multiple processes.
+ *
+ * @see org.atri.platodb.store.Configuration#setWriteAheadLogging(boolean)
+ * @author atri
+ * @since 2017-sep-02 14:21:09
+ */
+public class WriteAheadLog implements DurabilityManager.Syncable {
+
+  private static final Log log = new Log(WriteAheadLog.class);
+
+  public static final String SUFFIX = "wal";
+
+  public static final int FILE_FORMAT_VERSION = 1;
+  public static final int HEADER_BYTE_SIZE = 4;
+
+  private final Store store;
+  private final File file;
+
+  /** written partitions are registered here rather than with the store durability manager, forced at checkpoint */
+  private final DurabilityManager checkpointManager = new DurabilityManager(Durability.COMMIT, 0);
+
+  private RandomAccessFile RAF;
+  private volatile long length;
+
+  /** guards appending to the log and checkpointing */
+  private final ReentrantLock appendLock = new ReentrantLock();
+
+  /** latest pending record per key */
+  private final Map<Key, Record> pending = new HashMap<Key, Record>();
+  private final BlockingQueue<Record> queue = new LinkedBlockingQueue<Record>();
+
+  /** guards the counters below and is notified when records has been applied */
+  private final Object appliedMonitor = new Object();
+  private long appended = 0;
+  private long applied = 0;
+  private volatile IOException failure;
+
+  private Accessor accessor;
+  private Thread applier;
+  private volatile boolean closed = false;
+
+  public WriteAheadLog(Store store) {
+    this.store = store;
+    this.file = getFile(store.getConfiguration().getDataPath());
+  }
+
+  /**
+   * @param directory store directory
+   * @return the write-ahead log file of the store
+   */
+  public static File getFile(File directory) {
+    return new File(directory, FileHandler.fileName(0, SUFFIX));
+  }
+
+  /**
+   * Replays any records left in the log by a store that was not closed,
+   * and starts the applier thread.
+   *
+   * @throws IOException
+   */
+  public void open() throws IOException {
+    RAF = new RandomAccessFile(file, "rw");
+    if (RAF.length() < HEADER_BYTE_SIZE) {
+      RAF.setLength(0);
+      RAF.writeInt(FILE_FORMAT_VERSION);
+    } else {
+      int fileFormatVersion = RAF.readInt();
+      if (fileFormatVersion != FILE_FORMAT_VERSION) {
+        RAF.close();
+        throw new StoreException("Expected write-ahead log file format version " + FILE_FORMAT_VERSION + " in " + file.getAbsolutePath() + " but found " + fileFormatVersion);
+      }
+    }
+    length = RAF.length();
+
+    accessor = new Accessor(store, false);
+
+    if (length > HEADER_BYTE_SIZE) {
+      replay();
+    }
+
+    applier = new Thread(new Runnable() {
+      public void run() {
+        applyRecords();
+      }
+    }, "PlatoDB write-ahead log applier " + store.getConfiguration().getDataPath().getAbsolutePath());
+    applier.setDaemon(true);
+    applier.start();
+  }
+
+  /**
+   * Applies all pending records, forces the partitions and truncates the log,
+   * stops the applier thread.
+   * If the applier failed the log is left as is to be replayed when the store is opened again.
+   *
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    try {
+      if (failure == null) {
+        checkpoint();
+      }
+    } finally {
+      closed = true;
+      try {
+        applier.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      accessor.close();
+      synchronized (this) {
+        RAF.close();
+      }
+    }
+  }
+
+  /**
+   * @return manager of the partitions written since last checkpoint.
+   */
+  public DurabilityManager getCheckpointManager() {
+    return checkpointManager;
+  }
+
+  /**
+   * Forces the log.
+   *
+   * @throws IOException
+   */
+  public synchronized void sync() throws IOException {
+    if (!closed) {
+      RAF.getFD().sync();
+    }
+  }
+
+  /**
+   * Appends a put of the key.
+   *
+   * @param accessor used to read the previous value if not pending.
+   * @return the replaced value
+   * @throws IOException
+   */
+  public byte[] put(Accessor accessor, byte[] key, long hashCode, byte[] value, long revision) throws IOException {
+    awaitApplier();
+    appendLock.lock();
+    try {
+      Record previous = getPending(key);
+      byte[] previousValue = previous != null ? previous.getValue() : store.get(accessor, key, hashCode);
+      append(new Record(Record.TYPE_PUT, revision, hashCode, key, value == null || value.length == 0 ? null : value));
+      return previousValue;
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  /**
+   * Appends a remove of the key.
+   *
+   * @param accessor used to read the previous value if not pending.
+   * @return the removed value
+   * @throws IOException
+   * @throws NoSuchElementException if the key does not exist
+   */
+  public byte[] remove(Accessor accessor, byte[] key, long hashCode, long revision) throws IOException {
+    awaitApplier();
+    appendLock.lock();
+    try {
+      Record previous = getPending(key);
+      byte[] previousValue;
+      if (previous != null) {
+        if (previous.isRemove()) {
+          throw new NoSuchElementException();
+        }
+        previousValue = previous.getValue();
+      } else {
+        if (!store.containsKey(accessor, key, hashCode)) {
+          throw new NoSuchElementException();
+        }
+        previousValue = store.get(accessor, key, hashCode);
+      }
+      append(new Record(Record.TYPE_REMOVE, revision, hashCode, key, null));
+      return previousValue;
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  /**
+   * @param key
+   * @return the latest record of the key not yet applied to the partitions, or null if none.
+   */
+  public Record getPending(byte[] key) {
+    synchronized (pending) {
+      return pending.get(new Key(key));
+    }
+  }
+
+  /**
+   * Returns when all records appended so far are applied to the partitions.
+   *
+   * @throws IOException if the applier failed
+   */
+  public void drain() throws IOException {
+    synchronized (appliedMonitor) {
+      long target = appended;
+      while (applied < target) {
+        checkFailure();
+        try {
+          appliedMonitor.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new StoreException("Interrupted while waiting for the write-ahead log to be applied", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Applies all pending records, forces the partitions and truncates the log.
+   *
+   * @throws IOException
+   */
+  public void checkpoint() throws IOException {
+    appendLock.lock();
+    try {
+      drain();
+      forceAndTruncate();
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  /**
+   * Require append lock and that all records are applied!
+   */
+  private void forceAndTruncate() throws IOException {
+    store.writePartitionHeaders(accessor);
+    checkpointManager.sync();
+    if (length > HEADER_BYTE_SIZE) {
+      RAF.setLength(HEADER_BYTE_SIZE);
+      RAF.seek(HEADER_BYTE_SIZE);
+      RAF.getFD().sync();
+      if (log.isDebug()) {
+        log.debug("Checkpointed " + (length - HEADER_BYTE_SIZE) + " bytes of write-ahead log");
+      }
+      length = HEADER_BYTE_SIZE;
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    if (failure != null) {
+      throw new StoreException("Write-ahead log could not be applied, it will be replayed when the store is opened again", failure);
+    }
+  }
+
+  /**
+   * Waits for the applier if it's too far behind.
+   * Must not hold the append lock as the applier might need it to checkpoint.
+   */
+  private void awaitApplier() throws IOException {
+    synchronized (appliedMonitor) {
+      while (appended - applied >= store.getConfiguration().getWriteAheadLogMaximumPendingRecords()) {
+        checkFailure();
+        try {
+          appliedMonitor.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new StoreException("Interrupted while waiting for the write-ahead log to be applied", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Require append lock!
+   */
+  private void append(Record record) throws IOException {
+    checkFailure();
+
+    byte[] bytes = record.toBytes();
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    RAF.seek(length);
+    RAF.writeInt(bytes.length);
+    RAF.writeInt((int) crc.getValue());
+    RAF.write(bytes);
+    length += 8 + bytes.length;
+
+    if (store.getDurabilityManager() != null) {
+      store.getDurabilityManager().dirty(this);
+    }
+
+    synchronized (pending) {
+      pending.put(new Key(record.getKey()), record);
+    }
+    synchronized (appliedMonitor) {
+      appended++;
+    }
+    queue.add(record);
+  }
+
+  /**
+   * Body of the applier thread.
+   */
+  private void applyRecords() {
+    try {
+      while (!closed || !queue.isEmpty()) {
+        Record record = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (record == null) {
+          continue;
+        }
+        List<Record> records = new ArrayList<Record>();
+        records.add(record);
+        queue.drainTo(records);
+        apply(records);
+
+        // unless someone else is checkpointing
+        if (length >= store.getConfiguration().getWriteAheadLogCheckpointByteSize() && appendLock.tryLock()) {
+          try {
+            records.clear();
+            queue.drainTo(records);
+            apply(records);
+            forceAndTruncate();
+          } finally {
+            appendLock.unlock();
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      failure = new StoreException("Write-ahead log applier was interrupted", e);
+    } catch (IOException e) {
+      log.error("Could not apply write-ahead log", e);
+      failure = e;
+    } catch (RuntimeException e) {
+      log.error("Could not apply write-ahead log", e);
+      failure = new StoreException("Could not apply write-ahead log", e);
+    } finally {
+      synchronized (appliedMonitor) {
+        appliedMonitor.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Applies the records to the partitions in order while holding the store write lock once.
+   * <p/>
+   * Failing to obtain or release the lock is not a failure of the log,
+   * the lock is obtained again until the records are applied.
+   */
+  private void apply(final List<Record> records) throws IOException {
+    if (records.isEmpty()) {
+      return;
+    }
+    final boolean[] appliedRecords = new boolean[1];
+    while (!appliedRecords[0]) {
+      try {
+        new Lock.With<Object>(accessor.getStoreWriteLock(), store.getConfiguration().getLockWaitTimeoutMilliseconds()) {
+          public Object doBody() throws IOException {
+            store.getCompactor().closeRetiredPartitions(accessor);
+            for (Record record : records) {
+              store.applyLogged(accessor, record);
+            }
+            appliedRecords[0] = true;
+            return null;
+          }
+        }.run();
+      } catch (LockObtainFailedException e) {
+        log.warn("Could not obtain the store write lock to apply the write-ahead log, retrying", e);
+      } catch (LockReleaseFailedException e) {
+        if (!appliedRecords[0]) {
+          throw e;
+        }
+        log.warn("Could not release the store write lock after applying the write-ahead log", e);
+      }
+    }
+
+    synchronized (pending) {
+      for (Record record : records) {
+        Key key = new Key(record.getKey());
+        if (pending.get(key) == record) {
+          pending.remove(key);
+        }
+      }
+    }
+    synchronized (appliedMonitor) {
+      applied += records.size();
+      appliedMonitor.notifyAll();
+    }
+  }
+
+  /**
+   * Applies all valid records in the log, i.e. up to a record torn by a crash,
+   * forces the partitions and truncates the log.
+   * <p/>
+   * Records might already have been applied in full or in part before the crash.
+   * Applying them again in order results in the same state.
+   */
+  private void replay() throws IOException {
+    log.info("Replaying write-ahead log " + file.getAbsolutePath() + "..");
+    long ms = System.currentTimeMillis();
+
+    final List<Record> records = new ArrayList<Record>();
+    long offset = HEADER_BYTE_SIZE;
+    CRC32 crc = new CRC32();
+    while (offset + 8 <= length) {
+      RAF.seek(offset);
+      int recordByteSize = RAF.readInt();
+      int checksum = RAF.readInt();
+      if (recordByteSize <= 0 || offset + 8 + recordByteSize > length) {
+        break;
+      }
+      byte[] bytes = new byte[recordByteSize];
+      RAF.readFully(bytes);
+      crc.reset();
+      crc.update(bytes);
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      records.add(Record.fromBytes(bytes));
+      offset += 8 + recordByteSize;
+    }
+    if (offset < length) {
+      log.warn("Ignoring " + (length - offset) + " bytes of torn or corrupt records at the end of " + file.getAbsolutePath());
+    }
+
+    new Lock.With<Object>(accessor.getStoreWriteLock(), store.getConfiguration().getLockWaitTimeoutMilliseconds()) {
+      public Object doBody() throws IOException {
+        long revision = -1;
+        for (Record record : records) {
+          store.applyLogged(accessor, record);
+          revision = Math.max(revision, record.getRevision());
+        }
+        // the metadata might not have been forced since the revisions was increased
+        Metadata.Header mdh = new Metadata.Header();
+        accessor.getMetadata().readHeader(mdh);
+        if (mdh.getStoreRevision() < revision) {
+          mdh.setStoreRevision(revision);
+          accessor.getMetadata().writeHeader(mdh);
+        }
+        return null;
+      }
+    }.run();
+
+    forceAndTruncate();
+
+    log.info("Replayed " + records.size() + " records in " + (System.currentTimeMillis() - ms) + " milliseconds");
+  }
+
+  /**
+   * A put or remove of a key.
+   */
+  public static class Record {
+
+    public static final byte TYPE_PUT = 1;
+    public static final byte TYPE_REMOVE = 2;
+
+    private byte type;
+    private long revision;
+    private long keyHashCode;
+    private byte[] key;
+    private byte[] value;
+
+    public Record(byte type, long revision, long keyHashCode, byte[] key, byte[] value) {
+      this.type = type;
+      this.revision = revision;
+      this.keyHashCode = keyHashCode;
+      this.key = key;
+      this.value = value;
+    }
+
+    public boolean isRemove() {
+      return type == TYPE_REMOVE;
+    }
+
+    public byte getType() {
+      return type;
+    }
+
+    public long getRevision() {
+      return revision;
+    }
+
+    public long getKeyHashCode() {
+      return keyHashCode;
+    }
+
+    public byte[] getKey() {
+      return key;
+    }
+
+    /**
+     * @return the value of a put, null if a null value or a remove.
+     */
+    public byte[] getValue() {
+      return value;
+    }
+
+    public byte[] toBytes() throws IOException {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(1 + 8 + 8 + 4 + key.length + 4 + (value == null ? 0 : value.length));
+      DataOutputStream out = new DataOutputStream(baos);
+      out.writeByte(type);
+      out.writeLong(revision);
+      out.writeLong(keyHashCode);
+      out.writeInt(key.length);
+      out.write(key);
+      if (value == null) {
+        out.writeInt(-1);
+      } else {
+        out.writeInt(value.length);
+        out.write(value);
+      }
+      out.close();
+      return baos.toByteArray();
+    }
+
+    public static Record fromBytes(byte[] bytes) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      byte type = in.readByte();
+      long revision = in.readLong();
+      long keyHashCode = in.readLong();
+      byte[] key = new byte[in.readInt()];
+      in.readFully(key);
+      int valueLength = in.readInt();
+      byte[] value = null;
+      if (valueLength >= 0) {
+        value = new byte[valueLength];
+        in.readFully(value);
+      }
+      return new Record(type, revision, keyHashCode, key, value);
+    }
+  }
+
+  /**
+   * Byte array key for hash maps.
+   */
+  private static class Key {
+    private byte[] bytes;
+    private int hashCode;
+
+    private Key(byte[] bytes) {
+      this.bytes = bytes;
+      this.hashCode = Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && Arrays.equals(bytes, ((Key) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+
+}
@@ -0,0 +1,107 @@
+package org.atri.platodb.store.codec;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import java.io.IOException;
+
+/**
+ * Compresses values in the store.
+ * <p/>
+ * The codec id is stored in the options of each compressed
+ * {@link org.atri.platodb.store.data.platotrie.ValuesPartition.Posting},
+ * so values written using one codec can be read no matter what codec the store is currently configured with.
+ * <p/>
+ * Compressed bytes starts with the int length of the uncompressed data.
+ *
+ * @see org.atri.platodb.store.Configuration#setValueCodec(Codec)
+ * @author atri
+ * @since 2017-aug-27 14:02:39
+ */
+public abstract class Codec {
+
+  /**
+   * Highest codec id that fits in the value posting options.
+   */
+  public static final int MAXIMUM_ID = 7;
+
+  private static final Codec[] codecs = new Codec[MAXIMUM_ID + 1];
+
+  static {
+    register(new LZFCodec());
+    register(new DeflateCodec());
+  }
+
+  private static synchronized void register(Codec codec) {
+    if (codec.getId() < 1 || codec.getId() > MAXIMUM_ID) {
+      throw new IllegalArgumentException("Codec id must be 1 to " + MAXIMUM_ID);
+    }
+    codecs[codec.getId()] = codec;
+  }
+
+  /**
+   * @param id codec id
+   * @return a codec able to decompress data compressed by the codec with the given id
+   * @throws IOException if there is no such codec
+   */
+  public static Codec getCodec(int id) throws IOException {
+    Codec codec = id > 0 && id <= MAXIMUM_ID ? codecs[id] : null;
+    if (codec == null) {
+      throw new IOException("Unknown codec id " + id);
+    }
+    return codec;
+  }
+
+  /**
+   * @return id stored with values compressed by this codec, 1 to {@link #MAXIMUM_ID}.
+   */
+  public abstract int getId();
+
+  /**
+   * @param bytes  data
+   * @param offset offset in bytes
+   * @param length length of data
+   * @return compressed data, or null if the data could not be compressed to fewer bytes.
+   * @throws IOException
+   */
+  public abstract byte[] compress(byte[] bytes, int offset, int length) throws IOException;
+
+  /**
+   * @param bytes  compressed data
+   * @param offset offset in bytes
+   * @param length length of compressed data
+   * @return uncompressed data
+   * @throws IOException if the compressed data is corrupt
+   */
+  public abstract byte[] decompress(byte[] bytes, int offset, int length) throws IOException;
+
+  protected static void writeInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+  protected static int readInt(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xff) << 24)
+        | ((bytes[offset + 1] & 0xff) << 16)
+        | ((bytes[offset + 2] & 0xff) << 8)
+        | (bytes[offset + 3] & 0xff);
+  }
+
+}
@@ -0,0 +1,107 @@
+package org.atri.platodb.store.codec;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate without any gzip or zlib headers, slower than {@link LZFCodec} but compresses better.
+ * Suitable for data that is rarely read.
+ *
+ * @author atri
+ * @since 2017-aug-27 15:31:48
+ */
+public class DeflateCodec extends Codec {
+
+  public static final int ID = 2;
+
+  private int level;
+
+  public DeflateCodec() {
+    this(Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * @param level {@link java.util.zip.Deflater} compression level
+   */
+  public DeflateCodec(int level) {
+    this.level = level;
+  }
+
+  public int getId() {
+    return ID;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  public byte[] compress(byte[] bytes, int offset, int length) throws IOException {
+    if (length <= 4) {
+      return null;
+    }
+    Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setInput(bytes, offset, length);
+      deflater.finish();
+      byte[] out = new byte[length];
+      writeInt(out, 0, length);
+      int op = 4;
+      while (!deflater.finished()) {
+        if (op >= out.length) {
+          return null;
+        }
+        op += deflater.deflate(out, op, out.length - op);
+      }
+      byte[] compressed = new byte[op];
+      System.arraycopy(out, 0, compressed, 0, op);
+      return compressed;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  public byte[] decompress(byte[] bytes, int offset, int length) throws IOException {
+    byte[] out = new byte[readInt(bytes, offset)];
+    Inflater inflater = new Inflater(true);
+    try {
+      // nowrap requires an extra dummy byte at the end of the input
+      byte[] in = new byte[length - 4 + 1];
+      System.arraycopy(bytes, offset + 4, in, 0, length - 4);
+      inflater.setInput(in);
+      int op = 0;
+      while (op < out.length) {
+        int inflated = inflater.inflate(out, op, out.length - op);
+        if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Corrupt deflate data, expected " + out.length + " bytes but got " + op);
+        }
+        op += inflated;
+      }
+      return out;
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt deflate data: " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+}
@@ -0,0 +1,191 @@
+package org.atri.platodb.store.codec;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import java.io.IOException;
+
+/**
+ * Pure Java implementation of the LZF format,
+ * a byte oriented Lempel-Ziv compression that trades ratio for speed.
+ * <p/>
+ * The stream is a sequence of runs, each starting with a control byte:
+ * <pre>
+ * 000LLLLL                     literal run of L + 1 bytes
+ * LLLOOOOO OOOOOOOO            back reference of L + 2 bytes, 1 &lt;= L &lt; 7
+ * 111OOOOO LLLLLLLL OOOOOOOO   back reference of L + 9 bytes
+ * </pre>
+ * where O is the distance to the referenced bytes minus one.
+ *
+ * @author atri
+ * @since 2017-aug-27 14:10:12
+ */
+public class LZFCodec extends Codec {
+
+  public static final int ID = 1;
+
+  private static final int HASH_LOG = 14;
+  private static final int HASH_SIZE = 1 << HASH_LOG;
+  private static final int MAXIMUM_LITERAL = 1 << 5;
+  private static final int MAXIMUM_OFFSET = 1 << 13;
+  private static final int MAXIMUM_REFERENCE = (1 << 8) + (1 << 3);
+
+  public int getId() {
+    return ID;
+  }
+
+  private static int hash(byte[] bytes, int offset) {
+    int value = ((bytes[offset] & 0xff) << 16) | ((bytes[offset + 1] & 0xff) << 8) | (bytes[offset + 2] & 0xff);
+    return (value * -1640531535) >>> (32 - HASH_LOG);
+  }
+
+  public byte[] compress(byte[] bytes, int offset, int length) throws IOException {
+    // literal runs are the worst case, one control byte per 32 bytes.
+    byte[] out = new byte[4 + length + length / MAXIMUM_LITERAL + 1];
+    writeInt(out, 0, length);
+
+    int[] table = new int[HASH_SIZE];
+    int end = offset + length;
+    int ip = offset;
+    int op = 4;
+
+    // position of the control byte of the current literal run
+    int literalStart = op++;
+    int literals = 0;
+
+    while (ip < end - 2) {
+      int hash = hash(bytes, ip);
+      // table holds position + 1, 0 is unused
+      int reference = table[hash] - 1;
+      table[hash] = ip + 1;
+
+      int distance = ip - reference - 1;
+      if (reference >= offset
+          && distance < MAXIMUM_OFFSET
+          && bytes[reference] == bytes[ip]
+          && bytes[reference + 1] == bytes[ip + 1]
+          && bytes[reference + 2] == bytes[ip + 2]) {
+
+        int maximumLength = Math.min(MAXIMUM_REFERENCE, end - ip);
+        int matchLength = 3;
+        while (matchLength < maximumLength && bytes[reference + matchLength] == bytes[ip + matchLength]) {
+          matchLength++;
+        }
+
+        if (op + 3 + 1 > out.length) {
+          return null;
+        }
+
+        // close the literal run
+        if (literals > 0) {
+          out[literalStart] = (byte) (literals - 1);
+        } else {
+          op--;
+        }
+
+        int encodedLength = matchLength - 2;
+        if (encodedLength < 7) {
+          out[op++] = (byte) ((encodedLength << 5) + (distance >>> 8));
+        } else {
+          out[op++] = (byte) ((7 << 5) + (distance >>> 8));
+          out[op++] = (byte) (encodedLength - 7);
+        }
+        out[op++] = (byte) distance;
+
+        ip += matchLength;
+
+        literalStart = op++;
+        literals = 0;
+
+      } else {
+        if (op >= out.length) {
+          return null;
+        }
+        out[op++] = bytes[ip++];
+        if (++literals == MAXIMUM_LITERAL) {
+          out[literalStart] = (byte) (MAXIMUM_LITERAL - 1);
+          literalStart = op++;
+          literals = 0;
+        }
+      }
+    }
+
+    while (ip < end) {
+      if (op >= out.length) {
+        return null;
+      }
+      out[op++] = bytes[ip++];
+      if (++literals == MAXIMUM_LITERAL) {
+        out[literalStart] = (byte) (MAXIMUM_LITERAL - 1);
+        literalStart = op++;
+        literals = 0;
+      }
+    }
+    if (literals > 0) {
+      out[literalStart] = (byte) (literals - 1);
+    } else {
+      op--;
+    }
+
+    if (op >= length) {
+      return null;
+    }
+    byte[] compressed = new byte[op];
+    System.arraycopy(out, 0, compressed, 0, op);
+    return compressed;
+  }
+
+  public byte[] decompress(byte[] bytes, int offset, int length) throws IOException {
+    byte[] out = new byte[readInt(bytes, offset)];
+    int end = offset + length;
+    int ip = offset + 4;
+    int op = 0;
+    try {
+      while (ip < end) {
+        int control = bytes[ip++] & 0xff;
+        if (control < MAXIMUM_LITERAL) {
+          int literals = control + 1;
+          System.arraycopy(bytes, ip, out, op, literals);
+          ip += literals;
+          op += literals;
+        } else {
+          int referenceLength = control >>> 5;
+          if (referenceLength == 7) {
+            referenceLength += bytes[ip++] & 0xff;
+          }
+          referenceLength += 2;
+          int reference = op - ((control & 0x1f) << 8) - (bytes[ip++] & 0xff) - 1;
+          if (reference < 0 || op + referenceLength > out.length) {
+            throw new IOException("Corrupt LZF data at offset " + (ip - offset));
+          }
+          // the reference might overlap the output, copy byte by byte
+          for (int i = 0; i < referenceLength; i++) {
+            out[op++] = out[reference++];
+          }
+        }
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Corrupt LZF data at offset " + (ip - offset));
+    }
+    if (op != out.length) {
+      throw new IOException("Corrupt LZF data, expected " + out.length + " bytes but got " + op);
+    }
+    return out;
+  }
+
+}
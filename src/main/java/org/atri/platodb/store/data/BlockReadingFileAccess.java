@@ -0,0 +1,142 @@
+package org.atri.platodb.store.data;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Read only view of another file access that reads large sequential blocks in to memory,
+ * for scanning postings in offset order with one read per block rather than a few per posting.
+ * <p/>
+ * The block is not refreshed when the file is written, bytes written after the block was read
+ * are not seen until the view is positioned outside of the block.
+ *
+ * @author atri
+ * @since 2017-sep-11 22:48:05
+ */
+public class BlockReadingFileAccess extends FileAccess {
+
+  private final FileAccess fileAccess;
+  private final byte[] block;
+
+  /** file position of the first byte in the block */
+  private long blockPosition = 0;
+  /** number of bytes read in to the block */
+  private int blockLength = 0;
+  /** file pointer */
+  private long position = 0;
+
+  /**
+   * @param fileAccess     file access to read blocks from
+   * @param blockByteSize  bytes read at the time
+   */
+  public BlockReadingFileAccess(FileAccess fileAccess, int blockByteSize) {
+    this.fileAccess = fileAccess;
+    this.block = new byte[blockByteSize];
+  }
+
+  public void seek(long position) throws IOException {
+    this.position = position;
+  }
+
+  public long getFilePointer() throws IOException {
+    return position;
+  }
+
+  public long length() throws IOException {
+    return fileAccess.length();
+  }
+
+  /**
+   * Makes sure the byte at the file pointer is in the block.
+   *
+   * @return offset in the block of the byte at the file pointer
+   */
+  private int fill() throws IOException {
+    if (position >= blockPosition && position < blockPosition + blockLength) {
+      return (int) (position - blockPosition);
+    }
+    long length = fileAccess.length();
+    if (position >= length) {
+      throw new EOFException("Reading beyond end of file at position " + position);
+    }
+    blockPosition = position;
+    blockLength = (int) Math.min(block.length, length - position);
+    fileAccess.seek(blockPosition);
+    fileAccess.readFully(block, 0, blockLength);
+    return 0;
+  }
+
+  public byte readByte() throws IOException {
+    int offset = fill();
+    position++;
+    return block[offset];
+  }
+
+  public int readInt() throws IOException {
+    return ((readByte() & 0xff) << 24) | ((readByte() & 0xff) << 16) | ((readByte() & 0xff) << 8) | (readByte() & 0xff);
+  }
+
+  public long readLong() throws IOException {
+    return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+  }
+
+  public void readFully(byte[] bytes, int offset, int length) throws IOException {
+    while (length > 0) {
+      int blockOffset = fill();
+      int bytesFromBlock = Math.min(length, blockLength - blockOffset);
+      System.arraycopy(block, blockOffset, bytes, offset, bytesFromBlock);
+      position += bytesFromBlock;
+      offset += bytesFromBlock;
+      length -= bytesFromBlock;
+    }
+  }
+
+  public int skipBytes(int bytes) throws IOException {
+    position += bytes;
+    return bytes;
+  }
+
+  public void writeByte(int value) throws IOException {
+    throw new UnsupportedOperationException("Read only");
+  }
+
+  public void writeInt(int value) throws IOException {
+    throw new UnsupportedOperationException("Read only");
+  }
+
+  public void writeLong(long value) throws IOException {
+    throw new UnsupportedOperationException("Read only");
+  }
+
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    throw new UnsupportedOperationException("Read only");
+  }
+
+  public void force() throws IOException {
+  }
+
+  /**
+   * Does not close the file access blocks are read from.
+   */
+  public void close() throws IOException {
+  }
+
+}
@@ -0,0 +1,86 @@
+package org.atri.platodb.store.data;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import java.io.IOException;
+
+/**
+ * Positioned, big endian, read and write access to a single file.
+ * <p/>
+ * This is the I/O backend used by all {@link org.atri.platodb.store.data.FileHandler}s
+ * to decode and encode headers and postings.
+ * The encoding is the same as the one of {@link java.io.RandomAccessFile},
+ * so files are binary compatible no matter what backend wrote them.
+ * <p/>
+ * Instances are <b>not thread safe</b>, they keep track of a file pointer.
+ * <p/>
+ * Backends are allowed to buffer writes, {@link #flush()} must be called
+ * before anything else is expected to see the written bytes.
+ *
+ * @see org.atri.platodb.store.data.FileAccessFactory
+ * @author atri
+ * @since 2017-aug-02 21:12:40
+ */
+public abstract class FileAccess {
+
+  public abstract void seek(long position) throws IOException;
+
+  public abstract long getFilePointer() throws IOException;
+
+  public abstract long length() throws IOException;
+
+  public abstract byte readByte() throws IOException;
+
+  public abstract int readInt() throws IOException;
+
+  public abstract long readLong() throws IOException;
+
+  public abstract void readFully(byte[] bytes, int offset, int length) throws IOException;
+
+  public abstract int skipBytes(int bytes) throws IOException;
+
+  public abstract void writeByte(int value) throws IOException;
+
+  public abstract void writeInt(int value) throws IOException;
+
+  public abstract void writeLong(long value) throws IOException;
+
+  public abstract void write(byte[] bytes, int offset, int length) throws IOException;
+
+  /**
+   * Makes buffered writes visible to other file access instances of the same file.
+   * This is not a sync to disk.
+   *
+   * @throws IOException
+   */
+  public void flush() throws IOException {
+  }
+
+  /**
+   * Forces all flushed writes, by any file access of the same file, to the storage device.
+   * <p/>
+   * Unlike all other methods this one may be called by another thread than the one using the instance.
+   *
+   * @throws IOException
+   */
+  public abstract void force() throws IOException;
+
+  public abstract void close() throws IOException;
+
+}
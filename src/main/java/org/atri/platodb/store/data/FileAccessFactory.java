@@ -0,0 +1,44 @@
+package org.atri.platodb.store.data;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Base class for I/O backends. Selected per store using
+ * {@link org.atri.platodb.store.Configuration#setFileAccessFactory(FileAccessFactory)}.
+ *
+ * @see org.atri.platodb.store.data.RandomAccessFileAccessFactory
+ * @see org.atri.platodb.store.data.MemoryMappedFileAccessFactory
+ * @see org.atri.platodb.store.data.PositionalFileAccessFactory
+ * @author atri
+ * @since 2017-aug-02 21:14:02
+ */
+public abstract class FileAccessFactory {
+
+  /**
+   * @param file   file to access, must exist.
+   * @param access "r" or "rw" as in {@link java.io.RandomAccessFile}
+   * @return a new file access instance
+   * @throws IOException
+   */
+  public abstract FileAccess open(File file, String access) throws IOException;
+
+}
@@ -18,33 +18,58 @@ package org.atri.platodb.store.data;
  */
 
 
+import org.atri.platodb.store.DurabilityManager;
 import org.atri.platodb.store.lock.Lock;
 import org.atri.platodb.store.lock.LockFactory;
 import org.atri.platodb.store.Log;
 import org.atri.platodb.store.StoreError;
 
 import java.io.File;
-import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
 import java.util.Arrays;
 
 /**
  * @author atri
  * @since 2017-mar-16 15:28:29
  */
-public abstract class FileHandler<H extends FileHandler.Header, P extends FileHandler.Posting> {
+public abstract class FileHandler<H extends FileHandler.Header, P extends FileHandler.Posting> implements DurabilityManager.Syncable {
 
   private static final Log log = new Log(FileHandler.class);
 
   private File file;
-  private RandomAccessFile RAF;
+  private FileAccess fileAccess;
   private String access;
+  private FileAccessFactory fileAccessFactory;
+
+  /** file length known to be allocated, lower bound as other handlers of the same file might have grown it. */
+  private long allocatedLength = -1;
+
+  /** notified when the file is written, null if writes are never forced */
+  private DurabilityManager durabilityManager;
+  /** true if written since last forced */
+  private volatile boolean dirty = false;
+  private boolean closed = false;
 
   /** not implemented yet, future lock per file rather than system wide lock at write time */
   private Lock lock;
 
-  protected FileHandler(File directory, int id, String suffix, String access, LockFactory lockFactory) throws IOException {
+  protected FileHandler(File directory, int id, String suffix, String access, LockFactory lockFactory, FileAccessFactory fileAccessFactory) throws IOException {
+    String fileName = fileName(id, suffix);
+    this.file = new File(directory, fileName);
+    this.access = access;
+    this.fileAccessFactory = fileAccessFactory;
+
+    lock = lockFactory.makeLock(fileName);
+  }
+
+  /**
+   * @param id     file id
+   * @param suffix file type suffix
+   * @return the name of the file with the given id and suffix
+   */
+  public static String fileName(int id, String suffix) {
     StringBuilder sb = new StringBuilder(15);
     sb.append(String.valueOf(id));
     while (sb.length() < 8) {
@@ -52,10 +77,7 @@ public abstract class FileHandler<H extends FileHandler.Header, P extends FileHa
     }
     sb.append(".");
     sb.append(suffix);
-    this.file = new File(directory, sb.toString());
-    this.access = access;
-
-    lock = lockFactory.makeLock(sb.toString());
+    return sb.toString();
   }
 
   public Lock getLock() {
@@ -71,6 +93,111 @@ public abstract class FileHandler<H extends FileHandler.Header, P extends FileHa
   }
 
   public void format(long size, byte defaultValue) throws IOException {
+    format(file, size, defaultValue);
+  }
+
+  /**
+   * @param size   file size in bytes
+   * @param sparse if true the file is created using {@link #formatSparse(long)}, else it's written full of zeros.
+   * @throws IOException
+   */
+  public void format(long size, boolean sparse) throws IOException {
+    format(file, size, sparse);
+  }
+
+  /**
+   * Creates a file of the given size without writing any data to it.
+   * On file systems that support sparse files no blocks are allocated until written,
+   * all unwritten bytes reads as zero.
+   * <p/>
+   * There is no portable way to preallocate blocks from Java,
+   * use {@link #format(long)} if disk space should be reserved up front.
+   *
+   * @param size file size in bytes
+   * @throws IOException
+   */
+  public void formatSparse(long size) throws IOException {
+    formatSparse(file, size);
+  }
+
+  /**
+   * Require write lock!
+   * <p/>
+   * Makes sure the file is at least the given length by growing it in whole extents.
+   * The new bytes are zeros just as in a formatted file.
+   *
+   * @param length         minimum file length in bytes
+   * @param extentByteSize growth increment
+   * @param maximumLength  the file will not grow beyond this length
+   * @param sparse         see {@link #format(long, boolean)}
+   * @throws IOException
+   */
+  public void allocate(long length, long extentByteSize, long maximumLength, boolean sparse) throws IOException {
+    if (length <= allocatedLength) {
+      return;
+    }
+    allocatedLength = fileAccess.length();
+    if (length <= allocatedLength) {
+      return;
+    }
+    if (length > maximumLength) {
+      throw new IOException("Can not grow " + file.getAbsolutePath() + " to " + length + " bytes, maximum is " + maximumLength + " bytes.");
+    }
+    long newLength = Math.min(maximumLength, ((length + extentByteSize - 1) / extentByteSize) * extentByteSize);
+
+    RandomAccessFile RAF = new RandomAccessFile(file, "rw");
+    try {
+      if (sparse) {
+        RAF.setLength(newLength);
+      } else {
+        byte[] zeros = new byte[(int) Math.min(1024 * 1024, newLength - allocatedLength)];
+        RAF.seek(allocatedLength);
+        long leftToWrite = newLength - allocatedLength;
+        while (leftToWrite > 0) {
+          int bytes = (int) Math.min(zeros.length, leftToWrite);
+          RAF.write(zeros, 0, bytes);
+          leftToWrite -= bytes;
+        }
+      }
+    } finally {
+      RAF.close();
+    }
+    if (log.isDebug()) {
+      log.debug("Grew " + file.getAbsolutePath() + " from " + allocatedLength + " to " + newLength + " bytes");
+    }
+    allocatedLength = newLength;
+    written();
+  }
+
+  /**
+   * @return the file formatted by {@link #preallocate(long, boolean)}, to be renamed to {@link #getFile()}.
+   */
+  public File getPreallocatedFile() {
+    return new File(file.getParentFile(), file.getName() + ".preallocated");
+  }
+
+  /**
+   * Formats {@link #getPreallocatedFile()} rather than the file of this handler.
+   * The caller is responsible for renaming it in place.
+   *
+   * @param size   file size in bytes
+   * @param sparse see {@link #format(long, boolean)}
+   * @throws IOException
+   * @see org.atri.platodb.store.PartitionPreallocator
+   */
+  public void preallocate(long size, boolean sparse) throws IOException {
+    format(getPreallocatedFile(), size, sparse);
+  }
+
+  private static void format(File file, long size, boolean sparse) throws IOException {
+    if (sparse) {
+      formatSparse(file, size);
+    } else {
+      format(file, size, (byte) 0);
+    }
+  }
+
+  private static void format(File file, long size, byte defaultValue) throws IOException {
     log.info("Formatting " + file.getAbsolutePath() + "..");
 
     long ms = System.currentTimeMillis();
@@ -93,28 +220,79 @@ public abstract class FileHandler<H extends FileHandler.Header, P extends FileHa
     log.info("It took " + (System.currentTimeMillis() - ms) + " milliseconds to data " + file.getAbsolutePath());
   }
 
+  private static void formatSparse(File file, long size) throws IOException {
+    long ms = System.currentTimeMillis();
+    RandomAccessFile RAF = new RandomAccessFile(file, "rw");
+    try {
+      RAF.setLength(0);
+      RAF.setLength(size);
+    } finally {
+      RAF.close();
+    }
+    log.info("It took " + (System.currentTimeMillis() - ms) + " milliseconds to sparse format " + file.getAbsolutePath());
+  }
+
   public void open() throws IOException {
-    if (RAF != null) {
+    if (fileAccess != null) {
       throw new IOException("Already open");
     }
-    this.RAF = new RandomAccessFile(file, access);
+    this.fileAccess = fileAccessFactory.open(file, access);
   }
 
-  public void close() throws IOException {
-    if (RAF != null) {
-      RAF.close();
+  /**
+   * Forces the file if it was written since last forced.
+   * If closed in the mean time it was forced by {@link #close()}.
+   *
+   * @throws IOException
+   */
+  public synchronized void sync() throws IOException {
+    if (dirty && fileAccess != null && !closed) {
+      dirty = false;
+      fileAccess.force();
+    }
+  }
+
+  public synchronized void close() throws IOException {
+    if (fileAccess != null && !closed) {
+      try {
+        if (dirty) {
+          dirty = false;
+          fileAccess.flush();
+          fileAccess.force();
+        }
+      } finally {
+        closed = true;
+        fileAccess.close();
+      }
     }
 
   }
 
+  /**
+   * @param durabilityManager notified when the file is written, or null if writes are never forced.
+   */
+  public void setDurabilityManager(DurabilityManager durabilityManager) {
+    this.durabilityManager = durabilityManager;
+  }
+
+  /**
+   * Called after writing to the file.
+   */
+  protected void written() {
+    if (durabilityManager != null && !dirty) {
+      dirty = true;
+      durabilityManager.dirty(this);
+    }
+  }
+
   public abstract int getHeaderByteSize();
 
   public File getFile() {
     return file;
   }
 
-  public RandomAccessFile getRAF() {
-    return RAF;
+  public FileAccess getFileAccess() {
+    return fileAccess;
   }
 
   public static abstract class Header {
@@ -125,6 +303,13 @@ public abstract class FileHandler<H extends FileHandler.Header, P extends FileHa
     public static final byte FLAG_NEVER_USED = (byte)0;
     public static final byte FLAG_IN_USE = (byte)1;
     public static final byte FLAG_DELETED = (byte)2;
+    /**
+     * Copied elsewhere by compaction and no longer linked, in use or deleted as told by the deleted revision.
+     * Read as the posting it was copied from by readers that followed a link to it before it was relocated.
+     *
+     * @see org.atri.platodb.store.Compactor
+     */
+    public static final byte FLAG_RELOCATED = (byte)3;
 
     public abstract int getPostingByteSize();
     public abstract byte getFlag();
@@ -164,13 +349,23 @@ public abstract class FileHandler<H extends FileHandler.Header, P extends FileHa
         }
       }
 
+      if (getFlag() == FileHandler.Posting.FLAG_RELOCATED) {
+        if (getCreatedRevision() > revision) {
+          return FLAG_NEVER_USED;
+        } else if (getDeletedRevision() != -1 && getDeletedRevision() <= revision) {
+          return FLAG_DELETED;
+        } else {
+          return FLAG_IN_USE;
+        }
+      }
+
       throw new StoreError("Unhandled flag value: " + getFlag());
     }
 
   }
 
 //  public void writePosting(P posting) throws IOException {
-//    writePosting(posting, getRAF());
+//    writePosting(posting, getFileAccess());
 //  }
 
   /**
@@ -179,70 +374,133 @@ public abstract class FileHandler<H extends FileHandler.Header, P extends FileHa
    * @param revision
    * @throws IOException
    */
-  public void markPostingAsDeleted(int startOffset, long revision) throws IOException {
-    markPostingAsDeleted(startOffset, RAF, revision);
+  public void markPostingAsDeleted(long startOffset, long revision) throws IOException {
+    markPostingAsDeleted(startOffset, fileAccess, revision);
+    fileAccess.flush();
+    written();
   }
 
-  public abstract void markPostingAsDeleted(int startOffset, RandomAccessFile RAF, long revision) throws IOException;
+  public abstract void markPostingAsDeleted(long startOffset, FileAccess fileAccess, long revision) throws IOException;
 
-  public void writePosting(P posting, int startOffset) throws IOException {
-    writePosting(posting, startOffset, getRAF());
+  /**
+   * Flags the posting at the start offset as {@link Posting#FLAG_RELOCATED}, the flag is the first byte of a posting.
+   *
+   * @param startOffset
+   * @throws IOException
+   */
+  public void markPostingAsRelocated(long startOffset) throws IOException {
+    fileAccess.seek(startOffset);
+    fileAccess.writeByte(Posting.FLAG_RELOCATED);
+    fileAccess.flush();
+    written();
+  }
+
+  public void writePosting(P posting, long startOffset) throws IOException {
+    writePosting(posting, startOffset, getFileAccess());
   }
 
-  public void writePosting(P posting, int startOffset, RandomAccessFile RAF) throws IOException {
-    RAF.seek(startOffset);
-    writePosting(posting, RAF);
+  public void writePosting(P posting, long startOffset, FileAccess fileAccess) throws IOException {
+    fileAccess.seek(startOffset);
+    writePosting(posting, fileAccess);
+    fileAccess.flush();
+    written();
   }
 
   public void writePosting(P posting) throws IOException {
-    writePosting(posting, getRAF());
+    writePosting(posting, getFileAccess());
+    getFileAccess().flush();
+    written();
   }
 
-  public abstract void writePosting(P posting, RandomAccessFile RAF) throws IOException;
+  public abstract void writePosting(P posting, FileAccess fileAccess) throws IOException;
 
 //  public void readPosting(P posting) throws IOException {
-//    readPosting(posting, getRAF());
+//    readPosting(posting, getFileAccess());
 //  }
 
   public void readPosting(P posting, long startOffset) throws IOException {
-    readPosting(posting, startOffset, getRAF());
+    readPosting(posting, startOffset, getFileAccess());
   }
 
-  public void readPosting(P posting, long startOffset, RandomAccessFile RAF) throws IOException {
-    RAF.seek(startOffset);
-    readPosting(posting, RAF);
+  public void readPosting(P posting, long startOffset, FileAccess fileAccess) throws IOException {
+    fileAccess.seek(startOffset);
+    readPosting(posting, fileAccess);
   }
 
-  public abstract void readPosting(P posting, RandomAccessFile RAF) throws IOException;
+  public abstract void readPosting(P posting, FileAccess fileAccess) throws IOException;
+
+  /**
+   * Reads postings one after the other until one that was never used or the end of the file.
+   *
+   * @param startOffset offset of the first posting to read
+   * @param posting     reused for each posting read
+   * @return offset of the first never used posting at or after the start offset
+   * @throws IOException
+   */
+  protected long seekNeverUsedPosting(long startOffset, P posting) throws IOException {
+    long length = getFileAccess().length();
+    while (startOffset < length) {
+      readPosting(posting, startOffset);
+      if (posting.getFlag() == Posting.FLAG_NEVER_USED) {
+        break;
+      }
+      startOffset += posting.getPostingByteSize();
+    }
+    return startOffset;
+  }
+
+  /**
+   * Reads postings one after the other from the start offset until the end offset.
+   *
+   * @param startOffset offset of the first posting to read
+   * @param endOffset   end of the postings to read
+   * @param posting     reused for each posting read
+   * @return lowest created revision of the postings read, {@link Long#MAX_VALUE} if none.
+   * @throws IOException
+   */
+  protected long readLowestRevision(long startOffset, long endOffset, P posting) throws IOException {
+    long lowestRevision = Long.MAX_VALUE;
+    while (startOffset < endOffset) {
+      readPosting(posting, startOffset);
+      if (posting.getFlag() == Posting.FLAG_NEVER_USED) {
+        break;
+      }
+      lowestRevision = Math.min(lowestRevision, posting.getCreatedRevision());
+      startOffset += posting.getPostingByteSize();
+    }
+    return lowestRevision;
+  }
 
 
   public void writeHeader(H header) throws IOException {
-    writeHeader(header, 0, getRAF());
+    writeHeader(header, 0, getFileAccess());
   }
 
   public void writeHeader(H header, int startOffset) throws IOException {
-    writeHeader(header, startOffset, getRAF());
+    writeHeader(header, startOffset, getFileAccess());
   }
 
-  public void writeHeader(H header, int startOffset, RandomAccessFile RAF) throws IOException {
-    RAF.seek(startOffset);
-    writeHeader(header, RAF);
+  public void writeHeader(H header, int startOffset, FileAccess fileAccess) throws IOException {
+    fileAccess.seek(startOffset);
+    writeHeader(header, fileAccess);
+    fileAccess.flush();
+    written();
   }
 
-  public abstract void writeHeader(H header, RandomAccessFile RAF) throws IOException;
+  public abstract void writeHeader(H header, FileAccess fileAccess) throws IOException;
 
   public void readHeader(H header) throws IOException {
-    readHeader(header, 0, RAF);
+    readHeader(header, 0, fileAccess);
   }
 
   public void readHeader(H header, int startOffset) throws IOException {
-    readHeader(header, startOffset, getRAF());
+    readHeader(header, startOffset, getFileAccess());
   }
 
-  public void readHeader(H header, int startOffset, RandomAccessFile RAF) throws IOException {
-    RAF.seek(startOffset);
-    readHeader(header, RAF);
+  public void readHeader(H header, int startOffset, FileAccess fileAccess) throws IOException {
+    fileAccess.seek(startOffset);
+    readHeader(header, fileAccess);
   }
 
-  public abstract void readHeader(H header, RandomAccessFile RAF) throws IOException;
+  public abstract void readHeader(H header, FileAccess fileAccess) throws IOException;
 }
@@ -0,0 +1,259 @@
+package org.atri.platodb.store.data;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory mapped backend. Postings are decoded straight out of
+ * {@link java.nio.MappedByteBuffer}s, i.e. a point lookup costs no system calls
+ * as long as the pages are in the page cache.
+ * <p/>
+ * Files are mapped in segments of {@link #SEGMENT_BYTE_SIZE} bytes
+ * in order to handle files larger than the 2GB limit of a single buffer.
+ * The mapping is extended when the file grows.
+ * <p/>
+ * Note that the JVM does not unmap buffers until they are garbage collected,
+ * so address space is held for a while after a store has been closed.
+ *
+ * @see org.atri.platodb.store.data.RandomAccessFileAccessFactory
+ * @author atri
+ * @since 2017-aug-02 21:31:17
+ */
+public class MemoryMappedFileAccessFactory extends FileAccessFactory {
+
+  public static final int SEGMENT_BYTE_SIZE_BITS = 30;
+  public static final int SEGMENT_BYTE_SIZE = 1 << SEGMENT_BYTE_SIZE_BITS;
+
+  public FileAccess open(File file, String access) throws IOException {
+    return new MemoryMappedFileAccess(new RandomAccessFile(file, access), "r".equals(access));
+  }
+
+}
+
+class MemoryMappedFileAccess extends FileAccess {
+
+  private static final int SEGMENT_BYTE_SIZE_BITS = MemoryMappedFileAccessFactory.SEGMENT_BYTE_SIZE_BITS;
+  private static final int SEGMENT_BYTE_SIZE = MemoryMappedFileAccessFactory.SEGMENT_BYTE_SIZE;
+  private static final long SEGMENT_OFFSET_MASK = SEGMENT_BYTE_SIZE - 1;
+
+  private RandomAccessFile RAF;
+  private FileChannel channel;
+  private boolean readOnly;
+
+  /** replaced rather than modified when remapped, as it's read by {@link #force()} */
+  private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+  private long mappedLength = 0;
+
+  private long position = 0;
+
+  MemoryMappedFileAccess(RandomAccessFile RAF, boolean readOnly) throws IOException {
+    this.RAF = RAF;
+    this.readOnly = readOnly;
+    channel = RAF.getChannel();
+    map(channel.size());
+  }
+
+  /**
+   * (Re)maps the file up to the given length.
+   * Only the last, partially mapped, segment and new segments are mapped again.
+   */
+  private void map(long length) throws IOException {
+    if (length <= mappedLength) {
+      return;
+    }
+    int segmentCount = (int) ((length + SEGMENT_OFFSET_MASK) >>> SEGMENT_BYTE_SIZE_BITS);
+    MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+    System.arraycopy(this.segments, 0, segments, 0, this.segments.length);
+    FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+    for (int segment = 0; segment < segmentCount; segment++) {
+      long start = (long) segment << SEGMENT_BYTE_SIZE_BITS;
+      long size = Math.min(SEGMENT_BYTE_SIZE, length - start);
+      if (segments[segment] == null || segments[segment].capacity() < size) {
+        segments[segment] = channel.map(mode, start, size);
+      }
+    }
+    this.segments = segments;
+    mappedLength = length;
+  }
+
+  /**
+   * Makes sure that the bytes between the current position and position + length are mapped.
+   */
+  private void require(int length, boolean write) throws IOException {
+    long end = position + length;
+    if (end <= mappedLength) {
+      return;
+    }
+    long fileLength = channel.size();
+    if (end > fileLength) {
+      if (!write) {
+        throw new EOFException("Attempted to read " + length + " bytes at position " + position + " in a file of " + fileLength + " bytes");
+      }
+      RAF.setLength(end);
+      fileLength = end;
+    }
+    map(fileLength);
+  }
+
+  private MappedByteBuffer segment(long position) {
+    return segments[(int) (position >>> SEGMENT_BYTE_SIZE_BITS)];
+  }
+
+  private int segmentOffset(long position) {
+    return (int) (position & SEGMENT_OFFSET_MASK);
+  }
+
+  /**
+   * @return true if length bytes from the current position are in a single segment.
+   */
+  private boolean isContiguous(int length) {
+    return segmentOffset(position) + length <= SEGMENT_BYTE_SIZE;
+  }
+
+  public void seek(long position) throws IOException {
+    if (position < 0) {
+      throw new IOException("Negative seek offset " + position);
+    }
+    this.position = position;
+  }
+
+  public long getFilePointer() throws IOException {
+    return position;
+  }
+
+  public long length() throws IOException {
+    return channel.size();
+  }
+
+  public byte readByte() throws IOException {
+    require(1, false);
+    byte value = segment(position).get(segmentOffset(position));
+    position++;
+    return value;
+  }
+
+  public int readInt() throws IOException {
+    require(4, false);
+    if (isContiguous(4)) {
+      int value = segment(position).getInt(segmentOffset(position));
+      position += 4;
+      return value;
+    }
+    return ((readByte() & 0xff) << 24)
+        | ((readByte() & 0xff) << 16)
+        | ((readByte() & 0xff) << 8)
+        | (readByte() & 0xff);
+  }
+
+  public long readLong() throws IOException {
+    require(8, false);
+    if (isContiguous(8)) {
+      long value = segment(position).getLong(segmentOffset(position));
+      position += 8;
+      return value;
+    }
+    return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+  }
+
+  public void readFully(byte[] bytes, int offset, int length) throws IOException {
+    require(length, false);
+    while (length > 0) {
+      int chunk = Math.min(length, SEGMENT_BYTE_SIZE - segmentOffset(position));
+      ByteBuffer segment = segment(position).duplicate();
+      segment.position(segmentOffset(position));
+      segment.get(bytes, offset, chunk);
+      offset += chunk;
+      length -= chunk;
+      position += chunk;
+    }
+  }
+
+  public int skipBytes(int bytes) throws IOException {
+    position += bytes;
+    return bytes;
+  }
+
+  public void writeByte(int value) throws IOException {
+    require(1, true);
+    segment(position).put(segmentOffset(position), (byte) value);
+    position++;
+  }
+
+  public void writeInt(int value) throws IOException {
+    require(4, true);
+    if (isContiguous(4)) {
+      segment(position).putInt(segmentOffset(position), value);
+      position += 4;
+    } else {
+      writeByte(value >>> 24);
+      writeByte(value >>> 16);
+      writeByte(value >>> 8);
+      writeByte(value);
+    }
+  }
+
+  public void writeLong(long value) throws IOException {
+    require(8, true);
+    if (isContiguous(8)) {
+      segment(position).putLong(segmentOffset(position), value);
+      position += 8;
+    } else {
+      writeInt((int) (value >>> 32));
+      writeInt((int) value);
+    }
+  }
+
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    require(length, true);
+    while (length > 0) {
+      int chunk = Math.min(length, SEGMENT_BYTE_SIZE - segmentOffset(position));
+      ByteBuffer segment = segment(position).duplicate();
+      segment.position(segmentOffset(position));
+      segment.put(bytes, offset, chunk);
+      offset += chunk;
+      length -= chunk;
+      position += chunk;
+    }
+  }
+
+  public void force() throws IOException {
+    MappedByteBuffer[] segments = this.segments;
+    if (segments != null && !readOnly) {
+      for (MappedByteBuffer segment : segments) {
+        segment.force();
+      }
+    }
+    // file length
+    channel.force(true);
+  }
+
+  public void close() throws IOException {
+    segments = null;
+    channel.close();
+    RAF.close();
+  }
+
+}
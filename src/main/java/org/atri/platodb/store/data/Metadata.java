@@ -20,20 +20,128 @@ package org.atri.platodb.store.data;
 
 import org.atri.platodb.store.lock.LockFactory;
 
-import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.io.File;
 
 /**
+ * Metadata handlers of the same store can share the header state in memory,
+ * see {@link org.atri.platodb.store.data.Metadata.SharedHeader}.
+ *
  * @author atri
  * @since 2017-mar-16 14:16:39
  */
 public class Metadata extends FileHandler<Metadata.Header, FileHandler.Posting> {
 
-  public Metadata(File directory, String access, LockFactory lockFactory) throws IOException {
-    super(directory, 0, "md", access, lockFactory);
+  private SharedHeader sharedHeader;
+
+  public Metadata(File directory, String access, LockFactory lockFactory, FileAccessFactory fileAccessFactory) throws IOException {
+    this(directory, access, lockFactory, fileAccessFactory, null);
+  }
+
+  /**
+   * @param sharedHeader header state shared with other handlers of the same file, or null to always read and write the file.
+   */
+  public Metadata(File directory, String access, LockFactory lockFactory, FileAccessFactory fileAccessFactory, SharedHeader sharedHeader) throws IOException {
+    super(directory, 0, SUFFIX, access, lockFactory, fileAccessFactory);
+    this.sharedHeader = sharedHeader;
   }
 
+  /**
+   * Header state held in memory and shared by all accessors of a store.
+   * The header is read from disk once and written only when it changes.
+   * <p/>
+   * The generation is increased when the current or rehashing hashtable, key slots or any current partition changes,
+   * i.e. at rehash, key slots growth and partition rollover,
+   * allowing accessors to skip checking the header when it's the same as last time.
+   * <p/>
+   * The file is not read again, so a store must not be written by multiple processes,
+   * {@link org.atri.platodb.store.Store#open()} fails if the store is already open.
+   */
+  public static class SharedHeader {
+    private Header header;
+    private long generation = 0;
+
+    public synchronized long getGeneration() {
+      return generation;
+    }
+  }
+
+  /**
+   * @return generation of the shared header, or -1 if not shared and thus unknown.
+   * @see org.atri.platodb.store.data.Metadata.SharedHeader
+   */
+  public long getGeneration() {
+    return sharedHeader == null ? -1 : sharedHeader.getGeneration();
+  }
+
+  @Override
+  public void readHeader(Header header) throws IOException {
+    if (sharedHeader == null) {
+      super.readHeader(header);
+      return;
+    }
+    synchronized (sharedHeader) {
+      if (sharedHeader.header == null) {
+        Header read = new Header();
+        super.readHeader(read);
+        sharedHeader.header = read;
+      }
+      header.copy(sharedHeader.header);
+    }
+  }
+
+  @Override
+  public void writeHeader(Header header) throws IOException {
+    if (sharedHeader == null) {
+      super.writeHeader(header);
+      return;
+    }
+    synchronized (sharedHeader) {
+      Header current = sharedHeader.header;
+      if (current != null && current.sameAs(header)) {
+        return;
+      }
+      super.writeHeader(header);
+      if (current == null
+          || current.currentHashtableId != header.currentHashtableId
+          || current.currentHashCodesPartition != header.currentHashCodesPartition
+          || current.currentKeysPartition != header.currentKeysPartition
+          || current.currentValuesPartition != header.currentValuesPartition
+          || current.currentKeySlotsId != header.currentKeySlotsId
+          || current.rehashingHashtableId != header.rehashingHashtableId) {
+        sharedHeader.generation++;
+      }
+      Header written = new Header();
+      written.copy(header);
+      sharedHeader.header = written;
+    }
+  }
+
+  /**
+   * File format version written by this code.
+   * <p/>
+   * 0: int offsets in all postings and partition headers.<br/>
+   * 1: long offsets in all postings and partition headers.<br/>
+   * 2: options byte in value postings, large values stored in chunks.<br/>
+   * 3: hash code postings point at separate chains of key postings in use and of deleted key postings.
+   *
+   * @see org.atri.platodb.store.FileFormatMigration
+   */
+  public static final int FILE_FORMAT_VERSION = 3;
+
+  public static final String SUFFIX = "md";
+
+  /**
+   * Key hash codes are calculated by the client in some unknown way.
+   * Stores created before the key hash function was added to the header.
+   */
+  public static final int KEY_HASH_FUNCTION_UNSPECIFIED = 0;
+
+  /**
+   * Key hash codes are {@link MurmurHash3#hash64(byte[])} of the key bytes.
+   */
+  public static final int KEY_HASH_FUNCTION_MURMUR3 = 1;
+
   public static final int HEADER_BYTE_SIZE = 1024;
   public int getHeaderByteSize() {
     return HEADER_BYTE_SIZE;
@@ -69,6 +177,33 @@ public class Metadata extends FileHandler<Metadata.Header, FileHandler.Posting>
      */
     private long storeRevision;
 
+    /**
+     * How clients calculate key hash codes, set when the store is created.
+     */
+    private int keyHashFunction;
+
+    /**
+     * Current key slots file id, will change when the key slots grow or are rebuilt.
+     */
+    private int currentKeySlotsId;
+
+    /**
+     * Id of the hashtable the current hashtable is being rehashed to, 0 if not rehashing.
+     */
+    private int rehashingHashtableId;
+
+    /**
+     * Number of positions of the current hashtable, from the first, that has been rehashed
+     * to the rehashing hashtable.
+     */
+    private int rehashedPositions;
+
+    /**
+     * Number of hash code postings created by puts, used to decide when to rehash.
+     * Never decreased, and only counted since the field was added to the header.
+     */
+    private long hashCodePostingsCount;
+
     public int getCurrentHashCodesPartition() {
       return currentHashCodesPartition;
     }
@@ -125,6 +260,46 @@ public class Metadata extends FileHandler<Metadata.Header, FileHandler.Posting>
       this.storeRevision = storeRevision;
     }
 
+    public int getKeyHashFunction() {
+      return keyHashFunction;
+    }
+
+    public void setKeyHashFunction(int keyHashFunction) {
+      this.keyHashFunction = keyHashFunction;
+    }
+
+    public int getCurrentKeySlotsId() {
+      return currentKeySlotsId;
+    }
+
+    public void setCurrentKeySlotsId(int currentKeySlotsId) {
+      this.currentKeySlotsId = currentKeySlotsId;
+    }
+
+    public int getRehashingHashtableId() {
+      return rehashingHashtableId;
+    }
+
+    public void setRehashingHashtableId(int rehashingHashtableId) {
+      this.rehashingHashtableId = rehashingHashtableId;
+    }
+
+    public int getRehashedPositions() {
+      return rehashedPositions;
+    }
+
+    public void setRehashedPositions(int rehashedPositions) {
+      this.rehashedPositions = rehashedPositions;
+    }
+
+    public long getHashCodePostingsCount() {
+      return hashCodePostingsCount;
+    }
+
+    public void setHashCodePostingsCount(long hashCodePostingsCount) {
+      this.hashCodePostingsCount = hashCodePostingsCount;
+    }
+
     public long increaseRevision(long value) {
       return storeRevision += value;
     }
@@ -137,38 +312,77 @@ public class Metadata extends FileHandler<Metadata.Header, FileHandler.Posting>
       return valuePostingsCount -= value;
     }
 
+    private void copy(Header header) {
+      fileFormatVersion = header.fileFormatVersion;
+      storeRevision = header.storeRevision;
+      currentHashtableId = header.currentHashtableId;
+      currentHashCodesPartition = header.currentHashCodesPartition;
+      currentKeysPartition = header.currentKeysPartition;
+      currentValuesPartition = header.currentValuesPartition;
+      valuePostingsCount = header.valuePostingsCount;
+      keyHashFunction = header.keyHashFunction;
+      currentKeySlotsId = header.currentKeySlotsId;
+      rehashingHashtableId = header.rehashingHashtableId;
+      rehashedPositions = header.rehashedPositions;
+      hashCodePostingsCount = header.hashCodePostingsCount;
+    }
+
+    private boolean sameAs(Header header) {
+      return fileFormatVersion == header.fileFormatVersion
+          && storeRevision == header.storeRevision
+          && currentHashtableId == header.currentHashtableId
+          && currentHashCodesPartition == header.currentHashCodesPartition
+          && currentKeysPartition == header.currentKeysPartition
+          && currentValuesPartition == header.currentValuesPartition
+          && valuePostingsCount == header.valuePostingsCount
+          && keyHashFunction == header.keyHashFunction
+          && currentKeySlotsId == header.currentKeySlotsId
+          && rehashingHashtableId == header.rehashingHashtableId
+          && rehashedPositions == header.rehashedPositions
+          && hashCodePostingsCount == header.hashCodePostingsCount;
+    }
+
   }
 
-  public void readHeader(Header header, RandomAccessFile RAF) throws IOException {
-    header.fileFormatVersion = RAF.readInt();
-    header.storeRevision = RAF.readLong();
-    header.currentHashtableId = RAF.readInt();
-    header.currentHashCodesPartition = RAF.readInt();
-    header.currentKeysPartition = RAF.readInt();
-    header.currentValuesPartition = RAF.readInt();
-    header.valuePostingsCount = RAF.readLong();
-    System.currentTimeMillis();
+  public void readHeader(Header header, FileAccess fileAccess) throws IOException {
+    header.fileFormatVersion = fileAccess.readInt();
+    header.storeRevision = fileAccess.readLong();
+    header.currentHashtableId = fileAccess.readInt();
+    header.currentHashCodesPartition = fileAccess.readInt();
+    header.currentKeysPartition = fileAccess.readInt();
+    header.currentValuesPartition = fileAccess.readInt();
+    header.valuePostingsCount = fileAccess.readLong();
+    header.keyHashFunction = fileAccess.readInt();
+    header.currentKeySlotsId = fileAccess.readInt();
+    header.rehashingHashtableId = fileAccess.readInt();
+    header.rehashedPositions = fileAccess.readInt();
+    header.hashCodePostingsCount = fileAccess.readLong();
   }
 
-  public void writeHeader(Header header, RandomAccessFile RAF) throws IOException {
-    RAF.writeInt(header.fileFormatVersion);
-    RAF.writeLong(header.storeRevision);
-    RAF.writeInt(header.currentHashtableId);
-    RAF.writeInt(header.currentHashCodesPartition);
-    RAF.writeInt(header.currentKeysPartition);
-    RAF.writeInt(header.currentValuesPartition);
-    RAF.writeLong(header.valuePostingsCount);
+  public void writeHeader(Header header, FileAccess fileAccess) throws IOException {
+    fileAccess.writeInt(header.fileFormatVersion);
+    fileAccess.writeLong(header.storeRevision);
+    fileAccess.writeInt(header.currentHashtableId);
+    fileAccess.writeInt(header.currentHashCodesPartition);
+    fileAccess.writeInt(header.currentKeysPartition);
+    fileAccess.writeInt(header.currentValuesPartition);
+    fileAccess.writeLong(header.valuePostingsCount);
+    fileAccess.writeInt(header.keyHashFunction);
+    fileAccess.writeInt(header.currentKeySlotsId);
+    fileAccess.writeInt(header.rehashingHashtableId);
+    fileAccess.writeInt(header.rehashedPositions);
+    fileAccess.writeLong(header.hashCodePostingsCount);
   }
 
-  public void writePosting(Posting posting, RandomAccessFile RAF) throws IOException {
+  public void writePosting(Posting posting, FileAccess fileAccess) throws IOException {
     throw new UnsupportedOperationException();
   }
 
-  public void readPosting(Posting posting, RandomAccessFile RAF) throws IOException {
+  public void readPosting(Posting posting, FileAccess fileAccess) throws IOException {
     throw new UnsupportedOperationException();
   }
 
-  public void markPostingAsDeleted(int startOffset, RandomAccessFile RAF, long revision) throws IOException {
+  public void markPostingAsDeleted(long startOffset, FileAccess fileAccess, long revision) throws IOException {
     throw new UnsupportedOperationException();
   }
 }
@@ -0,0 +1,177 @@
+package org.atri.platodb.store.data;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+/**
+ * 64 bit hash codes of byte arrays, the first half of the 128 bit x64 variant of
+ * Austin Appleby's public domain MurmurHash3. Fast and well distributed over all 64 bits,
+ * but not cryptographic.
+ * <p/>
+ * The values are persistent in stores and must never change.
+ *
+ * @author atri
+ * @since 2017-sep-13 21:04:51
+ */
+public class MurmurHash3 {
+
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  private MurmurHash3() {
+  }
+
+  public static long hash64(byte[] bytes) {
+    return hash64(bytes, 0, bytes.length, 0);
+  }
+
+  /**
+   * @param bytes
+   * @param offset first byte to hash
+   * @param length number of bytes to hash
+   * @param seed
+   * @return 64 bit hash code of the bytes
+   */
+  @SuppressWarnings("fallthrough")
+  public static long hash64(byte[] bytes, int offset, int length, long seed) {
+    long h1 = seed;
+    long h2 = seed;
+
+    int blocks = length >> 4;
+    for (int i = 0; i < blocks; i++) {
+      int blockOffset = offset + (i << 4);
+      long k1 = getLittleEndianLong(bytes, blockOffset);
+      long k2 = getLittleEndianLong(bytes, blockOffset + 8);
+
+      k1 *= C1;
+      k1 = Long.rotateLeft(k1, 31);
+      k1 *= C2;
+      h1 ^= k1;
+
+      h1 = Long.rotateLeft(h1, 27);
+      h1 += h2;
+      h1 = h1 * 5 + 0x52dce729;
+
+      k2 *= C2;
+      k2 = Long.rotateLeft(k2, 33);
+      k2 *= C1;
+      h2 ^= k2;
+
+      h2 = Long.rotateLeft(h2, 31);
+      h2 += h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    int tail = offset + (blocks << 4);
+    long k1 = 0;
+    long k2 = 0;
+    switch (length & 15) {
+      case 15:
+        k2 ^= (bytes[tail + 14] & 0xffL) << 48;
+        // fall through
+      case 14:
+        k2 ^= (bytes[tail + 13] & 0xffL) << 40;
+        // fall through
+      case 13:
+        k2 ^= (bytes[tail + 12] & 0xffL) << 32;
+        // fall through
+      case 12:
+        k2 ^= (bytes[tail + 11] & 0xffL) << 24;
+        // fall through
+      case 11:
+        k2 ^= (bytes[tail + 10] & 0xffL) << 16;
+        // fall through
+      case 10:
+        k2 ^= (bytes[tail + 9] & 0xffL) << 8;
+        // fall through
+      case 9:
+        k2 ^= bytes[tail + 8] & 0xffL;
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        h2 ^= k2;
+        // fall through
+      case 8:
+        k1 ^= (bytes[tail + 7] & 0xffL) << 56;
+        // fall through
+      case 7:
+        k1 ^= (bytes[tail + 6] & 0xffL) << 48;
+        // fall through
+      case 6:
+        k1 ^= (bytes[tail + 5] & 0xffL) << 40;
+        // fall through
+      case 5:
+        k1 ^= (bytes[tail + 4] & 0xffL) << 32;
+        // fall through
+      case 4:
+        k1 ^= (bytes[tail + 3] & 0xffL) << 24;
+        // fall through
+      case 3:
+        k1 ^= (bytes[tail + 2] & 0xffL) << 16;
+        // fall through
+      case 2:
+        k1 ^= (bytes[tail + 1] & 0xffL) << 8;
+        // fall through
+      case 1:
+        k1 ^= bytes[tail] & 0xffL;
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        h1 ^= k1;
+    }
+
+    h1 ^= length;
+    h2 ^= length;
+
+    h1 += h2;
+    h2 += h1;
+
+    h1 = fmix64(h1);
+    h2 = fmix64(h2);
+
+    h1 += h2;
+    return h1;
+  }
+
+  /**
+   * Finalization mix of MurmurHash3, spreads every input bit over all output bits.
+   *
+   * @param k
+   * @return
+   */
+  public static long fmix64(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  private static long getLittleEndianLong(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xffL)
+        | ((bytes[offset + 1] & 0xffL) << 8)
+        | ((bytes[offset + 2] & 0xffL) << 16)
+        | ((bytes[offset + 3] & 0xffL) << 24)
+        | ((bytes[offset + 4] & 0xffL) << 32)
+        | ((bytes[offset + 5] & 0xffL) << 40)
+        | ((bytes[offset + 6] & 0xffL) << 48)
+        | ((bytes[offset + 7] & 0xffL) << 56);
+  }
+
+}
@@ -0,0 +1,308 @@
+package org.atri.platodb.store.data;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Positional read and write backend.
+ * <p/>
+ * All file access instances of the same file and access mode share a single
+ * {@link java.nio.channels.FileChannel} that is never seeked, all I/O is done
+ * using {@link java.nio.channels.FileChannel#read(java.nio.ByteBuffer, long)} and
+ * {@link java.nio.channels.FileChannel#write(java.nio.ByteBuffer, long)}.
+ * The number of open file descriptors is thus one per partition
+ * rather than one per partition and pooled accessor.
+ * <p/>
+ * The first read after a seek fetches {@link #getReadBufferByteSize()} bytes
+ * in a single system call, the rest of the posting is decoded from that buffer.
+ * Writes are buffered until {@link FileAccess#flush()}, a seek or a read.
+ * <p/>
+ * The channel is closed when the last file access sharing it is closed.
+ *
+ * @see org.atri.platodb.store.data.MemoryMappedFileAccessFactory
+ * @author atri
+ * @since 2017-aug-09 20:02:44
+ */
+public class PositionalFileAccessFactory extends FileAccessFactory {
+
+  public static final int DEFAULT_READ_BUFFER_BYTE_SIZE = 4096;
+
+  private int readBufferByteSize;
+
+  private final Map<String, SharedChannel> channels = new HashMap<String, SharedChannel>();
+
+  public PositionalFileAccessFactory() {
+    this(DEFAULT_READ_BUFFER_BYTE_SIZE);
+  }
+
+  /**
+   * @param readBufferByteSize bytes read in one system call, should be at least the size of the largest common posting.
+   */
+  public PositionalFileAccessFactory(int readBufferByteSize) {
+    if (readBufferByteSize < 8) {
+      throw new IllegalArgumentException("Read buffer must be at least 8 bytes");
+    }
+    this.readBufferByteSize = readBufferByteSize;
+  }
+
+  public FileAccess open(File file, String access) throws IOException {
+    String key = file.getCanonicalPath() + "#" + access;
+    synchronized (channels) {
+      SharedChannel channel = channels.get(key);
+      if (channel == null) {
+        channel = new SharedChannel(key, new RandomAccessFile(file, access));
+        channels.put(key, channel);
+      }
+      channel.references++;
+      return new PositionalFileAccess(this, channel, readBufferByteSize);
+    }
+  }
+
+  void release(SharedChannel channel) throws IOException {
+    synchronized (channels) {
+      if (--channel.references == 0) {
+        channels.remove(channel.key);
+        channel.RAF.close();
+      }
+    }
+  }
+
+  /**
+   * @return number of currently open file channels.
+   */
+  public int getOpenChannelsCount() {
+    synchronized (channels) {
+      return channels.size();
+    }
+  }
+
+  public int getReadBufferByteSize() {
+    return readBufferByteSize;
+  }
+
+  static class SharedChannel {
+    private final String key;
+    private final RandomAccessFile RAF;
+    private final FileChannel channel;
+    private int references = 0;
+
+    private SharedChannel(String key, RandomAccessFile RAF) {
+      this.key = key;
+      this.RAF = RAF;
+      this.channel = RAF.getChannel();
+    }
+
+    FileChannel getChannel() {
+      return channel;
+    }
+  }
+
+}
+
+class PositionalFileAccess extends FileAccess {
+
+  private PositionalFileAccessFactory factory;
+  private PositionalFileAccessFactory.SharedChannel sharedChannel;
+  private FileChannel channel;
+
+  private long position = 0;
+
+  /** bytes read at readBufferPosition, invalidated by seek and write */
+  private ByteBuffer readBuffer;
+  private long readBufferPosition = -1;
+
+  /** pending bytes to be written at writeBufferPosition */
+  private ByteBuffer writeBuffer;
+  private long writeBufferPosition = -1;
+
+  PositionalFileAccess(PositionalFileAccessFactory factory, PositionalFileAccessFactory.SharedChannel sharedChannel, int bufferByteSize) {
+    this.factory = factory;
+    this.sharedChannel = sharedChannel;
+    channel = sharedChannel.getChannel();
+    readBuffer = ByteBuffer.allocateDirect(bufferByteSize);
+    writeBuffer = ByteBuffer.allocate(bufferByteSize);
+  }
+
+  /**
+   * Makes sure the length bytes from the current position are available in the read buffer.
+   * @return false if length is larger than the read buffer.
+   */
+  private boolean require(int length) throws IOException {
+    flush();
+    if (readBufferPosition >= 0
+        && position >= readBufferPosition
+        && position + length <= readBufferPosition + readBuffer.limit()) {
+      return true;
+    }
+    if (length > readBuffer.capacity()) {
+      return false;
+    }
+    readBuffer.clear();
+    readBufferPosition = -1;
+    while (readBuffer.hasRemaining()) {
+      if (channel.read(readBuffer, position + readBuffer.position()) < 0) {
+        break;
+      }
+    }
+    readBuffer.flip();
+    if (readBuffer.limit() < length) {
+      throw new EOFException("Attempted to read " + length + " bytes at position " + position + " in a file of " + channel.size() + " bytes");
+    }
+    readBufferPosition = position;
+    return true;
+  }
+
+  private int readBufferOffset() {
+    return (int) (position - readBufferPosition);
+  }
+
+  private ByteBuffer requireWritable(int length) throws IOException {
+    readBufferPosition = -1;
+    if (writeBuffer.position() > 0
+        && (writeBufferPosition + writeBuffer.position() != position || writeBuffer.remaining() < length)) {
+      flush();
+    }
+    if (writeBuffer.position() == 0) {
+      writeBufferPosition = position;
+    }
+    position += length;
+    return writeBuffer;
+  }
+
+  public void seek(long position) throws IOException {
+    if (position < 0) {
+      throw new IOException("Negative seek offset " + position);
+    }
+    this.position = position;
+    readBufferPosition = -1;
+  }
+
+  public long getFilePointer() throws IOException {
+    return position;
+  }
+
+  public long length() throws IOException {
+    flush();
+    return channel.size();
+  }
+
+  public byte readByte() throws IOException {
+    require(1);
+    byte value = readBuffer.get(readBufferOffset());
+    position++;
+    return value;
+  }
+
+  public int readInt() throws IOException {
+    require(4);
+    int value = readBuffer.getInt(readBufferOffset());
+    position += 4;
+    return value;
+  }
+
+  public long readLong() throws IOException {
+    require(8);
+    long value = readBuffer.getLong(readBufferOffset());
+    position += 8;
+    return value;
+  }
+
+  public void readFully(byte[] bytes, int offset, int length) throws IOException {
+    if (require(length)) {
+      ByteBuffer buffer = readBuffer.duplicate();
+      buffer.position(readBufferOffset());
+      buffer.get(bytes, offset, length);
+    } else {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position() - offset) < 0) {
+          throw new EOFException("Attempted to read " + length + " bytes at position " + position + " in a file of " + channel.size() + " bytes");
+        }
+      }
+    }
+    position += length;
+  }
+
+  public int skipBytes(int bytes) throws IOException {
+    position += bytes;
+    return bytes;
+  }
+
+  public void writeByte(int value) throws IOException {
+    requireWritable(1).put((byte) value);
+  }
+
+  public void writeInt(int value) throws IOException {
+    requireWritable(4).putInt(value);
+  }
+
+  public void writeLong(long value) throws IOException {
+    requireWritable(8).putLong(value);
+  }
+
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    if (length > writeBuffer.capacity()) {
+      flush();
+      readBufferPosition = -1;
+      ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, position + buffer.position() - offset);
+      }
+      position += length;
+    } else {
+      requireWritable(length).put(bytes, offset, length);
+    }
+  }
+
+  public void flush() throws IOException {
+    if (writeBuffer.position() == 0) {
+      return;
+    }
+    writeBuffer.flip();
+    while (writeBuffer.hasRemaining()) {
+      channel.write(writeBuffer, writeBufferPosition + writeBuffer.position());
+    }
+    writeBuffer.clear();
+  }
+
+  public void force() throws IOException {
+    channel.force(true);
+  }
+
+  public void close() throws IOException {
+    if (sharedChannel == null) {
+      return;
+    }
+    try {
+      flush();
+    } finally {
+      factory.release(sharedChannel);
+      sharedChannel = null;
+    }
+  }
+
+}
@@ -0,0 +1,85 @@
+package org.atri.platodb.store.data;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A partition file new postings are appended to,
+ * with a header pointing at where the next posting goes.
+ * <p/>
+ * The header is not written for each new posting,
+ * see {@link org.atri.platodb.store.PartitionAllocator}.
+ *
+ * @author atri
+ * @since 2017-sep-05 20:11:46
+ */
+public interface PostingsPartition {
+
+  public abstract int getPartitionId();
+
+  public abstract File getFile();
+
+  /**
+   * @return next posting offset as persisted in the header
+   * @throws IOException
+   */
+  public abstract long readNextPostingOffset() throws IOException;
+
+  /**
+   * @return bytes left as persisted in the header
+   * @throws IOException
+   */
+  public abstract long readBytesLeft() throws IOException;
+
+  /**
+   * @return lowest created revision of the postings as persisted in the header,
+   * {@link Long#MAX_VALUE} if there are none and 0 if unknown, e.g. a partition written before it was tracked.
+   * @throws IOException
+   */
+  public abstract long readLowestRevision() throws IOException;
+
+  /**
+   * Writes the header.
+   *
+   * @param nextPostingOffset offset in this partition for next new posting
+   * @param bytesLeft         bytes left for use in this partition
+   * @param lowestRevision    lowest created revision of the postings in this partition
+   * @throws IOException
+   */
+  public abstract void writeHeader(long nextPostingOffset, long bytesLeft, long lowestRevision) throws IOException;
+
+  /**
+   * @param startOffset offset of a posting
+   * @return offset of the first never used posting at or after the start offset,
+   * i.e. the end of the postings appended to this partition.
+   * @throws IOException
+   */
+  public abstract long seekNeverUsedPosting(long startOffset) throws IOException;
+
+  /**
+   * @param startOffset offset of a posting
+   * @param endOffset   end of the postings to read
+   * @return lowest created revision of the postings between the offsets, {@link Long#MAX_VALUE} if there are none.
+   * @throws IOException
+   */
+  public abstract long readLowestRevision(long startOffset, long endOffset) throws IOException;
+
+}
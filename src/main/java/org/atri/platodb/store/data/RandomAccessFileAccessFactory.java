@@ -0,0 +1,108 @@
+package org.atri.platodb.store.data;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Plain {@link java.io.RandomAccessFile} backend.
+ * Every field read or written is a system call.
+ * <p/>
+ * This is the fallback for platforms where memory mapping is not desired,
+ * e.g. 32 bit JVMs with little address space.
+ *
+ * @see org.atri.platodb.store.data.MemoryMappedFileAccessFactory
+ * @author atri
+ * @since 2017-aug-02 21:20:51
+ */
+public class RandomAccessFileAccessFactory extends FileAccessFactory {
+
+  public FileAccess open(File file, String access) throws IOException {
+    return new RandomAccessFileAccess(new RandomAccessFile(file, access));
+  }
+
+}
+
+class RandomAccessFileAccess extends FileAccess {
+
+  private RandomAccessFile RAF;
+
+  RandomAccessFileAccess(RandomAccessFile RAF) {
+    this.RAF = RAF;
+  }
+
+  public void seek(long position) throws IOException {
+    RAF.seek(position);
+  }
+
+  public long getFilePointer() throws IOException {
+    return RAF.getFilePointer();
+  }
+
+  public long length() throws IOException {
+    return RAF.length();
+  }
+
+  public byte readByte() throws IOException {
+    return RAF.readByte();
+  }
+
+  public int readInt() throws IOException {
+    return RAF.readInt();
+  }
+
+  public long readLong() throws IOException {
+    return RAF.readLong();
+  }
+
+  public void readFully(byte[] bytes, int offset, int length) throws IOException {
+    RAF.readFully(bytes, offset, length);
+  }
+
+  public int skipBytes(int bytes) throws IOException {
+    return RAF.skipBytes(bytes);
+  }
+
+  public void writeByte(int value) throws IOException {
+    RAF.writeByte(value);
+  }
+
+  public void writeInt(int value) throws IOException {
+    RAF.writeInt(value);
+  }
+
+  public void writeLong(long value) throws IOException {
+    RAF.writeLong(value);
+  }
+
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    RAF.write(bytes, offset, length);
+  }
+
+  public void force() throws IOException {
+    RAF.getFD().sync();
+  }
+
+  public void close() throws IOException {
+    RAF.close();
+  }
+
+}
@@ -18,9 +18,11 @@ package org.atri.platodb.store.data.platotrie;
  */
 
 import org.atri.platodb.store.lock.LockFactory;
+import org.atri.platodb.store.data.FileAccess;
+import org.atri.platodb.store.data.FileAccessFactory;
 import org.atri.platodb.store.data.FileHandler;
+import org.atri.platodb.store.data.PostingsPartition;
 
-import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.io.File;
 
@@ -30,17 +32,20 @@ import java.io.File;
  * Chained postings. Each postings has a unique hash code value and points at how to find
  * the key posting for this hash code.
  * <p/>
+ * The key postings in use are chained separately from the deleted ones,
+ * so that reading the current revision never follows the history of a key.
+ * <p/>
  * This file is affected by rehashing.
  *
  * @author atri
  * @since 2017-mar-16 14:00:37
  */
-public class HashCodesPartition extends FileHandler<HashCodesPartition.Header, HashCodesPartition.Posting> {
+public class HashCodesPartition extends FileHandler<HashCodesPartition.Header, HashCodesPartition.Posting> implements PostingsPartition {
 
   private int partitionId;
 
-  public HashCodesPartition(File directory, int partitionId, String access, LockFactory lockFactory) throws IOException {
-    super(directory, partitionId, "hc", access, lockFactory);
+  public HashCodesPartition(File directory, int partitionId, String access, LockFactory lockFactory, FileAccessFactory fileAccessFactory) throws IOException {
+    super(directory, partitionId, "hc", access, lockFactory, fileAccessFactory);
     this.partitionId = partitionId;
   }
 
@@ -54,37 +59,84 @@ public class HashCodesPartition extends FileHandler<HashCodesPartition.Header, H
     return HEADER_BYTE_SIZE;
   }
 
+  public long readNextPostingOffset() throws IOException {
+    Header header = new Header();
+    readHeader(header);
+    return header.getNextPostingOffset();
+  }
+
+  public long readBytesLeft() throws IOException {
+    Header header = new Header();
+    readHeader(header);
+    return header.getBytesLeft();
+  }
+
+  public long readLowestRevision() throws IOException {
+    Header header = new Header();
+    readHeader(header);
+    return header.getLowestRevision();
+  }
+
+  public void writeHeader(long nextPostingOffset, long bytesLeft, long lowestRevision) throws IOException {
+    Header header = new Header();
+    header.setNextPostingOffset(nextPostingOffset);
+    header.setBytesLeft(bytesLeft);
+    header.setLowestRevision(lowestRevision);
+    writeHeader(header);
+  }
+
+  public long seekNeverUsedPosting(long startOffset) throws IOException {
+    return seekNeverUsedPosting(startOffset, new Posting());
+  }
+
+  public long readLowestRevision(long startOffset, long endOffset) throws IOException {
+    return readLowestRevision(startOffset, endOffset, new Posting());
+  }
+
   public static class Header extends FileHandler.Header {
 
     /**
      * Offset in this partition for next new posting.
      */
-    private int nextPostingOffset;
+    private long nextPostingOffset;
     /**
      * Bytes left for use in this partition.
      */
-    private int bytesLeft;
+    private long bytesLeft;
+    /**
+     * Lowest created revision of the postings in this partition,
+     * {@link Long#MAX_VALUE} if there are none and 0 if unknown.
+     */
+    private long lowestRevision = Long.MAX_VALUE;
 
-    public int getNextPostingOffset() {
+    public long getNextPostingOffset() {
       return nextPostingOffset;
     }
 
-    public void setNextPostingOffset(int nextPostingOffset) {
+    public void setNextPostingOffset(long nextPostingOffset) {
       this.nextPostingOffset = nextPostingOffset;
     }
 
-    public int getBytesLeft() {
+    public long getBytesLeft() {
       return bytesLeft;
     }
 
-    public void setBytesLeft(int bytesLeft) {
+    public void setBytesLeft(long bytesLeft) {
       this.bytesLeft = bytesLeft;
     }
 
+    public long getLowestRevision() {
+      return lowestRevision;
+    }
+
+    public void setLowestRevision(long lowestRevision) {
+      this.lowestRevision = lowestRevision;
+    }
+
 
   }
 
-  public static final int POSTING_BYTE_SIZE = 1 + 8 + 8 + 4 + 4 + 4 + 4 + 8;
+  public static final int POSTING_BYTE_SIZE = 1 + 8 + 8 + 4 + 8 + 4 + 8 + 4 + 8 + 8;
 
   public static class Posting extends FileHandler.Posting {
 
@@ -116,18 +168,30 @@ public class HashCodesPartition extends FileHandler<HashCodesPartition.Header, H
     /**
      * Offset in above hash code postings partition.
      */
-    private int nextPostingPartitionOffset;
+    private long nextPostingPartitionOffset;
 
 
     /**
-     * Partition id of first key posting with this hash code.
+     * Partition id of first key posting in use with this hash code, the live chain.
+     * -1 == no key in use
      */
     private int firstKeyPostingPartition;
 
     /**
      * Offset in above key postings partition.
      */
-    private int firstKeyPostingPartitionOffset;
+    private long firstKeyPostingPartitionOffset;
+
+    /**
+     * Partition id of the most recently deleted key posting with this hash code, the history chain.
+     * -1 == no deleted key postings
+     */
+    private int firstHistoryKeyPostingPartition = -1;
+
+    /**
+     * Offset in above key postings partition.
+     */
+    private long firstHistoryKeyPostingPartitionOffset = -1;
 
     private long deletedRevision = -1;
 
@@ -156,11 +220,11 @@ public class HashCodesPartition extends FileHandler<HashCodesPartition.Header, H
       this.nextPostingPartition = nextPostingPartition;
     }
 
-    public int getNextPostingPartitionOffset() {
+    public long getNextPostingPartitionOffset() {
       return nextPostingPartitionOffset;
     }
 
-    public void setNextPostingPartitionOffset(int nextPostingPartitionOffset) {
+    public void setNextPostingPartitionOffset(long nextPostingPartitionOffset) {
       this.nextPostingPartitionOffset = nextPostingPartitionOffset;
     }
 
@@ -172,14 +236,30 @@ public class HashCodesPartition extends FileHandler<HashCodesPartition.Header, H
       this.firstKeyPostingPartition = firstKeyPostingPartition;
     }
 
-    public int getFirstKeyPostingPartitionOffset() {
+    public long getFirstKeyPostingPartitionOffset() {
       return firstKeyPostingPartitionOffset;
     }
 
-    public void setFirstKeyPostingPartitionOffset(int firstKeyPostingPartitionOffset) {
+    public void setFirstKeyPostingPartitionOffset(long firstKeyPostingPartitionOffset) {
       this.firstKeyPostingPartitionOffset = firstKeyPostingPartitionOffset;
     }
 
+    public int getFirstHistoryKeyPostingPartition() {
+      return firstHistoryKeyPostingPartition;
+    }
+
+    public void setFirstHistoryKeyPostingPartition(int firstHistoryKeyPostingPartition) {
+      this.firstHistoryKeyPostingPartition = firstHistoryKeyPostingPartition;
+    }
+
+    public long getFirstHistoryKeyPostingPartitionOffset() {
+      return firstHistoryKeyPostingPartitionOffset;
+    }
+
+    public void setFirstHistoryKeyPostingPartitionOffset(long firstHistoryKeyPostingPartitionOffset) {
+      this.firstHistoryKeyPostingPartitionOffset = firstHistoryKeyPostingPartitionOffset;
+    }
+
     public long getCreatedRevision() {
       return createdRevision;
     }
@@ -197,50 +277,56 @@ public class HashCodesPartition extends FileHandler<HashCodesPartition.Header, H
     }
   }
 
-  public void readHeader(Header header, RandomAccessFile RAF) throws IOException {
-    header.nextPostingOffset = RAF.readInt();
-    header.bytesLeft = RAF.readInt();
+  public void readHeader(Header header, FileAccess fileAccess) throws IOException {
+    header.nextPostingOffset = fileAccess.readLong();
+    header.bytesLeft = fileAccess.readLong();
+    header.lowestRevision = fileAccess.readLong();
   }
 
-  public void writeHeader(Header header, RandomAccessFile RAF) throws IOException {
-    RAF.writeInt(header.nextPostingOffset);
-    RAF.writeInt(header.bytesLeft);
+  public void writeHeader(Header header, FileAccess fileAccess) throws IOException {
+    fileAccess.writeLong(header.nextPostingOffset);
+    fileAccess.writeLong(header.bytesLeft);
+    fileAccess.writeLong(header.lowestRevision);
   }
 
 
-  public void readPosting(Posting posting, RandomAccessFile RAF) throws IOException {
-    posting.flag = RAF.readByte();
-    posting.keyHashCode = RAF.readLong();
-    posting.createdRevision = RAF.readLong();
-    posting.nextPostingPartition = RAF.readInt();
-    posting.nextPostingPartitionOffset = RAF.readInt();
-    posting.firstKeyPostingPartition = RAF.readInt();
-    posting.firstKeyPostingPartitionOffset = RAF.readInt();
-    posting.deletedRevision = RAF.readLong();
+  public void readPosting(Posting posting, FileAccess fileAccess) throws IOException {
+    posting.flag = fileAccess.readByte();
+    posting.keyHashCode = fileAccess.readLong();
+    posting.createdRevision = fileAccess.readLong();
+    posting.nextPostingPartition = fileAccess.readInt();
+    posting.nextPostingPartitionOffset = fileAccess.readLong();
+    posting.firstKeyPostingPartition = fileAccess.readInt();
+    posting.firstKeyPostingPartitionOffset = fileAccess.readLong();
+    posting.firstHistoryKeyPostingPartition = fileAccess.readInt();
+    posting.firstHistoryKeyPostingPartitionOffset = fileAccess.readLong();
+    posting.deletedRevision = fileAccess.readLong();
   }
 
-  public void writePosting(Posting posting, RandomAccessFile RAF) throws IOException {
+  public void writePosting(Posting posting, FileAccess fileAccess) throws IOException {
     if (posting.flag == Posting.FLAG_DELETED
         && posting.deletedRevision == -1) {
       System.currentTimeMillis();
     }
-    RAF.writeByte(posting.flag);
-    RAF.writeLong(posting.keyHashCode);
-    RAF.writeLong(posting.createdRevision);
-    RAF.writeInt(posting.nextPostingPartition);
-    RAF.writeInt(posting.nextPostingPartitionOffset);
-    RAF.writeInt(posting.firstKeyPostingPartition);
-    RAF.writeInt(posting.firstKeyPostingPartitionOffset);
-    RAF.writeLong(posting.deletedRevision);
+    fileAccess.writeByte(posting.flag);
+    fileAccess.writeLong(posting.keyHashCode);
+    fileAccess.writeLong(posting.createdRevision);
+    fileAccess.writeInt(posting.nextPostingPartition);
+    fileAccess.writeLong(posting.nextPostingPartitionOffset);
+    fileAccess.writeInt(posting.firstKeyPostingPartition);
+    fileAccess.writeLong(posting.firstKeyPostingPartitionOffset);
+    fileAccess.writeInt(posting.firstHistoryKeyPostingPartition);
+    fileAccess.writeLong(posting.firstHistoryKeyPostingPartitionOffset);
+    fileAccess.writeLong(posting.deletedRevision);
   }
 
-  public void markPostingAsDeleted(int startOffset, RandomAccessFile RAF, long revision) throws IOException {
+  public void markPostingAsDeleted(long startOffset, FileAccess fileAccess, long revision) throws IOException {
     if (revision == -1) {
       System.currentTimeMillis();
     }
-    RAF.seek(startOffset);
-    RAF.writeByte(Posting.FLAG_DELETED);
-    RAF.skipBytes(8 + 8 + 4 + 4 + 4 + 4);
-    RAF.writeLong(revision);
+    fileAccess.seek(startOffset);
+    fileAccess.writeByte(Posting.FLAG_DELETED);
+    fileAccess.skipBytes(8 + 8 + 4 + 8 + 4 + 8 + 4 + 8);
+    fileAccess.writeLong(revision);
   }
 }
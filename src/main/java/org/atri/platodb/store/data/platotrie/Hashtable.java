@@ -19,17 +19,19 @@ package org.atri.platodb.store.data.platotrie;
 
 
 import org.atri.platodb.store.lock.LockFactory;
+import org.atri.platodb.store.data.FileAccess;
+import org.atri.platodb.store.data.FileAccessFactory;
 import org.atri.platodb.store.data.FileHandler;
+import org.atri.platodb.store.data.MurmurHash3;
 
-import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.io.File;
 
 /**
  * Hashtable file. There is never more than one of these that are valid at any given time.
  * <p/>
- * The position in the hashtable for a given hash code is calculated as (hash & (capacity - 1)).
- * At this position there is a posting that points at the first known hash code posting.
+ * The position in the hashtable for a given hash code depends on the bucket mapping of the file,
+ * see {@link #calculateHashCodePostingOffset(long)}. At this position there is a posting that points at the first known hash code posting.
  * <p/>
  * This file is affected by rehashing.
  *
@@ -46,8 +48,8 @@ public class Hashtable extends FileHandler<Hashtable.Header, Hashtable.Posting>
    */
   private Header header;
 
-  public Hashtable(File directory, int versionId, String access, LockFactory lockFactory) throws IOException {
-    super(directory, versionId, "ht", access, lockFactory);
+  public Hashtable(File directory, int versionId, String access, LockFactory lockFactory, FileAccessFactory fileAccessFactory) throws IOException {
+    super(directory, versionId, "ht", access, lockFactory, fileAccessFactory);
     this.versionId = versionId;
   }
 
@@ -67,12 +69,28 @@ public class Hashtable extends FileHandler<Hashtable.Header, Hashtable.Posting>
     return HEADER_BYTE_SIZE;
   }
 
+  /**
+   * (hash & (capacity - 1)), only uses all positions if the capacity is a power of two
+   * and only the low bits of the hash code. Hashtables created before bucket mappings were introduced.
+   */
+  public static final int BUCKET_MAPPING_MASK = 0;
+
+  /**
+   * ((mix(hash) >>> 32) * capacity) >>> 32, uses all positions for any capacity and all bits of the hash code.
+   */
+  public static final int BUCKET_MAPPING_MULTIPLY_SHIFT = 1;
+
   public static class Header extends FileHandler.Header {
     /**
      * This hashtable postings file capacity.
      */
     private int postingsCapacity;
 
+    /**
+     * How hash codes are mapped to positions in this hashtable.
+     */
+    private int bucketMapping = BUCKET_MAPPING_MULTIPLY_SHIFT;
+
     public int getPostingsCapacity() {
       return postingsCapacity;
     }
@@ -80,12 +98,20 @@ public class Hashtable extends FileHandler<Hashtable.Header, Hashtable.Posting>
     public void setPostingsCapacity(int postingsCapacity) {
       this.postingsCapacity = postingsCapacity;
     }
+
+    public int getBucketMapping() {
+      return bucketMapping;
+    }
+
+    public void setBucketMapping(int bucketMapping) {
+      this.bucketMapping = bucketMapping;
+    }
   }
 
 
   public static class Posting extends FileHandler.Posting {
 
-    public static final int POSTING_BYTE_SIZE = 1 + 8 + 4 + 4 + 8;
+    public static final int POSTING_BYTE_SIZE = 1 + 8 + 4 + 8 + 8;
 
     public int getPostingByteSize() {
       return POSTING_BYTE_SIZE;
@@ -108,7 +134,7 @@ public class Hashtable extends FileHandler<Hashtable.Header, Hashtable.Posting>
     /**
      * Offset in above hash code postings partition.
      */
-    private int hashCodePostingPartitionOffset;
+    private long hashCodePostingPartitionOffset;
 
     private long deletedRevision = -1;
 
@@ -128,11 +154,11 @@ public class Hashtable extends FileHandler<Hashtable.Header, Hashtable.Posting>
       this.hashCodePostingPartition = hashCodePostingPartition;
     }
 
-    public int getHashCodePostingPartitionOffset() {
+    public long getHashCodePostingPartitionOffset() {
       return hashCodePostingPartitionOffset;
     }
 
-    public void setHashCodePostingPartitionOffset(int hashCodePostingPartitionOffset) {
+    public void setHashCodePostingPartitionOffset(long hashCodePostingPartitionOffset) {
       this.hashCodePostingPartitionOffset = hashCodePostingPartitionOffset;
     }
 
@@ -153,41 +179,86 @@ public class Hashtable extends FileHandler<Hashtable.Header, Hashtable.Posting>
     }
   }
 
-  public void readHeader(Header header, RandomAccessFile RAF) throws IOException {
-    header.postingsCapacity = RAF.readInt();
+  public void readHeader(Header header, FileAccess fileAccess) throws IOException {
+    header.postingsCapacity = fileAccess.readInt();
+    // zero, i.e. mask, in hashtables written before the bucket mapping was added to the header
+    header.bucketMapping = fileAccess.readInt();
   }
 
-  public void writeHeader(Header header, RandomAccessFile RAF) throws IOException {
-    RAF.writeInt(header.postingsCapacity);
+  public void writeHeader(Header header, FileAccess fileAccess) throws IOException {
+    fileAccess.writeInt(header.postingsCapacity);
+    fileAccess.writeInt(header.bucketMapping);
     this.header = new Header();
     this.header.postingsCapacity = header.postingsCapacity;
+    this.header.bucketMapping = header.bucketMapping;
+  }
+
+  /**
+   * @return number of postings in this hashtable
+   */
+  public int getPostingsCapacity() {
+    return header.postingsCapacity;
+  }
+
+  /**
+   * @param hashCode key hash code
+   * @return offset of the hashtable posting for the hash code
+   */
+  public long calculateHashCodePostingOffset(long hashCode) {
+    return calculatePostingOffset(calculatePosition(hashCode));
+  }
+
+  /**
+   * @param hashCode key hash code
+   * @return position of the hashtable posting for the hash code, 0 to capacity - 1
+   */
+  public int calculatePosition(long hashCode) {
+    return (int) calculatePosition(hashCode, header.postingsCapacity, header.bucketMapping);
+  }
+
+  /**
+   * @param position 0 to capacity - 1
+   * @return offset of the hashtable posting at the position
+   */
+  public long calculatePostingOffset(int position) {
+    return HEADER_BYTE_SIZE + ((long) Posting.POSTING_BYTE_SIZE * position);
   }
 
-  public int calculateHashCodePostingOffset(long hashCode) {
-    return (int) (HEADER_BYTE_SIZE + (Posting.POSTING_BYTE_SIZE * (hashCode & (header.postingsCapacity - 1))));
+  /**
+   * @param hashCode      key hash code
+   * @param capacity      hashtable capacity
+   * @param bucketMapping {@link #BUCKET_MAPPING_MASK} or {@link #BUCKET_MAPPING_MULTIPLY_SHIFT}
+   * @return position in the hashtable, 0 to capacity - 1
+   */
+  public static long calculatePosition(long hashCode, int capacity, int bucketMapping) {
+    if (bucketMapping == BUCKET_MAPPING_MASK) {
+      return hashCode & (capacity - 1);
+    }
+    // the high 32 bits of the mixed hash code as a fraction of 2^32 times the capacity, never overflows
+    return ((MurmurHash3.fmix64(hashCode) >>> 32) * capacity) >>> 32;
   }
 
-  public void readPosting(Posting posting, RandomAccessFile RAF) throws IOException {
-    posting.flag = RAF.readByte();
-    posting.createdRevision = RAF.readLong();
-    posting.hashCodePostingPartition = RAF.readInt();
-    posting.hashCodePostingPartitionOffset = RAF.readInt();
-    posting.deletedRevision = RAF.readLong();
+  public void readPosting(Posting posting, FileAccess fileAccess) throws IOException {
+    posting.flag = fileAccess.readByte();
+    posting.createdRevision = fileAccess.readLong();
+    posting.hashCodePostingPartition = fileAccess.readInt();
+    posting.hashCodePostingPartitionOffset = fileAccess.readLong();
+    posting.deletedRevision = fileAccess.readLong();
   }
 
-  public void writePosting(Posting posting, RandomAccessFile RAF) throws IOException {
-    RAF.writeByte(posting.flag);
-    RAF.writeLong(posting.createdRevision);
-    RAF.writeInt(posting.hashCodePostingPartition);
-    RAF.writeInt(posting.hashCodePostingPartitionOffset);
-    RAF.writeLong(posting.deletedRevision);
+  public void writePosting(Posting posting, FileAccess fileAccess) throws IOException {
+    fileAccess.writeByte(posting.flag);
+    fileAccess.writeLong(posting.createdRevision);
+    fileAccess.writeInt(posting.hashCodePostingPartition);
+    fileAccess.writeLong(posting.hashCodePostingPartitionOffset);
+    fileAccess.writeLong(posting.deletedRevision);
   }
 
-  public void markPostingAsDeleted(int startOffset, RandomAccessFile RAF, long revision) throws IOException {
-    RAF.seek(startOffset);
-    RAF.writeByte((byte) 2);
-    RAF.skipBytes(8 + 4 + 4);
-    RAF.writeLong(revision);
+  public void markPostingAsDeleted(long startOffset, FileAccess fileAccess, long revision) throws IOException {
+    fileAccess.seek(startOffset);
+    fileAccess.writeByte((byte) 2);
+    fileAccess.skipBytes(8 + 4 + 8);
+    fileAccess.writeLong(revision);
   }
 
 }
@@ -0,0 +1,260 @@
+package org.atri.platodb.store.data.platotrie;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.atri.platodb.store.data.FileAccess;
+import org.atri.platodb.store.data.FileAccessFactory;
+import org.atri.platodb.store.data.FileHandler;
+import org.atri.platodb.store.lock.LockFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Open addressing table of key slots, an alternative way to find key postings
+ * without following the hashtable, hash code and key posting chains.
+ * <p/>
+ * Each slot holds the 64 bit hash code of a key as fingerprint and the location
+ * of the most recent key posting of that key, in use or deleted.
+ * A key is stored in the first slot that was never used, starting at the position of its hash code
+ * and probing one slot at the time. Slots are never removed or moved, the table only grows by
+ * creating a new file. A lookup thus reads slots until one that was never used,
+ * neighbouring slots that usually are in the same disk block, and then only the key postings
+ * of slots with the same hash code.
+ * <p/>
+ * This file is NOT affected by rehashing.
+ *
+ * @author atri
+ * @since 2017-sep-15 20:11:42
+ */
+public class KeySlots extends FileHandler<KeySlots.Header, KeySlots.Posting> {
+
+  public static final String SUFFIX = "ks";
+
+  private int versionId;
+
+  /**
+   * header as when file was openend, used to read capacity.
+   */
+  private Header header;
+
+  public KeySlots(File directory, int versionId, String access, LockFactory lockFactory, FileAccessFactory fileAccessFactory) throws IOException {
+    super(directory, versionId, SUFFIX, access, lockFactory, fileAccessFactory);
+    this.versionId = versionId;
+  }
+
+  @Override
+  public void open() throws IOException {
+    super.open();
+    readHeader(header = new Header());
+  }
+
+  public int getVersionId() {
+    return versionId;
+  }
+
+  public int getCapacity() {
+    return header.capacity;
+  }
+
+  public static final int HEADER_BYTE_SIZE = 1024;
+
+  public int getHeaderByteSize() {
+    return HEADER_BYTE_SIZE;
+  }
+
+  public static class Header extends FileHandler.Header {
+
+    /**
+     * Number of slots.
+     */
+    private int capacity;
+
+    /**
+     * Number of slots in use. Only up to date when not dirty.
+     */
+    private long entries;
+
+    /**
+     * True if the file might have been written after the header last was written,
+     * i.e. the slots might not match the key postings after a crash.
+     */
+    private boolean dirty;
+
+    public int getCapacity() {
+      return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+      this.capacity = capacity;
+    }
+
+    public long getEntries() {
+      return entries;
+    }
+
+    public void setEntries(long entries) {
+      this.entries = entries;
+    }
+
+    public boolean isDirty() {
+      return dirty;
+    }
+
+    public void setDirty(boolean dirty) {
+      this.dirty = dirty;
+    }
+  }
+
+  public static final int POSTING_BYTE_SIZE = 1 + 8 + 4 + 8;
+
+  public static class Posting extends FileHandler.Posting {
+
+    public int getPostingByteSize() {
+      return POSTING_BYTE_SIZE;
+    }
+
+    /**
+     * 0 = never used
+     * 1 = in use
+     */
+    private byte flag;
+
+    /**
+     * Key hash code.
+     */
+    private long keyHashCode;
+
+    /**
+     * Partition id of the most recent key posting of the key.
+     */
+    private int keyPostingPartition;
+
+    /**
+     * Offset in above key postings partition.
+     */
+    private long keyPostingPartitionOffset;
+
+    public byte getFlag() {
+      return flag;
+    }
+
+    public void setFlag(byte flag) {
+      this.flag = flag;
+    }
+
+    public long getKeyHashCode() {
+      return keyHashCode;
+    }
+
+    public void setKeyHashCode(long keyHashCode) {
+      this.keyHashCode = keyHashCode;
+    }
+
+    public int getKeyPostingPartition() {
+      return keyPostingPartition;
+    }
+
+    public void setKeyPostingPartition(int keyPostingPartition) {
+      this.keyPostingPartition = keyPostingPartition;
+    }
+
+    public long getKeyPostingPartitionOffset() {
+      return keyPostingPartitionOffset;
+    }
+
+    public void setKeyPostingPartitionOffset(long keyPostingPartitionOffset) {
+      this.keyPostingPartitionOffset = keyPostingPartitionOffset;
+    }
+
+    /**
+     * Slots are not revisioned, the key posting is.
+     */
+    public long getCreatedRevision() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void setCreatedRevision(long revision) {
+      throw new UnsupportedOperationException();
+    }
+
+    public long getDeletedRevision() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void setDeletedRevision(long revision) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * @param hashCode key hash code
+   * @return position of the first slot to probe for the hash code
+   */
+  public int calculatePosition(long hashCode) {
+    return (int) Hashtable.calculatePosition(hashCode, header.capacity, Hashtable.BUCKET_MAPPING_MULTIPLY_SHIFT);
+  }
+
+  /**
+   * @param position 0 to capacity - 1
+   * @return offset of the slot at the position
+   */
+  public long calculateSlotOffset(int position) {
+    return HEADER_BYTE_SIZE + ((long) POSTING_BYTE_SIZE * position);
+  }
+
+  public void readHeader(Header header, FileAccess fileAccess) throws IOException {
+    header.capacity = fileAccess.readInt();
+    header.entries = fileAccess.readLong();
+    header.dirty = fileAccess.readByte() != 0;
+  }
+
+  public void writeHeader(Header header, FileAccess fileAccess) throws IOException {
+    fileAccess.writeInt(header.capacity);
+    fileAccess.writeLong(header.entries);
+    fileAccess.writeByte(header.dirty ? 1 : 0);
+    this.header = new Header();
+    this.header.capacity = header.capacity;
+  }
+
+  public void readPosting(Posting posting, FileAccess fileAccess) throws IOException {
+    posting.flag = fileAccess.readByte();
+    posting.keyHashCode = fileAccess.readLong();
+    posting.keyPostingPartition = fileAccess.readInt();
+    posting.keyPostingPartitionOffset = fileAccess.readLong();
+  }
+
+  /**
+   * The flag is written last so a concurrent reader never sees a new slot in use before it is complete.
+   */
+  public void writePosting(Posting posting, FileAccess fileAccess) throws IOException {
+    long startOffset = fileAccess.getFilePointer();
+    fileAccess.seek(startOffset + 1);
+    fileAccess.writeLong(posting.keyHashCode);
+    fileAccess.writeInt(posting.keyPostingPartition);
+    fileAccess.writeLong(posting.keyPostingPartitionOffset);
+    fileAccess.seek(startOffset);
+    fileAccess.writeByte(posting.flag);
+  }
+
+  public void markPostingAsDeleted(long startOffset, FileAccess fileAccess, long revision) throws IOException {
+    throw new UnsupportedOperationException("Key slots are never deleted");
+  }
+
+}
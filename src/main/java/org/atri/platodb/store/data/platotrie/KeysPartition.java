@@ -18,12 +18,14 @@ package org.atri.platodb.store.data.platotrie;
  */
 
 
+import org.atri.platodb.store.data.FileAccess;
+import org.atri.platodb.store.data.FileAccessFactory;
 import org.atri.platodb.store.data.FileHandler;
+import org.atri.platodb.store.data.PostingsPartition;
 import org.atri.platodb.store.lock.LockFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.Arrays;
 
 /**
@@ -37,12 +39,12 @@ import java.util.Arrays;
  * @author atri
  * @since 2017-mar-16 14:00:22
  */
-public class KeysPartition extends FileHandler<KeysPartition.Header, KeysPartition.Posting> {
+public class KeysPartition extends FileHandler<KeysPartition.Header, KeysPartition.Posting> implements PostingsPartition {
 
   private int partitionId;
 
-  public KeysPartition(File directory, int partitionId, String access, LockFactory lockFactory) throws IOException {
-    super(directory, partitionId, "k", access, lockFactory);
+  public KeysPartition(File directory, int partitionId, String access, LockFactory lockFactory, FileAccessFactory fileAccessFactory) throws IOException {
+    super(directory, partitionId, "k", access, lockFactory, fileAccessFactory);
     this.partitionId = partitionId;
   }
 
@@ -56,32 +58,79 @@ public class KeysPartition extends FileHandler<KeysPartition.Header, KeysPartiti
     return partitionId;
   }
 
+  public long readNextPostingOffset() throws IOException {
+    Header header = new Header();
+    readHeader(header);
+    return header.getNextPostingOffset();
+  }
+
+  public long readBytesLeft() throws IOException {
+    Header header = new Header();
+    readHeader(header);
+    return header.getBytesLeft();
+  }
+
+  public long readLowestRevision() throws IOException {
+    Header header = new Header();
+    readHeader(header);
+    return header.getLowestRevision();
+  }
+
+  public void writeHeader(long nextPostingOffset, long bytesLeft, long lowestRevision) throws IOException {
+    Header header = new Header();
+    header.setNextPostingOffset(nextPostingOffset);
+    header.setBytesLeft(bytesLeft);
+    header.setLowestRevision(lowestRevision);
+    writeHeader(header);
+  }
+
+  public long seekNeverUsedPosting(long startOffset) throws IOException {
+    return seekNeverUsedPosting(startOffset, new Posting());
+  }
+
+  public long readLowestRevision(long startOffset, long endOffset) throws IOException {
+    return readLowestRevision(startOffset, endOffset, new Posting());
+  }
+
   public static class Header extends FileHandler.Header {
 
     /**
      * Offset in this partition for next new posting.
      */
-    private int nextPostingOffset;
+    private long nextPostingOffset;
     /**
      * Bytes left for use in this partition.
      */
-    private int bytesLeft;
+    private long bytesLeft;
+    /**
+     * Lowest created revision of the postings in this partition,
+     * {@link Long#MAX_VALUE} if there are none and 0 if unknown.
+     */
+    private long lowestRevision = Long.MAX_VALUE;
 
-    public int getNextPostingOffset() {
+    public long getNextPostingOffset() {
       return nextPostingOffset;
     }
 
-    public void setNextPostingOffset(int nextPostingOffset) {
+    public void setNextPostingOffset(long nextPostingOffset) {
       this.nextPostingOffset = nextPostingOffset;
     }
 
-    public int getBytesLeft() {
+    public long getBytesLeft() {
       return bytesLeft;
     }
 
-    public void setBytesLeft(int bytesLeft) {
+    public void setBytesLeft(long bytesLeft) {
       this.bytesLeft = bytesLeft;
     }
+
+    public long getLowestRevision() {
+      return lowestRevision;
+    }
+
+    public void setLowestRevision(long lowestRevision) {
+      this.lowestRevision = lowestRevision;
+    }
   }
 
   public static class Posting extends FileHandler.Posting {
@@ -97,15 +146,15 @@ public class KeysPartition extends FileHandler<KeysPartition.Header, KeysPartiti
     private long createdRevision;
 
     /**
-     * Partition id of next key posting with the same hash code.
+     * Partition id of next key posting with the same hash code,
+     * in the live chain if in use and in the history chain if deleted.
      * -1 == end of keys chain
-     * -2 == deleted key
      */
     private int nextKeyPostingPartition;
     /**
      * Offset in above key postings partition.
      */
-    private int nextKeyPostingPartitionOffset;
+    private long nextKeyPostingPartitionOffset;
 
     /**
      * Key hash code
@@ -119,7 +168,7 @@ public class KeysPartition extends FileHandler<KeysPartition.Header, KeysPartiti
     /**
      * Offset in above value postings partition.
      */
-    private int valuePostingPartitionOffset;
+    private long valuePostingPartitionOffset;
 
     /**
      * Length in bytes of serialized key.
@@ -133,7 +182,7 @@ public class KeysPartition extends FileHandler<KeysPartition.Header, KeysPartiti
     private long deletedRevision = -1;
 
     public int getPostingByteSize() {
-      return 1 + 8 + 4 + 4 + 8 + 4 + 4 + 4 + bytesLength + 8;
+      return 1 + 8 + 4 + 8 + 8 + 4 + 8 + 4 + bytesLength + 8;
     }
 
     /**
@@ -157,11 +206,11 @@ public class KeysPartition extends FileHandler<KeysPartition.Header, KeysPartiti
       this.nextKeyPostingPartition = nextKeyPostingPartition;
     }
 
-    public int getNextKeyPostingPartitionOffset() {
+    public long getNextKeyPostingPartitionOffset() {
       return nextKeyPostingPartitionOffset;
     }
 
-    public void setNextKeyPostingPartitionOffset(int nextKeyPostingPartitionOffset) {
+    public void setNextKeyPostingPartitionOffset(long nextKeyPostingPartitionOffset) {
       this.nextKeyPostingPartitionOffset = nextKeyPostingPartitionOffset;
     }
 
@@ -181,11 +230,11 @@ public class KeysPartition extends FileHandler<KeysPartition.Header, KeysPartiti
       this.valuePostingPartition = valuePostingPartition;
     }
 
-    public int getValuePostingPartitionOffset() {
+    public long getValuePostingPartitionOffset() {
       return valuePostingPartitionOffset;
     }
 
-    public void setValuePostingPartitionOffset(int valuePostingPartitionOffset) {
+    public void setValuePostingPartitionOffset(long valuePostingPartitionOffset) {
       this.valuePostingPartitionOffset = valuePostingPartitionOffset;
     }
 
@@ -238,61 +287,60 @@ public class KeysPartition extends FileHandler<KeysPartition.Header, KeysPartiti
     }
   }
 
-  public void readHeader(Header header, RandomAccessFile RAF) throws IOException {
-    header.nextPostingOffset = RAF.readInt();
-    header.bytesLeft = RAF.readInt();
+  public void readHeader(Header header, FileAccess fileAccess) throws IOException {
+    header.nextPostingOffset = fileAccess.readLong();
+    header.bytesLeft = fileAccess.readLong();
+    header.lowestRevision = fileAccess.readLong();
   }
 
-  public void writeHeader(Header header, RandomAccessFile RAF) throws IOException {
-    RAF.writeInt(header.nextPostingOffset);
-    RAF.writeInt(header.bytesLeft);
+  public void writeHeader(Header header, FileAccess fileAccess) throws IOException {
+    fileAccess.writeLong(header.nextPostingOffset);
+    fileAccess.writeLong(header.bytesLeft);
+    fileAccess.writeLong(header.lowestRevision);
   }
 
-  public void readPosting(Posting posting, RandomAccessFile RAF) throws IOException {
-    posting.flag = RAF.readByte();
+  public void readPosting(Posting posting, FileAccess fileAccess) throws IOException {
+    posting.flag = fileAccess.readByte();
     if (posting.flag == 0) {
       return;
     }
-    posting.createdRevision = RAF.readLong();
-    posting.nextKeyPostingPartition = RAF.readInt();
-    posting.nextKeyPostingPartitionOffset = RAF.readInt();
-    posting.keyHashCode = RAF.readLong();
-    posting.valuePostingPartition = RAF.readInt();
-    posting.valuePostingPartitionOffset = RAF.readInt();
-    posting.bytesLength = RAF.readInt();
+    posting.createdRevision = fileAccess.readLong();
+    posting.nextKeyPostingPartition = fileAccess.readInt();
+    posting.nextKeyPostingPartitionOffset = fileAccess.readLong();
+    posting.keyHashCode = fileAccess.readLong();
+    posting.valuePostingPartition = fileAccess.readInt();
+    posting.valuePostingPartitionOffset = fileAccess.readLong();
+    posting.bytesLength = fileAccess.readInt();
     if (posting.bytesLength > 0) {
       if (posting.bytes == null || posting.bytes.length != posting.bytesLength) {
         posting.bytes = new byte[posting.bytesLength];
       }
-      int read = RAF.read(posting.bytes, 0, posting.bytesLength);
-      if (read != posting.bytesLength) {
-        throw new IOException("Unexcpected EOF");
-      }
+      fileAccess.readFully(posting.bytes, 0, posting.bytesLength);
     }
-    posting.deletedRevision = RAF.readLong();
+    posting.deletedRevision = fileAccess.readLong();
   }
 
-  public void writePosting(Posting posting, RandomAccessFile RAF) throws IOException {
-    RAF.writeByte(posting.flag);
-    RAF.writeLong(posting.createdRevision);
-    RAF.writeInt(posting.nextKeyPostingPartition);
-    RAF.writeInt(posting.nextKeyPostingPartitionOffset);
-    RAF.writeLong(posting.keyHashCode);
-    RAF.writeInt(posting.valuePostingPartition);
-    RAF.writeInt(posting.valuePostingPartitionOffset);
-    RAF.writeInt(posting.bytesLength);
+  public void writePosting(Posting posting, FileAccess fileAccess) throws IOException {
+    fileAccess.writeByte(posting.flag);
+    fileAccess.writeLong(posting.createdRevision);
+    fileAccess.writeInt(posting.nextKeyPostingPartition);
+    fileAccess.writeLong(posting.nextKeyPostingPartitionOffset);
+    fileAccess.writeLong(posting.keyHashCode);
+    fileAccess.writeInt(posting.valuePostingPartition);
+    fileAccess.writeLong(posting.valuePostingPartitionOffset);
+    fileAccess.writeInt(posting.bytesLength);
     if (posting.bytesLength > 0) {
-      RAF.write(posting.bytes, 0, posting.bytesLength);
+      fileAccess.write(posting.bytes, 0, posting.bytesLength);
     }
-    RAF.writeLong(posting.deletedRevision);
+    fileAccess.writeLong(posting.deletedRevision);
   }
 
-  public void markPostingAsDeleted(int startOffset, RandomAccessFile RAF, long revision) throws IOException {
-    RAF.seek(startOffset);
-    RAF.writeByte((byte) 2);
-    RAF.skipBytes(8 + 4 + 4 + 8 + 4 + 4);
-    RAF.skipBytes(RAF.readInt());
-    RAF.writeLong(revision);
+  public void markPostingAsDeleted(long startOffset, FileAccess fileAccess, long revision) throws IOException {
+    fileAccess.seek(startOffset);
+    fileAccess.writeByte((byte) 2);
+    fileAccess.skipBytes(8 + 4 + 8 + 8 + 4 + 8);
+    fileAccess.skipBytes(fileAccess.readInt());
+    fileAccess.writeLong(revision);
   }
 
 
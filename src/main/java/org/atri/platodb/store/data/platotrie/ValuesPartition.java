@@ -19,11 +19,14 @@ package org.atri.platodb.store.data.platotrie;
 
 
 import org.atri.platodb.store.lock.LockFactory;
+import org.atri.platodb.store.data.FileAccess;
+import org.atri.platodb.store.data.FileAccessFactory;
 import org.atri.platodb.store.data.FileHandler;
+import org.atri.platodb.store.data.PostingsPartition;
 
-import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.io.File;
+import java.nio.ByteBuffer;
 
 /**
  * Values postings partition file.
@@ -33,13 +36,13 @@ import java.io.File;
  * @author atri
  * @since 2017-mar-16 14:00:13
  */
-public class ValuesPartition extends FileHandler<ValuesPartition.Header, ValuesPartition.Posting> {
+public class ValuesPartition extends FileHandler<ValuesPartition.Header, ValuesPartition.Posting> implements PostingsPartition {
 
 
   private int partitionId;
 
-  public ValuesPartition(File directory, int partitionId, String access, LockFactory lockFactory) throws IOException {
-    super(directory, partitionId, "v", access, lockFactory);
+  public ValuesPartition(File directory, int partitionId, String access, LockFactory lockFactory, FileAccessFactory fileAccessFactory) throws IOException {
+    super(directory, partitionId, "v", access, lockFactory, fileAccessFactory);
     this.partitionId = partitionId;
   }
 
@@ -54,36 +57,100 @@ public class ValuesPartition extends FileHandler<ValuesPartition.Header, ValuesP
   }
 
 
+  public long readNextPostingOffset() throws IOException {
+    Header header = new Header();
+    readHeader(header);
+    return header.getNextPostingOffset();
+  }
+
+  public long readBytesLeft() throws IOException {
+    Header header = new Header();
+    readHeader(header);
+    return header.getBytesLeft();
+  }
+
+  public long readLowestRevision() throws IOException {
+    Header header = new Header();
+    readHeader(header);
+    return header.getLowestRevision();
+  }
+
+  public void writeHeader(long nextPostingOffset, long bytesLeft, long lowestRevision) throws IOException {
+    Header header = new Header();
+    header.setNextPostingOffset(nextPostingOffset);
+    header.setBytesLeft(bytesLeft);
+    header.setLowestRevision(lowestRevision);
+    writeHeader(header);
+  }
+
+  public long seekNeverUsedPosting(long startOffset) throws IOException {
+    return seekNeverUsedPosting(startOffset, new Posting());
+  }
+
+  public long readLowestRevision(long startOffset, long endOffset) throws IOException {
+    return readLowestRevision(startOffset, endOffset, new Posting());
+  }
+
   public static class Header extends FileHandler.Header {
 
     /**
      * Offset in this partition for next new posting.
      */
-    private int nextPostingOffset;
+    private long nextPostingOffset;
     /**
      * Bytes left for use in this partition.
      */
-    private int bytesLeft;
+    private long bytesLeft;
+    /**
+     * Lowest created revision of the postings in this partition,
+     * {@link Long#MAX_VALUE} if there are none and 0 if unknown.
+     */
+    private long lowestRevision = Long.MAX_VALUE;
 
-    public int getNextPostingOffset() {
+    public long getNextPostingOffset() {
       return nextPostingOffset;
     }
 
-    public void setNextPostingOffset(int nextPostingOffset) {
+    public void setNextPostingOffset(long nextPostingOffset) {
       this.nextPostingOffset = nextPostingOffset;
     }
 
-    public int getBytesLeft() {
+    public long getBytesLeft() {
       return bytesLeft;
     }
 
-    public void setBytesLeft(int bytesLeft) {
+    public void setBytesLeft(long bytesLeft) {
       this.bytesLeft = bytesLeft;
     }
+
+    public long getLowestRevision() {
+      return lowestRevision;
+    }
+
+    public void setLowestRevision(long lowestRevision) {
+      this.lowestRevision = lowestRevision;
+    }
   }
 
   public static class Posting extends FileHandler.Posting {
 
+    /**
+     * The bytes of this posting is a {@link ValuesPartition.ChunkManifest} pointing at the chunks of a large value.
+     */
+    public static final byte OPTION_CHUNK_MANIFEST = (byte) 1;
+
+    /**
+     * This posting is a chunk of a large value.
+     */
+    public static final byte OPTION_CHUNK = (byte) 2;
+
+    /**
+     * Bits of the options holding the {@link org.atri.platodb.store.codec.Codec} id
+     * of compressed bytes, 0 if not compressed.
+     */
+    public static final int OPTION_CODEC_MASK = 0x70;
+    public static final int OPTION_CODEC_SHIFT = 4;
+
     /**
      * 0 = never used
      * 1 = in use
@@ -93,7 +160,17 @@ public class ValuesPartition extends FileHandler<ValuesPartition.Header, ValuesP
 
     private long createdRevision;
     private long deletedRevision = -1;
-    
+
+    /**
+     * Bit field, see OPTION_*
+     */
+    private byte options;
+
+    /**
+     * Offset of the value bytes from the start of a posting: flag, created revision, options and bytes length.
+     */
+    public static final int BYTES_OFFSET = 1 + 8 + 1 + 4;
+
 
     /**
      * Length in bytes of serializaed value.
@@ -108,7 +185,30 @@ public class ValuesPartition extends FileHandler<ValuesPartition.Header, ValuesP
 
 
     public int getPostingByteSize() {
-      return 1 + 8 + 8 + 8 + 4 + bytesLength + 8;
+      return BYTES_OFFSET + bytesLength + 8;
+    }
+
+    public byte getOptions() {
+      return options;
+    }
+
+    public void setOptions(byte options) {
+      this.options = options;
+    }
+
+    public boolean isChunkManifest() {
+      return (options & OPTION_CHUNK_MANIFEST) != 0;
+    }
+
+    /**
+     * @return id of the codec the bytes are compressed with, or 0 if not compressed.
+     */
+    public int getCodecId() {
+      return (options & OPTION_CODEC_MASK) >>> OPTION_CODEC_SHIFT;
+    }
+
+    public void setCodecId(int codecId) {
+      options = (byte) ((options & ~OPTION_CODEC_MASK) | ((codecId << OPTION_CODEC_SHIFT) & OPTION_CODEC_MASK));
     }
 
     public byte getFlag() {
@@ -152,46 +252,146 @@ public class ValuesPartition extends FileHandler<ValuesPartition.Header, ValuesP
     }
   }
 
-  public void readHeader(Header header, RandomAccessFile RAF) throws IOException {
-    header.nextPostingOffset = RAF.readInt();
-    header.bytesLeft = RAF.readInt();
+  /**
+   * Bytes of a value posting with option {@link Posting#OPTION_CHUNK_MANIFEST}.
+   * Lists the value postings holding the chunks of a large value in order.
+   */
+  public static class ChunkManifest {
+
+    private long valueByteLength;
+    private int chunksCount;
+    private int[] partitions = new int[16];
+    private long[] offsets = new long[16];
+    private int[] lengths = new int[16];
+
+    public void addChunk(int partition, long offset, int length) {
+      if (chunksCount == partitions.length) {
+        int[] partitions = new int[chunksCount * 2];
+        long[] offsets = new long[chunksCount * 2];
+        int[] lengths = new int[chunksCount * 2];
+        System.arraycopy(this.partitions, 0, partitions, 0, chunksCount);
+        System.arraycopy(this.offsets, 0, offsets, 0, chunksCount);
+        System.arraycopy(this.lengths, 0, lengths, 0, chunksCount);
+        this.partitions = partitions;
+        this.offsets = offsets;
+        this.lengths = lengths;
+      }
+      partitions[chunksCount] = partition;
+      offsets[chunksCount] = offset;
+      lengths[chunksCount] = length;
+      chunksCount++;
+      valueByteLength += length;
+    }
+
+    public long getValueByteLength() {
+      return valueByteLength;
+    }
+
+    public int getChunksCount() {
+      return chunksCount;
+    }
+
+    public int getPartition(int chunk) {
+      return partitions[chunk];
+    }
+
+    public long getOffset(int chunk) {
+      return offsets[chunk];
+    }
+
+    public int getLength(int chunk) {
+      return lengths[chunk];
+    }
+
+    public byte[] toBytes() {
+      ByteBuffer buffer = ByteBuffer.allocate(8 + 4 + chunksCount * (4 + 8 + 4));
+      buffer.putLong(valueByteLength);
+      buffer.putInt(chunksCount);
+      for (int chunk = 0; chunk < chunksCount; chunk++) {
+        buffer.putInt(partitions[chunk]);
+        buffer.putLong(offsets[chunk]);
+        buffer.putInt(lengths[chunk]);
+      }
+      return buffer.array();
+    }
+
+    public static ChunkManifest fromBytes(byte[] bytes) {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      ChunkManifest manifest = new ChunkManifest();
+      buffer.getLong(); // value byte length, sum of the chunk lengths
+      int chunksCount = buffer.getInt();
+      for (int chunk = 0; chunk < chunksCount; chunk++) {
+        manifest.addChunk(buffer.getInt(), buffer.getLong(), buffer.getInt());
+      }
+      return manifest;
+    }
+  }
+
+  public void readHeader(Header header, FileAccess fileAccess) throws IOException {
+    header.nextPostingOffset = fileAccess.readLong();
+    header.bytesLeft = fileAccess.readLong();
+    header.lowestRevision = fileAccess.readLong();
   }
 
-  public void writeHeader(Header header, RandomAccessFile RAF) throws IOException {
-    RAF.writeInt(header.nextPostingOffset);
-    RAF.writeInt(header.bytesLeft);
+  public void writeHeader(Header header, FileAccess fileAccess) throws IOException {
+    fileAccess.writeLong(header.nextPostingOffset);
+    fileAccess.writeLong(header.bytesLeft);
+    fileAccess.writeLong(header.lowestRevision);
   }
 
-  public void readPosting(Posting posting, RandomAccessFile RAF) throws IOException {
-    posting.flag = RAF.readByte();
-    posting.createdRevision = RAF.readLong();
-    posting.bytesLength = RAF.readInt();
+  public void readPosting(Posting posting, FileAccess fileAccess) throws IOException {
+    posting.flag = fileAccess.readByte();
+    posting.createdRevision = fileAccess.readLong();
+    posting.options = fileAccess.readByte();
+    posting.bytesLength = fileAccess.readInt();
     if (posting.bytesLength > 0) {
       posting.bytes = new byte[posting.bytesLength];
-      int read = RAF.read(posting.bytes, 0, posting.bytesLength);
-      if (read != posting.bytesLength) {
-        throw new IOException("Unexpected EOF");
-      }
+      fileAccess.readFully(posting.bytes, 0, posting.bytesLength);
     }
-    posting.deletedRevision = RAF.readLong();
+    posting.deletedRevision = fileAccess.readLong();
   }
 
-  public void writePosting(Posting posting, RandomAccessFile RAF) throws IOException {
-    RAF.writeByte(posting.flag);
-    RAF.writeLong(posting.createdRevision);
-    RAF.writeInt(posting.bytesLength);
+  public void writePosting(Posting posting, FileAccess fileAccess) throws IOException {
+    fileAccess.writeByte(posting.flag);
+    fileAccess.writeLong(posting.createdRevision);
+    fileAccess.writeByte(posting.options);
+    fileAccess.writeInt(posting.bytesLength);
     if (posting.bytesLength > 0) {
-      RAF.write(posting.bytes, 0, posting.bytesLength);
+      fileAccess.write(posting.bytes, 0, posting.bytesLength);
+    }
+    fileAccess.writeLong(posting.deletedRevision);
+  }
+
+  /**
+   * Reads the length of the value of a posting without reading the value, unless it is a chunk manifest.
+   *
+   * @param startOffset offset of a value posting
+   * @return uncompressed length in bytes of the value, of all chunks if a chunk manifest.
+   * @throws IOException
+   */
+  public long readValueByteLength(long startOffset) throws IOException {
+    FileAccess fileAccess = getFileAccess();
+    fileAccess.seek(startOffset + 1 + 8);
+    byte options = fileAccess.readByte();
+    int bytesLength = fileAccess.readInt();
+    if ((options & Posting.OPTION_CHUNK_MANIFEST) != 0) {
+      Posting posting = new Posting();
+      readPosting(posting, startOffset);
+      return ChunkManifest.fromBytes(posting.getBytes()).getValueByteLength();
+    }
+    if ((options & Posting.OPTION_CODEC_MASK) != 0) {
+      // compressed bytes starts with the uncompressed length
+      return fileAccess.readInt();
     }
-    RAF.writeLong(posting.deletedRevision);
+    return bytesLength;
   }
 
-  public void markPostingAsDeleted(int startOffset, RandomAccessFile RAF, long revision) throws IOException {
-    RAF.seek(startOffset);
-    RAF.writeByte((byte) 2);
-    RAF.skipBytes(8);
-    RAF.skipBytes(RAF.readInt());
-    RAF.writeLong(revision);
+  public void markPostingAsDeleted(long startOffset, FileAccess fileAccess, long revision) throws IOException {
+    fileAccess.seek(startOffset);
+    fileAccess.writeByte((byte) 2);
+    fileAccess.skipBytes(8 + 1);
+    fileAccess.skipBytes(fileAccess.readInt());
+    fileAccess.writeLong(revision);
   }
 
 }
@@ -0,0 +1,109 @@
+package org.atri.platodb.store.lock;
+
+/**
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes the threads of this JVM on a {@link ReentrantLock} shared by all
+ * locks of a store before obtaining the lock of the {@link LockFactory},
+ * that thus only is contended by other processes.
+ * <p/>
+ * Threads waiting for the lock are handed it as soon as it is released
+ * rather than polling once per {@link Lock#LOCK_POLL_INTERVAL}, and lock files
+ * are never obtained and released concurrently by threads of the same store.
+ *
+ * @author atri
+ * @since 2017-sep-26 10:41:27
+ */
+public class InProcessLock extends Lock {
+
+  private ReentrantLock inProcessLock;
+  private Lock lock;
+
+  /**
+   * @param inProcessLock shared by all locks of the store in this JVM
+   * @param lock          lock of the {@link LockFactory}
+   */
+  public InProcessLock(ReentrantLock inProcessLock, Lock lock) {
+    this.inProcessLock = inProcessLock;
+    this.lock = lock;
+  }
+
+  /**
+   * Waits for the threads of this JVM without polling,
+   * then polls the lock of the {@link LockFactory} for the time left.
+   */
+  public boolean obtain(long lockWaitTimeout) throws LockObtainFailedException, IOException {
+    if (lockWaitTimeout < 0 && lockWaitTimeout != LOCK_OBTAIN_WAIT_FOREVER) {
+      throw new IllegalArgumentException("lockWaitTimeout should be LOCK_OBTAIN_WAIT_FOREVER or a non-negative number (got " + lockWaitTimeout + ")");
+    }
+    long started = System.currentTimeMillis();
+    try {
+      if (lockWaitTimeout == LOCK_OBTAIN_WAIT_FOREVER) {
+        inProcessLock.lockInterruptibly();
+      } else if (!inProcessLock.tryLock(lockWaitTimeout, TimeUnit.MILLISECONDS)) {
+        throw new LockObtainFailedException("Lock obtain timed out waiting for another thread: " + this.toString());
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e.toString());
+    }
+    try {
+      // the in process lock is held once more by doObtain if the lock is obtained
+      return super.obtain(lockWaitTimeout == LOCK_OBTAIN_WAIT_FOREVER
+          ? LOCK_OBTAIN_WAIT_FOREVER
+          : Math.max(0, lockWaitTimeout - (System.currentTimeMillis() - started)));
+    } finally {
+      inProcessLock.unlock();
+    }
+  }
+
+  protected boolean doObtain() throws IOException {
+    if (!inProcessLock.tryLock()) {
+      return false;
+    }
+    boolean obtained = false;
+    try {
+      obtained = lock.obtain();
+      return obtained;
+    } finally {
+      if (!obtained) {
+        inProcessLock.unlock();
+      }
+    }
+  }
+
+  public boolean doRelease() throws IOException {
+    try {
+      lock.release();
+    } finally {
+      inProcessLock.unlock();
+    }
+    return true;
+  }
+
+  public boolean isLocked() {
+    return lock.isLocked();
+  }
+
+  public String toString() {
+    return "InProcessLock@" + lock;
+  }
+}
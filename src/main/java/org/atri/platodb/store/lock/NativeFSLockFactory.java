@@ -293,27 +293,34 @@ class NativeFSLock extends Lock {
     boolean released = false;
 
     if (isLocked()) {
+      String canonicalPath = path.getCanonicalPath();
       try {
-        lock.release();
-        released = true;
-      } finally {
-        lock = null;
         try {
-          channel.close();
+          lock.release();
+          released = true;
         } finally {
-          channel = null;
+          lock = null;
           try {
-            f.close();
+            channel.close();
           } finally {
-            f = null;
-            synchronized(LOCK_HELD) {
-              LOCK_HELD.remove(path.getCanonicalPath());
+            channel = null;
+            try {
+              f.close();
+            } finally {
+              f = null;
             }
           }
         }
+        // Delete the file before another thread in this JVM
+        // is allowed to create it again and obtain the lock,
+        // else we might delete the file of that lock:
+        if (!path.delete())
+          throw new LockReleaseFailedException("failed to delete " + path);
+      } finally {
+        synchronized(LOCK_HELD) {
+          LOCK_HELD.remove(canonicalPath);
+        }
       }
-      if (!path.delete())
-        throw new LockReleaseFailedException("failed to delete " + path);
     }
     return released;
   }
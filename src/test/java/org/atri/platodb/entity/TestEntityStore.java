@@ -19,8 +19,13 @@ package org.atri.platodb.entity;
 
 
 import org.junit.Test;
+import org.atri.platodb.exceptions.DatabaseException;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * @author atri
@@ -56,6 +61,82 @@ public class TestEntityStore extends EntityStoreTest {
   }
 
 
+  @Test
+  public void testAsynchronousOperations() throws Exception {
+
+    EntityStore store = entityStoreFactory("entityStore/testAsynchronousOperations");
+
+    PrimaryIndex<Long, Message> messages = store.getPrimaryIndex(Long.class, Message.class);
+
+    for (long l = 0; l < 10; l++) {
+      assertNull(messages.putAsync(new Message(l, String.valueOf(l))).get());
+    }
+    List<Future<Message>> gets = new ArrayList<Future<Message>>();
+    for (long l = 0; l < 10; l++) {
+      gets.add(messages.getAsync(l));
+    }
+    for (long l = 0; l < 10; l++) {
+      assertEquals(String.valueOf(l), gets.get((int) l).get().getSubject());
+    }
+    assertEquals("3", messages.removeAsync(3l).get().getSubject());
+    assertFalse(messages.containsKeyAsync(3l).get());
+    assertTrue(messages.containsKeyAsync(4l).get());
+
+    store.getTxn().begin();
+    try {
+      messages.putAsync(new Message(11l, "11"));
+      fail("Asynchronous operations should not be allowed within a transaction");
+    } catch (DatabaseException e) {
+      // all good
+    }
+    store.getTxn().abort();
+
+    store.close();
+
+  }
+
+  @Test
+  public void testGetAll() throws Exception {
+
+    EntityStore store = entityStoreFactory("entityStore/testGetAll");
+
+    PrimaryIndex<Long, Message> messages = store.getPrimaryIndex(Long.class, Message.class);
+
+    List<Long> keys = new ArrayList<Long>();
+    for (long l = 0; l < 100; l++) {
+      if (l % 3 != 0) {
+        messages.put(new Message(l, String.valueOf(l)));
+      }
+      keys.add(99 - l);
+    }
+
+    List<Message> found = messages.getAll(keys);
+    assertEquals(100, found.size());
+    for (int i = 0; i < 100; i++) {
+      long l = keys.get(i);
+      if (l % 3 == 0) {
+        assertNull(found.get(i));
+      } else {
+        assertEquals(String.valueOf(l), found.get(i).getSubject());
+      }
+    }
+
+    // sees the changes of the transaction
+    store.getTxn().begin();
+    messages.put(new Message(0l, "created"));
+    messages.put(new Message(1l, "replaced"));
+    messages.remove(2l);
+    found = messages.getAll(Arrays.asList(0l, 1l, 2l, 4l));
+    assertEquals("created", found.get(0).getSubject());
+    assertEquals("replaced", found.get(1).getSubject());
+    assertNull(found.get(2));
+    assertEquals("4", found.get(3).getSubject());
+    store.getTxn().abort();
+
+    store.close();
+
+  }
+
   @Test
   public void testPrimaryIndex() throws Exception {
 
@@ -0,0 +1,105 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.junit.Test;
+import org.atri.platodb.store.lock.SingleInstanceLockFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * @author atri
+ * @since 2017-sep-07 21:03:52
+ */
+public class TestAsynchronousOperations extends StoreTest {
+
+  @Test
+  public void testAsynchronousOperations() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testAsynchronousOperations"));
+    configuration.setAsynchronousThreads(4);
+    // native file system locks are not meant for threads of the same JVM
+    configuration.setLockFactory(new SingleInstanceLockFactory());
+    Store store = new Store(configuration);
+    store.open();
+
+    List<Future<byte[]>> puts = new ArrayList<Future<byte[]>>();
+    for (int i = 0; i < 100; i++) {
+      puts.add(store.putAsync(key(i), i, value(i), 1l));
+    }
+    for (Future<byte[]> put : puts) {
+      assertNull(put.get());
+    }
+
+    List<Future<byte[]>> gets = new ArrayList<Future<byte[]>>();
+    for (int i = 0; i < 100; i++) {
+      gets.add(store.getAsync(key(i), i));
+    }
+    for (int i = 0; i < 100; i++) {
+      assertTrue(Arrays.equals(value(i), gets.get(i).get()));
+    }
+
+    assertTrue(Arrays.equals(value(7), store.removeAsync(key(7), 7, 2l).get()));
+    assertFalse(store.containsKeyAsync(key(7), 7).get());
+    assertTrue(store.containsKeyAsync(key(7), 7, 1l).get());
+    assertNull(store.getAsync(key(7), 7).get());
+
+    ExecutorService executor = store.getAsynchronousExecutor();
+    store.close();
+    assertTrue(executor.isShutdown());
+    try {
+      store.getAsync(key(0), 0);
+      fail("Closed store should not accept asynchronous operations");
+    } catch (RejectedExecutionException e) {
+      // all good
+    }
+  }
+
+  @Test
+  public void testConfiguredExecutor() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Configuration configuration = new Configuration(getDirectory("testAsynchronousOperationsConfiguredExecutor"));
+    configuration.setAsynchronousExecutor(executor);
+    Store store = new Store(configuration);
+    store.open();
+    assertSame(executor, store.getAsynchronousExecutor());
+
+    assertNull(store.putAsync(key(0), 0, value(0), 1l).get());
+    assertTrue(Arrays.equals(value(0), store.getAsync(key(0), 0).get()));
+
+    store.close();
+    // not owned by the store
+    assertFalse(executor.isShutdown());
+    executor.shutdown();
+  }
+
+  private static byte[] key(int i) throws Exception {
+    return ("key" + i).getBytes("UTF8");
+  }
+
+  private static byte[] value(int i) throws Exception {
+    return ("value " + i).getBytes("UTF8");
+  }
+
+}
@@ -0,0 +1,175 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author atri
+ * @since 2017-sep-16 21:40:05
+ */
+public class TestBloomFilter extends StoreTest {
+
+  @Test
+  public void testFalsePositives() throws Exception {
+    BloomFilter bloomFilter = new BloomFilter(10000, 10);
+    int added = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (bloomFilter.add(key(i))) {
+        added++;
+      }
+    }
+    // keys that are false positives when added are not counted
+    assertTrue(added > 9900);
+    assertFalse(bloomFilter.add(key(0)));
+    assertEquals(added, bloomFilter.getKeys());
+    assertFalse(bloomFilter.isFull());
+
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      assertTrue(bloomFilter.mightContain(key(i)));
+      if (bloomFilter.mightContain(key(i + 10000))) {
+        falsePositives++;
+      }
+    }
+    // about one percent
+    assertTrue("False positives " + falsePositives, falsePositives < 300);
+
+    File file = new File(getDirectory("testFalsePositives"), "bloomfilter");
+    bloomFilter.write(file);
+    BloomFilter read = BloomFilter.read(file);
+    assertEquals(10000, read.getExpectedKeys());
+    assertEquals(10, read.getBitsPerKey());
+    assertEquals(added, read.getKeys());
+    for (int i = 0; i < 20000; i++) {
+      assertEquals(bloomFilter.mightContain(key(i)), read.mightContain(key(i)));
+    }
+  }
+
+  @Test
+  public void testStore() throws Exception {
+
+    // without a Bloom filter as the reference
+    Configuration configuration = new Configuration(getDirectory("testBloomFilter"));
+    configuration.setInitialCapacity(16);
+    Store store = new Store(configuration);
+    store.open();
+    assertNull(store.getBloomFilter());
+    write(store, 0, 300);
+    List<String> expected = read(store);
+    store.close();
+    assertFalse(BloomFilter.getFile(configuration.getDataPath()).exists());
+
+    // built for a store written without a Bloom filter
+    configuration.setUsingBloomFilter(true);
+    store = new Store(configuration);
+    store.open();
+    assertTrue(store.getBloomFilter().getExpectedKeys() >= 300);
+    assertResults(expected, read(store));
+    // maintained while writing, growing
+    write(store, 300, 600);
+    assertTrue(store.getBloomFilter().getExpectedKeys() >= 600);
+    expected = read(store);
+    store.close();
+    assertTrue(BloomFilter.getFile(configuration.getDataPath()).exists());
+
+    // read when opened and deleted until closed
+    store = new Store(configuration);
+    store.open();
+    assertFalse(BloomFilter.getFile(configuration.getDataPath()).exists());
+    // keys that are false positives when added are not counted
+    assertTrue(store.getBloomFilter().getKeys() > 550);
+    assertResults(expected, read(store));
+    store.close();
+
+    // rebuilt when not closed
+    assertTrue(BloomFilter.getFile(configuration.getDataPath()).delete());
+    store = new Store(configuration);
+    store.open();
+    assertTrue(store.getBloomFilter().getKeys() > 550);
+    assertResults(expected, read(store));
+    store.close();
+
+    // deleted when not used
+    configuration.setUsingBloomFilter(false);
+    store = new Store(configuration);
+    store.open();
+    assertFalse(BloomFilter.getFile(configuration.getDataPath()).exists());
+    assertResults(expected, read(store));
+    store.close();
+  }
+
+  private void assertResults(List<String> expected, List<String> results) {
+    assertEquals(expected.size(), results.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i), results.get(i));
+    }
+  }
+
+  /**
+   * Puts keys in revision 1, replaces the first tenth in revision 2 and removes the second tenth in revision 3.
+   */
+  private void write(Store store, int from, int to) throws Exception {
+    Accessor accessor = store.borrowAccessor();
+    for (int i = from; i < to; i++) {
+      assertNull(store.put(accessor, key(i), i, key(i), 1l));
+    }
+    int tenth = (to - from) / 10;
+    for (int i = from; i < from + tenth; i++) {
+      assertNotNull(store.put(accessor, key(i), i, key(i + 1), 2l));
+    }
+    for (int i = from + tenth; i < from + 2 * tenth; i++) {
+      assertNotNull(store.remove(accessor, key(i), i, 3l));
+    }
+    store.returnAccessor(accessor);
+  }
+
+  /**
+   * @return the result of get, get all and contains key of all keys, and keys that never was put, in all revisions.
+   */
+  private List<String> read(Store store) throws Exception {
+    List<String> results = new ArrayList<String>();
+    Accessor accessor = store.borrowAccessor();
+    for (long revision = 0; revision <= 4; revision++) {
+      byte[][] keys = new byte[1000][];
+      long[] hashCodes = new long[keys.length];
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = key(i);
+        hashCodes[i] = i;
+      }
+      byte[][] values = store.getAll(accessor, keys, hashCodes, revision);
+      for (int i = 0; i < keys.length; i++) {
+        byte[] value = store.get(accessor, key(i), i, revision);
+        assertEquals(value == null ? null : new String(value, "UTF8"), values[i] == null ? null : new String(values[i], "UTF8"));
+        results.add(revision + " " + i + " " + (value == null ? null : new String(value, "UTF8")) + " " + store.containsKey(accessor, key(i), i, revision));
+      }
+    }
+    store.returnAccessor(accessor);
+    return results;
+  }
+
+  private byte[] key(int i) throws Exception {
+    return ("key " + i).getBytes("UTF8");
+  }
+
+}
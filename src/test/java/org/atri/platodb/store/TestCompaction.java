@@ -0,0 +1,268 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.junit.Test;
+import org.atri.platodb.store.data.platotrie.KeysPartition;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @author atri
+ * @since 2017-sep-19 23:12:50
+ */
+public class TestCompaction extends StoreTest {
+
+  @Test
+  public void testOptimize() throws Exception {
+    optimize(configuration("testCompaction/chains"));
+  }
+
+  @Test
+  public void testOptimizeKeySlots() throws Exception {
+    Configuration configuration = configuration("testCompaction/slots");
+    configuration.setUsingKeySlots(true);
+    optimize(configuration);
+  }
+
+  @Test
+  public void testOptimizeWriteAheadLog() throws Exception {
+    Configuration configuration = configuration("testCompaction/writeAheadLog");
+    configuration.setUsingDurablePostingLinks(true);
+    configuration.setWriteAheadLogging(true);
+    optimize(configuration);
+  }
+
+  private void optimize(Configuration configuration) throws Exception {
+    Store store = new Store(configuration);
+    store.open();
+    // compacted in the calling thread only
+    assertFalse(store.getCompactor().isRunning());
+    write(store);
+    List<String> expected = read(store, 0);
+    int partitions = countPartitions(configuration);
+
+    // nothing is dead while all revisions are retained
+    store.optimize();
+    assertEquals(0, store.getCompactor().getPartitionsReclaimed());
+    assertResults(expected, read(store, 0));
+
+    store.setOldestRetainedRevision(4);
+    store.optimize();
+    assertTrue(store.getCompactor().getPartitionsReclaimed() > 0);
+    assertTrue(store.getCompactor().getPostingsRelocated() > 0);
+    assertTrue(countPartitions(configuration) < partitions);
+    assertFalse(Compactor.getFile(configuration.getDataPath()).exists());
+    // revisions from the oldest retained one
+    assertResults(expected.subList(4 * 350, expected.size()), read(store, 4));
+    assertEquals(200, countKeys(store, 5));
+
+    // compacted again after more writes
+    Accessor accessor = store.borrowAccessor();
+    for (int i = 250; i < 300; i++) {
+      assertNotNull(store.remove(accessor, key(i), i, 5l));
+    }
+    store.returnAccessor(accessor);
+    expected = read(store, 5);
+    store.setOldestRetainedRevision(5);
+    store.optimize();
+    assertResults(expected, read(store, 5));
+    assertEquals(150, countKeys(store, 5));
+    store.close();
+
+    store = new Store(configuration);
+    store.open();
+    assertResults(expected, read(store, 5));
+    assertEquals(150, countKeys(store, 5));
+    store.close();
+  }
+
+  @Test
+  public void testRetiredPartitionsInUse() throws Exception {
+    Configuration configuration = configuration("testCompaction/inUse");
+    Store store = new Store(configuration);
+    store.open();
+    write(store);
+    List<String> expected = read(store, 4);
+    int partitions = countPartitions(configuration);
+
+    // deleted once the accessor is returned
+    Accessor accessor = store.borrowAccessor();
+    store.setOldestRetainedRevision(4);
+    store.optimize();
+    assertEquals(0, store.getCompactor().getPartitionsReclaimed());
+    // relocated postings are appended to new partitions
+    assertTrue(countPartitions(configuration) > partitions);
+    partitions = countPartitions(configuration);
+    assertTrue(Compactor.getFile(configuration.getDataPath()).exists());
+    assertEquals("value 0 revision 2", new String(store.get(accessor, key(0), 0, 4), "UTF8"));
+    store.returnAccessor(accessor);
+    store.getCompactor().deleteRetiredPartitions();
+    assertTrue(store.getCompactor().getPartitionsReclaimed() > 0);
+    assertTrue(countPartitions(configuration) < partitions);
+    assertResults(expected, read(store, 4));
+    store.close();
+  }
+
+  @Test
+  public void testScanOpen() throws Exception {
+    Configuration configuration = configuration("testCompaction/scan");
+    configuration.setScanBatchSize(10);
+    Store store = new Store(configuration);
+    store.open();
+    write(store);
+    store.setOldestRetainedRevision(4);
+
+    // nothing is relocated while the scan is open
+    Scan scan = store.scan(4, false);
+    assertTrue(scan.next());
+    Set<String> keys = new HashSet<String>();
+    keys.add(new String(scan.getKey(), "UTF8"));
+    store.optimize();
+    assertEquals(0, store.getCompactor().getPostingsRelocated());
+    while (scan.next()) {
+      assertTrue(keys.add(new String(scan.getKey(), "UTF8")));
+    }
+    scan.close();
+    assertEquals(200, keys.size());
+
+    store.optimize();
+    assertTrue(store.getCompactor().getPostingsRelocated() > 0);
+    assertEquals(200, countKeys(store, 4));
+    store.close();
+  }
+
+  @Test
+  public void testBackground() throws Exception {
+    Configuration configuration = configuration("testCompaction/background");
+    configuration.setCompactingPartitions(true);
+    configuration.setCompactionIntervalMilliseconds(50);
+    configuration.setCompactionBatchPostings(10);
+    Store store = new Store(configuration);
+    store.open();
+    assertTrue(store.getCompactor().isRunning());
+    write(store);
+    List<String> expected = read(store, 4);
+    store.setOldestRetainedRevision(4);
+
+    long timeout = System.currentTimeMillis() + 30000;
+    while (store.getCompactor().getPartitionsReclaimed() == 0) {
+      assertTrue("Timed out waiting for compaction", System.currentTimeMillis() < timeout);
+      Thread.sleep(50);
+    }
+    assertResults(expected, read(store, 4));
+    store.close();
+
+    store = new Store(configuration);
+    store.open();
+    assertResults(expected, read(store, 4));
+    store.close();
+  }
+
+  private void assertResults(List<String> expected, List<String> results) {
+    assertEquals(expected.size(), results.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i), results.get(i));
+    }
+  }
+
+  private Configuration configuration(String name) throws Exception {
+    Configuration configuration = new Configuration(getDirectory(name));
+    configuration.setInitialCapacity(16);
+    configuration.setKeysPartitionByteSize(4000);
+    configuration.setValuesPartitionByteSize(4000);
+    configuration.setChunkedValueThresholdByteSize(100);
+    configuration.setValueChunkByteSize(50);
+    return configuration;
+  }
+
+  /**
+   * @return number of keys and values partition files
+   */
+  private int countPartitions(Configuration configuration) {
+    int partitions = 0;
+    for (File file : configuration.getDataPath().listFiles()) {
+      if (file.getName().endsWith(".k") || file.getName().endsWith(".v")) {
+        partitions++;
+      }
+    }
+    return partitions;
+  }
+
+  /**
+   * Puts 300 keys in revision 1, replaces the first 100 in revision 2, removes the next 100 in revision 3
+   * and replaces 200-209 with large values in revision 4.
+   */
+  private void write(Store store) throws Exception {
+    Accessor accessor = store.borrowAccessor();
+    for (int i = 0; i < 300; i++) {
+      assertNull(store.put(accessor, key(i), i, value(i, 1), 1l));
+    }
+    for (int i = 0; i < 100; i++) {
+      assertNotNull(store.put(accessor, key(i), i, value(i, 2), 2l));
+    }
+    for (int i = 100; i < 200; i++) {
+      assertNotNull(store.remove(accessor, key(i), i, 3l));
+    }
+    for (int i = 200; i < 210; i++) {
+      assertNotNull(store.put(accessor, key(i), i, (new String(value(i, 4), "UTF8") + " large value split in chunks, large value split in chunks, large value split in chunks").getBytes("UTF8"), 4l));
+    }
+    store.returnAccessor(accessor);
+  }
+
+  /**
+   * @return the result of get and contains key of all keys, and keys that never was put, in revisions from the given one.
+   */
+  private List<String> read(Store store, long fromRevision) throws Exception {
+    List<String> results = new ArrayList<String>();
+    Accessor accessor = store.borrowAccessor();
+    for (long revision = fromRevision; revision <= 6; revision++) {
+      for (int i = 0; i < 350; i++) {
+        byte[] value = store.get(accessor, key(i), i, revision);
+        results.add(revision + " " + i + " " + (value == null ? null : new String(value, "UTF8")) + " " + store.containsKey(accessor, key(i), i, revision));
+      }
+    }
+    store.returnAccessor(accessor);
+    return results;
+  }
+
+  private int countKeys(Store store, long revision) throws Exception {
+    Accessor accessor = store.borrowAccessor();
+    Cursor<KeysPartition.Posting> keys = store.keys();
+    int count = 0;
+    while (keys.next(accessor, new KeysPartition.Posting(), revision) != null) {
+      count++;
+    }
+    store.returnAccessor(accessor);
+    return count;
+  }
+
+  private byte[] key(int i) throws Exception {
+    return ("key " + i).getBytes("UTF8");
+  }
+
+  private byte[] value(int i, long revision) throws Exception {
+    return ("value " + i + " revision " + revision).getBytes("UTF8");
+  }
+
+}
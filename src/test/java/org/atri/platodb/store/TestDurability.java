@@ -0,0 +1,210 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.junit.Test;
+import org.atri.platodb.store.lock.SingleInstanceLockFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author atri
+ * @since 2017-aug-30 22:14:37
+ */
+public class TestDurability extends StoreTest {
+
+  @Test
+  public void testCommit() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testDurabilityCommit"));
+    configuration.setDurability(Durability.COMMIT);
+    Store store = new Store(configuration);
+    store.open();
+    assertNotNull(store.getDurabilityManager());
+
+    Accessor accessor = store.borrowAccessor();
+    CountingSyncable counter = new CountingSyncable();
+    for (int i = 0; i < 10; i++) {
+      store.put(accessor, ("key" + i).getBytes("UTF8"), i, ("value" + i).getBytes("UTF8"), accessor.increaseStoreRevision());
+      store.getDurabilityManager().dirty(counter);
+      store.makeDurable();
+      assertEquals(i + 1, counter.syncs.get());
+    }
+    store.returnAccessor(accessor);
+    store.close();
+
+    store = new Store(configuration);
+    store.open();
+    accessor = store.borrowAccessor();
+    for (int i = 0; i < 10; i++) {
+      assertTrue(Arrays.equals(("value" + i).getBytes("UTF8"), store.get(accessor, ("key" + i).getBytes("UTF8"), i)));
+    }
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  @Test
+  public void testNone() throws Exception {
+    Store store = new Store(new Configuration(getDirectory("testDurabilityNone")));
+    store.open();
+    assertNull(store.getDurabilityManager());
+    Accessor accessor = store.borrowAccessor();
+    store.put(accessor, "key".getBytes("UTF8"), 0, "value".getBytes("UTF8"), accessor.increaseStoreRevision());
+    store.makeDurable();
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  @Test
+  public void testGroupCommit() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testDurabilityGroupCommit"));
+    configuration.setDurability(Durability.GROUP_COMMIT);
+    configuration.setGroupCommitWindowMilliseconds(20);
+    // native file system locks are not meant for threads of the same JVM
+    configuration.setLockFactory(new SingleInstanceLockFactory());
+    final Store store = new Store(configuration);
+    store.open();
+
+    final CountingSyncable counter = new CountingSyncable();
+    final int threads = 8;
+    final int commitsPerThread = 10;
+    final List<Throwable> failures = new ArrayList<Throwable>();
+    List<Thread> committers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      committers.add(new Thread(new Runnable() {
+        public void run() {
+          try {
+            Accessor accessor = store.borrowAccessor();
+            try {
+              for (int i = 0; i < commitsPerThread; i++) {
+                byte[] key = ("key" + thread + "-" + i).getBytes("UTF8");
+                store.put(accessor, key, thread * commitsPerThread + i, key, accessor.increaseStoreRevision());
+                store.getDurabilityManager().dirty(counter);
+                store.makeDurable();
+                assertTrue(counter.syncs.get() > 0);
+              }
+            } finally {
+              store.returnAccessor(accessor);
+            }
+          } catch (Throwable e) {
+            synchronized (failures) {
+              failures.add(e);
+            }
+          }
+        }
+      }));
+    }
+    for (Thread committer : committers) {
+      committer.start();
+    }
+    for (Thread committer : committers) {
+      committer.join();
+    }
+    assertTrue(failures.toString(), failures.isEmpty());
+    assertTrue("Expected commits to share forces, but got " + counter.syncs.get(), counter.syncs.get() < threads * commitsPerThread);
+
+    Accessor accessor = store.borrowAccessor();
+    for (int t = 0; t < threads; t++) {
+      for (int i = 0; i < commitsPerThread; i++) {
+        byte[] key = ("key" + t + "-" + i).getBytes("UTF8");
+        assertTrue(Arrays.equals(key, store.get(accessor, key, t * commitsPerThread + i)));
+      }
+    }
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  @Test
+  public void testFailedGroupCommit() throws Exception {
+    DurabilityManager durabilityManager = new DurabilityManager(Durability.GROUP_COMMIT, 0);
+    durabilityManager.dirty(new DurabilityManager.Syncable() {
+      public void sync() throws IOException {
+        throw new IOException("Disk on fire");
+      }
+    });
+    try {
+      durabilityManager.makeDurable();
+      fail("Failed force should fail the commit");
+    } catch (IOException e) {
+      // all good
+    }
+
+    CountingSyncable counter = new CountingSyncable();
+    durabilityManager = new DurabilityManager(Durability.GROUP_COMMIT, 0);
+    durabilityManager.dirty(counter);
+    durabilityManager.makeDurable();
+    durabilityManager.makeDurable();
+    assertEquals(1, counter.syncs.get());
+  }
+
+  @Test
+  public void testSyncWaitsForSyncInProgress() throws Exception {
+    final DurabilityManager durabilityManager = new DurabilityManager(Durability.COMMIT, 0);
+    final CountDownLatch syncing = new CountDownLatch(1);
+    final AtomicBoolean synced = new AtomicBoolean(false);
+    durabilityManager.dirty(new DurabilityManager.Syncable() {
+      public void sync() throws IOException {
+        syncing.countDown();
+        try {
+          Thread.sleep(500);
+        } catch (InterruptedException e) {
+          throw new IOException(e.toString());
+        }
+        synced.set(true);
+      }
+    });
+    final List<Throwable> failures = new ArrayList<Throwable>();
+    Thread first = new Thread(new Runnable() {
+      public void run() {
+        try {
+          durabilityManager.makeDurable();
+        } catch (Throwable e) {
+          synchronized (failures) {
+            failures.add(e);
+          }
+        }
+      }
+    });
+    first.start();
+    assertTrue(syncing.await(10, TimeUnit.SECONDS));
+
+    // nothing left dirty, but what this commit wrote might be forced by the sync in progress
+    durabilityManager.makeDurable();
+    assertTrue(synced.get());
+
+    first.join();
+    assertTrue(failures.toString(), failures.isEmpty());
+  }
+
+  private static class CountingSyncable implements DurabilityManager.Syncable {
+    private final AtomicInteger syncs = new AtomicInteger();
+
+    public void sync() throws IOException {
+      syncs.incrementAndGet();
+    }
+  }
+
+}
@@ -0,0 +1,210 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.junit.Test;
+import org.atri.platodb.store.codec.DeflateCodec;
+import org.atri.platodb.store.data.Metadata;
+import org.atri.platodb.store.data.platotrie.KeysPartition;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * @author atri
+ * @since 2017-aug-21 23:02:51
+ */
+public class TestFileFormatMigration extends StoreTest {
+
+  @Test
+  public void testMigrateVersion0() throws Exception {
+
+    File directory = getDirectory("testFileFormatMigration");
+    File source = new File(directory, "source");
+    File target = new File(directory, "target");
+    assertTrue(source.mkdirs());
+
+    byte[][] keys = new byte[][]{"one".getBytes("UTF8"), "two".getBytes("UTF8"), "three".getBytes("UTF8")};
+    byte[][] values = new byte[][]{"first".getBytes("UTF8"), new byte[0], "third".getBytes("UTF8")};
+    byte[] flags = new byte[]{1, 1, 2};
+
+    writeVersion0Store(source, keys, values, flags);
+
+    Store store = new Store(source);
+    try {
+      store.open();
+      fail("Version 0 store should not be opened");
+    } catch (StoreException e) {
+      // all good
+    }
+
+    new FileFormatMigration().migrate(source, target);
+
+    store = new Store(target);
+    store.open();
+    Accessor accessor = store.borrowAccessor();
+
+    Metadata.Header mdh = new Metadata.Header();
+    accessor.getMetadata().readHeader(mdh);
+    assertEquals(Metadata.FILE_FORMAT_VERSION, mdh.getFileFormatVersion());
+    assertEquals(7l, mdh.getStoreRevision());
+
+    assertTrue(Arrays.equals(values[0], store.get(accessor, keys[0], 0)));
+    assertTrue(store.containsKey(accessor, keys[1], 1));
+    assertNull(store.get(accessor, keys[1], 1));
+    assertFalse("Deleted key should not be migrated", store.containsKey(accessor, keys[2], 2));
+
+    Cursor<KeysPartition.Posting> cursor = store.keys();
+    KeysPartition.Posting posting = new KeysPartition.Posting();
+    assertNotNull(cursor.next(accessor, posting, Long.MAX_VALUE));
+    assertNotNull(cursor.next(accessor, posting, Long.MAX_VALUE));
+    assertNull(cursor.next(accessor, posting, Long.MAX_VALUE));
+
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  @Test
+  public void testMigrateVersion2() throws Exception {
+
+    File directory = getDirectory("testFileFormatMigrationVersion2");
+    File source = new File(directory, "source");
+    File target = new File(directory, "target");
+
+    // chunked and compressed values
+    Configuration configuration = new Configuration(source);
+    configuration.setValueCodec(new DeflateCodec());
+    configuration.setValueCompressionThresholdByteSize(10);
+    configuration.setChunkedValueThresholdByteSize(100);
+    configuration.setValueChunkByteSize(50);
+    Store store = new Store(configuration);
+    store.open();
+    Accessor accessor = store.borrowAccessor();
+    for (int i = 0; i < 20; i++) {
+      store.put(accessor, key(i), i, value(i, 1), 1l);
+    }
+    for (int i = 0; i < 5; i++) {
+      store.put(accessor, key(i), i, value(i, 2), 2l);
+    }
+    for (int i = 5; i < 10; i++) {
+      store.remove(accessor, key(i), i, 3l);
+    }
+    store.returnAccessor(accessor);
+    store.close();
+
+    // the keys and values partitions are the same in version 2
+    RandomAccessFile md = new RandomAccessFile(new File(source, "00000000.md"), "rw");
+    md.writeInt(2);
+    md.close();
+
+    store = new Store(source);
+    try {
+      store.open();
+      fail("Version 2 store should not be opened");
+    } catch (StoreException e) {
+      // all good
+    }
+
+    new FileFormatMigration().migrate(source, target);
+
+    store = new Store(target);
+    store.open();
+    accessor = store.borrowAccessor();
+    for (int i = 0; i < 20; i++) {
+      byte[] expected = i < 5 ? value(i, 2) : i < 10 ? null : value(i, 1);
+      assertTrue(Arrays.equals(expected, store.get(accessor, key(i), i)));
+    }
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  private byte[] key(int i) throws Exception {
+    return ("key " + i).getBytes("UTF8");
+  }
+
+  /**
+   * @return a large value if i is even
+   */
+  private byte[] value(int i, long revision) throws Exception {
+    StringBuilder value = new StringBuilder();
+    for (int repeat = 0; repeat < (i % 2 == 0 ? 20 : 1); repeat++) {
+      value.append("value ").append(i).append(" revision ").append(revision).append(' ');
+    }
+    return value.toString().getBytes("UTF8");
+  }
+
+  /**
+   * Writes the keys and values partitions of a version 0 store, i.e. with int offsets,
+   * key i having hash code i and created in revision i.
+   * No hashtable or hash codes partitions as they are not read by the migration.
+   */
+  private void writeVersion0Store(File directory, byte[][] keys, byte[][] values, byte[] flags) throws IOException {
+
+    RandomAccessFile md = new RandomAccessFile(new File(directory, "00000000.md"), "rw");
+    md.writeInt(0);
+    md.writeLong(7l);
+    md.writeInt(0);
+    md.writeInt(0);
+    md.writeInt(0);
+    md.writeInt(0);
+    md.writeLong(keys.length);
+    md.setLength(1024); // formatted header
+    md.close();
+
+    RandomAccessFile k = new RandomAccessFile(new File(directory, "00000000.k"), "rw");
+    RandomAccessFile v = new RandomAccessFile(new File(directory, "00000000.v"), "rw");
+    k.seek(1024);
+    v.seek(1024);
+    for (int i = 0; i < keys.length; i++) {
+      int valueOffset = (int) v.getFilePointer();
+      if (values[i].length > 0) {
+        v.writeByte(1);
+        v.writeLong(i);
+        v.writeInt(values[i].length);
+        v.write(values[i]);
+        v.writeLong(-1);
+      }
+
+      k.writeByte(flags[i]);
+      k.writeLong(i);
+      k.writeInt(-1);
+      k.writeInt(-1);
+      k.writeLong(i);
+      k.writeInt(values[i].length > 0 ? 0 : -1);
+      k.writeInt(values[i].length > 0 ? valueOffset : -1);
+      k.writeInt(keys[i].length);
+      k.write(keys[i]);
+      k.writeLong(flags[i] == 2 ? i : -1);
+    }
+    int nextKeyPostingOffset = (int) k.getFilePointer();
+    k.seek(0);
+    k.writeInt(nextKeyPostingOffset);
+    k.writeInt(0);
+    k.close();
+
+    int nextValuePostingOffset = (int) v.getFilePointer();
+    v.seek(0);
+    v.writeInt(nextValuePostingOffset);
+    v.writeInt(0);
+    v.close();
+  }
+
+}
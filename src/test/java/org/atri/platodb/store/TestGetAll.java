@@ -0,0 +1,156 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author atri
+ * @since 2017-sep-09 11:26:40
+ */
+public class TestGetAll extends StoreTest {
+
+  @Test
+  public void testGetAll() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testGetAll"));
+    configuration.setInitialCapacity(100);
+    configuration.setValuesPartitionByteSize(10000);
+    configuration.setValueCodec(null);
+    testGetAll(configuration);
+  }
+
+  @Test
+  public void testParallelGetAll() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testGetAllParallel"));
+    configuration.setInitialCapacity(100);
+    configuration.setValuesPartitionByteSize(10000);
+    configuration.setValueCodec(null);
+    configuration.setParallelBatchedGets(true);
+    testGetAll(configuration);
+  }
+
+  @Test
+  public void testParallelGetAllAsynchronously() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testGetAllAsynchronously"));
+    configuration.setValuesPartitionByteSize(2000);
+    configuration.setValueCodec(null);
+    configuration.setParallelBatchedGets(true);
+    // reads submitted by the operation would be queued behind it
+    configuration.setAsynchronousThreads(1);
+    final Store store = new Store(configuration);
+    store.open();
+    final byte[][] keys = new byte[100][];
+    final long[] hashCodes = new long[keys.length];
+    Accessor accessor = store.borrowAccessor();
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = key(i);
+      hashCodes[i] = hashCode(i);
+      store.put(accessor, keys[i], hashCodes[i], value(i, 1), 1l);
+    }
+    store.returnAccessor(accessor);
+
+    Future<byte[][]> future = store.submit(store.new AsynchronousOperation<byte[][]>() {
+      protected byte[][] call(Accessor accessor) throws IOException {
+        return store.getAll(accessor, keys, hashCodes);
+      }
+    });
+    byte[][] values = future.get(30, TimeUnit.SECONDS);
+    for (int i = 0; i < keys.length; i++) {
+      assertTrue(Arrays.equals(value(i, 1), values[i]));
+    }
+    store.close();
+  }
+
+  private void testGetAll(Configuration configuration) throws Exception {
+    Store store = new Store(configuration);
+    store.open();
+    Accessor accessor = store.borrowAccessor();
+
+    // few hashtable postings for long hash code chains
+    for (int i = 0; i < 500; i++) {
+      assertNull(store.put(accessor, key(i), hashCode(i), value(i, 1), 1l));
+    }
+    for (int i = 0; i < 500; i += 7) {
+      store.remove(accessor, key(i), hashCode(i), 2l);
+    }
+    for (int i = 0; i < 500; i += 5) {
+      store.put(accessor, key(i), hashCode(i), value(i, 3), 3l);
+    }
+    // hash codes shared by many keys for long key chains
+    for (int i = 1000; i < 1100; i++) {
+      assertNull(store.put(accessor, key(i), hashCode(i), value(i, 3), 3l));
+    }
+
+    byte[][] keys = new byte[520 + 100][];
+    long[] hashCodes = new long[keys.length];
+    for (int i = 0; i < 520; i++) {
+      // reversed order
+      keys[i] = key(519 - i);
+      hashCodes[i] = hashCode(519 - i);
+    }
+    for (int i = 520; i < keys.length; i++) {
+      keys[i] = key(i - 520 + 1000);
+      hashCodes[i] = hashCode(i - 520 + 1000);
+    }
+
+    for (long revision = 1; revision <= 3; revision++) {
+      byte[][] values = store.getAll(accessor, keys, hashCodes, revision);
+      assertEquals(keys.length, values.length);
+      for (int i = 0; i < keys.length; i++) {
+        assertTrue("key " + new String(keys[i], "UTF8") + " in revision " + revision,
+            Arrays.equals(store.get(accessor, keys[i], hashCodes[i], revision), values[i]));
+      }
+    }
+
+    byte[][] values = store.getAll(accessor, keys, hashCodes);
+    assertNull(values[519 - 7]);
+    assertNull(values[0]);
+    assertTrue(Arrays.equals(value(13, 1), values[519 - 13]));
+    assertTrue(Arrays.equals(value(35, 3), values[519 - 35]));
+    assertTrue(Arrays.equals(value(1042, 3), values[520 + 42]));
+
+    try {
+      store.getAll(accessor, keys, new long[1]);
+      fail("Expected one hash code per key");
+    } catch (IllegalArgumentException e) {
+      // all good
+    }
+
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  private static long hashCode(int i) {
+    return i < 1000 ? i : i % 10;
+  }
+
+  private static byte[] key(int i) throws Exception {
+    return ("key" + i).getBytes("UTF8");
+  }
+
+  private static byte[] value(int i, int version) throws Exception {
+    return ("value " + i + " version " + version).getBytes("UTF8");
+  }
+
+}
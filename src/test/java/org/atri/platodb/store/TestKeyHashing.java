@@ -0,0 +1,147 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.junit.Test;
+import org.atri.platodb.store.data.Metadata;
+import org.atri.platodb.store.data.MurmurHash3;
+import org.atri.platodb.store.data.platotrie.Hashtable;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * @author atri
+ * @since 2017-sep-13 22:41:09
+ */
+public class TestKeyHashing extends StoreTest {
+
+  @Test
+  public void testMurmurHash3() throws Exception {
+    // reference value of the first 64 bits of MurmurHash3_x64_128, seed 0
+    assertEquals(0xe34bbc7bbc071b6cL, MurmurHash3.hash64("The quick brown fox jumps over the lazy dog".getBytes("UTF8")));
+    assertEquals(0l, MurmurHash3.hash64(new byte[0]));
+
+    byte[] bytes = new byte[40];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) (i * 31);
+    }
+    // all tail lengths, hashing a range of a larger array
+    Set<Long> hashCodes = new HashSet<Long>();
+    for (int length = 0; length <= 33; length++) {
+      long hashCode = MurmurHash3.hash64(bytes, 3, length, 0);
+      byte[] range = new byte[length];
+      System.arraycopy(bytes, 3, range, 0, length);
+      assertEquals(hashCode, MurmurHash3.hash64(range));
+      assertTrue(hashCodes.add(hashCode));
+    }
+  }
+
+  @Test
+  public void testBucketMapping() throws Exception {
+    int capacity = 1000;
+
+    Set<Long> maskPositions = new HashSet<Long>();
+    Set<Long> positions = new HashSet<Long>();
+    for (long hashCode = 0; hashCode < 100000; hashCode++) {
+      maskPositions.add(Hashtable.calculatePosition(hashCode, capacity, Hashtable.BUCKET_MAPPING_MASK));
+      long position = Hashtable.calculatePosition(hashCode, capacity, Hashtable.BUCKET_MAPPING_MULTIPLY_SHIFT);
+      assertTrue(position >= 0 && position < capacity);
+      positions.add(position);
+    }
+    // 999 has 8 bits set
+    assertEquals(256, maskPositions.size());
+    assertEquals(capacity, positions.size());
+
+    // only high bits differ
+    positions.clear();
+    for (long hashCode = 0; hashCode < 100000; hashCode++) {
+      positions.add(Hashtable.calculatePosition(hashCode << 40, capacity, Hashtable.BUCKET_MAPPING_MULTIPLY_SHIFT));
+    }
+    assertEquals(capacity, positions.size());
+
+    // the largest capacity does not overflow
+    for (long hashCode = Long.MIN_VALUE; hashCode < Long.MAX_VALUE - Long.MAX_VALUE / 1000; hashCode += Long.MAX_VALUE / 1000) {
+      long position = Hashtable.calculatePosition(hashCode, Integer.MAX_VALUE, Hashtable.BUCKET_MAPPING_MULTIPLY_SHIFT);
+      assertTrue(position >= 0 && position < Integer.MAX_VALUE);
+    }
+  }
+
+  @Test
+  public void testLegacyBucketMapping() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testLegacyBucketMapping"));
+    configuration.setInitialCapacity(1000);
+
+    Store store = new Store(configuration);
+    store.open();
+    assertEquals(Metadata.KEY_HASH_FUNCTION_UNSPECIFIED, store.getKeyHashFunction());
+    Accessor accessor = store.borrowAccessor();
+    Hashtable.Header header = new Hashtable.Header();
+    accessor.getHashtable().readHeader(header);
+    assertEquals(Hashtable.BUCKET_MAPPING_MULTIPLY_SHIFT, header.getBucketMapping());
+    store.returnAccessor(accessor);
+    store.close();
+
+    // hashtable header as written before bucket mappings
+    RandomAccessFile hashtable = new RandomAccessFile(new File(configuration.getDataPath(), "00000000.ht"), "rw");
+    hashtable.seek(4);
+    hashtable.writeInt(0);
+    hashtable.close();
+
+    store = new Store(configuration);
+    store.open();
+    accessor = store.borrowAccessor();
+    accessor.getHashtable().readHeader(header);
+    assertEquals(Hashtable.BUCKET_MAPPING_MASK, header.getBucketMapping());
+    assertEquals(Hashtable.HEADER_BYTE_SIZE + Hashtable.Posting.POSTING_BYTE_SIZE * (1234 & 999), accessor.getHashtable().calculateHashCodePostingOffset(1234));
+    for (int i = 0; i < 100; i++) {
+      byte[] key = ("key " + i).getBytes("UTF8");
+      store.put(accessor, key, MurmurHash3.hash64(key), key, 1l);
+    }
+    for (int i = 0; i < 100; i++) {
+      byte[] key = ("key " + i).getBytes("UTF8");
+      assertTrue(Arrays.equals(key, store.get(accessor, key, MurmurHash3.hash64(key))));
+    }
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  @Test
+  public void testKeyHashFunction() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testKeyHashFunction"));
+    configuration.setInitialCapacity(100);
+    configuration.setKeyHashFunction(Metadata.KEY_HASH_FUNCTION_MURMUR3);
+
+    Store store = new Store(configuration);
+    store.open();
+    assertEquals(Metadata.KEY_HASH_FUNCTION_MURMUR3, store.getKeyHashFunction());
+    store.close();
+
+    // recorded when created, not affected by the configuration of later openings
+    configuration.setKeyHashFunction(Metadata.KEY_HASH_FUNCTION_UNSPECIFIED);
+    store = new Store(configuration);
+    store.open();
+    assertEquals(Metadata.KEY_HASH_FUNCTION_MURMUR3, store.getKeyHashFunction());
+    store.close();
+  }
+
+}
@@ -0,0 +1,171 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.junit.Test;
+import org.atri.platodb.store.data.FileHandler;
+import org.atri.platodb.store.data.platotrie.KeySlots;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author atri
+ * @since 2017-sep-15 23:02:18
+ */
+public class TestKeySlots extends StoreTest {
+
+  @Test
+  public void testKeySlots() throws Exception {
+
+    // the chains are the reference
+    Configuration chains = configuration("testKeySlots/chains");
+    Store store = new Store(chains);
+    store.open();
+    write(store);
+    List<String> expected = read(store);
+    store.close();
+
+    // key slots maintained while writing, growing from capacity 16
+    Configuration configuration = configuration("testKeySlots/slots");
+    configuration.setUsingKeySlots(true);
+    store = new Store(configuration);
+    store.open();
+    write(store);
+    assertResults(expected, read(store));
+    store.close();
+    assertTrue(keySlotsFile(configuration, 0).exists());
+
+    // reopened
+    store = new Store(configuration);
+    store.open();
+    assertResults(expected, read(store));
+    Accessor accessor = store.borrowAccessor();
+    int keySlotsId = accessor.getKeySlots().getVersionId();
+    assertTrue(keySlotsId > 0);
+    assertTrue(accessor.getKeySlots().getCapacity() >= 1024);
+    store.returnAccessor(accessor);
+    store.close();
+    assertFalse("Old key slots should be deleted", keySlotsFile(configuration, 0).exists());
+
+    // not closed, rebuilt from the keys partitions
+    RandomAccessFile keySlots = new RandomAccessFile(keySlotsFile(configuration, keySlotsId), "rw");
+    keySlots.seek(4 + 8);
+    keySlots.writeByte(1);
+    keySlots.close();
+    store = new Store(configuration);
+    store.open();
+    assertResults(expected, read(store));
+    store.close();
+    assertFalse(keySlotsFile(configuration, keySlotsId).exists());
+    assertTrue(keySlotsFile(configuration, keySlotsId + 1).exists());
+
+    // deleted when not used
+    configuration.setUsingKeySlots(false);
+    store = new Store(configuration);
+    store.open();
+    assertResults(expected, read(store));
+    store.close();
+    assertFalse(keySlotsFile(configuration, keySlotsId + 1).exists());
+
+    // built for a store written without key slots
+    chains.setUsingKeySlots(true);
+    store = new Store(chains);
+    store.open();
+    assertResults(expected, read(store));
+    store.close();
+  }
+
+  private void assertResults(List<String> expected, List<String> results) {
+    assertEquals(expected.size(), results.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i), results.get(i));
+    }
+  }
+
+  private Configuration configuration(String name) throws Exception {
+    Configuration configuration = new Configuration(getDirectory(name));
+    configuration.setInitialCapacity(16);
+    configuration.setKeysPartitionByteSize(10000);
+    return configuration;
+  }
+
+  private File keySlotsFile(Configuration configuration, int keySlotsId) {
+    return new File(configuration.getDataPath(), FileHandler.fileName(keySlotsId, KeySlots.SUFFIX));
+  }
+
+  private void write(Store store) throws Exception {
+    Accessor accessor = store.borrowAccessor();
+    for (int i = 0; i < 500; i++) {
+      assertNull(store.put(accessor, key(i), hashCode(i), value(i, 1), 1l));
+    }
+    // only keys with unique hash codes are replaced and removed
+    for (int i = 0; i < 100; i++) {
+      assertNotNull(store.put(accessor, key(i), hashCode(i), value(i, 2), 2l));
+    }
+    for (int i = 100; i < 200; i++) {
+      assertNotNull(store.remove(accessor, key(i), hashCode(i), 3l));
+    }
+    for (int i = 150; i < 200; i++) {
+      assertNull(store.put(accessor, key(i), hashCode(i), value(i, 4), 4l));
+    }
+    store.returnAccessor(accessor);
+  }
+
+  /**
+   * @return the result of get and contains key of all keys, and keys that never was put, in all revisions.
+   */
+  private List<String> read(Store store) throws Exception {
+    List<String> results = new ArrayList<String>();
+    Accessor accessor = store.borrowAccessor();
+    for (long revision = 0; revision <= 5; revision++) {
+      for (int i = 0; i < 600; i++) {
+        byte[] value = store.get(accessor, key(i), hashCode(i), revision);
+        results.add(revision + " " + i + " " + (value == null ? null : new String(value, "UTF8")) + " " + store.containsKey(accessor, key(i), hashCode(i), revision));
+      }
+    }
+    store.returnAccessor(accessor);
+    return results;
+  }
+
+  /**
+   * Keys 400-499 share hash codes with each other,
+   * keys 500-599 are never put and share hash codes with keys 0-99.
+   */
+  private long hashCode(int i) {
+    if (i < 400) {
+      return i;
+    } else if (i < 500) {
+      return 1000 + i % 7;
+    } else {
+      return i - 500;
+    }
+  }
+
+  private byte[] key(int i) throws Exception {
+    return ("key " + i).getBytes("UTF8");
+  }
+
+  private byte[] value(int i, long revision) throws Exception {
+    return ("value " + i + " revision " + revision).getBytes("UTF8");
+  }
+
+}
@@ -0,0 +1,160 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.junit.Test;
+import org.atri.platodb.store.data.PositionalFileAccessFactory;
+import org.atri.platodb.store.data.platotrie.KeysPartition;
+import org.atri.platodb.store.data.platotrie.ValuesPartition;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @author atri
+ * @since 2017-aug-24 22:14:50
+ */
+public class TestLargeValues extends StoreTest {
+
+  @Test
+  public void testLargeValues() throws Exception {
+    testLargeValues(createConfiguration("testLargeValues"));
+  }
+
+  @Test
+  public void testLargeValuesPositionalBackend() throws Exception {
+    Configuration configuration = createConfiguration("testLargeValuesPositional");
+    configuration.setFileAccessFactory(new PositionalFileAccessFactory(512));
+    testLargeValues(configuration);
+  }
+
+  /**
+   * Small thresholds so that large values spans multiple values partitions.
+   */
+  private Configuration createConfiguration(String name) throws IOException {
+    Configuration configuration = new Configuration(getDirectory(name));
+    configuration.setChunkedValueThresholdByteSize(1000);
+    configuration.setValueChunkByteSize(300);
+    configuration.setValuesPartitionByteSize(ValuesPartition.HEADER_BYTE_SIZE + 1100);
+    return configuration;
+  }
+
+  private void testLargeValues(Configuration configuration) throws Exception {
+
+    Random random = new Random(0);
+
+    byte[] small = new byte[1000];
+    random.nextBytes(small);
+    byte[] large = new byte[2500];
+    random.nextBytes(large);
+    byte[] streamed = new byte[4321];
+    random.nextBytes(streamed);
+
+    byte[] key = "key".getBytes("UTF8");
+    byte[] streamedKey = "streamed".getBytes("UTF8");
+
+    Store store = new Store(configuration);
+    store.open();
+    Accessor accessor = store.borrowAccessor();
+
+    // values up to the threshold are stored in a single posting
+
+    assertNull(store.put(accessor, key, 1l, small, 1l));
+    assertFalse(readValuePosting(store, accessor, key).isChunkManifest());
+    assertTrue(Arrays.equals(small, store.get(accessor, key, 1l)));
+    assertTrue(Arrays.equals(small, readFully(store.getInputStream(accessor, key, 1l))));
+
+    // larger values are chunked
+
+    assertTrue(Arrays.equals(small, store.put(accessor, key, 1l, large, 2l)));
+    ValuesPartition.Posting manifestPosting = readValuePosting(store, accessor, key);
+    assertTrue(manifestPosting.isChunkManifest());
+    ValuesPartition.ChunkManifest manifest = ValuesPartition.ChunkManifest.fromBytes(manifestPosting.getBytes());
+    assertEquals(9, manifest.getChunksCount());
+    assertEquals((long) large.length, manifest.getValueByteLength());
+    assertTrue("Chunks should span multiple partitions", manifest.getPartition(0) != manifest.getPartition(manifest.getChunksCount() - 1));
+
+    assertTrue(Arrays.equals(large, store.get(accessor, key, 1l)));
+    assertTrue(Arrays.equals(large, readFully(store.getInputStream(accessor, key, 1l))));
+
+    // streamed puts
+
+    store.put(accessor, streamedKey, 2l, new ByteArrayInputStream(streamed), 3l);
+    assertTrue(Arrays.equals(streamed, store.get(accessor, streamedKey, 2l)));
+    assertTrue(Arrays.equals(streamed, readFully(store.getInputStream(accessor, streamedKey, 2l))));
+
+    store.put(accessor, streamedKey, 2l, new ByteArrayInputStream(small), 4l);
+    assertFalse(readValuePosting(store, accessor, streamedKey).isChunkManifest());
+    assertTrue(Arrays.equals(small, store.get(accessor, streamedKey, 2l)));
+
+    store.put(accessor, streamedKey, 2l, new ByteArrayInputStream(new byte[0]), 5l);
+    assertTrue(store.containsKey(accessor, streamedKey, 2l));
+    assertNull(store.get(accessor, streamedKey, 2l));
+    assertNull(store.getInputStream(accessor, streamedKey, 2l));
+
+    // replaced and removed large values are marked as deleted, chunks included
+
+    assertTrue(Arrays.equals(large, store.remove(accessor, key, 1l, 6l)));
+    assertNull(store.get(accessor, key, 1l));
+    assertNull(store.getInputStream(accessor, key, 1l));
+
+    ValuesPartition.Posting chunk = new ValuesPartition.Posting();
+    for (int i = 0; i < manifest.getChunksCount(); i++) {
+      accessor.getValuesPartition(manifest.getPartition(i)).readPosting(chunk, manifest.getOffset(i));
+      assertEquals(ValuesPartition.Posting.OPTION_CHUNK, chunk.getOptions());
+      assertEquals(ValuesPartition.Posting.FLAG_DELETED, chunk.getFlag());
+      assertEquals(6l, chunk.getDeletedRevision());
+    }
+
+    assertNull(store.remove(accessor, streamedKey, 2l, 7l));
+
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  private ValuesPartition.Posting readValuePosting(Store store, Accessor accessor, byte[] key) throws IOException {
+    Cursor<KeysPartition.Posting> cursor = store.keys();
+    KeysPartition.Posting keyPosting = new KeysPartition.Posting();
+    while (cursor.next(accessor, keyPosting, Long.MAX_VALUE) != null) {
+      if (Arrays.equals(key, keyPosting.getBytes())) {
+        ValuesPartition.Posting valuePosting = new ValuesPartition.Posting();
+        accessor.getValuesPartition(keyPosting.getValuePostingPartition()).readPosting(valuePosting, keyPosting.getValuePostingPartitionOffset());
+        return valuePosting;
+      }
+    }
+    fail("No such key");
+    return null;
+  }
+
+  private byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[77];
+    int read;
+    while ((read = in.read(buf)) > -1) {
+      out.write(buf, 0, read);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+}
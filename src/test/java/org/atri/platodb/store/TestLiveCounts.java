@@ -0,0 +1,149 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.junit.Test;
+import org.atri.platodb.store.codec.DeflateCodec;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author atri
+ * @since 2017-sep-24 13:02:17
+ */
+public class TestLiveCounts extends StoreTest {
+
+  private static final int REVISIONS = 6;
+
+  @Test
+  public void testLiveCounts() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testLiveCounts"));
+    configuration.setInitialCapacity(10);
+    configuration.setValueCodec(new DeflateCodec());
+    configuration.setValueCompressionThresholdByteSize(10);
+    configuration.setChunkedValueThresholdByteSize(100);
+    configuration.setValueChunkByteSize(50);
+
+    long[] keys = new long[REVISIONS + 1];
+    long[] bytes = new long[REVISIONS + 1];
+    Map<Integer, byte[]> entries = new HashMap<Integer, byte[]>();
+
+    Store store = new Store(configuration);
+    store.open();
+    Accessor accessor = store.borrowAccessor();
+    for (int revision = 1; revision <= REVISIONS; revision++) {
+      for (int i = 0; i < 40; i++) {
+        if ((i + revision) % 5 == 0 && entries.containsKey(i)) {
+          store.remove(accessor, key(i), i % 7, revision);
+          entries.remove(i);
+        } else if ((i + revision) % 3 == 0) {
+          // new or replaced, null, small, compressed or chunked
+          byte[] value = (i + revision) % 4 == 0 ? null : new byte[(i * revision) % 150];
+          if (value != null) {
+            Arrays.fill(value, (byte) i);
+          }
+          store.put(accessor, key(i), i % 7, value, revision);
+          entries.put(i, value);
+        }
+      }
+      keys[revision] = entries.size();
+      for (Map.Entry<Integer, byte[]> entry : entries.entrySet()) {
+        bytes[revision] += key(entry.getKey()).length + (entry.getValue() == null ? 0 : entry.getValue().length);
+      }
+    }
+    assertCounts(store, accessor, keys, bytes);
+    store.returnAccessor(accessor);
+    store.close();
+
+    // read from file
+    assertTrue(LiveCounts.getFile(configuration.getDataPath()).exists());
+    store = new Store(configuration);
+    store.open();
+    assertFalse(LiveCounts.getFile(configuration.getDataPath()).exists());
+    accessor = store.borrowAccessor();
+    assertTrue(store.getLiveCounts(accessor).isKnown(1));
+    assertCounts(store, accessor, keys, bytes);
+    store.returnAccessor(accessor);
+    store.close();
+
+    // rebuilt as if the store was not closed, earlier revisions are counted by scanning
+    assertTrue(LiveCounts.getFile(configuration.getDataPath()).delete());
+    store = new Store(configuration);
+    store.open();
+    accessor = store.borrowAccessor();
+    assertFalse(store.getLiveCounts(accessor).isKnown(REVISIONS - 1));
+    assertTrue(store.getLiveCounts(accessor).isKnown(REVISIONS));
+    assertCounts(store, accessor, keys, bytes);
+
+    // and later revisions are counted as they are written
+    store.put(accessor, key(1000), 0, new byte[10], REVISIONS + 1);
+    assertEquals(keys[REVISIONS] + 1, store.count(accessor, REVISIONS + 1));
+    assertEquals(bytes[REVISIONS] + key(1000).length + 10, store.countBytes(accessor, Long.MAX_VALUE));
+    assertEquals(keys[REVISIONS], store.count(accessor, REVISIONS));
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  @Test
+  public void testForgettingRevisions() throws Exception {
+    RetentionManager retentionManager = new RetentionManager(5, 0);
+    LiveCounts liveCounts = new LiveCounts(Long.MIN_VALUE, 0, 0);
+    for (long revision = 1; revision <= 100; revision++) {
+      retentionManager.written(revision);
+      liveCounts.add(revision, 1, revision, retentionManager);
+      liveCounts.add(revision, 1, revision, retentionManager);
+    }
+    assertEquals(200, liveCounts.getKeys(Long.MAX_VALUE));
+    assertEquals(100 * 101, liveCounts.getBytes(Long.MAX_VALUE));
+    assertTrue(liveCounts.getFirstRevision() > 1);
+    assertTrue(liveCounts.getFirstRevision() <= 96);
+    for (long revision = 96; revision <= 100; revision++) {
+      assertTrue(liveCounts.isKnown(revision));
+      assertEquals(2 * revision, liveCounts.getKeys(revision));
+      assertEquals(revision * (revision + 1), liveCounts.getBytes(revision));
+    }
+    assertFalse(liveCounts.isKnown(1));
+
+    File file = new File(getDirectory("testForgettingRevisions"), "counts");
+    liveCounts.write(file);
+    LiveCounts read = LiveCounts.read(file);
+    assertEquals(liveCounts.getFirstRevision(), read.getFirstRevision());
+    for (long revision = liveCounts.getFirstRevision(); revision <= 100; revision++) {
+      assertEquals(liveCounts.getKeys(revision), read.getKeys(revision));
+      assertEquals(liveCounts.getBytes(revision), read.getBytes(revision));
+    }
+  }
+
+  private void assertCounts(Store store, Accessor accessor, long[] keys, long[] bytes) throws Exception {
+    for (int revision = 0; revision <= REVISIONS; revision++) {
+      assertEquals(keys[revision], store.count(accessor, revision));
+      assertEquals(bytes[revision], store.countBytes(accessor, revision));
+    }
+    assertEquals(keys[REVISIONS], store.count(accessor, Long.MAX_VALUE));
+    assertEquals(bytes[REVISIONS], store.countBytes(accessor, Long.MAX_VALUE));
+  }
+
+  private static byte[] key(int i) throws Exception {
+    return ("key" + i).getBytes("UTF8");
+  }
+
+}
@@ -0,0 +1,176 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.junit.Test;
+import org.atri.platodb.store.data.FileHandler.Posting;
+import org.atri.platodb.store.data.platotrie.KeysPartition;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author atri
+ * @since 2017-sep-25 22:14:36
+ */
+public class TestLivenessMap extends StoreTest {
+
+  private static final int REVISIONS = 5;
+
+  @Test
+  public void testSeekLive() throws Exception {
+    LivenessMap map = new LivenessMap(10);
+    for (int i = 0; i < 200; i++) {
+      map.appended(10 + i * 20, 20, i < 100 ? Posting.FLAG_DELETED : Posting.FLAG_IN_USE, i < 100 ? 3 : -1);
+    }
+    map.relocated(10 + 100 * 20);
+    map.deleted(10 + 150 * 20, 7);
+    assertEquals(200, map.size());
+    assertEquals(10 + 200 * 20, map.getEnd());
+
+    // deleted postings are only skipped in revisions they are deleted in
+    assertEquals(10, map.seekLive(10, 2));
+    assertEquals(10 + 101 * 20, map.seekLive(10, 3));
+    assertEquals(10 + 150 * 20, map.seekLive(10 + 150 * 20, 6));
+    assertEquals(10 + 151 * 20, map.seekLive(10 + 150 * 20, 7));
+    // not the start of a posting
+    assertEquals(15, map.seekLive(15, 3));
+
+    assertTrue(map.isDeletedAtOrBefore(50, 3));
+    assertFalse(map.isDeletedAtOrBefore(50, 2));
+    assertTrue(map.isRelocated(100));
+    assertEquals(20, map.getByteSize(199));
+
+    try {
+      map.appended(0, 20, Posting.FLAG_IN_USE, -1);
+      fail("Expected an exception as the posting is not appended at the end");
+    } catch (StoreInconsistencyException e) {
+      // expected
+    }
+
+    File file = new File(getDirectory("testSeekLive"), "map");
+    map.write(file);
+    LivenessMap read = LivenessMap.read(file);
+    assertEquals(map.size(), read.size());
+    assertEquals(map.getEnd(), read.getEnd());
+    for (long offset = 10; offset < map.getEnd(); offset += 20) {
+      for (long revision = 0; revision <= 8; revision++) {
+        assertEquals(map.seekLive(offset, revision), read.seekLive(offset, revision));
+      }
+    }
+  }
+
+  @Test
+  public void testLivenessMaps() throws Exception {
+    Configuration configuration = configuration("testLivenessMaps/maps");
+    configuration.setUsingLivenessMaps(true);
+    Store store = new Store(configuration);
+    store.open();
+    Store reference = new Store(configuration("testLivenessMaps/reference"));
+    reference.open();
+    write(store);
+    write(reference);
+    assertTrue(new File(configuration.getDataPath(), "00000001.k").exists());
+    assertKeys(reference, store);
+    store.close();
+
+    // read from file
+    assertTrue(LivenessMap.getFile(configuration.getDataPath(), 0).exists());
+    store = new Store(configuration);
+    store.open();
+    assertFalse(LivenessMap.getFile(configuration.getDataPath(), 0).exists());
+    assertNotNull(store.getLivenessMap(0));
+    assertKeys(reference, store);
+    store.close();
+
+    // rebuilt as if the store was not closed
+    assertTrue(LivenessMap.getFile(configuration.getDataPath(), 0).delete());
+    store = new Store(configuration);
+    store.open();
+    assertKeys(reference, store);
+
+    // and compacted
+    store.setOldestRetainedRevision(3);
+    reference.setOldestRetainedRevision(3);
+    store.optimize();
+    assertTrue(store.getCompactor().getPostingsRelocated() > 0);
+    // relocated postings are appended, so only the order changes
+    for (long revision = 3; revision <= REVISIONS; revision++) {
+      List<String> expected = keys(reference, revision);
+      List<String> keys = keys(store, revision);
+      Collections.sort(expected);
+      Collections.sort(keys);
+      assertEquals(expected, keys);
+    }
+    store.close();
+    reference.close();
+  }
+
+  private Configuration configuration(String path) throws Exception {
+    Configuration configuration = new Configuration(getDirectory(path));
+    configuration.setInitialCapacity(100);
+    configuration.setKeysPartitionByteSize(10000);
+    configuration.setValueCodec(null);
+    configuration.setScanBlockByteSize(100);
+    return configuration;
+  }
+
+  private void write(Store store) throws Exception {
+    Accessor accessor = store.borrowAccessor();
+    boolean[] inUse = new boolean[300];
+    for (int revision = 1; revision <= REVISIONS; revision++) {
+      for (int i = 0; i < 300; i++) {
+        if ((i + revision) % 4 == 0 && inUse[i]) {
+          store.remove(accessor, key(i), i, revision);
+          inUse[i] = false;
+        } else if (revision == 1 || (i + revision) % 3 == 0) {
+          store.put(accessor, key(i), i, ("value " + i + " revision " + revision).getBytes("UTF8"), revision);
+          inUse[i] = true;
+        }
+      }
+    }
+    store.returnAccessor(accessor);
+  }
+
+  private void assertKeys(Store reference, Store store) throws Exception {
+    for (long revision = 0; revision <= REVISIONS; revision++) {
+      assertEquals(keys(reference, revision), keys(store, revision));
+    }
+    assertEquals(keys(reference, Long.MAX_VALUE), keys(store, Long.MAX_VALUE));
+  }
+
+  private List<String> keys(Store store, long revision) throws Exception {
+    List<String> keys = new ArrayList<String>();
+    Accessor accessor = store.borrowAccessor();
+    Cursor<KeysPartition.Posting> cursor = store.keys();
+    KeysPartition.Posting posting = new KeysPartition.Posting();
+    while (cursor.next(accessor, posting, revision) != null) {
+      keys.add(new String(posting.getBytes(), "UTF8") + " " + new String(store.getValue(accessor, posting), "UTF8"));
+    }
+    store.returnAccessor(accessor);
+    return keys;
+  }
+
+  private static byte[] key(int i) throws Exception {
+    return ("key" + i).getBytes("UTF8");
+  }
+
+}
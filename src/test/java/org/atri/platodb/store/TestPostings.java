@@ -26,7 +26,11 @@ import org.atri.platodb.store.data.platotrie.ValuesPartition;
 import org.atri.platodb.store.data.FileHandler;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * @author atri
@@ -119,8 +123,9 @@ public class TestPostings extends StoreTest {
     assertEquals(-1, kp.getDeletedRevision());
     assertTrue(Arrays.equals(keys[0], kp.getBytes()));
     assertEquals(hashes[0], kp.getKeyHashCode());
-    assertTrue(-1 < kp.getNextKeyPostingPartition());
-    assertTrue(-1 < kp.getNextKeyPostingPartitionOffset());
+    // only the posting in use in the live chain
+    assertEquals(-1, kp.getNextKeyPostingPartition());
+    assertEquals(-1, kp.getNextKeyPostingPartitionOffset());
 
     vp = new ValuesPartition.Posting();
     accessor.getValuesPartition(kp.getValuePostingPartition()).readPosting(vp, kp.getValuePostingPartitionOffset());
@@ -131,8 +136,8 @@ public class TestPostings extends StoreTest {
     assertTrue(Arrays.equals(values[1], vp.getBytes()));
 
 
-    // then the old posting
-    accessor.getKeysPartition(kp.getNextKeyPostingPartition(), true).readPosting(kp, kp.getNextKeyPostingPartitionOffset());
+    // the old posting in the history chain
+    accessor.getKeysPartition(hcp.getFirstHistoryKeyPostingPartition(), true).readPosting(kp, hcp.getFirstHistoryKeyPostingPartitionOffset());
     assertEquals(FileHandler.Posting.FLAG_DELETED, kp.getFlag());
     assertEquals(revision - 1, kp.getCreatedRevision());
     assertEquals(revision, kp.getDeletedRevision());
@@ -183,8 +188,8 @@ public class TestPostings extends StoreTest {
     assertEquals(-1, kp.getDeletedRevision());
     assertTrue(Arrays.equals(keys[0], kp.getBytes()));
     assertEquals(hashes[0], kp.getKeyHashCode());
-    assertTrue(-1 < kp.getNextKeyPostingPartition());
-    assertTrue(-1 < kp.getNextKeyPostingPartitionOffset());
+    assertEquals(-1, kp.getNextKeyPostingPartition());
+    assertEquals(-1, kp.getNextKeyPostingPartitionOffset());
 
     vp = new ValuesPartition.Posting();
     accessor.getValuesPartition(kp.getValuePostingPartition()).readPosting(vp, kp.getValuePostingPartitionOffset());
@@ -195,8 +200,8 @@ public class TestPostings extends StoreTest {
     assertTrue(Arrays.equals(values[2], vp.getBytes()));
 
 
-    // then the older posting
-    accessor.getKeysPartition(kp.getNextKeyPostingPartition(), true).readPosting(kp, kp.getNextKeyPostingPartitionOffset());
+    // the history chain, most recently deleted first
+    accessor.getKeysPartition(hcp.getFirstHistoryKeyPostingPartition(), true).readPosting(kp, hcp.getFirstHistoryKeyPostingPartitionOffset());
     assertEquals(FileHandler.Posting.FLAG_DELETED, kp.getFlag());
     assertEquals(revision - 1, kp.getCreatedRevision());
     assertEquals(revision, kp.getDeletedRevision());
@@ -332,6 +337,8 @@ public class TestPostings extends StoreTest {
     assertEquals(-1, vp.getDeletedRevision());
     assertTrue(Arrays.equals(values[1], vp.getBytes()));
 
+    // the replaced posting is not kept in the history
+    assertEquals(-1, hcp.getFirstHistoryKeyPostingPartition());
 
     store.returnAccessor(accessor);
     // todo test delete postings
@@ -339,5 +346,132 @@ public class TestPostings extends StoreTest {
     store.close();
   }
 
+  @Test
+  public void testHistoryChains() throws IOException {
+
+    Configuration configuration = new Configuration(getDirectory("testHistoryChains"));
+    configuration.setUsingDurablePostingLinks(true);
+    Store store = new Store(configuration);
+    store.open();
+
+    // three keys per hash code
+    List<Map<String, String>> revisions = new ArrayList<Map<String, String>>();
+    Map<String, String> revision = new HashMap<String, String>();
+    revisions.add(new HashMap<String, String>(revision));
+
+    Accessor accessor = store.borrowAccessor();
+    for (int i = 0; i < 30; i++) {
+      put(store, accessor, revision, i, 1);
+    }
+    revisions.add(new HashMap<String, String>(revision));
+    for (int i = 0; i < 10; i++) {
+      put(store, accessor, revision, i, 2);
+    }
+    revisions.add(new HashMap<String, String>(revision));
+    for (int i = 10; i < 20; i++) {
+      remove(store, accessor, revision, i, 3);
+    }
+    revisions.add(new HashMap<String, String>(revision));
+    for (int i = 10; i < 15; i++) {
+      put(store, accessor, revision, i, 4);
+    }
+    revisions.add(new HashMap<String, String>(revision));
+    for (int i = 0; i < 5; i++) {
+      put(store, accessor, revision, i, 5);
+    }
+    for (int i = 20; i < 25; i++) {
+      remove(store, accessor, revision, i, 5);
+    }
+    revisions.add(new HashMap<String, String>(revision));
+
+    assertRevisions(store, accessor, revisions);
+    assertChains(accessor);
+    store.returnAccessor(accessor);
+    store.close();
+
+    // the latest revision is not known until written to
+    store = new Store(configuration);
+    store.open();
+    accessor = store.borrowAccessor();
+    assertRevisions(store, accessor, revisions);
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  private void put(Store store, Accessor accessor, Map<String, String> revision, int key, long storeRevision) throws IOException {
+    String value = "value " + key + " revision " + storeRevision;
+    byte[] previous = store.put(accessor, ("key " + key).getBytes(), key % 10, value.getBytes(), storeRevision);
+    assertEquals(revision.put("key " + key, value), previous == null ? null : new String(previous));
+  }
+
+  private void remove(Store store, Accessor accessor, Map<String, String> revision, int key, long storeRevision) throws IOException {
+    byte[] previous = store.remove(accessor, ("key " + key).getBytes(), key % 10, storeRevision);
+    assertEquals(revision.remove("key " + key), new String(previous));
+  }
+
+  private void assertRevisions(Store store, Accessor accessor, List<Map<String, String>> revisions) throws IOException {
+    byte[][] keys = new byte[30][];
+    long[] hashCodes = new long[30];
+    for (int i = 0; i < 30; i++) {
+      keys[i] = ("key " + i).getBytes();
+      hashCodes[i] = i % 10;
+    }
+    for (int storeRevision = 0; storeRevision <= revisions.size(); storeRevision++) {
+      Map<String, String> expected = revisions.get(Math.min(storeRevision, revisions.size() - 1));
+      long readRevision = storeRevision == revisions.size() ? Long.MAX_VALUE : storeRevision;
+      byte[][] values = store.getAll(accessor, keys, hashCodes, readRevision);
+      for (int i = 0; i < 30; i++) {
+        String value = expected.get("key " + i);
+        byte[] stored = store.get(accessor, keys[i], hashCodes[i], readRevision);
+        assertEquals("key " + i + " revision " + readRevision, value, stored == null ? null : new String(stored));
+        assertEquals(value, values[i] == null ? null : new String(values[i]));
+        assertEquals(value != null, store.containsKey(accessor, keys[i], hashCodes[i], readRevision));
+      }
+    }
+  }
+
+  /**
+   * Asserts that the live chains only contain key postings in use
+   * and that the history chains only contain deleted key postings, most recently deleted first.
+   */
+  private void assertChains(Accessor accessor) throws IOException {
+    HashCodesPartition.Posting hcp = new HashCodesPartition.Posting();
+    KeysPartition.Posting kp = new KeysPartition.Posting();
+    for (long hashCode = 0; hashCode < 10; hashCode++) {
+      Hashtable.Posting htp = new Hashtable.Posting();
+      accessor.getHashtable().readPosting(htp, accessor.getHashtable().calculateHashCodePostingOffset(hashCode));
+      int partition = htp.getHashCodePostingPartition();
+      long offset = htp.getHashCodePostingPartitionOffset();
+      do {
+        accessor.getHashCodesPartition(partition).readPosting(hcp, offset);
+        partition = hcp.getNextPostingPartition();
+        offset = hcp.getNextPostingPartitionOffset();
+      } while (hcp.getKeyHashCode() != hashCode);
+
+      int live = 0;
+      partition = hcp.getFirstKeyPostingPartition();
+      offset = hcp.getFirstKeyPostingPartitionOffset();
+      while (partition >= 0) {
+        accessor.getKeysPartition(partition, true).readPosting(kp, offset);
+        assertEquals(FileHandler.Posting.FLAG_IN_USE, kp.getFlag());
+        live++;
+        partition = kp.getNextKeyPostingPartition();
+        offset = kp.getNextKeyPostingPartitionOffset();
+      }
+      assertTrue(live <= 3);
+
+      long deletedRevision = Long.MAX_VALUE;
+      partition = hcp.getFirstHistoryKeyPostingPartition();
+      offset = hcp.getFirstHistoryKeyPostingPartitionOffset();
+      while (partition >= 0) {
+        accessor.getKeysPartition(partition, true).readPosting(kp, offset);
+        assertEquals(FileHandler.Posting.FLAG_DELETED, kp.getFlag());
+        assertTrue(kp.getDeletedRevision() <= deletedRevision);
+        deletedRevision = kp.getDeletedRevision();
+        partition = kp.getNextKeyPostingPartition();
+        offset = kp.getNextKeyPostingPartitionOffset();
+      }
+    }
+  }
 
-}
\ No newline at end of file
+}
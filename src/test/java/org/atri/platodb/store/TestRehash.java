@@ -1,9 +1,14 @@
 package org.atri.platodb.store;
 
 import org.junit.Test;
+import org.atri.platodb.store.data.Metadata;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 /**
@@ -18,6 +23,7 @@ public class TestRehash extends StoreTest {
 
     Configuration configuration = new Configuration(getDirectory("rehash"));
     configuration.setInitialCapacity(20);
+    configuration.setAutomaticRehashing(false);
     Store store = new Store(configuration);
     store.open();
 
@@ -77,4 +83,241 @@ public class TestRehash extends StoreTest {
     store.close();
 
   }
+
+  @Test
+  public void testSharedMetadataHeader() throws IOException {
+
+    Configuration configuration = new Configuration(getDirectory("rehashSharedMetadataHeader"));
+    configuration.setInitialCapacity(20);
+    configuration.setAutomaticRehashing(false);
+    Store store = new Store(configuration);
+    store.open();
+
+    Accessor accessor = store.borrowAccessor();
+    Accessor other = store.borrowAccessor();
+    assertNotSame(accessor, other);
+
+    for (int i = 0; i < 10; i++) {
+      store.put(accessor, new byte[]{(byte) i}, i, new byte[]{(byte) i}, 0l);
+    }
+    long generation = accessor.getMetadata().getGeneration();
+    assertEquals(generation, other.getMetadata().getGeneration());
+
+    // writing an unchanged header does not touch the file
+    File metadataFile = new File(configuration.getDataPath(), "00000000." + Metadata.SUFFIX);
+    RandomAccessFile raf = new RandomAccessFile(metadataFile, "rw");
+    raf.writeInt(-1);
+    raf.close();
+    Metadata.Header mdh = new Metadata.Header();
+    accessor.getMetadata().readHeader(mdh);
+    assertEquals(Metadata.FILE_FORMAT_VERSION, mdh.getFileFormatVersion());
+    accessor.getMetadata().writeHeader(mdh);
+    raf = new RandomAccessFile(metadataFile, "r");
+    assertEquals(-1, raf.readInt());
+    raf.close();
+    assertEquals(generation, accessor.getMetadata().getGeneration());
+
+    // the revision is not a new generation
+    accessor.increaseStoreRevision();
+    assertEquals(generation, accessor.getMetadata().getGeneration());
+    other.getMetadata().readHeader(mdh);
+    assertEquals(1l, mdh.getStoreRevision());
+    raf = new RandomAccessFile(metadataFile, "r");
+    assertEquals(Metadata.FILE_FORMAT_VERSION, raf.readInt());
+    assertEquals(1l, raf.readLong());
+    raf.close();
+
+    // rehash is seen by the other accessor
+    assertEquals(0, other.getHashtable().getVersionId());
+    store.rehash(accessor, 40);
+    assertTrue(accessor.getMetadata().getGeneration() > generation);
+    assertEquals(1, other.getHashtable().getVersionId());
+    for (int i = 0; i < 10; i++) {
+      assertTrue(Arrays.equals(new byte[]{(byte) i}, store.get(other, new byte[]{(byte) i}, i)));
+    }
+
+    store.returnAccessor(other);
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  @Test
+  public void testIncrementalRehash() throws Exception {
+
+    // never rehashed, the reference
+    Configuration referenceConfiguration = new Configuration(getDirectory("incrementalRehash/reference"));
+    referenceConfiguration.setInitialCapacity(10000);
+    Store reference = new Store(referenceConfiguration);
+    reference.open();
+
+    Configuration configuration = new Configuration(getDirectory("incrementalRehash/store"));
+    configuration.setInitialCapacity(50);
+    configuration.setAutomaticRehashing(false);
+    Store store = new Store(configuration);
+    store.open();
+
+    write(reference, 0, 0, 100);
+    write(store, 0, 0, 100);
+    write(reference, 0, 400, 450);
+    write(store, 0, 400, 450);
+    assertFalse(store.isRehashing());
+
+    Accessor accessor = store.borrowAccessor();
+    store.startRehash(accessor, 200);
+    assertTrue(store.isRehashing());
+    assertEquals(0, accessor.getHashtable().getVersionId());
+    assertEquals(1, accessor.getRehashingHashtable().getVersionId());
+
+    // read and written in between batches
+    int batches = 0;
+    while (!store.rehashIncrementally(accessor, 7)) {
+      batches++;
+      write(reference, batches, 100 + batches * 10, 110 + batches * 10);
+      write(store, batches, 100 + batches * 10, 110 + batches * 10);
+      assertResults(read(reference), read(store));
+    }
+    assertEquals(50 / 7, batches);
+    assertFalse(store.isRehashing());
+    assertEquals(1, accessor.getHashtable().getVersionId());
+    assertEquals(200, accessor.getHashtable().getPostingsCapacity());
+    assertNull(accessor.getRehashingHashtable());
+    assertResults(read(reference), read(store));
+
+    // closed while rehashing
+    store.startRehash(accessor, 500);
+    assertFalse(store.rehashIncrementally(accessor, 150));
+    store.returnAccessor(accessor);
+    store.close();
+
+    // as if the store crashed after rehashing positions it did not record
+    RandomAccessFile metadata = new RandomAccessFile(new File(configuration.getDataPath(), "00000000." + Metadata.SUFFIX), "rw");
+    metadata.seek(48);
+    assertEquals(150, metadata.readInt());
+    metadata.seek(48);
+    metadata.writeInt(50);
+    metadata.close();
+
+    store = new Store(configuration);
+    store.open();
+    assertTrue(store.isRehashing());
+    accessor = store.borrowAccessor();
+    // changes the postings of positions that was rehashed before the crash
+    write(reference, 10, 200, 300);
+    write(store, 10, 200, 300);
+    assertResults(read(reference), read(store));
+    store.rehash(accessor, 1000);
+    assertFalse(store.isRehashing());
+    assertEquals(3, accessor.getHashtable().getVersionId());
+    assertResults(read(reference), read(store));
+    store.returnAccessor(accessor);
+    store.close();
+
+    reference.close();
+  }
+
+  @Test
+  public void testAutomaticRehash() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("automaticRehash"));
+    configuration.setAutomaticRehashing(true);
+    configuration.setInitialCapacity(16);
+    configuration.setRehashBatchPositions(2);
+    Store store = new Store(configuration);
+    store.open();
+
+    Accessor accessor = store.borrowAccessor();
+    for (int i = 0; i < 2000; i++) {
+      store.put(accessor, key(i), i, key(i), 1l);
+      if (i % 100 == 0) {
+        for (int j = 0; j <= i; j++) {
+          assertTrue(Arrays.equals(key(j), store.get(accessor, key(j), j)));
+        }
+      }
+    }
+    assertTrue(accessor.getHashtable().getVersionId() > 0);
+    store.returnAccessor(accessor);
+    // possibly while rehashing
+    store.close();
+
+    store = new Store(configuration);
+    store.open();
+    accessor = store.borrowAccessor();
+    for (int i = 0; i < 2000; i++) {
+      assertTrue(Arrays.equals(key(i), store.get(accessor, key(i), i)));
+    }
+    long timeout = System.currentTimeMillis() + 10000;
+    while (store.isRehashing()) {
+      assertTrue("Rehash did not finish", System.currentTimeMillis() < timeout);
+      Thread.sleep(10);
+    }
+    Metadata.Header mdh = new Metadata.Header();
+    accessor.getMetadata().readHeader(mdh);
+    assertEquals(2000, mdh.getHashCodePostingsCount());
+    assertTrue(accessor.getHashtable().getPostingsCapacity() > 2000);
+    for (int i = 0; i < 2000; i++) {
+      assertTrue(Arrays.equals(key(i), store.get(accessor, key(i), i)));
+    }
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  private void assertResults(List<String> expected, List<String> results) {
+    assertEquals(expected.size(), results.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i), results.get(i));
+    }
+  }
+
+  /**
+   * Puts keys never put before and, in the next revision, replaces and removes some older keys with unique hash codes.
+   * Removed keys are never put again.
+   */
+  private void write(Store store, int step, int from, int to) throws Exception {
+    Accessor accessor = store.borrowAccessor();
+    long revision = 1 + step * 2;
+    for (int i = from; i < to; i++) {
+      assertNull(store.put(accessor, key(i), hashCode(i), value(i, revision), revision));
+    }
+    for (int i = step; i < Math.min(from, 400); i += 13) {
+      if (store.containsKey(accessor, key(i), hashCode(i))) {
+        if (i % 2 == 0) {
+          store.remove(accessor, key(i), hashCode(i), revision + 1);
+        } else {
+          store.put(accessor, key(i), hashCode(i), value(i, revision + 1), revision + 1);
+        }
+      }
+    }
+    store.returnAccessor(accessor);
+  }
+
+  /**
+   * @return the result of get and contains key of all keys in all revisions.
+   */
+  private List<String> read(Store store) throws Exception {
+    List<String> results = new ArrayList<String>();
+    Accessor accessor = store.borrowAccessor();
+    for (long revision = 0; revision <= 40; revision += 3) {
+      for (int i = 0; i < 500; i++) {
+        byte[] value = store.get(accessor, key(i), hashCode(i), revision);
+        results.add(revision + " " + i + " " + (value == null ? null : new String(value, "UTF8")) + " " + store.containsKey(accessor, key(i), hashCode(i), revision));
+      }
+    }
+    store.returnAccessor(accessor);
+    return results;
+  }
+
+  /**
+   * Keys 400 and above share hash codes, they are never replaced or removed.
+   */
+  private long hashCode(int i) {
+    return i < 400 ? i : 1000 + i % 7;
+  }
+
+  private byte[] key(int i) throws Exception {
+    return ("key " + i).getBytes("UTF8");
+  }
+
+  private byte[] value(int i, long revision) throws Exception {
+    return ("value " + i + " revision " + revision).getBytes("UTF8");
+  }
+
 }
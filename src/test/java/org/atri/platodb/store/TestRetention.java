@@ -0,0 +1,126 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.junit.Test;
+
+/**
+ * @author atri
+ * @since 2017-sep-20 23:31:08
+ */
+public class TestRetention extends StoreTest {
+
+  @Test
+  public void testRetainedRevisions() throws Exception {
+    RetentionManager retention = new RetentionManager(3, 0);
+    assertEquals(Long.MIN_VALUE, retention.getOldestRetainedRevision());
+    for (long revision = 1; revision <= 10; revision++) {
+      retention.written(revision);
+    }
+    assertEquals(10, retention.getLatestRevision());
+    assertEquals(8, retention.getOldestRetainedRevision());
+
+    RetentionManager.Pin pin = retention.pin(5);
+    RetentionManager.Pin pin2 = retention.pin(5);
+    assertEquals(5, retention.getOldestRetainedRevision());
+    pin.release();
+    pin.release();
+    assertEquals(5, retention.getOldestRetainedRevision());
+    pin2.release();
+    assertEquals(8, retention.getOldestRetainedRevision());
+
+    // the most retaining policy wins
+    retention.setOldestRetainedRevision(6);
+    assertEquals(6, retention.getOldestRetainedRevision());
+    retention.setOldestRetainedRevision(9);
+    assertEquals(8, retention.getOldestRetainedRevision());
+  }
+
+  @Test
+  public void testRetentionTime() throws Exception {
+    RetentionManager retention = new RetentionManager(0, 200);
+    retention.written(1);
+    assertEquals(Long.MIN_VALUE, retention.getOldestRetainedRevision());
+    Thread.sleep(300);
+    retention.written(2);
+    // revision 1 was current until just now
+    assertEquals(1, retention.getOldestRetainedRevision());
+    Thread.sleep(300);
+    assertEquals(2, retention.getOldestRetainedRevision());
+  }
+
+  @Test
+  public void testNoPolicy() throws Exception {
+    RetentionManager retention = new RetentionManager(0, 0);
+    retention.written(10);
+    retention.pin(5);
+    assertEquals(Long.MIN_VALUE, retention.getOldestRetainedRevision());
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testRetention"));
+    configuration.setInitialCapacity(16);
+    configuration.setKeysPartitionByteSize(4000);
+    configuration.setValuesPartitionByteSize(4000);
+    configuration.setRetainedRevisions(1);
+    Store store = new Store(configuration);
+    store.open();
+    Accessor accessor = store.borrowAccessor();
+    for (int i = 0; i < 200; i++) {
+      store.put(accessor, key(i), i, value(i, 1), 1l);
+    }
+    for (int i = 0; i < 200; i++) {
+      store.put(accessor, key(i), i, value(i, 2), 2l);
+    }
+    store.returnAccessor(accessor);
+    assertEquals(2, store.getOldestRetainedRevision());
+
+    // a scan pins its revision
+    Scan scan = store.scan(1, true);
+    assertEquals(1, store.getOldestRetainedRevision());
+    store.optimize();
+    assertEquals(0, store.getCompactor().getPartitionsReclaimed());
+    int entries = 0;
+    while (scan.next()) {
+      assertEquals(new String(value(entries, 1), "UTF8"), new String(scan.getValue(), "UTF8"));
+      entries++;
+    }
+    assertEquals(200, entries);
+    assertEquals(2, store.getOldestRetainedRevision());
+
+    store.optimize();
+    assertTrue(store.getCompactor().getPartitionsReclaimed() > 0);
+    accessor = store.borrowAccessor();
+    for (int i = 0; i < 200; i++) {
+      assertEquals(new String(value(i, 2), "UTF8"), new String(store.get(accessor, key(i), i, 2l), "UTF8"));
+    }
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  private byte[] key(int i) throws Exception {
+    return ("key " + i).getBytes("UTF8");
+  }
+
+  private byte[] value(int i, long revision) throws Exception {
+    return ("value " + i + " revision " + revision).getBytes("UTF8");
+  }
+
+}
@@ -0,0 +1,178 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.junit.Test;
+import org.atri.platodb.store.data.platotrie.KeysPartition;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * @author atri
+ * @since 2017-sep-12 00:05:31
+ */
+public class TestScan extends StoreTest {
+
+  @Test
+  public void testScan() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testScan"));
+    configuration.setInitialCapacity(100);
+    configuration.setKeysPartitionByteSize(10000);
+    configuration.setValuesPartitionByteSize(20000);
+    configuration.setValueCodec(null);
+    // blocks smaller than some postings, batches not a divisor of the number of keys
+    configuration.setScanBlockByteSize(100);
+    configuration.setScanBatchSize(7);
+    configuration.setChunkedValueThresholdByteSize(1000);
+    configuration.setValueChunkByteSize(400);
+
+    Store store = new Store(configuration);
+    store.open();
+    Accessor accessor = store.borrowAccessor();
+    for (int i = 0; i < 300; i++) {
+      assertNull(store.put(accessor, key(i), i, value(i), 1l));
+    }
+    for (int i = 0; i < 300; i += 3) {
+      store.remove(accessor, key(i), i, 2l);
+    }
+    assertTrue(new File(configuration.getDataPath(), "00000001.k").exists());
+
+    for (long revision = 1; revision <= 2; revision++) {
+      Cursor<KeysPartition.Posting> keys = store.keys();
+      KeysPartition.Posting posting = new KeysPartition.Posting();
+      Scan scan = store.scan(revision, true);
+      int entries = 0;
+      while (keys.next(accessor, posting, revision) != null) {
+        assertTrue(scan.next());
+        assertTrue(Arrays.equals(posting.getBytes(), scan.getKey()));
+        assertTrue(Arrays.equals(store.getValue(accessor, posting), scan.getValue()));
+        entries++;
+      }
+      assertFalse(scan.next());
+      assertEquals(revision == 1 ? 300 : 200, entries);
+    }
+
+    Scan scan = store.scan(1l, false);
+    assertTrue(scan.next());
+    assertNotNull(scan.getKey());
+    assertNull(scan.getValue());
+    scan.close();
+
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  @Test
+  public void testRemovingWhileIterating() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testRemovingWhileIterating"));
+    configuration.setValueCodec(null);
+
+    Store store = new Store(configuration);
+    store.open();
+    Accessor accessor = store.borrowAccessor();
+    for (int i = 0; i < 3; i++) {
+      assertNull(store.put(accessor, ("key" + i).getBytes("UTF8"), i, value(i), 1l));
+    }
+    Cursor<KeysPartition.Posting> keys = store.keys();
+    KeysPartition.Posting posting = new KeysPartition.Posting();
+    assertNotNull(keys.next(accessor, posting, Long.MAX_VALUE));
+    assertEquals("key0", new String(posting.getBytes(), "UTF8"));
+
+    // written after the block of postings was read
+    store.remove(accessor, "key2".getBytes("UTF8"), 2, 2l);
+    assertNotNull(keys.next(accessor, posting, Long.MAX_VALUE));
+    assertEquals("key1", new String(posting.getBytes(), "UTF8"));
+    assertNull(keys.next(accessor, posting, Long.MAX_VALUE));
+
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  @Test
+  public void testSkippingPartitionsCreatedAfterRevision() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testSkippingPartitionsCreatedAfterRevision"));
+    configuration.setInitialCapacity(100);
+    configuration.setKeysPartitionByteSize(4000);
+    configuration.setValueCodec(null);
+
+    Store store = new Store(configuration);
+    store.open();
+    Accessor accessor = store.borrowAccessor();
+    for (int i = 0; i < 500; i++) {
+      assertNull(store.put(accessor, ("key" + i).getBytes("UTF8"), i, value(i), 1l + i / 100));
+    }
+    int partitions = 0;
+    long[] lowestRevisions = new long[100];
+    while (new File(configuration.getDataPath(), "0000000" + partitions + ".k").exists()) {
+      lowestRevisions[partitions] = store.getPartitionAllocator().getLowestRevision(accessor.getKeysPartition(partitions, false));
+      partitions++;
+    }
+    assertTrue(partitions > 3);
+    assertEquals(1l, lowestRevisions[0]);
+    assertTrue(lowestRevisions[partitions - 1] > 1l);
+    for (int partition = 1; partition < partitions; partition++) {
+      assertTrue(lowestRevisions[partition] >= lowestRevisions[partition - 1]);
+    }
+    assertScan(store, 5);
+    store.returnAccessor(accessor);
+    store.close();
+
+    // persisted in the header
+    KeysPartition keysPartition = new KeysPartition(configuration.getDataPath(), partitions - 2, "rw", configuration.getLockFactory(), configuration.getFileAccessFactory());
+    keysPartition.open();
+    assertEquals(lowestRevisions[partitions - 2], keysPartition.readLowestRevision());
+    // reconstructed from the postings when the header was left behind by a crash
+    keysPartition.writeHeader(KeysPartition.HEADER_BYTE_SIZE, configuration.getKeysPartitionByteSize() - KeysPartition.HEADER_BYTE_SIZE, Long.MAX_VALUE);
+    keysPartition.close();
+
+    store = new Store(configuration);
+    store.open();
+    accessor = store.borrowAccessor();
+    assertEquals(lowestRevisions[partitions - 2], store.getPartitionAllocator().getLowestRevision(accessor.getKeysPartition(partitions - 2, false)));
+    assertScan(store, 5);
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  private void assertScan(Store store, int revisions) throws Exception {
+    for (long revision = 0; revision <= revisions; revision++) {
+      Scan scan = store.scan(revision, false);
+      int entries = 0;
+      while (scan.next()) {
+        assertTrue(Integer.parseInt(new String(scan.getKey(), "UTF8").substring(3)) < revision * 100);
+        entries++;
+      }
+      assertEquals(revision * 100, entries);
+    }
+  }
+
+  private static byte[] key(int i) throws Exception {
+    // some keys larger than a block
+    return (i % 10 == 0 ? "a much longer key than most other keys, longer than a scan block " + i : "key" + i).getBytes("UTF8");
+  }
+
+  private static byte[] value(int i) throws Exception {
+    // some values chunked
+    byte[] value = new byte[i % 50 == 0 ? 2000 + i : i];
+    Arrays.fill(value, (byte) i);
+    return value;
+  }
+
+}
@@ -24,7 +24,11 @@ import org.atri.platodb.store.data.platotrie.HashCodesPartition;
 import org.atri.platodb.store.data.platotrie.KeysPartition;
 import org.atri.platodb.store.data.platotrie.ValuesPartition;
 import org.atri.platodb.store.data.FileHandler;
+import org.atri.platodb.store.data.MemoryMappedFileAccessFactory;
+import org.atri.platodb.store.data.PositionalFileAccessFactory;
+import org.atri.platodb.store.data.RandomAccessFileAccessFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Random;
@@ -39,8 +43,227 @@ public class TestStoreAccessors extends StoreTest {
 
   @Test
   public void testSimple() throws IOException {
-
     Configuration configuration = new Configuration(getDirectory("testStoreAccessors"));
+    assertTrue(configuration.getFileAccessFactory() instanceof MemoryMappedFileAccessFactory);
+    assertTrue(configuration.isFormattingSparse());
+    testSimple(configuration);
+  }
+
+  @Test
+  public void testOpenedOnce() throws IOException {
+    Configuration configuration = new Configuration(getDirectory("testStoreAccessorsOpenedOnce"));
+    Store store = new Store(configuration);
+    store.open();
+    try {
+      new Store(configuration).open();
+      fail("A store must not be opened by two store instances");
+    } catch (StoreException e) {
+      // all good
+    }
+    store.close();
+    assertFalse(new File(configuration.getDataPath(), Store.OPEN_LOCK_NAME).exists());
+
+    store = new Store(configuration);
+    store.open();
+    store.close();
+  }
+
+  @Test
+  public void testFormattingNotSparse() throws IOException {
+    Configuration configuration = new Configuration(getDirectory("testStoreAccessorsNotSparse"));
+    configuration.setFormattingSparse(false);
+    testSimple(configuration);
+  }
+
+  @Test
+  public void testRandomAccessFileBackend() throws IOException {
+    Configuration configuration = new Configuration(getDirectory("testStoreAccessorsRandomAccessFile"));
+    configuration.setFileAccessFactory(new RandomAccessFileAccessFactory());
+    testSimple(configuration);
+  }
+
+  @Test
+  public void testPositionalBackend() throws IOException {
+    Configuration configuration = new Configuration(getDirectory("testStoreAccessorsPositional"));
+    PositionalFileAccessFactory fileAccessFactory = new PositionalFileAccessFactory();
+    configuration.setFileAccessFactory(fileAccessFactory);
+    testSimple(configuration);
+    assertEquals(0, fileAccessFactory.getOpenChannelsCount());
+
+    // accessors share file channels and see each others writes
+    Store store = new Store(configuration);
+    store.open();
+    Accessor writer = store.borrowAccessor();
+    Accessor reader = store.borrowAccessor();
+    assertNotSame(writer, reader);
+
+    byte[] key = new byte[10];
+    Arrays.fill(key, (byte) 7);
+    byte[] value = new byte[10000];
+    Arrays.fill(value, (byte) 8);
+
+    assertNull(store.get(writer, key, 13l));
+    store.put(writer, key, 13l, value, 1l);
+    assertTrue(Arrays.equals(value, store.get(reader, key, 13l)));
+
+    int openChannels = fileAccessFactory.getOpenChannelsCount();
+    assertTrue(openChannels > 0);
+    assertTrue(openChannels <= store.getConfiguration().getDataPath().list().length);
+
+    store.returnAccessor(reader);
+    store.returnAccessor(writer);
+    store.close();
+    assertEquals(0, fileAccessFactory.getOpenChannelsCount());
+  }
+
+  @Test
+  public void testPartitionPreallocation() throws IOException {
+    Configuration configuration = new Configuration(getDirectory("testStoreAccessorsPreallocation"));
+    configuration.setInitialCapacity(100);
+    configuration.setHashCodesPartitionByteSize(10000);
+    configuration.setKeysPartitionByteSize(10000);
+    configuration.setValuesPartitionByteSize(10000);
+    configuration.setFormattingSparse(false);
+    // the values compress too well to fill the partitions
+    configuration.setValueCodec(null);
+    assertTrue(configuration.isPreallocatingPartitions());
+
+    Store store = new Store(configuration);
+    store.open();
+    assertNotNull(store.getPartitionPreallocator());
+
+    Accessor accessor = store.borrowAccessor();
+    byte[] value = new byte[1000];
+    for (int i = 0; i < 100; i++) {
+      Arrays.fill(value, (byte) i);
+      assertNull(store.put(accessor, new byte[]{(byte) i}, i, value, 1l));
+    }
+    for (int i = 0; i < 100; i++) {
+      Arrays.fill(value, (byte) i);
+      assertTrue(Arrays.equals(value, store.get(accessor, new byte[]{(byte) i}, i)));
+    }
+    store.returnAccessor(accessor);
+    store.close();
+    assertNull(store.getPartitionPreallocator());
+
+    int valuesPartitions = 0;
+    for (String name : configuration.getDataPath().list()) {
+      assertFalse("Unclaimed preallocation left behind: " + name, name.endsWith(".preallocated"));
+      if (name.endsWith(".v")) {
+        valuesPartitions++;
+      }
+    }
+    assertTrue(valuesPartitions > 10);
+  }
+
+  @Test
+  public void testGrowingPartitions() throws IOException {
+    Configuration configuration = new Configuration(getDirectory("testStoreAccessorsGrowing"));
+    configuration.setInitialCapacity(100);
+    configuration.setPartitionExtentByteSize(4096);
+    configuration.setValuesPartitionByteSize(Configuration.megaByte);
+    configuration.setFormattingSparse(false);
+    configuration.setValueCodec(null);
+
+    Store store = new Store(configuration);
+    store.open();
+    Accessor accessor = store.borrowAccessor();
+
+    File valuesPartition = new File(configuration.getDataPath(), "00000000.v");
+    assertEquals(4096, valuesPartition.length());
+
+    byte[] value = new byte[1000];
+    for (int i = 0; i < 100; i++) {
+      Arrays.fill(value, (byte) i);
+      assertNull(store.put(accessor, new byte[]{(byte) i}, i, value, 1l));
+    }
+    for (int i = 0; i < 100; i++) {
+      Arrays.fill(value, (byte) i);
+      assertTrue(Arrays.equals(value, store.get(accessor, new byte[]{(byte) i}, i)));
+    }
+
+    assertEquals(0, valuesPartition.length() % 4096);
+    assertTrue(valuesPartition.length() > 100000);
+    assertTrue(valuesPartition.length() < Configuration.megaByte);
+    assertFalse(new File(configuration.getDataPath(), "00000001.v").exists());
+
+    // the cursor stops at the end of the used part of the partition
+    Cursor<KeysPartition.Posting> cursor = store.keys();
+    KeysPartition.Posting posting = new KeysPartition.Posting();
+    int keys = 0;
+    while (cursor.next(accessor, posting, 1l) != null) {
+      keys++;
+    }
+    assertEquals(100, keys);
+
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  @Test
+  public void testPartitionAllocator() throws IOException {
+    Configuration configuration = new Configuration(getDirectory("testStoreAccessorsPartitionAllocator"));
+    configuration.setInitialCapacity(100);
+    configuration.setValueCodec(null);
+
+    Store store = new Store(configuration);
+    store.open();
+    Accessor accessor = store.borrowAccessor();
+    byte[] value = new byte[100];
+    for (int i = 0; i < 50; i++) {
+      Arrays.fill(value, (byte) i);
+      assertNull(store.put(accessor, new byte[]{(byte) i}, i, value, 1l));
+    }
+
+    // headers are not written for each posting
+    ValuesPartition.Header header = new ValuesPartition.Header();
+    accessor.getValuesPartition(0).readHeader(header);
+    assertEquals(ValuesPartition.HEADER_BYTE_SIZE, header.getNextPostingOffset());
+    long nextPostingOffset = store.getPartitionAllocator().getNextPostingOffset(accessor.getValuesPartition(0));
+    assertTrue(nextPostingOffset > ValuesPartition.HEADER_BYTE_SIZE + 50 * 100);
+
+    store.returnAccessor(accessor);
+    store.close();
+
+    // but when the store is closed
+    ValuesPartition valuesPartition = new ValuesPartition(configuration.getDataPath(), 0, "rw", configuration.getLockFactory(), configuration.getFileAccessFactory());
+    valuesPartition.open();
+    valuesPartition.readHeader(header);
+    assertEquals(nextPostingOffset, header.getNextPostingOffset());
+    assertEquals(configuration.getValuesPartitionByteSize() - nextPostingOffset, header.getBytesLeft());
+
+    // headers left behind by a crash are reconstructed
+    valuesPartition.writeHeader(ValuesPartition.HEADER_BYTE_SIZE, configuration.getValuesPartitionByteSize() - ValuesPartition.HEADER_BYTE_SIZE, Long.MAX_VALUE);
+    valuesPartition.close();
+    KeysPartition keysPartition = new KeysPartition(configuration.getDataPath(), 0, "rw", configuration.getLockFactory(), configuration.getFileAccessFactory());
+    keysPartition.open();
+    keysPartition.writeHeader(KeysPartition.HEADER_BYTE_SIZE, configuration.getKeysPartitionByteSize() - KeysPartition.HEADER_BYTE_SIZE, Long.MAX_VALUE);
+    keysPartition.close();
+
+    store = new Store(configuration);
+    store.open();
+    accessor = store.borrowAccessor();
+    for (int i = 50; i < 100; i++) {
+      Arrays.fill(value, (byte) i);
+      assertNull(store.put(accessor, new byte[]{(byte) i}, i, value, 2l));
+    }
+    for (int i = 0; i < 100; i++) {
+      Arrays.fill(value, (byte) i);
+      assertTrue(Arrays.equals(value, store.get(accessor, new byte[]{(byte) i}, i)));
+    }
+    Cursor<KeysPartition.Posting> cursor = store.keys();
+    KeysPartition.Posting posting = new KeysPartition.Posting();
+    int keys = 0;
+    while (cursor.next(accessor, posting, 2l) != null) {
+      keys++;
+    }
+    assertEquals(100, keys);
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  private void testSimple(Configuration configuration) throws IOException {
+
     Store store = new Store(configuration);
     store.open();
 
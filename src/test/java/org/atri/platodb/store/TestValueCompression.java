@@ -0,0 +1,172 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.junit.Test;
+import org.atri.platodb.store.codec.Codec;
+import org.atri.platodb.store.codec.DeflateCodec;
+import org.atri.platodb.store.codec.LZFCodec;
+import org.atri.platodb.store.data.platotrie.KeysPartition;
+import org.atri.platodb.store.data.platotrie.ValuesPartition;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @author atri
+ * @since 2017-aug-27 16:48:05
+ */
+public class TestValueCompression extends StoreTest {
+
+  @Test
+  public void testCodecs() throws Exception {
+    Random random = new Random(0);
+    byte[] text = repeat("The quick brown fox jumps over the lazy dog. ", 300);
+    byte[] zeros = new byte[100000];
+    byte[] noise = new byte[5000];
+    random.nextBytes(noise);
+    byte[] mixed = new byte[20000];
+    for (int i = 0; i < mixed.length; i++) {
+      mixed[i] = (byte) (random.nextInt(4) + (i % 97 == 0 ? random.nextInt(256) : 0));
+    }
+
+    for (Codec codec : new Codec[]{new LZFCodec(), new DeflateCodec()}) {
+      assertSame(codec.getClass(), Codec.getCodec(codec.getId()).getClass());
+      for (byte[] data : new byte[][]{text, zeros, mixed}) {
+        byte[] compressed = codec.compress(data, 0, data.length);
+        assertNotNull(compressed);
+        assertTrue(compressed.length < data.length);
+        assertTrue(Arrays.equals(data, codec.decompress(compressed, 0, compressed.length)));
+      }
+
+      // offsets
+      byte[] padded = new byte[text.length + 20];
+      System.arraycopy(text, 0, padded, 10, text.length);
+      byte[] compressed = codec.compress(padded, 10, text.length);
+      byte[] paddedCompressed = new byte[compressed.length + 7];
+      System.arraycopy(compressed, 0, paddedCompressed, 3, compressed.length);
+      assertTrue(Arrays.equals(text, codec.decompress(paddedCompressed, 3, compressed.length)));
+
+      assertNull("Random data should not compress", codec.compress(noise, 0, noise.length));
+    }
+  }
+
+  @Test
+  public void testCompressedValues() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testCompressedValues"));
+    assertTrue(configuration.getValueCodec() instanceof LZFCodec);
+    configuration.setChunkedValueThresholdByteSize(10000);
+    configuration.setValueChunkByteSize(3000);
+
+    byte[] tiny = repeat("a", 100);
+    byte[] text = repeat("The quick brown fox jumps over the lazy dog. ", 100);
+    byte[] large = repeat("Pack my box with five dozen liquor jugs. ", 1000);
+    byte[] noise = new byte[1000];
+    new Random(0).nextBytes(noise);
+
+    Store store = new Store(configuration);
+    store.open();
+    Accessor accessor = store.borrowAccessor();
+
+    store.put(accessor, "tiny".getBytes("UTF8"), 1l, tiny, 1l);
+    store.put(accessor, "text".getBytes("UTF8"), 2l, text, 2l);
+    store.put(accessor, "large".getBytes("UTF8"), 3l, large, 3l);
+    store.put(accessor, "noise".getBytes("UTF8"), 4l, noise, 4l);
+
+    ValuesPartition.Posting posting = readValuePosting(store, accessor, "tiny");
+    assertEquals("Values below the threshold should not be compressed", 0, posting.getCodecId());
+    posting = readValuePosting(store, accessor, "text");
+    assertEquals(LZFCodec.ID, posting.getCodecId());
+    assertTrue(posting.getBytesLength() < text.length);
+    posting = readValuePosting(store, accessor, "noise");
+    assertEquals(0, posting.getCodecId());
+    assertEquals(noise.length, posting.getBytesLength());
+
+    posting = readValuePosting(store, accessor, "large");
+    assertTrue(posting.isChunkManifest());
+    assertEquals(0, posting.getCodecId());
+    ValuesPartition.ChunkManifest manifest = ValuesPartition.ChunkManifest.fromBytes(posting.getBytes());
+    assertEquals((long) large.length, manifest.getValueByteLength());
+    ValuesPartition.Posting chunk = new ValuesPartition.Posting();
+    accessor.getValuesPartition(manifest.getPartition(0)).readPosting(chunk, manifest.getOffset(0));
+    assertEquals(LZFCodec.ID, chunk.getCodecId());
+    assertTrue(chunk.getBytesLength() < manifest.getLength(0));
+
+    store.returnAccessor(accessor);
+    store.close();
+
+    // values written using another codec are still readable
+    configuration.setValueCodec(new DeflateCodec());
+    store = new Store(configuration);
+    store.open();
+    accessor = store.borrowAccessor();
+
+    byte[] deflated = repeat("Sphinx of black quartz, judge my vow. ", 100);
+    store.put(accessor, "deflated".getBytes("UTF8"), 5l, deflated, 5l);
+    assertEquals(DeflateCodec.ID, readValuePosting(store, accessor, "deflated").getCodecId());
+
+    assertTrue(Arrays.equals(tiny, store.get(accessor, "tiny".getBytes("UTF8"), 1l)));
+    assertTrue(Arrays.equals(text, store.get(accessor, "text".getBytes("UTF8"), 2l)));
+    assertTrue(Arrays.equals(large, store.get(accessor, "large".getBytes("UTF8"), 3l)));
+    assertTrue(Arrays.equals(large, readFully(store.getInputStream(accessor, "large".getBytes("UTF8"), 3l))));
+    assertTrue(Arrays.equals(noise, store.get(accessor, "noise".getBytes("UTF8"), 4l)));
+    assertTrue(Arrays.equals(deflated, store.get(accessor, "deflated".getBytes("UTF8"), 5l)));
+    assertTrue(Arrays.equals(text, store.remove(accessor, "text".getBytes("UTF8"), 2l, 6l)));
+
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  private byte[] repeat(String text, int times) throws IOException {
+    StringBuilder sb = new StringBuilder(text.length() * times);
+    for (int i = 0; i < times; i++) {
+      sb.append(text);
+    }
+    return sb.toString().getBytes("UTF8");
+  }
+
+  private ValuesPartition.Posting readValuePosting(Store store, Accessor accessor, String key) throws IOException {
+    Cursor<KeysPartition.Posting> cursor = store.keys();
+    KeysPartition.Posting keyPosting = new KeysPartition.Posting();
+    while (cursor.next(accessor, keyPosting, Long.MAX_VALUE) != null) {
+      if (Arrays.equals(key.getBytes("UTF8"), keyPosting.getBytes())) {
+        ValuesPartition.Posting valuePosting = new ValuesPartition.Posting();
+        accessor.getValuesPartition(keyPosting.getValuePostingPartition()).readPosting(valuePosting, keyPosting.getValuePostingPartitionOffset());
+        return valuePosting;
+      }
+    }
+    fail("No such key");
+    return null;
+  }
+
+  private byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[1000];
+    int read;
+    while ((read = in.read(buf)) > -1) {
+      out.write(buf, 0, read);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+}
@@ -0,0 +1,251 @@
+package org.atri.platodb.store;
+
+/*
+ *@author atri
+ * Licensed to PlatoDB
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *
+ *.
+ */
+
+
+import org.junit.Test;
+import org.atri.platodb.store.data.platotrie.KeysPartition;
+import org.atri.platodb.store.lock.SingleInstanceLockFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * @author atri
+ * @since 2017-sep-02 18:40:12
+ */
+public class TestWriteAheadLog extends StoreTest {
+
+  @Test
+  public void testWriteAheadLog() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testWriteAheadLog"));
+    configuration.setWriteAheadLogging(true);
+    configuration.setWriteAheadLogCheckpointByteSize(10000);
+
+    Store store = new Store(configuration);
+    store.open();
+    assertNotNull(store.getWriteAheadLog());
+    Accessor accessor = store.borrowAccessor();
+
+    for (int i = 0; i < 1000; i++) {
+      assertNull(store.put(accessor, key(i), i, value(i, 0), 1l));
+      assertTrue(Arrays.equals(value(i, 0), store.get(accessor, key(i), i)));
+    }
+    for (int i = 0; i < 1000; i += 2) {
+      assertTrue(Arrays.equals(value(i, 0), store.put(accessor, key(i), i, value(i, 1), 2l)));
+    }
+    for (int i = 0; i < 1000; i += 3) {
+      assertTrue(Arrays.equals(value(i, i % 2 == 0 ? 1 : 0), store.remove(accessor, key(i), i, 3l)));
+      assertFalse(store.containsKey(accessor, key(i), i));
+    }
+    try {
+      store.remove(accessor, key(0), 0, 3l);
+      fail("Removed key should not be removed again");
+    } catch (NoSuchElementException e) {
+      // all good
+    }
+
+    // checkpointed along the way
+    assertTrue(WriteAheadLog.getFile(configuration.getDataPath()).length() < 100000);
+
+    assertStore(store, accessor);
+
+    store.returnAccessor(accessor);
+    store.close();
+    assertEquals(WriteAheadLog.HEADER_BYTE_SIZE, WriteAheadLog.getFile(configuration.getDataPath()).length());
+
+    store = new Store(configuration);
+    store.open();
+    accessor = store.borrowAccessor();
+    assertStore(store, accessor);
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  private void assertStore(Store store, Accessor accessor) throws Exception {
+    for (int i = 0; i < 1000; i++) {
+      if (i % 3 == 0) {
+        assertFalse(store.containsKey(accessor, key(i), i));
+        assertNull(store.get(accessor, key(i), i));
+      } else {
+        assertTrue(Arrays.equals(value(i, i % 2 == 0 ? 1 : 0), store.get(accessor, key(i), i)));
+      }
+    }
+
+    int keys = 0;
+    Cursor<KeysPartition.Posting> cursor = store.keys();
+    KeysPartition.Posting posting = new KeysPartition.Posting();
+    while (cursor.next(accessor, posting, Long.MAX_VALUE) != null) {
+      keys++;
+    }
+    assertEquals(666, keys);
+  }
+
+  @Test
+  public void testStreamingOverPendingPut() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testWriteAheadLogStreaming"));
+    configuration.setWriteAheadLogging(true);
+    configuration.setLockFactory(new SingleInstanceLockFactory());
+
+    Store store = new Store(configuration);
+    store.open();
+    Accessor accessor = store.borrowAccessor();
+    for (int i = 0; i < 300; i++) {
+      // the logged put is still pending when the value is streamed in place
+      store.put(accessor, key(i), i, value(i, 0), 1l + 2 * i);
+      store.put(accessor, key(i), i, new ByteArrayInputStream(value(i, 1)), 2l + 2 * i);
+    }
+    assertLivePostings(store, accessor);
+    store.returnAccessor(accessor);
+    store.close();
+
+    store = new Store(configuration);
+    store.open();
+    accessor = store.borrowAccessor();
+    assertLivePostings(store, accessor);
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  private void assertLivePostings(Store store, Accessor accessor) throws Exception {
+    Map<String, Integer> postings = new HashMap<String, Integer>();
+    Cursor<KeysPartition.Posting> cursor = store.keys();
+    KeysPartition.Posting posting = new KeysPartition.Posting();
+    while (cursor.next(accessor, posting, Long.MAX_VALUE) != null) {
+      String key = new String(posting.getBytes(), "UTF8");
+      postings.put(key, postings.containsKey(key) ? postings.get(key) + 1 : 1);
+    }
+    assertEquals(300, postings.size());
+    for (int i = 0; i < 300; i++) {
+      assertEquals("key" + i, Integer.valueOf(1), postings.get("key" + i));
+      assertTrue(Arrays.equals(value(i, 1), store.get(accessor, key(i), i)));
+    }
+  }
+
+  @Test
+  public void testConcurrentWritersWithFileLock() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testWriteAheadLogConcurrentWriters"));
+    configuration.setWriteAheadLogging(true);
+    configuration.setWriteAheadLogCheckpointByteSize(10000);
+    // rehashed in the background while written
+    configuration.setInitialCapacity(100);
+    configuration.setAutomaticRehashing(true);
+
+    final Store store = new Store(configuration);
+    store.open();
+    final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+    Thread[] writers = new Thread[4];
+    for (int t = 0; t < writers.length; t++) {
+      final int writer = t;
+      writers[t] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            Accessor accessor = store.borrowAccessor();
+            for (int i = writer; i < 2000; i += 4) {
+              store.put(accessor, key(i), i, value(i, 0), 1l);
+              // in place writes contend with the applier for the store write lock
+              store.put(accessor, key(i), i, new ByteArrayInputStream(value(i, 1)), 2l);
+            }
+            store.returnAccessor(accessor);
+          } catch (Exception e) {
+            failures.add(e);
+          }
+        }
+      });
+      writers[t].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    assertEquals(Collections.<Exception>emptyList(), failures);
+    Accessor accessor = store.borrowAccessor();
+    for (int i = 0; i < 2000; i++) {
+      assertTrue(Arrays.equals(value(i, 1), store.get(accessor, key(i), i)));
+    }
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  @Test
+  public void testReplay() throws Exception {
+    Configuration configuration = new Configuration(getDirectory("testWriteAheadLogReplay"));
+    configuration.setWriteAheadLogging(true);
+
+    Store store = new Store(configuration);
+    store.open();
+    Accessor accessor = store.borrowAccessor();
+    store.put(accessor, key(0), 0, value(0, 0), 1l);
+    store.put(accessor, key(1), 1, value(1, 0), 1l);
+    store.returnAccessor(accessor);
+    store.close();
+
+    // records left behind by a crash, the last one torn
+    RandomAccessFile wal = new RandomAccessFile(WriteAheadLog.getFile(configuration.getDataPath()), "rw");
+    wal.seek(wal.length());
+    writeRecord(wal, new WriteAheadLog.Record(WriteAheadLog.Record.TYPE_PUT, 2l, 2, key(2), value(2, 0)));
+    writeRecord(wal, new WriteAheadLog.Record(WriteAheadLog.Record.TYPE_REMOVE, 3l, 0, key(0), null));
+    writeRecord(wal, new WriteAheadLog.Record(WriteAheadLog.Record.TYPE_PUT, 3l, 1, key(1), value(1, 1)));
+    // applied in full before the crash
+    writeRecord(wal, new WriteAheadLog.Record(WriteAheadLog.Record.TYPE_PUT, 3l, 1, key(1), value(1, 1)));
+    byte[] torn = new WriteAheadLog.Record(WriteAheadLog.Record.TYPE_PUT, 4l, 3, key(3), value(3, 0)).toBytes();
+    wal.writeInt(torn.length);
+    wal.writeInt(0);
+    wal.write(torn, 0, torn.length / 2);
+    wal.close();
+
+    // replayed even though write-ahead logging is no longer enabled
+    configuration.setWriteAheadLogging(false);
+    store = new Store(configuration);
+    store.open();
+    assertNull(store.getWriteAheadLog());
+    assertFalse(WriteAheadLog.getFile(configuration.getDataPath()).exists());
+    accessor = store.borrowAccessor();
+    assertFalse(store.containsKey(accessor, key(0), 0));
+    assertTrue(Arrays.equals(value(1, 1), store.get(accessor, key(1), 1)));
+    assertTrue(Arrays.equals(value(2, 0), store.get(accessor, key(2), 2)));
+    assertFalse(store.containsKey(accessor, key(3), 3));
+    store.returnAccessor(accessor);
+    store.close();
+  }
+
+  private void writeRecord(RandomAccessFile wal, WriteAheadLog.Record record) throws Exception {
+    byte[] bytes = record.toBytes();
+    CRC32 crc = new CRC32();
+    crc.update(bytes);
+    wal.writeInt(bytes.length);
+    wal.writeInt((int) crc.getValue());
+    wal.write(bytes);
+  }
+
+  private static byte[] key(int i) throws Exception {
+    return ("key" + i).getBytes("UTF8");
+  }
+
+  private static byte[] value(int i, int version) throws Exception {
+    return ("value " + i + " version " + version).getBytes("UTF8");
+  }
+
+}